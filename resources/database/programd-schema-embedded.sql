@@ -0,0 +1,160 @@
+-- The Program D schema for embedded databases (such as H2 and HSQLDB),
+-- equivalent to programd-schema.sql (which is for MySQL).
+-- "USER" and "VALUE" are quoted because they are reserved words in standard SQL.
+-- The unit tests run it against HSQLDB (lib/hsqldb-2.3.6.jar).
+
+
+DROP TABLE IF EXISTS bot_user;
+DROP TABLE IF EXISTS bot_file;
+DROP TABLE IF EXISTS botidnode_file;
+DROP TABLE IF EXISTS exchange;
+DROP TABLE IF EXISTS file_node;
+DROP TABLE IF EXISTS node_template;
+DROP TABLE IF EXISTS edge;
+DROP TABLE IF EXISTS predicate;
+DROP TABLE IF EXISTS template;
+DROP TABLE IF EXISTS node;
+DROP TABLE IF EXISTS "USER";
+DROP TABLE IF EXISTS file;
+DROP TABLE IF EXISTS bot;
+
+
+-- -----------------------------------------------------
+-- Table bot
+-- -----------------------------------------------------
+CREATE TABLE bot (
+  id INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+  label VARCHAR(128) NOT NULL
+);
+
+
+-- -----------------------------------------------------
+-- Table file
+-- -----------------------------------------------------
+CREATE TABLE file (
+  id INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+  path VARCHAR(512) NOT NULL,
+  last_loaded TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL
+);
+
+
+-- -----------------------------------------------------
+-- Table bot_file
+-- -----------------------------------------------------
+CREATE TABLE bot_file (
+  bot_id INT NOT NULL REFERENCES bot (id),
+  file_id INT NOT NULL REFERENCES file (id)
+);
+CREATE INDEX bot_file_bot_id ON bot_file (bot_id);
+CREATE INDEX bot_file_file_id ON bot_file (file_id);
+
+
+-- -----------------------------------------------------
+-- Table "USER"
+-- -----------------------------------------------------
+CREATE TABLE "USER" (
+  id INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+  name VARCHAR(128) NOT NULL,
+  password VARCHAR(128) DEFAULT NULL
+);
+
+
+-- -----------------------------------------------------
+-- Table bot_user
+-- -----------------------------------------------------
+CREATE TABLE bot_user (
+  bot_id INT NOT NULL REFERENCES bot (id),
+  user_id INT NOT NULL REFERENCES "USER" (id)
+);
+CREATE INDEX bot_user_bot_id ON bot_user (bot_id);
+CREATE INDEX bot_user_user_id ON bot_user (user_id);
+
+
+-- -----------------------------------------------------
+-- Table botidnode_file
+-- -----------------------------------------------------
+CREATE TABLE botidnode_file (
+  botidnode_id INT NOT NULL,
+  file_id INT NOT NULL REFERENCES file (id)
+);
+CREATE INDEX botidnode_file_botidnode_id ON botidnode_file (botidnode_id);
+CREATE INDEX botidnode_file_file_id ON botidnode_file (file_id);
+
+
+-- -----------------------------------------------------
+-- Table node
+-- -----------------------------------------------------
+CREATE TABLE node (
+  id INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY
+);
+
+
+-- -----------------------------------------------------
+-- Table edge
+-- -----------------------------------------------------
+CREATE TABLE edge (
+  from_node_id INT NOT NULL REFERENCES node (id),
+  label VARCHAR(1024) DEFAULT NULL,
+  to_node_id INT NOT NULL REFERENCES node (id)
+);
+CREATE INDEX edge_from_node_id_to_node_id ON edge (from_node_id, to_node_id);
+
+
+-- -----------------------------------------------------
+-- Table exchange
+-- -----------------------------------------------------
+CREATE TABLE exchange (
+  id INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+  timestamp TIMESTAMP NOT NULL,
+  user_id INT NOT NULL REFERENCES "USER" (id),
+  bot_id INT NOT NULL REFERENCES bot (id),
+  input CLOB NOT NULL,
+  response CLOB NOT NULL
+);
+CREATE INDEX exchange_user_id ON exchange (user_id);
+CREATE INDEX exchange_bot_id ON exchange (bot_id);
+
+
+-- -----------------------------------------------------
+-- Table file_node
+-- -----------------------------------------------------
+CREATE TABLE file_node (
+  file_id INT NOT NULL REFERENCES file (id),
+  node_id INT NOT NULL REFERENCES node (id)
+);
+CREATE INDEX file_node_file_id ON file_node (file_id);
+
+
+-- -----------------------------------------------------
+-- Table template
+-- -----------------------------------------------------
+CREATE TABLE template (
+  id INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,
+  hash CHAR(40) NOT NULL UNIQUE,
+  text CLOB DEFAULT NULL
+);
+
+
+-- -----------------------------------------------------
+-- Table node_template
+-- -----------------------------------------------------
+CREATE TABLE node_template (
+  node_id INT NOT NULL REFERENCES node (id),
+  template_id INT NOT NULL REFERENCES template (id),
+  template_hash CHAR(40) NOT NULL
+);
+CREATE INDEX node_template_template_id ON node_template (template_id);
+
+
+-- -----------------------------------------------------
+-- Table predicate
+-- -----------------------------------------------------
+CREATE TABLE predicate (
+  user_id INT NOT NULL REFERENCES "USER" (id),
+  bot_id INT NOT NULL REFERENCES bot (id),
+  name VARCHAR(128) NOT NULL,
+  "VALUE" CLOB NOT NULL,
+  CONSTRAINT unique_predicates UNIQUE (user_id, bot_id, name)
+);
+CREATE INDEX predicate_user_id ON predicate (user_id);
+CREATE INDEX predicate_bot_id ON predicate (bot_id);
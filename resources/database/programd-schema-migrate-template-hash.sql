@@ -0,0 +1,53 @@
+-- -----------------------------------------------------
+-- Brings a database made from an earlier programd-schema.sql up to date
+-- with templates stored by content hash: adds `template`.`hash` (the SHA-1
+-- of the text in UTF-8, as SlowDBNodemapper.hash() computes it) and
+-- `node_template`.`template_hash`, and merges templates with identical text.
+-- Run it once, with Program D stopped (see the db-migrate-template-hash
+-- target in build.xml).
+-- -----------------------------------------------------
+SET @OLD_SQL_MODE=@@SQL_MODE, SQL_MODE='TRADITIONAL';
+
+
+-- -----------------------------------------------------
+-- Hash every stored template.
+-- -----------------------------------------------------
+ALTER TABLE `template` ADD COLUMN `hash` CHAR(40) NULL DEFAULT NULL AFTER `id` ;
+
+UPDATE `template` SET `hash` = SHA1(CONVERT(COALESCE(`text`, '') USING utf8)) ;
+
+
+-- -----------------------------------------------------
+-- Point every node at the first of the templates identical to its own,
+-- then drop the others.
+-- -----------------------------------------------------
+UPDATE `node_template`
+  INNER JOIN `template` ON `template`.`id` = `node_template`.`template_id`
+  INNER JOIN (SELECT `hash`, MIN(`id`) AS `kept_id` FROM `template` GROUP BY `hash`) AS `kept`
+    ON `kept`.`hash` = `template`.`hash`
+  SET `node_template`.`template_id` = `kept`.`kept_id`
+  WHERE `node_template`.`template_id` <> `kept`.`kept_id` ;
+
+DELETE `template` FROM `template`
+  INNER JOIN (SELECT `hash`, MIN(`id`) AS `kept_id` FROM `template` GROUP BY `hash`) AS `kept`
+    ON `kept`.`hash` = `template`.`hash`
+  WHERE `template`.`id` <> `kept`.`kept_id` ;
+
+ALTER TABLE `template` MODIFY COLUMN `hash` CHAR(40) NOT NULL ,
+  ADD UNIQUE INDEX `hash` (`hash` ASC) ;
+
+
+-- -----------------------------------------------------
+-- Keep the hash of each node's template beside it.
+-- -----------------------------------------------------
+ALTER TABLE `node_template` ADD COLUMN `template_hash` CHAR(40) NULL DEFAULT NULL AFTER `template_id` ;
+
+UPDATE `node_template`
+  INNER JOIN `template` ON `template`.`id` = `node_template`.`template_id`
+  SET `node_template`.`template_hash` = `template`.`hash` ;
+
+ALTER TABLE `node_template` MODIFY COLUMN `template_hash` CHAR(40) NOT NULL ;
+
+
+
+SET SQL_MODE=@OLD_SQL_MODE;
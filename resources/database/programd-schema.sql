@@ -206,8 +206,10 @@ DROP TABLE IF EXISTS `template` ;
 
 CREATE  TABLE IF NOT EXISTS `template` (
   `id` INT(11) NOT NULL AUTO_INCREMENT ,
+  `hash` CHAR(40) NOT NULL ,
   `text` MEDIUMTEXT NULL DEFAULT NULL ,
-  PRIMARY KEY (`id`) )
+  PRIMARY KEY (`id`) ,
+  UNIQUE INDEX `hash` (`hash` ASC) )
 ENGINE = InnoDB
 DEFAULT CHARACTER SET = latin1;
 
@@ -220,6 +222,7 @@ DROP TABLE IF EXISTS `node_template` ;
 CREATE  TABLE IF NOT EXISTS `node_template` (
   `node_id` INT(11) NOT NULL ,
   `template_id` INT(11) NOT NULL ,
+  `template_hash` CHAR(40) NOT NULL ,
   INDEX `template_id` (`template_id` ASC) ,
   CONSTRAINT `fk_node_template_node1`
     FOREIGN KEY (`node_id` )
@@ -21,6 +21,7 @@ import java.util.Set;
 import java.util.regex.Pattern;
 
 import org.aitools.programd.graph.Nodemapper;
+import org.aitools.programd.predicates.PredicateCache;
 import org.aitools.programd.predicates.PredicateInfo;
 import org.aitools.programd.predicates.PredicateMap;
 import org.aitools.programd.processor.Processor;
@@ -64,7 +65,7 @@ public class Bot {
   private Pattern sentenceSplitterPattern;
 
   /** Holds cached predicates, keyed by userid. */
-  private Map<String, PredicateMap> predicateCache = Collections.synchronizedMap(new HashMap<String, PredicateMap>());
+  private PredicateCache predicateCache = new PredicateCache();
 
   /** The page to use for this bot when communicating via the servlet interface. */
   private String servletPage = "";
@@ -189,7 +190,7 @@ public class Bot {
    * 
    * @return the predicate cache
    */
-  public Map<String, PredicateMap> getPredicateCache() {
+  public PredicateCache getPredicateCache() {
     return this.predicateCache;
   }
 
@@ -276,19 +277,7 @@ public class Bot {
    * @return the map of predicates for the given userid
    */
   public PredicateMap predicatesFor(String userid) {
-    PredicateMap userPredicates;
-
-    // Find out if any predicates for this userid are cached.
-    if (!this.predicateCache.containsKey(userid)) {
-      // Create them if not.
-      userPredicates = new PredicateMap();
-      this.predicateCache.put(userid, userPredicates);
-    }
-    else {
-      userPredicates = this.predicateCache.get(userid);
-      assert userPredicates != null : "userPredicates is null!";
-    }
-    return userPredicates;
+    return this.predicateCache.predicatesFor(userid);
   }
 
   /**
@@ -22,13 +22,20 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.aitools.programd.graph.Graphmapper;
 import org.aitools.programd.graph.Match;
 import org.aitools.programd.interfaces.ConsoleStreamAppender;
 import org.aitools.programd.interpreter.Interpreter;
-import org.aitools.programd.logging.ChatLogEvent;
+import org.aitools.programd.logging.ChatLogWriter;
+import org.aitools.programd.logging.GossipWriter;
 import org.aitools.programd.parser.BotsConfigurationFileParser;
+import org.aitools.programd.parser.ReductionCache;
+import org.aitools.programd.parser.TemplateAnalyzer;
 import org.aitools.programd.parser.TemplateParser;
 import org.aitools.programd.predicates.PredicateManager;
 import org.aitools.programd.processor.aiml.AIMLProcessorRegistry;
@@ -118,6 +125,9 @@ public class Core {
   /** The AIML processor registry. */
   private AIMLProcessorRegistry _aimlProcessorRegistry;
 
+  /** The template analyzer. */
+  private TemplateAnalyzer _templateAnalyzer = new TemplateAnalyzer();
+
   /** An AIMLWatcher. */
   private AIMLWatcher _aimlWatcher;
 
@@ -125,7 +135,13 @@ public class Core {
   private Interpreter _interpreter;
 
   /** The database connection manager (only initialized if database is used). */
-  private DBConnectionManager _dbConnectionManager;
+  private volatile DBConnectionManager _dbConnectionManager;
+
+  /** The writer of the chat log. */
+  private ChatLogWriter _chatLogWriter;
+
+  /** The writer of gossip. */
+  private GossipWriter _gossipWriter;
 
   /** The logger for the Core. */
   private Logger _logger = LogManager.getLogger("programd");
@@ -157,9 +173,36 @@ public class Core {
   /** A counter for tracking average response time. */
   protected float _avgResponseTime = 0;
 
+  /** The total number of <code>srai</code> reductions skipped because the graph had collapsed them at load time. */
+  protected long _reductionsSkipped = 0;
+
+  /** The total number of <code>srai</code> reductions answered from the reductions remembered within a response. */
+  protected long _reductionsRemembered = 0;
+
+  /** Whether a batch of loading is in progress (in which case graph optimization waits until it is done). */
+  private boolean _batchLoading = false;
+
+  /** How long (in milliseconds) after a load outside a batch the graph is optimized (so a run of loads costs one). */
+  private static final long OPTIMIZATION_DELAY = 5000;
+
+  /** The timer that optimizes the graph after loads outside a batch (created when first needed). */
+  private Timer _optimizer;
+
+  /** Guards the creation and cancelling of the optimizer. */
+  private final Object _optimizerLock = new Object();
+
+  /** Whether the optimizer has been stopped (for good). */
+  private boolean _optimizerStopped = false;
+
+  /** Whether an optimization of the graph is waiting to run. */
+  private AtomicBoolean _optimizationScheduled = new AtomicBoolean(false);
+
   /** The status of the Core. */
   private Status _status = Status.NOT_STARTED;
 
+  /** The listeners to be told when users' sessions end. */
+  private List<SessionListener> _sessionListeners = new CopyOnWriteArrayList<SessionListener>();
+
   /** A general-purpose map for storing all manner of objects (by AIML processors and the like). */
   private Map<String, Map<String, Object>> classStorage = new HashMap<String, Map<String, Object>>();
 
@@ -213,6 +256,15 @@ public class Core {
     this._bots.put(bot.getID(), bot);
   }
 
+  /**
+   * Adds a listener to be told when users' sessions end.
+   * 
+   * @param listener the listener to add
+   */
+  public void addSessionListener(SessionListener listener) {
+    this._sessionListeners.add(listener);
+  }
+
   /**
    * Notes the given Throwable and advises that the Core may no longer be stable.
    * 
@@ -278,6 +330,43 @@ public class Core {
     return this._avgResponseTime;
   }
 
+  /**
+   * Returns the average number of <code>srai</code> reductions per response that did not have to be processed because
+   * they had already been done earlier in the same response (see {@link ReductionCache}).
+   * 
+   * @return the average number of remembered reductions used per response
+   */
+  public float averageReductionsRemembered() {
+    if (this._responseCount == 0) {
+      return 0f;
+    }
+    return (float) this._reductionsRemembered / (float) this._responseCount;
+  }
+
+  /**
+   * Returns the average number of <code>srai</code> reductions per response that did not have to be processed
+   * because the graph had collapsed them at load time.
+   * 
+   * @return the average srai depth saved per response
+   */
+  public float averageReductionsSkipped() {
+    if (this._responseCount == 0) {
+      return 0f;
+    }
+    return (float) this._reductionsSkipped / (float) this._responseCount;
+  }
+
+  /**
+   * Tells all registered {@link SessionListener}s that the session of the given user has ended.
+   * 
+   * @param userid the user whose session has ended
+   */
+  public void endSession(String userid) {
+    for (SessionListener listener : this._sessionListeners) {
+      listener.sessionEnded(userid);
+    }
+  }
+
   /**
    * @return the AIML processor registry.
    */
@@ -320,6 +409,13 @@ public class Core {
     throw new NullPointerException("The Core's Bots object has not yet been initialized!");
   }
 
+  /**
+   * @return the writer of the chat log
+   */
+  public ChatLogWriter getChatLogWriter() {
+    return this._chatLogWriter;
+  }
+
   /**
    * Returns a database connection from a pooling data source.
    * 
@@ -328,18 +424,40 @@ public class Core {
   public Connection getDBConnection() {
     
     if (this._dbConnectionManager == null) {
-      this._dbConnectionManager =
-          new DBConnectionManager(this._settings.getDatabaseDriver(),
-                                  this._settings.getDatabaseURI(),
-                                  this._settings.getDatabaseUsername(),
-                                  this._settings.getDatabasePassword(),
-                                  this._settings.getDatabaseMinIdle(),
-                                  this._settings.getDatabaseMaxActive());
+      synchronized (this) {
+        if (this._dbConnectionManager == null) {
+          this._dbConnectionManager =
+              new DBConnectionManager(this._settings.getDatabaseDriver(),
+                                      this._settings.getDatabaseURI(),
+                                      this._settings.getDatabaseUsername(),
+                                      this._settings.getDatabasePassword(),
+                                      this._settings.getDatabaseMinIdle(),
+                                      this._settings.getDatabaseMaxActive(),
+                                      this._settings.getDatabaseMaxOpenStatements(),
+                                      this._settings.getDatabaseMaxWait(),
+                                      this._settings.getDatabaseValidationQuery(),
+                                      this._settings.getDatabaseLeakTimeout());
+        }
+      }
     }
     
     return this._dbConnectionManager.getDBConnection();
   }
 
+  /**
+   * @return the database connection manager (or null if no database connection has yet been requested)
+   */
+  public DBConnectionManager getDBConnectionManager() {
+    return this._dbConnectionManager;
+  }
+
+  /**
+   * @return the writer of gossip
+   */
+  public GossipWriter getGossipWriter() {
+    return this._gossipWriter;
+  }
+
   /**
    * @return the Graphmapper
    */
@@ -366,6 +484,10 @@ public class Core {
    * This method takes an already-existing <code>TemplateParser</code>, <i>doesn't </i> take a <code>Responder</code>,
    * and assumes that the inputs have already been normalized.
    * </p>
+   * <p>
+   * If the same input has already been reduced (with the same that and topic) during the current response, and only
+   * pure templates were involved in doing so, the remembered result is returned without matching again.
+   * </p>
    * 
    * @param input the input sentence
    * @param userid the userid requesting the response
@@ -396,6 +518,16 @@ public class Core {
     }
     parser.addTopic(topic);
 
+    // See whether this reduction has already been done in this response.
+    ReductionCache reductions = parser.getReductionCache();
+    String reduced = reductions.get(_input, that, topic);
+    if (reduced != null) {
+      if (this._matchLogger.isDebugEnabled()) {
+        this._matchLogger.debug(String.format("[REMEMBERED REDUCTION (%s)] %s:%s:%s", userid, _input, that, topic));
+      }
+      return reduced;
+    }
+
     // Verify we've been tracking thats and topics correctly.
     List<String> inputs = parser.getInputs();
     List<String> thats = parser.getThats();
@@ -404,6 +536,10 @@ public class Core {
     assert stackSize == thats.size() && thats.size() == topics.size() : String.format("%d inputs, %d thats, %d topics",
         stackSize, thats.size(), topics.size());
 
+    // Anything found impure from here on (including an infinite loop substitution) keeps the result from being
+    // remembered.
+    int impureCount = reductions.getImpureCount();
+
     // Check for some simple kinds of infinite loops.
     if (stackSize > 1) {
       for (int lookback = stackSize - 2; lookback > -1; lookback--) {
@@ -414,18 +550,33 @@ public class Core {
         if (that.equalsIgnoreCase(comparisonThat) && topic.equalsIgnoreCase(comparisonTopic)) {
           if (_input.equalsIgnoreCase(infiniteLoopInput)) {
             this._matchLogger.error("Unrecoverable infinite loop.");
+            // This result, too, depends on the stack, so neither it nor any reduction containing it may be remembered.
+            reductions.noteImpure();
             return "";
           }
           if (_input.equalsIgnoreCase(comparisonInput)) {
             _input = infiniteLoopInput;
             inputs.set(stackSize - 1, infiniteLoopInput);
+            // The result now depends on the stack, not just the input, so must not be remembered.
+            reductions.noteImpure();
             this._matchLogger.warn(String.format("Infinite loop detected; substituting \"%s\".", infiniteLoopInput));
           }
         }
       }
     }
 
-    return this.getMatchResult(_input, that, topic, userid, botid, parser);
+    String result = this.getMatchResult(_input, that, topic, userid, botid, parser);
+    if (reductions.getImpureCount() == impureCount) {
+      reductions.put(_input, that, topic, result);
+    }
+    return result;
+  }
+
+  /**
+   * @return the template analyzer
+   */
+  public TemplateAnalyzer getTemplateAnalyzer() {
+    return this._templateAnalyzer;
   }
 
   /**
@@ -490,14 +641,22 @@ public class Core {
     }
 
     parser.addMatch(match);
+    this._reductionsSkipped += match.getReductionsSkipped();
 
     String template = match.getTemplate();
     String reply = null;
 
+    // Results that depend on an impure template must not be remembered.
+    if (!this._templateAnalyzer.isPure(template)) {
+      parser.getReductionCache().noteImpure();
+    }
+
     try {
       reply = parser.processResponse(template, match.getFileNames().get(0));
     }
     catch (Throwable e) {
+      parser.getReductionCache().noteImpure();
+
       // Log the error message.
       this._logger.error(String.format("Error while processing response: \"%s\"", Errors.describe(e)), e);
 
@@ -572,13 +731,17 @@ public class Core {
     // Mark the time just before matching starts.
     time = System.currentTimeMillis();
 
+    // Reductions done for one sentence may be reused for the others.
+    ReductionCache reductions = new ReductionCache();
+
     // Get a reply for each sentence.
     for (String sentence : sentenceList) {
-      replies.add(this.getReply(sentence, that, topic, userid, botid));
+      replies.add(this.getReply(sentence, that, topic, userid, botid, reductions));
     }
 
     // Increment the (static) response count.
     this._responseCount++;
+    this._reductionsRemembered += reductions.getHitCount();
 
     // Produce statistics about the response time.
     // Mark the time that processing is finished.
@@ -588,8 +751,10 @@ public class Core {
     this._totalTime += time;
     this._avgResponseTime = (float) this._totalTime / (float) this._responseCount;
     if (this._matchLogger.isDebugEnabled()) {
-      this._matchLogger.debug(String.format("Response %d in %dms. (Average: %.2fms)", this._responseCount, time,
-          this._avgResponseTime));
+      this._matchLogger.debug(String.format(
+          "Response %d in %dms. (Average: %.2fms; srai depth saved: %.2f; reductions remembered: %.2f)",
+          this._responseCount, time, this._avgResponseTime, this.averageReductionsSkipped(),
+          this.averageReductionsRemembered()));
     }
 
     // Invoke targeting if appropriate.
@@ -613,14 +778,16 @@ public class Core {
    * @param topic the input topic value
    * @param userid the userid requesting the reply
    * @param botid
+   * @param reductions the reductions remembered so far in the current response
    * @return the reply to the input sentence
    */
-  protected String getReply(String input, String that, String topic, String userid, String botid) {
+  protected String getReply(String input, String that, String topic, String userid, String botid,
+      ReductionCache reductions) {
     // Push the input onto the <input/> stack.
     this._predicateManager.push("input", input, userid, botid);
 
     // Create a new TemplateParser.
-    TemplateParser parser = new TemplateParser(input, that, topic, userid, botid, this);
+    TemplateParser parser = new TemplateParser(input, that, topic, userid, botid, reductions, this);
 
     String reply = this.getMatchResult(input, that, topic, userid, botid, parser);
     if (reply == null) {
@@ -709,17 +876,19 @@ public class Core {
    */
   @SuppressWarnings("unchecked")
   public <T> T getStoredObject(String classname, String key, T defaultObject) {
-    Map<String, Object> storageMap = this.classStorage.get(classname);
-    if (storageMap == null) {
-      storageMap = new HashMap<String, Object>();
-      this.classStorage.put(classname, storageMap);
-    }
-    Object object = storageMap.get(key);
-    if (object != null) {
-      return (T) object;
+    synchronized (this.classStorage) {
+      Map<String, Object> storageMap = this.classStorage.get(classname);
+      if (storageMap == null) {
+        storageMap = new HashMap<String, Object>();
+        this.classStorage.put(classname, storageMap);
+      }
+      Object object = storageMap.get(key);
+      if (object != null) {
+        return (T) object;
+      }
+      storageMap.put(key, defaultObject);
+      return defaultObject;
     }
-    storageMap.put(key, defaultObject);
-    return defaultObject;
   }
 
   /**
@@ -730,6 +899,10 @@ public class Core {
    */
   public void load(URL path, String botid) {
     this._graphmapper.load(path, botid);
+    if (!this._batchLoading) {
+      // This may be a <learn> in the middle of a response, so the optimizing is left to the background.
+      this.scheduleOptimization();
+    }
   }
 
   /**
@@ -742,7 +915,14 @@ public class Core {
       this._logger.debug("Suspending AIMLWatcher.");
       this._aimlWatcher.stop();
     }
-    new BotsConfigurationFileParser(this).parse(path);
+    this._batchLoading = true;
+    try {
+      new BotsConfigurationFileParser(this).parse(path);
+    }
+    finally {
+      this._batchLoading = false;
+    }
+    this._graphmapper.optimize();
     if (this._settings.useAIMLWatcher()) {
       this._logger.debug("Restarting AIMLWatcher.");
       this._aimlWatcher.start();
@@ -750,7 +930,8 @@ public class Core {
   }
 
   /**
-   * Logs a response to the chat log.
+   * Logs a response to the chat log. The exchange is only queued here; it is written in the background by the
+   * {@link ChatLogWriter}.
    * 
    * @param input the input that produced the response
    * @param response the response
@@ -758,21 +939,19 @@ public class Core {
    * @param botid the botid that produced the response
    */
   protected void logResponse(String input, String response, String userid, String botid) {
-    /*
-     * NOTA BENE: This is a very specific workaround for a problem with the log4j JDBCAppender. It appears that the
-     * appender fails to maintain the database connection after some period of time, and thus stops working. Here, we
-     * catch the exception thrown in this case, and force log4j to reinitialize the appender. This is horribly specific
-     * and should go away as soon as possible. - 2006-03-29, NB
-     */
-    try {
-      this._logger.callAppenders(new ChatLogEvent(botid, userid, input, response));
-    }
-    catch (Exception e) {
-      this._logger
-          .error(
-              "A known bug with log4j has been encountered.  Attempting to reset logging configuration. This may or may not work.",
-              e);
-      LogManager.resetConfiguration();
+    this._chatLogWriter.log(input, response, userid, botid);
+  }
+
+  /**
+   * Starts loading the stored predicates of the given user for the given bot in the background, so that they are ready
+   * by the time the user's first input arrives. Should be called when a user's session starts (or resumes).
+   * 
+   * @param userid the userid
+   * @param botid the botid
+   */
+  public void prefetchPredicates(String userid, String botid) {
+    if (this._predicateManager != null) {
+      this._predicateManager.prefetch(userid, botid);
     }
   }
 
@@ -825,6 +1004,36 @@ public class Core {
     for (Bot bot : bots) {
       this._graphmapper.load(path, bot.getID());
     }
+    this._graphmapper.optimize();
+  }
+
+  /**
+   * Arranges for the graph to be optimized in the background a little while from now, unless that is already arranged.
+   */
+  private void scheduleOptimization() {
+    if (!this._optimizationScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    synchronized (this._optimizerLock) {
+      if (this._optimizerStopped) {
+        return;
+      }
+      if (this._optimizer == null) {
+        this._optimizer = new Timer("GraphOptimizer", true);
+      }
+      this._optimizer.schedule(new TimerTask() {
+        @Override
+        public void run() {
+          Core.this._optimizationScheduled.set(false);
+          try {
+            Core.this._graphmapper.optimize();
+          }
+          catch (RuntimeException e) {
+            Core.this._logger.error("Error optimizing the graph.", e);
+          }
+        }
+      }, OPTIMIZATION_DELAY);
+    }
   }
 
   /**
@@ -857,6 +1066,7 @@ public class Core {
 
       try {
         this._interpreter = (Interpreter) Class.forName(javascriptInterpreterClassname).newInstance();
+        this._interpreter.configure(this._settings);
       }
       catch (Exception e) {
         this._logger.error("Error while creating new instance of JavaScript interpreter.", e);
@@ -872,8 +1082,17 @@ public class Core {
    */
   public void shutdown() {
     this._logger.info("Program D is shutting down.");
+    synchronized (this._optimizerLock) {
+      if (this._optimizer != null) {
+        this._optimizer.cancel();
+      }
+      this._optimizerStopped = true;
+    }
     this._processes.shutdownAll();
-    this._predicateManager.saveAll();
+    this._predicateManager.shutdown();
+    if (this.getDBConnectionManager() != null) {
+      this._dbConnectionManager.shutdown();
+    }
     this._logger.info("Shutdown complete.");
     this._status = Status.SHUT_DOWN;
   }
@@ -911,9 +1130,18 @@ public class Core {
     this._bots = new Bots();
     this._processes = new ManagedProcesses(this);
 
+    // Start writing the chat log in the background.
+    this._chatLogWriter = new ChatLogWriter(this);
+    this._processes.start(this._chatLogWriter, "ChatLogWriter");
+
+    // Likewise gossip.
+    this._gossipWriter = new GossipWriter(this);
+    this._processes.start(this._gossipWriter, "GossipWriter");
+
     // Get an instance of the settings-specified PredicateManager.
     this._predicateManager = Classes.getSubclassInstance(PredicateManager.class,
         this._settings.getPredicateManagerImplementation(), "PredicateManager", this);
+    this._predicateManager.start();
 
     // Get the hostname (used occasionally).
     try {
@@ -1040,6 +1268,7 @@ public class Core {
       this._graphmapper.unload(path, bot);
     }
     this._bots.remove(id);
+    this._graphmapper.optimize();
     this._logger.info("Bot \"" + id + "\" has been unloaded.");
   }
 
@@ -1051,5 +1280,6 @@ public class Core {
    */
   public void unload(URL path, String botid) {
     this._graphmapper.unload(path, this.getBot(botid));
+    this._graphmapper.optimize();
   }
 }
@@ -38,13 +38,43 @@ abstract public class CoreSettings extends Settings
     /** Which bot property contains the bot's name. */
     private String botNameProperty;
         
-    /** The number of predicate set operations before flushing predicates to storage. */
+    /** The number of changed predicates awaiting storage that causes them to be written without waiting for the flush interval. */
     private int predicateFlushPeriod;
         
+    /** How often (in milliseconds) changed predicates are written to storage in the background (0 means only when the flush period is reached). */
+    private int predicateFlushInterval;
+        
+    /** The largest number of changed predicates written to storage at a time (0 means no limit). */
+    private int predicateFlushBatchSize;
+        
+    /** The most changed predicates that may await writing before predicate changes wait for the writer to catch up (0 means no limit). */
+    private int predicateDirtyQueueMax;
+        
+    /** The most users whose predicates each bot keeps in memory (0 means no limit). */
+    private int predicateCacheMaxUsers;
+        
+    /** How long (in milliseconds) the predicates of a user who has not been heard from are kept in memory (0 means no limit). */
+    private int predicateCacheIdleTimeout;
+        
+    /** The most characters of a value pushed onto an indexed predicate (such as that and input) that are kept; longer values keep only their end (0 means no limit). */
+    private int predicatePushMaxLength;
+        
+    /** How many threads load the stored predicates of users whose sessions are starting, before their first input arrives (0 means no prefetching). */
+    private int predicatePrefetchThreads;
+        
+    /** How often (in milliseconds) to log a summary of predicate reads and writes (0 means never). */
+    private int predicateStatsLogInterval;
+        
     /** The PredicateManager implementation to use. */
     private String predicateManagerImplementation;
         
-    /** The directory in which to save flat-file predicates (if the FlatFilePredicateManager is used). */
+    /** The size (in bytes) the predicate log may reach before it is compacted into the predicate store (if the LogPredicateManager is used). */
+    private int predicateLogCompactionThreshold;
+        
+    /** The most predicate values written by a single multi-row statement (if the DBPredicateManager is used; 0 means no limit). */
+    private int predicateDbUpsertBatchSize;
+        
+    /** The directory in which to save flat-file predicates (if the FlatFilePredicateManager or LogPredicateManager is used). */
     private URL ffpmDirectory;
         
     /** The database driver to use. */
@@ -65,6 +95,18 @@ abstract public class CoreSettings extends Settings
     /** The maximum number of database connections that can be allocated at a time. */
     private int databaseMaxActive;
         
+    /** The most prepared statements kept open for reuse on each pooled connection (0 turns off statement pooling). */
+    private int databaseMaxOpenStatements;
+        
+    /** How long (in milliseconds) to wait for a free connection before giving up (0 means wait indefinitely). */
+    private int databaseMaxWait;
+        
+    /** A query used to check idle connections (empty means they are not checked). */
+    private String databaseValidationQuery;
+        
+    /** How long (in milliseconds) a connection may be kept before it is reported as probably leaked (0 turns off leak detection). */
+    private int databaseLeakTimeout;
+        
     /** What to do when a category is loaded whose pattern:that:topic path is identical to one already loaded (for the same bot). */
     private MergePolicy mergePolicy;
     
@@ -117,6 +159,12 @@ abstract public class CoreSettings extends Settings
     /** The JavaScript interpreter. */
     private String javascriptInterpreterClassname;
         
+    /** How long (in milliseconds) a single JavaScript evaluation may run before it is abandoned (0 for no limit). */
+    private int javascriptTimeLimit;
+        
+    /** The maximum number of compiled JavaScript scripts to keep. */
+    private int javascriptScriptCacheSize;
+        
     /** Allow the use of JavaScript? */
     private boolean allowJavaScript;
         
@@ -160,6 +208,45 @@ abstract public class CoreSettings extends Settings
     /** The Nodemapper implementation to use. */
     private String nodemapperImplementation;
         
+    /** The most recently visited nodes to keep in memory, besides the pinned levels (if the CachingDBGraphmapper is used; 0 means no limit). */
+    private int graphCacheMaxNodes;
+        
+    /** How many levels of the graph, from the root, to keep in memory at all times (if the CachingDBGraphmapper is used). */
+    private int graphCachePinnedLevels;
+        
+    /** The most templates that a database-based Graphmapper keeps in memory, looked up by content hash (0 means templates are not cached). */
+    private int graphCacheMaxTemplates;
+        
+    /** The most exchanges that may wait to be written to the chat log. */
+    private int chatLogQueueCapacity;
+        
+    /** What to do with an exchange when the chat log queue is full: drop it (drop), or make the response wait until there is room (block). */
+    private String chatLogOverflowPolicy;
+        
+    /** The most exchanges written to the chat log at once. */
+    private int chatLogBatchSize;
+        
+    /** The longest time (in milliseconds) that an exchange waits to be written to the chat log when fewer than a batch are waiting. */
+    private int chatLogFlushInterval;
+        
+    /** Whether to write the chat log to the exchange table of the database (as well as to the configured chat log appenders). */
+    private boolean chatLogToDatabase;
+        
+    /** The most gossip entries that may wait to be written (more are dropped). */
+    private int gossipQueueCapacity;
+        
+    /** How often (in milliseconds) waiting gossip entries are written to the gossip file. */
+    private int gossipFlushInterval;
+        
+    /** How often (in milliseconds) the gossip file is forced to disk (0 or less for never). */
+    private int gossipSyncInterval;
+        
+    /** The size (for instance, 10MB) at which the gossip file is rotated. */
+    private String gossipMaxFileSize;
+        
+    /** How many rotated gossip files are kept. */
+    private int gossipMaxBackups;
+        
     /** Reset the graph on startup? (Only applies to Graphmappers with persistent storage.) */
     private boolean resetGraph;
         
@@ -233,6 +320,70 @@ abstract public class CoreSettings extends Settings
         return this.predicateFlushPeriod;
     }
 
+    /**
+     * @return the value of predicateFlushInterval
+     */
+    public int getPredicateFlushInterval()
+    {
+        return this.predicateFlushInterval;
+    }
+
+    /**
+     * @return the value of predicateFlushBatchSize
+     */
+    public int getPredicateFlushBatchSize()
+    {
+        return this.predicateFlushBatchSize;
+    }
+
+    /**
+     * @return the value of predicateDirtyQueueMax
+     */
+    public int getPredicateDirtyQueueMax()
+    {
+        return this.predicateDirtyQueueMax;
+    }
+
+    /**
+     * @return the value of predicateCacheMaxUsers
+     */
+    public int getPredicateCacheMaxUsers()
+    {
+        return this.predicateCacheMaxUsers;
+    }
+
+    /**
+     * @return the value of predicateCacheIdleTimeout
+     */
+    public int getPredicateCacheIdleTimeout()
+    {
+        return this.predicateCacheIdleTimeout;
+    }
+
+    /**
+     * @return the value of predicatePushMaxLength
+     */
+    public int getPredicatePushMaxLength()
+    {
+        return this.predicatePushMaxLength;
+    }
+
+    /**
+     * @return the value of predicatePrefetchThreads
+     */
+    public int getPredicatePrefetchThreads()
+    {
+        return this.predicatePrefetchThreads;
+    }
+
+    /**
+     * @return the value of predicateStatsLogInterval
+     */
+    public int getPredicateStatsLogInterval()
+    {
+        return this.predicateStatsLogInterval;
+    }
+
     /**
      * @return the value of predicateManagerImplementation
      */
@@ -241,6 +392,22 @@ abstract public class CoreSettings extends Settings
         return this.predicateManagerImplementation;
     }
 
+    /**
+     * @return the value of predicateLogCompactionThreshold
+     */
+    public int getPredicateLogCompactionThreshold()
+    {
+        return this.predicateLogCompactionThreshold;
+    }
+
+    /**
+     * @return the value of predicateDbUpsertBatchSize
+     */
+    public int getPredicateDbUpsertBatchSize()
+    {
+        return this.predicateDbUpsertBatchSize;
+    }
+
     /**
      * @return the value of ffpmDirectory
      */
@@ -297,6 +464,38 @@ abstract public class CoreSettings extends Settings
         return this.databaseMaxActive;
     }
 
+    /**
+     * @return the value of databaseMaxOpenStatements
+     */
+    public int getDatabaseMaxOpenStatements()
+    {
+        return this.databaseMaxOpenStatements;
+    }
+
+    /**
+     * @return the value of databaseMaxWait
+     */
+    public int getDatabaseMaxWait()
+    {
+        return this.databaseMaxWait;
+    }
+
+    /**
+     * @return the value of databaseValidationQuery
+     */
+    public String getDatabaseValidationQuery()
+    {
+        return this.databaseValidationQuery;
+    }
+
+    /**
+     * @return the value of databaseLeakTimeout
+     */
+    public int getDatabaseLeakTimeout()
+    {
+        return this.databaseLeakTimeout;
+    }
+
     /**
      * @return the value of mergePolicy
      */
@@ -393,6 +592,22 @@ abstract public class CoreSettings extends Settings
         return this.javascriptInterpreterClassname;
     }
 
+    /**
+     * @return the value of javascriptTimeLimit
+     */
+    public int getJavascriptTimeLimit()
+    {
+        return this.javascriptTimeLimit;
+    }
+
+    /**
+     * @return the value of javascriptScriptCacheSize
+     */
+    public int getJavascriptScriptCacheSize()
+    {
+        return this.javascriptScriptCacheSize;
+    }
+
     /**
      * @return the value of allowJavaScript
      */
@@ -481,6 +696,110 @@ abstract public class CoreSettings extends Settings
         return this.nodemapperImplementation;
     }
 
+    /**
+     * @return the value of graphCacheMaxNodes
+     */
+    public int getGraphCacheMaxNodes()
+    {
+        return this.graphCacheMaxNodes;
+    }
+
+    /**
+     * @return the value of graphCachePinnedLevels
+     */
+    public int getGraphCachePinnedLevels()
+    {
+        return this.graphCachePinnedLevels;
+    }
+
+    /**
+     * @return the value of graphCacheMaxTemplates
+     */
+    public int getGraphCacheMaxTemplates()
+    {
+        return this.graphCacheMaxTemplates;
+    }
+
+    /**
+     * @return the value of chatLogQueueCapacity
+     */
+    public int getChatLogQueueCapacity()
+    {
+        return this.chatLogQueueCapacity;
+    }
+
+    /**
+     * @return the value of chatLogOverflowPolicy
+     */
+    public String getChatLogOverflowPolicy()
+    {
+        return this.chatLogOverflowPolicy;
+    }
+
+    /**
+     * @return the value of chatLogBatchSize
+     */
+    public int getChatLogBatchSize()
+    {
+        return this.chatLogBatchSize;
+    }
+
+    /**
+     * @return the value of chatLogFlushInterval
+     */
+    public int getChatLogFlushInterval()
+    {
+        return this.chatLogFlushInterval;
+    }
+
+    /**
+     * @return the value of chatLogToDatabase
+     */
+    public boolean chatLogToDatabase()
+    {
+        return this.chatLogToDatabase;
+    }
+
+    /**
+     * @return the value of gossipQueueCapacity
+     */
+    public int getGossipQueueCapacity()
+    {
+        return this.gossipQueueCapacity;
+    }
+
+    /**
+     * @return the value of gossipFlushInterval
+     */
+    public int getGossipFlushInterval()
+    {
+        return this.gossipFlushInterval;
+    }
+
+    /**
+     * @return the value of gossipSyncInterval
+     */
+    public int getGossipSyncInterval()
+    {
+        return this.gossipSyncInterval;
+    }
+
+    /**
+     * @return the value of gossipMaxFileSize
+     */
+    public String getGossipMaxFileSize()
+    {
+        return this.gossipMaxFileSize;
+    }
+
+    /**
+     * @return the value of gossipMaxBackups
+     */
+    public int getGossipMaxBackups()
+    {
+        return this.gossipMaxBackups;
+    }
+
     /**
      * @return the value of resetGraph
      */
@@ -569,6 +888,70 @@ abstract public class CoreSettings extends Settings
         this.predicateFlushPeriod = value;
     }
 
+    /**
+     * @param value the value for predicateFlushInterval
+     */
+    public void setPredicateFlushInterval(int value)
+    {
+        this.predicateFlushInterval = value;
+    }
+
+    /**
+     * @param value the value for predicateFlushBatchSize
+     */
+    public void setPredicateFlushBatchSize(int value)
+    {
+        this.predicateFlushBatchSize = value;
+    }
+
+    /**
+     * @param value the value for predicateDirtyQueueMax
+     */
+    public void setPredicateDirtyQueueMax(int value)
+    {
+        this.predicateDirtyQueueMax = value;
+    }
+
+    /**
+     * @param value the value for predicateCacheMaxUsers
+     */
+    public void setPredicateCacheMaxUsers(int value)
+    {
+        this.predicateCacheMaxUsers = value;
+    }
+
+    /**
+     * @param value the value for predicateCacheIdleTimeout
+     */
+    public void setPredicateCacheIdleTimeout(int value)
+    {
+        this.predicateCacheIdleTimeout = value;
+    }
+
+    /**
+     * @param value the value for predicatePushMaxLength
+     */
+    public void setPredicatePushMaxLength(int value)
+    {
+        this.predicatePushMaxLength = value;
+    }
+
+    /**
+     * @param value the value for predicatePrefetchThreads
+     */
+    public void setPredicatePrefetchThreads(int value)
+    {
+        this.predicatePrefetchThreads = value;
+    }
+
+    /**
+     * @param value the value for predicateStatsLogInterval
+     */
+    public void setPredicateStatsLogInterval(int value)
+    {
+        this.predicateStatsLogInterval = value;
+    }
+
     /**
      * @param value the value for predicateManagerImplementation
      */
@@ -577,6 +960,22 @@ abstract public class CoreSettings extends Settings
         this.predicateManagerImplementation = value;
     }
 
+    /**
+     * @param value the value for predicateLogCompactionThreshold
+     */
+    public void setPredicateLogCompactionThreshold(int value)
+    {
+        this.predicateLogCompactionThreshold = value;
+    }
+
+    /**
+     * @param value the value for predicateDbUpsertBatchSize
+     */
+    public void setPredicateDbUpsertBatchSize(int value)
+    {
+        this.predicateDbUpsertBatchSize = value;
+    }
+
     /**
      * @param value the value for ffpmDirectory
      */
@@ -633,6 +1032,38 @@ abstract public class CoreSettings extends Settings
         this.databaseMaxActive = value;
     }
 
+    /**
+     * @param value the value for databaseMaxOpenStatements
+     */
+    public void setDatabaseMaxOpenStatements(int value)
+    {
+        this.databaseMaxOpenStatements = value;
+    }
+
+    /**
+     * @param value the value for databaseMaxWait
+     */
+    public void setDatabaseMaxWait(int value)
+    {
+        this.databaseMaxWait = value;
+    }
+
+    /**
+     * @param value the value for databaseValidationQuery
+     */
+    public void setDatabaseValidationQuery(String value)
+    {
+        this.databaseValidationQuery = value;
+    }
+
+    /**
+     * @param value the value for databaseLeakTimeout
+     */
+    public void setDatabaseLeakTimeout(int value)
+    {
+        this.databaseLeakTimeout = value;
+    }
+
     /**
      * @param value the value for mergePolicy
      */
@@ -729,6 +1160,22 @@ abstract public class CoreSettings extends Settings
         this.javascriptInterpreterClassname = value;
     }
 
+    /**
+     * @param value the value for javascriptTimeLimit
+     */
+    public void setJavascriptTimeLimit(int value)
+    {
+        this.javascriptTimeLimit = value;
+    }
+
+    /**
+     * @param value the value for javascriptScriptCacheSize
+     */
+    public void setJavascriptScriptCacheSize(int value)
+    {
+        this.javascriptScriptCacheSize = value;
+    }
+
     /**
      * @param value the value for allowJavaScript
      */
@@ -817,6 +1264,110 @@ abstract public class CoreSettings extends Settings
         this.nodemapperImplementation = value;
     }
 
+    /**
+     * @param value the value for graphCacheMaxNodes
+     */
+    public void setGraphCacheMaxNodes(int value)
+    {
+        this.graphCacheMaxNodes = value;
+    }
+
+    /**
+     * @param value the value for graphCachePinnedLevels
+     */
+    public void setGraphCachePinnedLevels(int value)
+    {
+        this.graphCachePinnedLevels = value;
+    }
+
+    /**
+     * @param value the value for graphCacheMaxTemplates
+     */
+    public void setGraphCacheMaxTemplates(int value)
+    {
+        this.graphCacheMaxTemplates = value;
+    }
+
+    /**
+     * @param value the value for chatLogQueueCapacity
+     */
+    public void setChatLogQueueCapacity(int value)
+    {
+        this.chatLogQueueCapacity = value;
+    }
+
+    /**
+     * @param value the value for chatLogOverflowPolicy
+     */
+    public void setChatLogOverflowPolicy(String value)
+    {
+        this.chatLogOverflowPolicy = value;
+    }
+
+    /**
+     * @param value the value for chatLogBatchSize
+     */
+    public void setChatLogBatchSize(int value)
+    {
+        this.chatLogBatchSize = value;
+    }
+
+    /**
+     * @param value the value for chatLogFlushInterval
+     */
+    public void setChatLogFlushInterval(int value)
+    {
+        this.chatLogFlushInterval = value;
+    }
+
+    /**
+     * @param value the value for chatLogToDatabase
+     */
+    public void setChatLogToDatabase(boolean value)
+    {
+        this.chatLogToDatabase = value;
+    }
+
+    /**
+     * @param value the value for gossipQueueCapacity
+     */
+    public void setGossipQueueCapacity(int value)
+    {
+        this.gossipQueueCapacity = value;
+    }
+
+    /**
+     * @param value the value for gossipFlushInterval
+     */
+    public void setGossipFlushInterval(int value)
+    {
+        this.gossipFlushInterval = value;
+    }
+
+    /**
+     * @param value the value for gossipSyncInterval
+     */
+    public void setGossipSyncInterval(int value)
+    {
+        this.gossipSyncInterval = value;
+    }
+
+    /**
+     * @param value the value for gossipMaxFileSize
+     */
+    public void setGossipMaxFileSize(String value)
+    {
+        this.gossipMaxFileSize = value;
+    }
+
+    /**
+     * @param value the value for gossipMaxBackups
+     */
+    public void setGossipMaxBackups(int value)
+    {
+        this.gossipMaxBackups = value;
+    }
+
     /**
      * @param value the value for resetGraph
      */
@@ -46,13 +46,27 @@ public class ProgrammaticCoreSettings extends CoreSettings
         setClientNamePredicate("name");
         setBotNameProperty("name");
         setPredicateFlushPeriod(Integer.parseInt("500"));
+        setPredicateFlushInterval(Integer.parseInt("5000"));
+        setPredicateFlushBatchSize(Integer.parseInt("500"));
+        setPredicateDirtyQueueMax(Integer.parseInt("10000"));
+        setPredicateCacheMaxUsers(Integer.parseInt("10000"));
+        setPredicateCacheIdleTimeout(Integer.parseInt("1800000"));
+        setPredicatePushMaxLength(Integer.parseInt("0"));
+        setPredicatePrefetchThreads(Integer.parseInt("2"));
+        setPredicateStatsLogInterval(Integer.parseInt("600000"));
         setPredicateManagerImplementation("org.aitools.programd.predicates.InMemoryPredicateManager");
+        setPredicateLogCompactionThreshold(Integer.parseInt("16777216"));
+        setPredicateDbUpsertBatchSize(Integer.parseInt("100"));
         setDatabaseDriver("com.mysql.jdbc.Driver");
         setDatabaseURI("programd");
         setDatabaseUsername("yourusername");
         setDatabasePassword("yourpassword");
         setDatabaseMinIdle(Integer.parseInt("30"));
         setDatabaseMaxActive(Integer.parseInt("70"));
+        setDatabaseMaxOpenStatements(Integer.parseInt("50"));
+        setDatabaseMaxWait(Integer.parseInt("10000"));
+        setDatabaseValidationQuery("SELECT 1");
+        setDatabaseLeakTimeout(Integer.parseInt("300000"));
         setMergePolicy(MergePolicy.COMBINE);
         setNoteEachMerge(Boolean.parseBoolean("true"));
         setAppendMergeSeparatorString(" ");
@@ -63,6 +77,8 @@ public class ProgrammaticCoreSettings extends CoreSettings
         setHeartPulseRate(Integer.parseInt("5"));
         setAIMLWatcherTimer(Integer.parseInt("2000"));
         setJavascriptInterpreterClassname("org.aitools.programd.interpreter.RhinoInterpreter");
+        setJavascriptTimeLimit(Integer.parseInt("5000"));
+        setJavascriptScriptCacheSize(Integer.parseInt("100"));
         try
         {
             setSystemInterpreterDirectory(URLTools.createValidURL("..", false));
@@ -78,6 +94,19 @@ public class ProgrammaticCoreSettings extends CoreSettings
         setRandomStrategy(RandomStrategy.NON_REPEATING);
         setGraphmapperImplementation("org.aitools.programd.graph.MemoryGraphmapper");
         setNodemapperImplementation("org.aitools.programd.graph.TwoOptimalMemoryNodemapper");
+        setGraphCacheMaxNodes(Integer.parseInt("100000"));
+        setGraphCachePinnedLevels(Integer.parseInt("3"));
+        setGraphCacheMaxTemplates(Integer.parseInt("5000"));
+        setChatLogQueueCapacity(Integer.parseInt("10000"));
+        setChatLogOverflowPolicy("drop");
+        setChatLogBatchSize(Integer.parseInt("100"));
+        setChatLogFlushInterval(Integer.parseInt("1000"));
+        setChatLogToDatabase(Boolean.parseBoolean("false"));
+        setGossipQueueCapacity(Integer.parseInt("1000"));
+        setGossipFlushInterval(Integer.parseInt("1000"));
+        setGossipSyncInterval(Integer.parseInt("10000"));
+        setGossipMaxFileSize("10MB");
+        setGossipMaxBackups(Integer.parseInt("5"));
         setResetGraph(Boolean.parseBoolean("true"));
         setUseShell(Boolean.parseBoolean("true"));
         setXmlCatalogPath("resources/catalog.xml");
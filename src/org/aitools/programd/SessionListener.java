@@ -0,0 +1,26 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd;
+
+/**
+ * Something that keeps state for individual users and wants to know when a user's session ends, so that it can
+ * discard that state. Register with {@link Core#addSessionListener(SessionListener)}.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public interface SessionListener {
+
+  /**
+   * Called when the session of the given user has ended.
+   * 
+   * @param userid the user whose session has ended
+   */
+  public void sessionEnded(String userid);
+}
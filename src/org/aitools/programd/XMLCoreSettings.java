@@ -178,9 +178,39 @@ public class XMLCoreSettings extends CoreSettings
         // Initialize predicateFlushPeriod.
         setPredicateFlushPeriod(getXPathNumberValue("/d:programd/d:predicates/d:predicate-flush-period", document).intValue());
 
+        // Initialize predicateFlushInterval.
+        setPredicateFlushInterval(getXPathNumberValue("/d:programd/d:predicates/d:predicate-flush-interval", document).intValue());
+
+        // Initialize predicateFlushBatchSize.
+        setPredicateFlushBatchSize(getXPathNumberValue("/d:programd/d:predicates/d:predicate-flush-batch-size", document).intValue());
+
+        // Initialize predicateDirtyQueueMax.
+        setPredicateDirtyQueueMax(getXPathNumberValue("/d:programd/d:predicates/d:predicate-dirty-queue-max", document).intValue());
+
+        // Initialize predicateCacheMaxUsers.
+        setPredicateCacheMaxUsers(getXPathNumberValue("/d:programd/d:predicates/d:predicate-cache-max-users", document).intValue());
+
+        // Initialize predicateCacheIdleTimeout.
+        setPredicateCacheIdleTimeout(getXPathNumberValue("/d:programd/d:predicates/d:predicate-cache-idle-timeout", document).intValue());
+
+        // Initialize predicatePushMaxLength.
+        setPredicatePushMaxLength(getXPathNumberValue("/d:programd/d:predicates/d:predicate-push-max-length", document).intValue());
+
+        // Initialize predicatePrefetchThreads.
+        setPredicatePrefetchThreads(getXPathNumberValue("/d:programd/d:predicates/d:predicate-prefetch-threads", document).intValue());
+
+        // Initialize predicateStatsLogInterval.
+        setPredicateStatsLogInterval(getXPathNumberValue("/d:programd/d:predicates/d:predicate-stats-log-interval", document).intValue());
+
         // Initialize predicateManagerImplementation.
         setPredicateManagerImplementation(getXPathStringValue("/d:programd/d:predicate-manager/d:implementation", document));
 
+        // Initialize predicateLogCompactionThreshold.
+        setPredicateLogCompactionThreshold(getXPathNumberValue("/d:programd/d:predicate-manager/d:log-compaction-threshold", document).intValue());
+
+        // Initialize predicateDbUpsertBatchSize.
+        setPredicateDbUpsertBatchSize(getXPathNumberValue("/d:programd/d:predicate-manager/d:db-upsert-batch-size", document).intValue());
+
         // Initialize ffpmDirectory.
         try
         {
@@ -209,6 +239,18 @@ public class XMLCoreSettings extends CoreSettings
         // Initialize databaseMaxActive.
         setDatabaseMaxActive(getXPathNumberValue("/d:programd/d:database/d:max-active", document).intValue());
 
+        // Initialize databaseMaxOpenStatements.
+        setDatabaseMaxOpenStatements(getXPathNumberValue("/d:programd/d:database/d:max-open-statements", document).intValue());
+
+        // Initialize databaseMaxWait.
+        setDatabaseMaxWait(getXPathNumberValue("/d:programd/d:database/d:max-wait", document).intValue());
+
+        // Initialize databaseValidationQuery.
+        setDatabaseValidationQuery(getXPathStringValue("/d:programd/d:database/d:validation-query", document));
+
+        // Initialize databaseLeakTimeout.
+        setDatabaseLeakTimeout(getXPathNumberValue("/d:programd/d:database/d:leak-timeout", document).intValue());
+
         // Initialize mergePolicy.
 
         String mergePolicyValue = getXPathStringValue("/d:programd/d:merge/d:policy", document);
@@ -262,6 +304,12 @@ public class XMLCoreSettings extends CoreSettings
         // Initialize javascriptInterpreterClassname.
         setJavascriptInterpreterClassname(getXPathStringValue("/d:programd/d:interpreters/d:javascript/d:interpreter-classname", document));
 
+        // Initialize javascriptTimeLimit.
+        setJavascriptTimeLimit(getXPathNumberValue("/d:programd/d:interpreters/d:javascript/d:time-limit", document).intValue());
+
+        // Initialize javascriptScriptCacheSize.
+        setJavascriptScriptCacheSize(getXPathNumberValue("/d:programd/d:interpreters/d:javascript/d:script-cache-size", document).intValue());
+
         // Initialize allowJavaScript.
         setAllowJavaScript(Boolean.parseBoolean(getXPathStringValue("/d:programd/d:interpreters/d:javascript/@allowed", document)));
 
@@ -311,6 +359,45 @@ public class XMLCoreSettings extends CoreSettings
         // Initialize nodemapperImplementation.
         setNodemapperImplementation(getXPathStringValue("/d:programd/d:nodemapper.implementation", document));
 
+        // Initialize graphCacheMaxNodes.
+        setGraphCacheMaxNodes(getXPathNumberValue("/d:programd/d:graph-cache-max-nodes", document).intValue());
+
+        // Initialize graphCachePinnedLevels.
+        setGraphCachePinnedLevels(getXPathNumberValue("/d:programd/d:graph-cache-pinned-levels", document).intValue());
+
+        // Initialize graphCacheMaxTemplates.
+        setGraphCacheMaxTemplates(getXPathNumberValue("/d:programd/d:graph-cache-max-templates", document).intValue());
+
+        // Initialize chatLogQueueCapacity.
+        setChatLogQueueCapacity(getXPathNumberValue("/d:programd/d:chat-log-queue-capacity", document).intValue());
+
+        // Initialize chatLogOverflowPolicy.
+        setChatLogOverflowPolicy(getXPathStringValue("/d:programd/d:chat-log-overflow-policy", document));
+
+        // Initialize chatLogBatchSize.
+        setChatLogBatchSize(getXPathNumberValue("/d:programd/d:chat-log-batch-size", document).intValue());
+
+        // Initialize chatLogFlushInterval.
+        setChatLogFlushInterval(getXPathNumberValue("/d:programd/d:chat-log-flush-interval", document).intValue());
+
+        // Initialize chatLogToDatabase.
+        setChatLogToDatabase(Boolean.parseBoolean(getXPathStringValue("/d:programd/d:chat-log-to-database", document)));
+
+        // Initialize gossipQueueCapacity.
+        setGossipQueueCapacity(getXPathNumberValue("/d:programd/d:gossip-queue-capacity", document).intValue());
+
+        // Initialize gossipFlushInterval.
+        setGossipFlushInterval(getXPathNumberValue("/d:programd/d:gossip-flush-interval", document).intValue());
+
+        // Initialize gossipSyncInterval.
+        setGossipSyncInterval(getXPathNumberValue("/d:programd/d:gossip-sync-interval", document).intValue());
+
+        // Initialize gossipMaxFileSize.
+        setGossipMaxFileSize(getXPathStringValue("/d:programd/d:gossip-max-file-size", document));
+
+        // Initialize gossipMaxBackups.
+        setGossipMaxBackups(getXPathNumberValue("/d:programd/d:gossip-max-backups", document).intValue());
+
         // Initialize resetGraph.
         setResetGraph(Boolean.parseBoolean(getXPathStringValue("/d:programd/d:reset-graph", document)));
 
@@ -86,6 +86,9 @@ abstract public class AbstractGraphmapper implements Graphmapper {
   /** The total number of path-identical categories that have been encountered. */
   protected int _duplicateCategories = 0;
 
+  /** The category count when progress was last reported (some Graphmappers count a whole file's categories at once). */
+  private int _notifiedCategories = 0;
+
   /** The response timeout. */
   protected int _responseTimeout;
 
@@ -146,8 +149,10 @@ abstract public class AbstractGraphmapper implements Graphmapper {
     String _topic = topic == null ? ASTERISK : topic;
 
     // Report on loaded categories.
-    if (this._totalCategories % this._categoryLoadNotifyInterval == 0 && this._totalCategories > 0) {
+    if (this._totalCategories / this._categoryLoadNotifyInterval > this._notifiedCategories
+        / this._categoryLoadNotifyInterval) {
       this._logger.info(String.format("%,d categories loaded so far.", this._totalCategories));
+      this._notifiedCategories = this._totalCategories;
     }
     this.add(_pattern, _that, _topic, template, bot, source);
   }
@@ -368,6 +373,14 @@ abstract public class AbstractGraphmapper implements Graphmapper {
     // Nothing done at this level, but some Graphmappers will want to do something.
   }
 
+  /**
+   * @see org.aitools.programd.graph.Graphmapper#optimize()
+   */
+  @Override
+  public void optimize() {
+    // Nothing done at this level, but some Graphmappers will want to do something.
+  }
+
   /**
    * @see org.aitools.programd.graph.Graphmapper#getCategoryCount()
    */
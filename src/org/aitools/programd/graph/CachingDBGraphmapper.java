@@ -0,0 +1,322 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.graph;
+
+import java.net.URL;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aitools.programd.Bot;
+import org.aitools.programd.Core;
+import org.aitools.programd.CoreSettings;
+
+/**
+ * <p>
+ * A {@link SlowDBGraphmapper} that keeps part of the graph in memory, so that matching seldom needs the database. This
+ * makes it possible to use knowledge bases that are too large to hold in memory, at close to the speed of a
+ * {@link MemoryGraphmapper}.
+ * </p>
+ * <p>
+ * The edges from each node are fetched together, with a single query, and cached together. The nodes in the top few
+ * levels of the graph (which every match passes through) are fetched, a level at a time, when the graph is first
+ * matched against, and are kept for good; other nodes are kept as long as they are among the most recently visited.
+ * Templates are cached with their nodes. Whenever categories are added or removed, the cache is discarded (when a file
+ * is loaded, this is done once, after the whole file).
+ * </p>
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class CachingDBGraphmapper extends SlowDBGraphmapper {
+
+  /** How many levels of the graph are kept in memory at all times. */
+  private int _pinnedLevels;
+
+  /** The nodes in the top levels of the graph, by node id (replaced as a whole when the cache is discarded). */
+  private volatile Map<Integer, CachedNode> _pinned = Collections.emptyMap();
+
+  /** Whether the pinned nodes need to be fetched (again). */
+  private volatile boolean _stale = true;
+
+  /** The most recently visited other nodes, by node id, least recently visited first. */
+  private Map<Integer, CachedNode> _recent;
+
+  /** Incremented whenever the cache is discarded, so that edges fetched before then are not cached afterwards. */
+  private volatile int _generation = 0;
+
+  /** How many files are being loaded (while any are, the cache is discarded only when each one is finished). */
+  private AtomicInteger _loading = new AtomicInteger();
+
+  /**
+   * The edges from a node, and (once it has been looked for) its template.
+   */
+  private static class CachedNode {
+
+    /** The nodes to which this one points, keyed by edge label. */
+    protected Map<String, Integer> children;
+
+    /** Whether the template and filenames have been looked for. */
+    protected volatile boolean leafLoaded = false;
+
+    /** The template (if any). */
+    protected String template;
+
+    /** The filenames associated with the node (if it has a template). */
+    protected List<String> filenames;
+
+    /**
+     * @param edges the nodes to which this one points, keyed by edge label
+     */
+    protected CachedNode(Map<String, Integer> edges) {
+      this.children = edges;
+    }
+  }
+
+  /**
+   * Creates a new CachingDBGraphmapper, reading settings from the given Core.
+   * 
+   * @param core the Core from which to read settings
+   */
+  public CachingDBGraphmapper(Core core) {
+    super(core);
+    CoreSettings settings = core.getSettings();
+    this._pinnedLevels = Math.max(settings.getGraphCachePinnedLevels(), 0);
+    final int maxNodes = settings.getGraphCacheMaxNodes();
+    this._recent = Collections.synchronizedMap(new LinkedHashMap<Integer, CachedNode>(16, 0.75f, true) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer, CachedNode> eldest) {
+        return maxNodes > 0 && size() > maxNodes;
+      }
+    });
+  }
+
+  /**
+   * @see org.aitools.programd.graph.SlowDBGraphmapper#add(java.lang.String, java.lang.String, java.lang.String,
+   *      java.lang.String, org.aitools.programd.Bot, java.net.URL)
+   */
+  @Override
+  public void add(String pattern, String that, String topic, String template, Bot bot, URL source) {
+    super.add(pattern, that, topic, template, bot, source);
+    if (this._loading.get() == 0) {
+      this.invalidate();
+    }
+  }
+
+  /**
+   * @see org.aitools.programd.graph.SlowDBGraphmapper#addForBot(java.net.URL, java.lang.String)
+   */
+  @Override
+  public void addForBot(URL path, String botid) {
+    super.addForBot(path, botid);
+    this.invalidate();
+  }
+
+  /**
+   * Discards the cache, once a file has been loaded.
+   * 
+   * @see org.aitools.programd.graph.SlowDBGraphmapper#afterLoad(java.net.URL, java.lang.String)
+   */
+  @Override
+  public void afterLoad(URL path, String botid) {
+    try {
+      super.afterLoad(path, botid);
+    }
+    finally {
+      this._loading.decrementAndGet();
+      this.invalidate();
+    }
+  }
+
+  /**
+   * @see org.aitools.programd.graph.SlowDBGraphmapper#beforeLoad(java.net.URL, java.lang.String)
+   */
+  @Override
+  public void beforeLoad(URL path, String botid) {
+    super.beforeLoad(path, botid);
+    this._loading.incrementAndGet();
+  }
+
+  /**
+   * @see org.aitools.programd.graph.SlowDBGraphmapper#getChild(java.sql.Connection, int, java.lang.String)
+   */
+  @Override
+  protected int getChild(Connection connection, int node, String key) {
+    Integer child = this.nodeFor(connection, node).children.get(key);
+    return child == null ? NO_NODE : child.intValue();
+  }
+
+  /**
+   * @see org.aitools.programd.graph.SlowDBGraphmapper#getFilenames(java.sql.Connection, int)
+   */
+  @Override
+  protected List<String> getFilenames(Connection connection, int node) {
+    CachedNode cached = this.loadLeaf(connection, node);
+    return cached.filenames == null ? new ArrayList<String>() : new ArrayList<String>(cached.filenames);
+  }
+
+  /**
+   * @see org.aitools.programd.graph.SlowDBGraphmapper#getTemplate(java.sql.Connection, int)
+   */
+  @Override
+  protected String getTemplate(Connection connection, int node) {
+    return this.loadLeaf(connection, node).template;
+  }
+
+  /**
+   * Discards the cache (after categories have been added or removed).
+   */
+  protected synchronized void invalidate() {
+    this._generation++;
+    this._stale = true;
+    this._pinned = Collections.emptyMap();
+    this._recent.clear();
+  }
+
+  /**
+   * Returns the cached node, having looked for its template (and filenames) if that has not yet been done.
+   * 
+   * @param connection
+   * @param node
+   * @return the cached node
+   */
+  private CachedNode loadLeaf(Connection connection, int node) {
+    CachedNode cached = this.nodeFor(connection, node);
+    if (!cached.leafLoaded) {
+      String template = super.getTemplate(connection, node);
+      if (template != null) {
+        cached.filenames = SlowDBNodemapper.getFilenames(connection, node);
+      }
+      cached.template = template;
+      cached.leafLoaded = true;
+    }
+    return cached;
+  }
+
+  /**
+   * Returns the cached edges of the given node, fetching them if necessary.
+   * 
+   * @param connection
+   * @param node
+   * @return the cached node
+   */
+  @SuppressWarnings("boxing")
+  private CachedNode nodeFor(Connection connection, int node) {
+    if (this._stale) {
+      this.pin(connection);
+    }
+    CachedNode cached = this._pinned.get(node);
+    if (cached != null) {
+      return cached;
+    }
+    cached = this._recent.get(node);
+    if (cached == null) {
+      int generation = this._generation;
+      cached = new CachedNode(SlowDBNodemapper.getChildren(connection, node));
+      synchronized (this._recent) {
+        if (generation == this._generation) {
+          this._recent.put(node, cached);
+        }
+      }
+    }
+    return cached;
+  }
+
+  /**
+   * Fetches the edges of the nodes in the top levels of the graph, a level at a time, and keeps them.
+   * 
+   * @param connection
+   */
+  @SuppressWarnings("boxing")
+  private synchronized void pin(Connection connection) {
+    if (!this._stale) {
+      return;
+    }
+    long start = System.currentTimeMillis();
+    Map<Integer, CachedNode> pinned = new HashMap<Integer, CachedNode>();
+    List<Integer> level = Collections.singletonList(this._root);
+    for (int depth = 0; depth < this._pinnedLevels && !level.isEmpty(); depth++) {
+      Map<Integer, Map<String, Integer>> edges = SlowDBNodemapper.getChildren(connection, level);
+      List<Integer> nextLevel = new ArrayList<Integer>();
+      for (Integer node : level) {
+        Map<String, Integer> children = edges.get(node);
+        if (children == null) {
+          children = Collections.emptyMap();
+        }
+        pinned.put(node, new CachedNode(children));
+        nextLevel.addAll(children.values());
+      }
+      level = nextLevel;
+    }
+    this._pinned = pinned;
+    this._stale = false;
+    this._logger.info(String.format("Pinned %,d graph nodes in memory (%,dms).", pinned.size(),
+        System.currentTimeMillis() - start));
+  }
+
+  /**
+   * Fetches the edges from the given node, and from the nodes reached by following the input from it, into the cache
+   * (unless the node is already cached).
+   * 
+   * @see org.aitools.programd.graph.SlowDBGraphmapper#prefetch(java.sql.Connection, int, java.util.List)
+   */
+  @Override
+  @SuppressWarnings("boxing")
+  protected void prefetch(Connection connection, int node, List<String> input) {
+    if (this._stale) {
+      this.pin(connection);
+    }
+    if (this._pinned.containsKey(node) || this._recent.containsKey(node)) {
+      return;
+    }
+    int generation = this._generation;
+    List<Integer> nodes = new ArrayList<Integer>();
+    nodes.add(node);
+    nodes.addAll(SlowDBNodemapper.getChain(connection, node, leadingWords(input)));
+    Map<Integer, Map<String, Integer>> edges = SlowDBNodemapper.getChildren(connection, nodes);
+    synchronized (this._recent) {
+      if (generation == this._generation) {
+        for (Integer fetched : nodes) {
+          Map<String, Integer> children = edges.get(fetched);
+          if (!this._pinned.containsKey(fetched)) {
+            this._recent.put(fetched, new CachedNode(children == null ? Collections.<String, Integer> emptyMap()
+                : children));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @see org.aitools.programd.graph.SlowDBGraphmapper#removeCategory(java.lang.String, java.lang.String,
+   *      java.lang.String, org.aitools.programd.Bot)
+   */
+  @Override
+  public void removeCategory(String pattern, String that, String topic, Bot bot) {
+    super.removeCategory(pattern, that, topic, bot);
+    this.invalidate();
+  }
+
+  /**
+   * @see org.aitools.programd.graph.SlowDBGraphmapper#unload(java.net.URL, org.aitools.programd.Bot)
+   */
+  @Override
+  public void unload(URL path, Bot bot) {
+    super.unload(path, bot);
+    this.invalidate();
+  }
+}
@@ -0,0 +1,459 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.graph;
+
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.aitools.util.db.Entity;
+import org.aitools.util.db.SQLDialect;
+import org.aitools.util.runtime.DeveloperError;
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * Stores all the categories from one file in the database graph at once, rather than one node at a time. The paths of
+ * the categories are collected into a tree in memory as the file is read. When the file has been read, the tree is
+ * matched against the graph a level at a time (with one query for each level, rather than one for each node), and then
+ * the nodes, edges, templates and file associations that are missing are written in JDBC batches. All of this is meant
+ * to be done in a single transaction, which the caller manages.
+ * </p>
+ * <p>
+ * Categories whose paths already lead to a template (whether stored earlier, or earlier in the same file) are not
+ * stored here, but handed back, so that the merge policy can be applied to them one at a time.
+ * </p>
+ * <p>
+ * This class is not safe for use by multiple threads; each file being loaded should have its own.
+ * </p>
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class DBGraphLoader {
+
+  /** The most statements executed in a single JDBC batch. */
+  private static final int BATCH_SIZE = 1000;
+
+  /** The file whose categories are being stored. */
+  private URL _source;
+
+  /** The root of the tree of paths. */
+  private Node _root;
+
+  /** The categories that cannot be stored here (because their paths are already in use). */
+  private List<Category> _deferred = new ArrayList<Category>();
+
+  /** The number of categories collected. */
+  private int _categoryCount = 0;
+
+  /** How often (in categories) to report progress. */
+  private int _notifyInterval;
+
+  /** The general Program D logger. */
+  private Logger _logger = Logger.getLogger("programd");
+
+  /**
+   * A category, as given to {@link #add}.
+   */
+  public static class Category {
+
+    /** The &lt;pattern/&gt; path component. */
+    public String pattern;
+
+    /** The &lt;that/&gt; path component. */
+    public String that;
+
+    /** The &lt;topic/&gt; path component. */
+    public String topic;
+
+    /** The template. */
+    public String template;
+
+    /** The position of the category in its file. */
+    protected int position;
+
+    /**
+     * @param pattern
+     * @param that
+     * @param topic
+     * @param template
+     * @param position
+     */
+    protected Category(String pattern, String that, String topic, String template, int position) {
+      this.pattern = pattern;
+      this.that = that;
+      this.topic = topic;
+      this.template = template;
+      this.position = position;
+    }
+  }
+
+  /**
+   * A node in the tree of paths.
+   */
+  private static class Node {
+
+    /** The label of the edge to this node. */
+    protected String label;
+
+    /** The node that points to this one. */
+    protected Node parent;
+
+    /** The id of the node in the database (or {@link SlowDBGraphmapper#NO_NODE} if it does not exist yet). */
+    protected int id = SlowDBGraphmapper.NO_NODE;
+
+    /** The nodes to which this one points, keyed by edge label. */
+    protected Map<String, Node> children = Collections.emptyMap();
+
+    /** The category that ends at this node (if any). */
+    protected Category category;
+
+    /**
+     * @param label the label of the edge to this node
+     * @param parent the node that points to this one
+     */
+    protected Node(String label, Node parent) {
+      this.label = label;
+      this.parent = parent;
+    }
+
+    /**
+     * @param key
+     * @return the node to which this one points via the given key (created if necessary)
+     */
+    protected Node child(String key) {
+      Node child = this.children.get(key);
+      if (child == null) {
+        if (this.children.isEmpty()) {
+          this.children = new LinkedHashMap<String, Node>();
+        }
+        child = new Node(key, this);
+        this.children.put(key, child);
+      }
+      return child;
+    }
+  }
+
+  /**
+   * Creates a new DBGraphLoader for the given file.
+   * 
+   * @param source the file whose categories are to be stored
+   * @param root the id of the root node of the graph
+   * @param notifyInterval how often (in categories) to report progress (0 or less means never)
+   */
+  public DBGraphLoader(URL source, int root, int notifyInterval) {
+    this._source = source;
+    this._root = new Node(null, null);
+    this._root.id = root;
+    this._notifyInterval = notifyInterval;
+  }
+
+  /**
+   * Collects the given category.
+   * 
+   * @param path the path of the category (as composed by {@link SlowDBGraphmapper})
+   * @param pattern the &lt;pattern/&gt; path component
+   * @param that the &lt;that/&gt; path component
+   * @param topic the &lt;topic/&gt; path component
+   * @param template the template
+   */
+  public void add(List<String> path, String pattern, String that, String topic, String template) {
+    Node node = this._root;
+    for (String word : path) {
+      node = node.child(word);
+    }
+    Category category = new Category(pattern, that, topic, template, this._categoryCount);
+    if (node.category == null) {
+      node.category = category;
+    }
+    else {
+      this._deferred.add(category);
+    }
+    this._categoryCount++;
+  }
+
+  /**
+   * @return the number of categories collected
+   */
+  public int getCategoryCount() {
+    return this._categoryCount;
+  }
+
+  /**
+   * Executes the given batch of statements, and returns the keys they generated.
+   * 
+   * @param statement
+   * @param count the number of statements in the batch
+   * @return the generated keys
+   * @throws SQLException
+   */
+  private static int[] executeForKeys(PreparedStatement statement, int count) throws SQLException {
+    statement.executeBatch();
+    int[] keys = new int[count];
+    int index = 0;
+    ResultSet results = statement.getGeneratedKeys();
+    while (index < count && results.next()) {
+      keys[index++] = results.getInt(1);
+    }
+    results.close();
+    if (index < count) {
+      throw new DeveloperError(String.format("Only %d of %d ids generated!", index, count), new NullPointerException());
+    }
+    return keys;
+  }
+
+  /**
+   * Stores the collected categories, using the given connection (within whatever transaction the caller has begun).
+   * 
+   * @param connection
+   * @return the categories that could not be stored (because their paths already lead to a template), in the order in
+   *         which they were collected
+   * @throws SQLException
+   */
+  @SuppressWarnings("boxing")
+  public List<Category> store(Connection connection) throws SQLException {
+    // Find which nodes already exist, a level at a time, and collect those that do not (parents before children).
+    List<Node> created = new ArrayList<Node>();
+    List<Node> leaves = new ArrayList<Node>();
+    List<Node> botidNodes = new ArrayList<Node>();
+    List<Node> level = Collections.singletonList(this._root);
+    while (!level.isEmpty()) {
+      List<Integer> ids = new ArrayList<Integer>();
+      for (Node node : level) {
+        if (node.id != SlowDBGraphmapper.NO_NODE && !node.children.isEmpty()) {
+          ids.add(node.id);
+        }
+      }
+      Map<Integer, Map<String, Integer>> edges = ids.isEmpty() ? Collections.<Integer, Map<String, Integer>> emptyMap()
+          : SlowDBNodemapper.getChildren(connection, ids);
+      List<Node> nextLevel = new ArrayList<Node>();
+      for (Node node : level) {
+        Map<String, Integer> existing = node.id == SlowDBGraphmapper.NO_NODE ? null : edges.get(node.id);
+        for (Node child : node.children.values()) {
+          Integer id = existing == null ? null : existing.get(child.label);
+          if (id != null) {
+            child.id = id;
+          }
+          else {
+            created.add(child);
+          }
+          if (child.category != null) {
+            leaves.add(child);
+          }
+          if (AbstractGraphmapper.BOT.equals(child.label)) {
+            botidNodes.add(child);
+          }
+          nextLevel.add(child);
+        }
+      }
+      level = nextLevel;
+    }
+
+    // Defer the categories whose (existing) nodes already have templates.
+    List<Integer> existingLeaves = new ArrayList<Integer>();
+    for (Node leaf : leaves) {
+      if (leaf.id != SlowDBGraphmapper.NO_NODE) {
+        existingLeaves.add(leaf.id);
+      }
+    }
+    Set<Integer> withTemplates = SlowDBNodemapper.getNodesWithTemplates(connection, existingLeaves);
+    List<Node> stored = new ArrayList<Node>(leaves.size());
+    for (Node leaf : leaves) {
+      if (leaf.id != SlowDBGraphmapper.NO_NODE && withTemplates.contains(leaf.id)) {
+        this._deferred.add(leaf.category);
+      }
+      else {
+        stored.add(leaf);
+      }
+    }
+
+    this.storeNodes(connection, created);
+    this.storeTemplates(connection, stored);
+    this.storeBotIDNodes(connection, botidNodes);
+
+    // Put the deferred categories back in the order in which they were collected.
+    Collections.sort(this._deferred, new Comparator<Category>() {
+      @Override
+      public int compare(Category one, Category other) {
+        return one.position - other.position;
+      }
+    });
+    return this._deferred;
+  }
+
+  /**
+   * Associates the &lt;botid&gt; marker nodes on the paths of the categories with the file.
+   * 
+   * @param connection
+   * @param botidNodes the &lt;botid&gt; marker nodes
+   * @throws SQLException
+   */
+  private void storeBotIDNodes(Connection connection, List<Node> botidNodes) throws SQLException {
+    int fileID = Entity.getOrCreate(connection, "file", "path", this._source.toExternalForm());
+    PreparedStatement insert = connection.prepareStatement(
+        "INSERT INTO botidnode_file (botidnode_id, file_id) VALUES (?, ?)");
+    int count = 0;
+    for (Node node : botidNodes) {
+      insert.setInt(1, node.id);
+      insert.setInt(2, fileID);
+      insert.addBatch();
+      if (++count % BATCH_SIZE == 0) {
+        insert.executeBatch();
+      }
+    }
+    if (count % BATCH_SIZE != 0) {
+      insert.executeBatch();
+    }
+    insert.close();
+  }
+
+  /**
+   * Creates the given nodes, and the edges to them from their parents.
+   * 
+   * @param connection
+   * @param created the new nodes (parents before children)
+   * @throws SQLException
+   */
+  private void storeNodes(Connection connection, List<Node> created) throws SQLException {
+    PreparedStatement createNode = connection.prepareStatement(SQLDialect.of(connection).insertDefaultRow("node"),
+        Statement.RETURN_GENERATED_KEYS);
+    for (int start = 0; start < created.size(); start += BATCH_SIZE) {
+      int end = Math.min(start + BATCH_SIZE, created.size());
+      for (int index = start; index < end; index++) {
+        createNode.addBatch();
+      }
+      int[] ids = executeForKeys(createNode, end - start);
+      for (int index = start; index < end; index++) {
+        created.get(index).id = ids[index - start];
+      }
+    }
+    createNode.close();
+
+    // Now that every new node has an id, connect each to its parent.
+    PreparedStatement put = connection.prepareStatement(
+        "INSERT INTO edge (from_node_id, label, to_node_id) VALUES (?, ?, ?)");
+    int count = 0;
+    for (Node node : created) {
+      put.setInt(1, node.parent.id);
+      put.setString(2, node.label);
+      put.setInt(3, node.id);
+      put.addBatch();
+      if (++count % BATCH_SIZE == 0) {
+        put.executeBatch();
+      }
+    }
+    if (count % BATCH_SIZE != 0) {
+      put.executeBatch();
+    }
+    put.close();
+  }
+
+  /**
+   * Stores the templates of the categories ending at the given nodes, and associates the nodes with them and with the
+   * file. Each distinct template is stored only once, and not at all if it is already stored.
+   * 
+   * @param connection
+   * @param leaves the nodes
+   * @throws SQLException
+   */
+  @SuppressWarnings("boxing")
+  private void storeTemplates(Connection connection, List<Node> leaves) throws SQLException {
+    // Find the distinct templates, and which of them are already stored.
+    List<String> hashes = new ArrayList<String>(leaves.size());
+    Map<String, String> distinct = new LinkedHashMap<String, String>();
+    for (Node leaf : leaves) {
+      String hash = SlowDBNodemapper.hash(leaf.category.template);
+      hashes.add(hash);
+      distinct.put(hash, leaf.category.template);
+    }
+    Map<String, Integer> templateIDs = SlowDBNodemapper.getTemplateIDs(connection, distinct.keySet());
+    distinct.keySet().removeAll(templateIDs.keySet());
+
+    PreparedStatement setTemplate = connection.prepareStatement("INSERT INTO template (hash, text) VALUES (?, ?)",
+        Statement.RETURN_GENERATED_KEYS);
+    List<String> batch = new ArrayList<String>(BATCH_SIZE);
+    for (Map.Entry<String, String> template : distinct.entrySet()) {
+      setTemplate.setString(1, template.getKey());
+      setTemplate.setString(2, template.getValue());
+      setTemplate.addBatch();
+      batch.add(template.getKey());
+      if (batch.size() == BATCH_SIZE) {
+        storeTemplateBatch(setTemplate, batch, templateIDs);
+      }
+    }
+    if (!batch.isEmpty()) {
+      storeTemplateBatch(setTemplate, batch, templateIDs);
+    }
+    setTemplate.close();
+
+    int fileID = Entity.getOrCreate(connection, "file", "path", this._source.toExternalForm());
+    PreparedStatement associate = connection.prepareStatement(
+        "INSERT INTO node_template (node_id, template_id, template_hash) VALUES (?, ?, ?)");
+    PreparedStatement addFilename = connection.prepareStatement(
+        "INSERT INTO file_node (file_id, node_id) VALUES (?, ?)");
+    for (int index = 0; index < leaves.size(); index++) {
+      int node = leaves.get(index).id;
+      String hash = hashes.get(index);
+      associate.setInt(1, node);
+      associate.setInt(2, templateIDs.get(hash));
+      associate.setString(3, hash);
+      associate.addBatch();
+      addFilename.setInt(1, fileID);
+      addFilename.setInt(2, node);
+      addFilename.addBatch();
+      if ((index + 1) % BATCH_SIZE == 0) {
+        associate.executeBatch();
+        addFilename.executeBatch();
+      }
+      if (this._notifyInterval > 0 && (index + 1) % this._notifyInterval == 0) {
+        this._logger.info(String.format("%,d of %,d categories from \"%s\" stored so far.", index + 1,
+            leaves.size(), this._source));
+      }
+    }
+    if (leaves.size() % BATCH_SIZE != 0) {
+      associate.executeBatch();
+      addFilename.executeBatch();
+    }
+    associate.close();
+    addFilename.close();
+    if (this._logger.isDebugEnabled()) {
+      this._logger.debug(String.format("%,d distinct templates among %,d categories from \"%s\" (%,d new).",
+          templateIDs.size(), leaves.size(), this._source, distinct.size()));
+    }
+  }
+
+  /**
+   * Executes a batch of template insertions, noting the ids generated for them.
+   * 
+   * @param setTemplate the statement holding the batch
+   * @param batch the hashes of the templates in the batch (emptied afterward)
+   * @param templateIDs the map in which to note the ids, by hash
+   * @throws SQLException
+   */
+  @SuppressWarnings("boxing")
+  private static void storeTemplateBatch(PreparedStatement setTemplate, List<String> batch,
+      Map<String, Integer> templateIDs) throws SQLException {
+    int[] ids = executeForKeys(setTemplate, batch.size());
+    for (int index = 0; index < ids.length; index++) {
+      templateIDs.put(batch.get(index), ids[index]);
+    }
+    batch.clear();
+  }
+}
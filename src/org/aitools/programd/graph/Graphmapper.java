@@ -100,6 +100,12 @@ public interface Graphmapper {
    */
   public void print(String path);
 
+  /**
+   * Performs whatever whole-graph optimizations this <code>Graphmapper</code> supports. This should be called after
+   * a batch of loading or unloading is finished, since the optimizations may depend on the entire graph.
+   */
+  public void optimize();
+
   /**
    * Removes a category from the <code>Graphmapper</code>.
    * 
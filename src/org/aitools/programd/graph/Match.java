@@ -10,13 +10,20 @@
 package org.aitools.programd.graph;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.aitools.programd.util.InputNormalizer;
 
 /**
+ * <p>
  * <code>Match</code> implements an object to store the results of matching, most notably the stacks resulting from
  * multiple input/that/topic wildcards.
+ * </p>
+ * <p>
+ * Wildcard captures and the matched path are recorded only as offsets into the input path and keys followed; the
+ * strings are put together only if they are asked for, which for most templates they never are.
+ * </p>
  */
 public class Match {
 
@@ -54,26 +61,33 @@ public class Match {
     }
   }
 
-  /** The portions of the input captured by wildcards. */
-  private ArrayList<String> _inputStars = new ArrayList<String>();
+  /** The tokenized input path (input, that, topic and botid, with their markers) against which the match is made. */
+  private List<String> _inputPath;
 
-  /** The portions of the &lt;that/&gt; captured by wildcards. */
-  private ArrayList<String> _thatStars = new ArrayList<String>();
+  /**
+   * The keys of the path followed through the graph so far (including markers). Keys are removed again when a branch
+   * is abandoned, so once the match is complete this is the matched path.
+   */
+  private ArrayList<String> _keys = new ArrayList<String>();
 
-  /** The portions of the &lt;topic/&gt; <code>name</code> captured by wildcards. */
-  private ArrayList<String> _topicStars = new ArrayList<String>();
+  /**
+   * Wildcard captures for the input, that and topic parts of the path, each a sequence of (start, end) offsets into
+   * the input path, in the order in which they were captured (last wildcard first). These are only allocated when a
+   * wildcard actually captures something.
+   */
+  private int[][] _captures = new int[Match.State.IN_BOTID.ordinal()][];
 
-  /** The <code>pattern</code> part of the matched path. */
-  private String _pattern;
+  /** The number of offsets used in each of the arrays in {@link #_captures}. */
+  private int[] _captureSizes = new int[Match.State.IN_BOTID.ordinal()];
 
-  /** The <code>that</code> part of the matched path. */
-  private String _that;
+  /** The portions of the input captured by wildcards (created when first asked for). */
+  private ArrayList<String> _inputStars;
 
-  /** The <code>topic</code> part of the matched path. */
-  private String _topic;
+  /** The portions of the &lt;that/&gt; captured by wildcards (created when first asked for). */
+  private ArrayList<String> _thatStars;
 
-  /** The <code>botid</code> part of the matched path. */
-  private String _botid;
+  /** The portions of the &lt;topic/&gt; <code>name</code> captured by wildcards (created when first asked for). */
+  private ArrayList<String> _topicStars;
 
   /** The <code>template</code> associated with the matched path. */
   private String _template;
@@ -81,6 +95,85 @@ public class Match {
   /** The <code>filenames</code> from which the matched path came. */
   private List<String> _filenames;
 
+  /** The number of <code>srai</code> reductions the graph collapsed into the matched template. */
+  private int _reductionsSkipped;
+
+  /**
+   * Creates a new <code>Match</code> against the given input path.
+   * 
+   * @param inputPath the tokenized input path (input, that, topic and botid, with their markers)
+   */
+  public Match(List<String> inputPath) {
+    this._inputPath = inputPath;
+  }
+
+  /**
+   * Records that the match has followed the given key from the current point in the graph.
+   * 
+   * @param key the key followed
+   */
+  public void enterPath(String key) {
+    this._keys.add(key);
+  }
+
+  /**
+   * Records that the match has abandoned the key most recently followed.
+   */
+  public void leavePath() {
+    this._keys.remove(this._keys.size() - 1);
+  }
+
+  /**
+   * Joins the keys of the matched path that lie between the given marker and the next one (or the end).
+   * 
+   * @param marker the marker that precedes the component, or <code>null</code> for the input component
+   * @return the path component
+   */
+  private String getPathComponent(String marker) {
+    int start = 0;
+    if (marker != null) {
+      start = this._keys.indexOf(marker) + 1;
+      if (start == 0) {
+        return null;
+      }
+    }
+    StringBuilder component = new StringBuilder();
+    for (int index = start; index < this._keys.size(); index++) {
+      String key = this._keys.get(index);
+      if (key.startsWith("<")) {
+        break;
+      }
+      if (component.length() > 0) {
+        component.append(' ');
+      }
+      component.append(key);
+    }
+    return component.toString().toUpperCase();
+  }
+
+  /**
+   * Returns the strings captured by the wildcards in the given part of the path.
+   * 
+   * @param state the part of the path
+   * @return the captured strings
+   */
+  private ArrayList<String> materializeStars(State state) {
+    int[] offsets = this._captures[state.ordinal()];
+    int size = this._captureSizes[state.ordinal()];
+    ArrayList<String> stars = new ArrayList<String>(size / 2);
+    for (int index = size - 2; index >= 0; index -= 2) {
+      StringBuilder star = new StringBuilder();
+      for (int token = offsets[index]; token < offsets[index + 1]; token++) {
+        if (star.length() > 0) {
+          star.append(' ');
+        }
+        star.append(this._inputPath.get(token).trim());
+      }
+      stars.add(star.toString());
+    }
+    return stars;
+  }
+
   /**
    * Gets the filenames from which the &lt;template/&gt; originally came.
    * 
@@ -96,17 +189,43 @@ public class Match {
    * @return the input stars
    */
   public ArrayList<String> getInputStars() {
+    if (this._inputStars == null) {
+      this._inputStars = this.materializeStars(State.IN_INPUT);
+    }
     return this._inputStars;
   }
 
+  /**
+   * Returns the number of <code>srai</code> reductions that the graph collapsed into the matched template (and which
+   * therefore will not have to be processed).
+   * 
+   * @return the number of reductions skipped
+   */
+  public int getReductionsSkipped() {
+    return this._reductionsSkipped;
+  }
+
   /**
    * Returns the match path.
    * 
    * @return the match path
    */
   public String getPath() {
-    return String.format("%s:%s:%s:%s", InputNormalizer.patternFit(this._pattern),
-        InputNormalizer.patternFit(this._that), InputNormalizer.patternFit(this._topic), this._botid);
+    return String.format("%s:%s:%s:%s", InputNormalizer.patternFit(this.getPattern()),
+        InputNormalizer.patternFit(this.getThat()), InputNormalizer.patternFit(this.getTopic()), this.getBotID());
+  }
+
+  /**
+   * Returns the <code>botid</code> part of the matched path.
+   * 
+   * @return the <code>botid</code> part of the matched path
+   */
+  public String getBotID() {
+    int marker = this._keys.indexOf(AbstractGraphmapper.BOT);
+    if (marker == -1 || marker == this._keys.size() - 1) {
+      return null;
+    }
+    return this._keys.get(marker + 1);
   }
 
   /**
@@ -115,7 +234,7 @@ public class Match {
    * @return the <code>pattern</code> part of the matched path
    */
   public String getPattern() {
-    return this._pattern;
+    return this.getPathComponent(null);
   }
 
   /**
@@ -133,7 +252,7 @@ public class Match {
    * @return the <code>that</code> part of the matched path
    */
   public String getThat() {
-    return this._that;
+    return this.getPathComponent(AbstractGraphmapper.THAT);
   }
 
   /**
@@ -142,6 +261,9 @@ public class Match {
    * @return the &lt;that/&gt; stars
    */
   public ArrayList<String> getThatStars() {
+    if (this._thatStars == null) {
+      this._thatStars = this.materializeStars(State.IN_THAT);
+    }
     return this._thatStars;
   }
 
@@ -151,7 +273,7 @@ public class Match {
    * @return the <code>topic</code> part of the matched path
    */
   public String getTopic() {
-    return this._topic;
+    return this.getPathComponent(AbstractGraphmapper.TOPIC);
   }
 
   /**
@@ -160,41 +282,45 @@ public class Match {
    * @return the &lt;topic/&gt; stars
    */
   public ArrayList<String> getTopicStars() {
+    if (this._topicStars == null) {
+      this._topicStars = this.materializeStars(State.IN_TOPIC);
+    }
     return this._topicStars;
   }
 
   /**
-   * Pushes content onto the wildcard stack for the given match state.
+   * Records a wildcard capture for the given part of the path, as offsets into the input path. Captures must be
+   * recorded last wildcard first (as happens naturally when the recursion of matching unwinds).
    * 
-   * @param state the state onto whose wildcard stack the string should be pushed
-   * @param string the string to push onto the stack
+   * @param state the part of the path in which the wildcard occurred
+   * @param start the offset of the first token captured
+   * @param end the offset just after the last token captured
    */
-  public void pushWildcardContent(State state, String string) {
-    switch (state) {
-      case IN_INPUT:
-        this._inputStars.add(0, string);
-        break;
-
-      case IN_THAT:
-        this._thatStars.add(0, string);
-        break;
-
-      case IN_TOPIC:
-        this._topicStars.add(0, string);
-        break;
-
-      case IN_BOTID:
-        throw new IllegalArgumentException("No wildcard content for botids!");
+  public void captureWildcard(State state, int start, int end) {
+    if (state == State.IN_BOTID) {
+      throw new IllegalArgumentException("No wildcard content for botids!");
     }
+    int index = state.ordinal();
+    int[] offsets = this._captures[index];
+    int size = this._captureSizes[index];
+    if (offsets == null) {
+      offsets = new int[4];
+      this._captures[index] = offsets;
+    }
+    else if (size == offsets.length) {
+      offsets = Arrays.copyOf(offsets, size * 2);
+      this._captures[index] = offsets;
+    }
+    offsets[size] = start;
+    offsets[size + 1] = end;
+    this._captureSizes[index] = size + 2;
   }
 
   /**
-   * Sets the <code>botid</code> part of the matched path.
-   * 
-   * @param string the <code>botid</code> part of the matched path
+   * @return the tokenized input path against which the match is made
    */
-  public void setBotID(String string) {
-    this._botid = string;
+  public List<String> getInputPath() {
+    return this._inputPath;
   }
 
   /**
@@ -207,29 +333,12 @@ public class Match {
   }
 
   /**
-   * Sets the indicated component of the matched path.
+   * Sets the number of <code>srai</code> reductions that the graph collapsed into the matched template.
    * 
-   * @param state the match state corresponding to the match path component
-   * @param string the value of the match path component
+   * @param count the number of reductions skipped
    */
-  public void setPathComponent(Match.State state, String string) {
-    switch (state) {
-      case IN_INPUT:
-        this._pattern = string;
-        break;
-
-      case IN_THAT:
-        this._that = string;
-        break;
-
-      case IN_TOPIC:
-        this._topic = string;
-        break;
-
-      case IN_BOTID:
-        this._botid = string;
-        break;
-    }
+  public void setReductionsSkipped(int count) {
+    this._reductionsSkipped = count;
   }
 
   /**
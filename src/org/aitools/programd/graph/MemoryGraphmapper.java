@@ -10,25 +10,44 @@
 package org.aitools.programd.graph;
 
 import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 
 import org.aitools.programd.Bot;
 import org.aitools.programd.Core;
+import org.aitools.programd.parser.TemplateAnalyzer;
+import org.aitools.programd.util.InputNormalizer;
 import org.aitools.programd.util.NoMatchException;
 import org.aitools.util.ObjectFactory;
 import org.aitools.util.Text;
 import org.aitools.util.runtime.DeveloperError;
 
 /**
+ * <p>
  * This is a memory-based {@link Graphmapper}.
+ * </p>
+ * <p>
+ * When {@link #optimize()} is called, chains of static reductions (categories whose template is nothing but an
+ * <code>srai</code> of literal text, as is typical of synonym files) are followed through the graph, and each such
+ * category is matched to the template at the end of its chain, so that matching it no longer requires processing every
+ * reduction in the chain. This is only done where the outcome is certain regardless of <code>that</code> and
+ * <code>topic</code>; chains that loop back on themselves are reported and left alone.
+ * </p>
+ * <p>
+ * Identical templates (very common among synonym categories) are stored as a single shared string, looked up by
+ * content as categories are added. Besides saving memory, this means that anything remembered about a template (such
+ * as whether it is pure; see {@link TemplateAnalyzer}) is worked out only once for all the categories that share it.
+ * </p>
  * 
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
  */
@@ -49,6 +68,43 @@ public class MemoryGraphmapper extends AbstractGraphmapper {
   /** A count of Nodemappers. */
   protected int nodemapperCount = 1;
 
+  /** The templates in use, each keyed by itself, so that identical templates can share one string. */
+  private Map<String, WeakReference<String>> _templates = new WeakHashMap<String, WeakReference<String>>();
+
+  /**
+   * The collapsed reduction chains, keyed by the leaf at which each starts. The leaves themselves are never changed;
+   * matching looks here instead. A new map is put in place whenever the chains change, so that matching in other
+   * threads never sees one half-built.
+   */
+  protected volatile Map<Nodemapper, CollapsedReduction> _collapsed = Collections.emptyMap();
+
+  /** The number of changes made to the graph, so that chains worked out across a change can be thrown away. */
+  private int _changes = 0;
+
+  /** Guards the change count and the putting in place of collapsed chains. */
+  private final Object _collapseLock = new Object();
+
+  /**
+   * Records the collapsing of a chain of reductions into a leaf.
+   */
+  protected static class CollapsedReduction {
+
+    /** The template at the end of the chain. */
+    protected String replacement;
+
+    /** The number of reductions saved by using the replacement. */
+    protected int depth;
+
+    /**
+     * @param replacementTemplate the template at the end of the chain
+     * @param depthSaved the number of reductions saved by using the replacement
+     */
+    protected CollapsedReduction(String replacementTemplate, int depthSaved) {
+      this.replacement = replacementTemplate;
+      this.depth = depthSaved;
+    }
+  }
+
   /**
    * Creates a new <code>Graphmaster</code>, reading settings from the given Core.
    * 
@@ -113,7 +169,9 @@ public class MemoryGraphmapper extends AbstractGraphmapper {
    */
   @Override
   public void add(String pattern, String that, String topic, String template, Bot bot, URL source) {
+    this.forgetCollapsedReductions();
     Nodemapper nodemapper = this.add(pattern, that, topic, bot.getID(), source);
+    template = this.share(template);
     String storedTemplate = (String) nodemapper.get(TEMPLATE);
     if (storedTemplate == null) {
       nodemapper.put(FILENAME, source.toExternalForm());
@@ -151,7 +209,7 @@ public class MemoryGraphmapper extends AbstractGraphmapper {
                         source, nodemapper.get(FILENAME), pattern, that, topic));
           }
           nodemapper.put(FILENAME, String.format("%s, %s", nodemapper.get(FILENAME), source));
-          nodemapper.put(TEMPLATE, this.appendTemplate(storedTemplate, template));
+          nodemapper.put(TEMPLATE, this.share(this.appendTemplate(storedTemplate, template)));
           break;
 
         case COMBINE:
@@ -163,7 +221,7 @@ public class MemoryGraphmapper extends AbstractGraphmapper {
                         source, nodemapper.get(FILENAME), pattern, that, topic));
           }
           nodemapper.put(FILENAME, String.format("%s, %s", nodemapper.get(FILENAME), source));
-          String combined = this.combineTemplates(storedTemplate, template);
+          String combined = this.share(this.combineTemplates(storedTemplate, template));
           nodemapper.put(TEMPLATE, combined);
           break;
       }
@@ -203,6 +261,7 @@ public class MemoryGraphmapper extends AbstractGraphmapper {
       throw new IllegalArgumentException(
           "Must not call addForBot() using a URL and botid that have already been associated.");
     }
+    this.forgetCollapsedReductions();
     if (this._logger.isDebugEnabled()) {
       this._logger.debug(String.format("Adding botid \"%s\" to all paths associated with \"%s\".", botid, path));
     }
@@ -228,6 +287,19 @@ public class MemoryGraphmapper extends AbstractGraphmapper {
     botids.add(botid);
   }
 
+  /**
+   * @see org.aitools.programd.graph.AbstractGraphmapper#getCategoryReport()
+   */
+  @Override
+  @SuppressWarnings("boxing")
+  public String getCategoryReport() {
+    int distinct;
+    synchronized (this._templates) {
+      distinct = this._templates.size();
+    }
+    return String.format("%s %,d distinct templates.", super.getCategoryReport(), distinct);
+  }
+
   @Override
   protected boolean isAlreadyLoaded(URL filename) {
     return this._urlCatalog.containsKey(filename);
@@ -246,8 +318,8 @@ public class MemoryGraphmapper extends AbstractGraphmapper {
    * @param nodemapper the nodemapper where we start matching
    * @param parent the parent of the nodemapper where we start matching
    * @param input the input path (possibly a sublist of the original)
-   * @param wildcardContent contents absorbed by a wildcard
-   * @param path the path matched so far
+   * @param wildcardStart the offset in the input path at which the contents absorbed by a wildcard start
+   * @param wildcardEnd the offset in the input path just after the contents absorbed by a wildcard
    * @param match an object containing information about the match
    * @param matchState state variable tracking which part of the path we're in
    * @param expiration when this response process expires
@@ -255,8 +327,8 @@ public class MemoryGraphmapper extends AbstractGraphmapper {
    * @throws NoMatchException if match time expires
    */
   @SuppressWarnings("boxing")
-  protected Nodemapper match(Nodemapper nodemapper, Nodemapper parent, List<String> input, String wildcardContent,
-      StringBuilder path, Match match, Match.State matchState, long expiration) throws NoMatchException {
+  protected Nodemapper match(Nodemapper nodemapper, Nodemapper parent, List<String> input, int wildcardStart,
+      int wildcardEnd, Match match, Match.State matchState, long expiration) throws NoMatchException {
     if (nodemapper == null) {
       return null;
     }
@@ -279,11 +351,17 @@ public class MemoryGraphmapper extends AbstractGraphmapper {
 
     // If no more tokens in the input, see if this is a template.
     if (input.size() == 0) {
-      // If so, the path
-      // component is the botid.
       if (nodemapper.containsKey(TEMPLATE)) {
-        match.setBotID(path.toString());
-        match.setTemplate((String) nodemapper.get(TEMPLATE));
+        String template = (String) nodemapper.get(TEMPLATE);
+        Map<Nodemapper, CollapsedReduction> collapsedReductions = this._collapsed;
+        if (!collapsedReductions.isEmpty()) {
+          CollapsedReduction collapsed = collapsedReductions.get(nodemapper);
+          if (collapsed != null) {
+            template = collapsed.replacement;
+            match.setReductionsSkipped(collapsed.depth);
+          }
+        }
+        match.setTemplate(template);
         match.setFilenames(Arrays.asList(((String) nodemapper.get(FILENAME)).split(",")));
         return nodemapper;
       }
@@ -297,6 +375,9 @@ public class MemoryGraphmapper extends AbstractGraphmapper {
     // Take the rest as the tail.
     List<String> tail = input.subList(1, input.size());
 
+    // Note where the head is in the whole input path.
+    int position = match.getInputPath().size() - input.size();
+
     // Now proceed through the AIML matching sequence: _, a-z, *.
     Match.State _matchState = matchState;
 
@@ -305,10 +386,8 @@ public class MemoryGraphmapper extends AbstractGraphmapper {
         _matchState, // target match state for wildcard content
         nodemapper, // current nodemapper
         tail, // current tail
-        true, // append new path? yes
-        wildcardContent, // current wildcard content
-        head, // new wildcard content
-        path, // current path
+        wildcardStart, wildcardEnd, // current wildcard content
+        position, position + 1, // new wildcard content (the head)
         match, // match object
         _matchState, // current match state
         expiration // expiration timestamp
@@ -328,7 +407,6 @@ public class MemoryGraphmapper extends AbstractGraphmapper {
        */
       boolean isMarker = false;
       if (head.startsWith("<")) {
-        match.setPathComponent(_matchState, path.toString().toUpperCase());
         if (head.equals(THAT)) {
           isMarker = true;
           _matchState = Match.State.IN_THAT;
@@ -346,10 +424,8 @@ public class MemoryGraphmapper extends AbstractGraphmapper {
           isMarker ? _matchState.preceding() : null, // target match state for wildcard content
           nodemapper, // current nodemapper
           tail, // current tail
-          !isMarker, // append new path? (only if this is not a marker)
-          wildcardContent, // current wildcard content (empty if this is a marker)
-          isMarker ? "" : wildcardContent, // new wildcard content
-          path, // current path
+          wildcardStart, wildcardEnd, // current wildcard content
+          isMarker ? position + 1 : wildcardStart, isMarker ? position + 1 : wildcardEnd, // new (empty if a marker)
           match, // match object
           _matchState, // current match state
           expiration // expiration timestamp
@@ -367,10 +443,8 @@ public class MemoryGraphmapper extends AbstractGraphmapper {
         _matchState, // target match state for wildcard content
         nodemapper, // current nodemapper
         tail, // current tail
-        true, // append new path?
-        wildcardContent, // current wildcard content
-        head, // new wildcard content
-        path, // current path
+        wildcardStart, wildcardEnd, // current wildcard content
+        position, position + 1, // new wildcard content (the head)
         match, // match object
         _matchState, // current match state
         expiration // expiration timestamp
@@ -388,8 +462,7 @@ public class MemoryGraphmapper extends AbstractGraphmapper {
       nextNodemapper = this.match(nodemapper, // current nodemapper
           parent, // current path
           tail, // current tail
-          String.format("%s %s", wildcardContent, head), // head = wildcard content + head
-          path, // current path
+          wildcardStart, position + 1, // wildcard content + head
           match, // match object
           _matchState, // current match state
           expiration // expiration timestamp
@@ -414,10 +487,10 @@ public class MemoryGraphmapper extends AbstractGraphmapper {
    * @param wildcardDestination
    * @param nodemapper
    * @param tail
-   * @param appendToPath
-   * @param currentWildcard
-   * @param newWildcard
-   * @param path
+   * @param currentWildcardStart
+   * @param currentWildcardEnd
+   * @param newWildcardStart
+   * @param newWildcardEnd
    * @param match
    * @param matchState
    * @param expiration
@@ -425,30 +498,33 @@ public class MemoryGraphmapper extends AbstractGraphmapper {
    * @throws NoMatchException
    */
   protected Nodemapper match(String key, Match.State wildcardDestination, Nodemapper nodemapper, List<String> tail,
-      boolean appendToPath, String currentWildcard, String newWildcard, StringBuilder path, Match match,
+      int currentWildcardStart, int currentWildcardEnd, int newWildcardStart, int newWildcardEnd, Match match,
       Match.State matchState, long expiration) throws NoMatchException {
-    // Construct a new path from the current path plus the key.
-    StringBuilder newPath = new StringBuilder();
-    if (path.length() > 0) {
-      newPath.append(path);
-      newPath.append(' ');
+    Nodemapper next = (Nodemapper) nodemapper.get(key);
+    if (next == null) {
+      return null;
     }
-    newPath.append(key);
+    // Add the key to the path.
+    match.enterPath(key);
 
     // Try to get a match with the tail and this new path (may throw exception)
-    Nodemapper result = this.match((Nodemapper) nodemapper.get(key), // newly matched nodemapper
+    Nodemapper result = this.match(next, // newly matched nodemapper
         nodemapper, // current nodemapper as parent
         tail, // current tail
-        newWildcard, // current wildcardContent
-        appendToPath ? newPath : new StringBuilder(), // either the new path, or a blank one
+        newWildcardStart, newWildcardEnd, // current wildcard content
         match, // match object
         matchState, // current match state
         expiration // expiration timestamp
         );
-    // capture and push the wildcard content appropriate to the current match state.
+    if (result == null) {
+      // Abandon this branch of the path.
+      match.leavePath();
+      return null;
+    }
+    // capture the wildcard content appropriate to the current match state.
     if (wildcardDestination != null && wildcardDestination.compareTo(Match.State.IN_BOTID) < 0
-        && currentWildcard.length() > 0) {
-      match.pushWildcardContent(wildcardDestination, currentWildcard);
+        && currentWildcardEnd > currentWildcardStart) {
+      match.captureWildcard(wildcardDestination, currentWildcardStart, currentWildcardEnd);
     }
     return result;
   }
@@ -466,15 +542,222 @@ public class MemoryGraphmapper extends AbstractGraphmapper {
   @Override
   public Match match(String input, String that, String topic, String botid) throws NoMatchException {
     // Get the match, starting at the root, with an empty star and path, starting in "in input" mode.
-    Match match = new Match();
-    Nodemapper result = this.match(this.root, this.root, AbstractGraphmapper.composeInputPath(input, that, topic, botid), "",
-        new StringBuilder(), match, Match.State.IN_INPUT, System.currentTimeMillis() + this._responseTimeout);
+    List<String> inputPath = AbstractGraphmapper.composeInputPath(input, that, topic, botid);
+    Match match = new Match(inputPath);
+    Nodemapper result = this.match(this.root, this.root, inputPath, 0, 0, match, Match.State.IN_INPUT,
+        System.currentTimeMillis() + this._responseTimeout);
     if (result != null) {
       return match;
     }
     throw new NoMatchException(String.format("%s:%s:%s:%s", input, that, topic, botid));
   }
 
+  /**
+   * Collapses the chains of static reductions in the graph (see the class description). Matching may go on meanwhile;
+   * it uses the chains worked out last time until the new ones are ready. If the graph is changed while the chains are
+   * being worked out, they are thrown away.
+   * 
+   * @see org.aitools.programd.graph.Graphmapper#optimize()
+   */
+  @Override
+  @SuppressWarnings("boxing")
+  public synchronized void optimize() {
+    int changes;
+    synchronized (this._collapseLock) {
+      changes = this._changes;
+    }
+
+    Map<Nodemapper, CollapsedReduction> collapsed = new HashMap<Nodemapper, CollapsedReduction>();
+    int loops = 0;
+    for (Bot bot : this._core.getBots().values()) {
+      for (Set<Nodemapper> leaves : bot.getLoadedFilesMap().values()) {
+        for (Nodemapper leaf : leaves) {
+          if (!collapsed.containsKey(leaf)) {
+            try {
+              CollapsedReduction reduction = this.collapse(leaf, bot.getID());
+              if (reduction != null) {
+                collapsed.put(leaf, reduction);
+              }
+            }
+            catch (ReductionLoopException e) {
+              loops++;
+              if (this._logger.isDebugEnabled()) {
+                this._logger.debug(String.format("srai loop in \"%s\": %s", leaf.get(FILENAME), e.getMessage()));
+              }
+            }
+          }
+        }
+      }
+    }
+    synchronized (this._collapseLock) {
+      if (this._changes != changes) {
+        this._logger.debug("The graph changed while srai chains were being collapsed; they will be collapsed later.");
+        return;
+      }
+      this._collapsed = collapsed;
+    }
+    long totalDepth = 0;
+    for (CollapsedReduction reduction : collapsed.values()) {
+      totalDepth += reduction.depth;
+    }
+    if (collapsed.size() > 0 || loops > 0) {
+      this._logger.info(String.format("Collapsed %,d srai chains (average depth saved %.2f); %,d srai loops found.",
+          collapsed.size(), collapsed.size() > 0 ? (double) totalDepth / collapsed.size() : 0d, loops));
+    }
+  }
+
+  /**
+   * Thrown internally when a chain of static reductions loops back on itself.
+   */
+  protected static class ReductionLoopException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param chain the chain of reductions that loops
+     */
+    protected ReductionLoopException(List<String> chain) {
+      super(chain.toString());
+    }
+  }
+
+  /**
+   * Follows the chain of static reductions that starts at the given leaf, and works out how it can be collapsed.
+   * 
+   * @param leaf the leaf at which to start
+   * @param botid the bot for whom to follow the chain
+   * @return the collapsed reduction, or <code>null</code> if the leaf's template is not a static reduction or its
+   *         chain cannot be followed with certainty
+   * @throws ReductionLoopException if the chain loops back on itself
+   */
+  protected CollapsedReduction collapse(Nodemapper leaf, String botid) throws ReductionLoopException {
+    String original = (String) leaf.get(TEMPLATE);
+    String target = TemplateAnalyzer.getReductionTarget(original);
+    // Leaves shared by several bots are left alone, since their chains may differ.
+    if (target == null || leaf.getParent() == null || leaf.getParent().size() > 1) {
+      return null;
+    }
+    List<String> chain = new ArrayList<String>();
+    Nodemapper current = leaf;
+    String template = original;
+    String previous = null;
+    while (target != null) {
+      for (String earlier : chain) {
+        if (earlier.equalsIgnoreCase(target)) {
+          chain.add(target);
+          throw new ReductionLoopException(chain);
+        }
+      }
+      chain.add(target);
+      Nodemapper next = this.resolveStatically(target, botid);
+      if (next == null) {
+        return null;
+      }
+      // The input that reached the leaf may itself be the one the chain comes back to.
+      if (next == leaf) {
+        throw new ReductionLoopException(chain);
+      }
+      previous = template;
+      current = next;
+      template = (String) current.get(TEMPLATE);
+      target = TemplateAnalyzer.getReductionTarget(template);
+    }
+    int depth = chain.size();
+    if (!TemplateAnalyzer.usesMatchContext(template)) {
+      return new CollapsedReduction(template, depth);
+    }
+    // The final template needs its own match, so reduce straight to it instead.
+    if (depth > 1) {
+      return new CollapsedReduction(previous, depth - 1);
+    }
+    return null;
+  }
+
+  /**
+   * Finds the leaf that the given input will certainly reach for the given bot, whatever the <code>that</code> and
+   * <code>topic</code>.
+   * 
+   * @param input the input
+   * @param botid the bot for whom to match
+   * @return the leaf, or <code>null</code> if it cannot be determined
+   */
+  protected Nodemapper resolveStatically(String input, String botid) {
+    List<String> words = Text.wordSplit(InputNormalizer.patternFitIgnoreCase(input));
+    if (words.size() == 0) {
+      return null;
+    }
+    Nodemapper node = this.matchInputStatically(this.root, this.root, words);
+    node = onlyChild(node, ASTERISK);
+    node = onlyChild(node, TOPIC);
+    node = onlyChild(node, ASTERISK);
+    node = onlyChild(node, BOT);
+    if (node == null) {
+      return null;
+    }
+    Object leaf = node.get(botid);
+    if (leaf instanceof Nodemapper && ((Nodemapper) leaf).containsKey(TEMPLATE)) {
+      return (Nodemapper) leaf;
+    }
+    return null;
+  }
+
+  /**
+   * Follows the input part of the matching sequence (see
+   * {@link #match(Nodemapper, Nodemapper, List, int, int, Match, Match.State, long)}) and returns the
+   * first <code>&lt;that&gt;</code> node it reaches.
+   * 
+   * @param nodemapper the nodemapper where we start matching
+   * @param parent the parent of the nodemapper where we start matching
+   * @param input the input words remaining
+   * @return the first <code>&lt;that&gt;</code> node reached, or <code>null</code> if none is
+   */
+  private Nodemapper matchInputStatically(Nodemapper nodemapper, Nodemapper parent, List<String> input) {
+    if (nodemapper == null) {
+      return null;
+    }
+    if (input.size() == 0) {
+      return (Nodemapper) nodemapper.get(THAT);
+    }
+    String head = input.get(0);
+    List<String> tail = input.subList(1, input.size());
+    Nodemapper result = this.matchInputStatically((Nodemapper) nodemapper.get(UNDERSCORE), nodemapper, tail);
+    if (result == null && nodemapper.containsKey(head)) {
+      result = this.matchInputStatically((Nodemapper) nodemapper.get(head), nodemapper, tail);
+    }
+    if (result == null) {
+      result = this.matchInputStatically((Nodemapper) nodemapper.get(ASTERISK), nodemapper, tail);
+    }
+    if (result == null && (nodemapper.equals(parent.get(ASTERISK)) || nodemapper.equals(parent.get(UNDERSCORE)))) {
+      result = this.matchInputStatically(nodemapper, parent, tail);
+    }
+    return result;
+  }
+
+  /**
+   * @param nodemapper the nodemapper to check (may be <code>null</code>)
+   * @param key the key
+   * @return the child of the given nodemapper at the given key, if that is its only child, otherwise <code>null</code>
+   */
+  private static Nodemapper onlyChild(Nodemapper nodemapper, String key) {
+    if (nodemapper != null && nodemapper.size() == 1 && nodemapper.containsKey(key)) {
+      return (Nodemapper) nodemapper.get(key);
+    }
+    return null;
+  }
+
+  /**
+   * Forgets the collapsed reduction chains (so that matching goes back to following them one by one). This must be done
+   * before the graph is changed in any way, since the chains may no longer hold.
+   */
+  protected void forgetCollapsedReductions() {
+    synchronized (this._collapseLock) {
+      this._changes++;
+      if (!this._collapsed.isEmpty()) {
+        this._collapsed = Collections.emptyMap();
+      }
+    }
+  }
+
   private void print(Nodemapper nodemapper, PrintWriter out) {
     ArrayList<String> keyList = new ArrayList<String>(nodemapper.keySet());
     int keyCount = keyList.size();
@@ -523,10 +806,12 @@ public class MemoryGraphmapper extends AbstractGraphmapper {
    */
   @Override
   public void removeCategory(String pattern, String that, String topic, Bot bot) {
+    this.forgetCollapsedReductions();
     Nodemapper nodemapper = null;
     try {
-      nodemapper = this.match(this.root, this.root, AbstractGraphmapper.composeInputPath(pattern, that, topic, bot.getID()), "",
-          new StringBuilder(), new Match(), Match.State.IN_INPUT, System.currentTimeMillis() + this._responseTimeout);
+      List<String> inputPath = AbstractGraphmapper.composeInputPath(pattern, that, topic, bot.getID());
+      nodemapper = this.match(this.root, this.root, inputPath, 0, 0, new Match(inputPath), Match.State.IN_INPUT,
+          System.currentTimeMillis() + this._responseTimeout);
     }
     catch (NoMatchException e) {
       throw new DeveloperError("Could not remove category.", e);
@@ -539,11 +824,31 @@ public class MemoryGraphmapper extends AbstractGraphmapper {
     }
   }
 
+  /**
+   * Returns the shared string with the same content as the given template, making the given one the shared one if
+   * there is none yet.
+   * 
+   * @param template
+   * @return the shared template
+   */
+  protected String share(String template) {
+    synchronized (this._templates) {
+      WeakReference<String> reference = this._templates.get(template);
+      String shared = reference == null ? null : reference.get();
+      if (shared == null) {
+        this._templates.put(template, new WeakReference<String>(template));
+        shared = template;
+      }
+      return shared;
+    }
+  }
+
   /**
    * @see org.aitools.programd.graph.Graphmapper#unload(java.net.URL, org.aitools.programd.Bot)
    */
   @Override
   public void unload(URL path, Bot bot) {
+    this.forgetCollapsedReductions();
     Set<Nodemapper> nodemappers = bot.getLoadedFilesMap().get(path);
     
     for (Nodemapper nodemapper : nodemappers) {
@@ -13,8 +13,13 @@ import java.io.PrintWriter;
 import java.net.URL;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
 
 import org.aitools.programd.Bot;
@@ -28,8 +33,9 @@ import org.aitools.util.runtime.DeveloperError;
  * duplication of code from {@link MemoryGraphmapper} that cannot be avoided, without accepting an additional
  * performance penalty of lots of boxing and unboxing, because <code>int</code> is a primitive type in Java (as opposed
  * to {@link Integer}.</p>
- * <p>This implementation is slow, especially in loading, because it performs numerous separate queries.
- * It is not suitable for real-world use, but is serving as the basis for more database-optimized versions.</p>
+ * <p>This implementation is slow, because it performs numerous separate queries when matching.
+ * It is not suitable for real-world use, but is serving as the basis for more database-optimized versions. Files are
+ * loaded in bulk, by a {@link DBGraphLoader}; categories added otherwise are stored one node at a time.</p>
  * 
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
  * 
@@ -37,9 +43,23 @@ import org.aitools.util.runtime.DeveloperError;
 public class SlowDBGraphmapper extends AbstractGraphmapper {
   
   /** The id of the root node. */
-  private int _root;
+  protected int _root;
   
-  private static int NO_NODE = -1;
+  /** Stands for the absence of a node. */
+  protected static final int NO_NODE = -1;
+
+  /** How many words of the input are followed, from a node, with a single query. */
+  protected static final int LITERAL_CHAIN_LENGTH = 8;
+
+  /** The edges fetched during the match going on in each thread, keyed by node. */
+  private ThreadLocal<Map<Integer, Map<String, Integer>>> _matchEdges =
+      new ThreadLocal<Map<Integer, Map<String, Integer>>>();
+
+  /** The most recently used templates, keyed by hash, least recently used first. */
+  private Map<String, String> _templates;
+
+  /** The loaders collecting the categories of the files being loaded, keyed by file. */
+  private Map<URL, DBGraphLoader> _loaders = Collections.synchronizedMap(new HashMap<URL, DBGraphLoader>());
 
   /**
    * Creates a new SlowDBGraphmapper, reading settings from the given Core.
@@ -48,12 +68,22 @@ public class SlowDBGraphmapper extends AbstractGraphmapper {
    */
   public SlowDBGraphmapper(Core core) {
     super(core);
+    final int maxTemplates = core.getSettings().getGraphCacheMaxTemplates();
+    this._templates = Collections.synchronizedMap(new LinkedHashMap<String, String>(16, 0.75f, true) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > maxTemplates;
+      }
+    });
     Connection connection = this._core.getDBConnection();
     if (this._core.getSettings().resetGraph()) {
       SlowDBNodemapper.eraseAll(connection);
     }
-    SlowDBNodemapper.initializePreparedStatements(connection);
     this._root = SlowDBNodemapper.getRoot(connection);
+    this.close(connection);
   }
 
   /**
@@ -108,24 +138,41 @@ public class SlowDBGraphmapper extends AbstractGraphmapper {
    * @return node which is the result of adding the path.
    */
   protected int add(Connection connection, String pattern, String that, String topic, String botid, URL source) {
-    List<String> path = Text.wordSplit(pattern);
-    path.add(THAT);
-    path.addAll(Text.wordSplit(that));
-    path.add(TOPIC);
-    path.addAll(Text.wordSplit(topic));
-    path.add(BOT);
-    path.add(botid);
-    return this.add(connection, path.listIterator(), this._root, source);
+    return this.add(connection, composePath(pattern, that, topic, botid).listIterator(), this._root, source);
   }
 
   /**
+   * Adds a category. If the file from which it comes is being loaded, the category is only collected, to be stored
+   * (along with the rest of the file) by {@link #afterLoad(URL, String)}.
+   * 
    * @see org.aitools.programd.graph.AbstractGraphmapper#add(java.lang.String, java.lang.String, java.lang.String,
    *      java.lang.String, org.aitools.programd.Bot, java.net.URL)
    */
   @Override
   public void add(String pattern, String that, String topic, String template, Bot bot, URL source) {
+    DBGraphLoader loader = this._loaders.get(source);
+    if (loader != null) {
+      loader.add(composePath(pattern, that, topic, bot.getID()), pattern, that, topic, template);
+    }
+    else {
+      this.store(pattern, that, topic, template, bot.getID(), source);
+    }
+  }
+
+  /**
+   * Stores a category right away, one node at a time, applying the merge policy if its path already leads to a
+   * template.
+   * 
+   * @param pattern &lt;pattern/&gt; path component
+   * @param that &lt;that/&gt; path component
+   * @param topic &lt;topic/&gt; path component
+   * @param template the template
+   * @param botid
+   * @param source the source of the category
+   */
+  protected void store(String pattern, String that, String topic, String template, String botid, URL source) {
     Connection connection = this._core.getDBConnection();
-    int node = this.add(connection, pattern, that, topic, bot.getID(), source);
+    int node = this.add(connection, pattern, that, topic, botid, source);
     String storedTemplate = SlowDBNodemapper.getTemplate(connection, node);
     if (storedTemplate == null) {
       SlowDBNodemapper.setFilename(connection, node, source);
@@ -201,13 +248,34 @@ public class SlowDBGraphmapper extends AbstractGraphmapper {
     }
     for (int node : SlowDBNodemapper.getBotIDNodesForFile(connection, path)) {
       int botidnode = SlowDBNodemapper.put(connection, SlowDBNodemapper.getParent(connection, node), botid);
-      SlowDBNodemapper.associateTemplateWithNode(connection, botidnode, SlowDBNodemapper.getTemplateID(connection, node));
+      SlowDBNodemapper.associateTemplateWithNode(connection, botidnode, SlowDBNodemapper.getTemplateID(connection, node),
+          SlowDBNodemapper.getTemplateHash(connection, node));
       this._totalCategories++;
     }
     SlowDBNodemapper.associateBotWithFile(connection, botid, path);
     this.close(connection);
   }
 
+  /**
+   * Composes the path of a category in the graph.
+   * 
+   * @param pattern &lt;pattern/&gt; path component
+   * @param that &lt;that/&gt; path component
+   * @param topic &lt;topic/&gt; path component
+   * @param botid
+   * @return the path
+   */
+  protected static List<String> composePath(String pattern, String that, String topic, String botid) {
+    List<String> path = Text.wordSplit(pattern);
+    path.add(THAT);
+    path.addAll(Text.wordSplit(that));
+    path.add(TOPIC);
+    path.addAll(Text.wordSplit(topic));
+    path.add(BOT);
+    path.add(botid);
+    return path;
+  }
+
   @Override
   protected void associateBotIDWithFilename(String botid, URL path) {
     Connection connection = this._core.getDBConnection();
@@ -224,6 +292,65 @@ public class SlowDBGraphmapper extends AbstractGraphmapper {
     }
   }
 
+  /**
+   * Returns the node to which the given node points via the given key, for matching. During a match, all the edges
+   * from a node are fetched together, the first time any of them is needed. Subclasses may answer this from a cache.
+   * 
+   * @param connection
+   * @param node
+   * @param key
+   * @return the node to which the given node points via the given key, or {@link #NO_NODE}
+   */
+  @SuppressWarnings("boxing")
+  protected int getChild(Connection connection, int node, String key) {
+    Map<Integer, Map<String, Integer>> edges = this._matchEdges.get();
+    if (edges == null) {
+      return SlowDBNodemapper.get(connection, node, key);
+    }
+    Map<String, Integer> children = edges.get(node);
+    if (children == null) {
+      children = SlowDBNodemapper.getChildren(connection, node);
+      edges.put(node, children);
+    }
+    Integer child = children.get(key);
+    return child == null ? NO_NODE : child.intValue();
+  }
+
+  /**
+   * Returns the filenames associated with the given node, for matching. Subclasses may answer this from a cache.
+   * 
+   * @param connection
+   * @param node
+   * @return the filenames associated with the given node
+   */
+  protected List<String> getFilenames(Connection connection, int node) {
+    return SlowDBNodemapper.getFilenames(connection, node);
+  }
+
+  /**
+   * Returns the template attached to the given node, for matching. The template's hash is looked up, and its text is
+   * then taken from the cache of recently used templates if it is there (since templates are stored by content, many
+   * nodes may share one). Subclasses may answer this from a cache of their own.
+   * 
+   * @param connection
+   * @param node
+   * @return the template attached to the given node (or <code>null</code> if there is none)
+   */
+  protected String getTemplate(Connection connection, int node) {
+    String hash = SlowDBNodemapper.getTemplateHash(connection, node);
+    if (hash == null) {
+      return null;
+    }
+    String template = this._templates.get(hash);
+    if (template == null) {
+      template = SlowDBNodemapper.getTemplateByHash(connection, hash);
+      if (template != null) {
+        this._templates.put(hash, template);
+      }
+    }
+    return template;
+  }
+
   @Override
   protected boolean isAlreadyLoaded(URL filename) {
     Connection connection = this._core.getDBConnection();
@@ -240,6 +367,24 @@ public class SlowDBGraphmapper extends AbstractGraphmapper {
     return result;
   }
 
+  /**
+   * Returns the words at the start of the given input, up to {@link #LITERAL_CHAIN_LENGTH} of them, which are the
+   * labels to follow when prefetching edges.
+   * 
+   * @param input
+   * @return the words at the start of the input
+   */
+  protected static List<String> leadingWords(List<String> input) {
+    List<String> words = new ArrayList<String>(Math.min(input.size(), LITERAL_CHAIN_LENGTH));
+    for (String word : input) {
+      if (words.size() == LITERAL_CHAIN_LENGTH) {
+        break;
+      }
+      words.add(word.trim());
+    }
+    return words;
+  }
+
   /**
    * Searches for a match in the <code>SlowDBGraphmapper</code> to a given path. This is a low-level prototype, used for
    * internal recursion.
@@ -248,8 +393,8 @@ public class SlowDBGraphmapper extends AbstractGraphmapper {
    * @param node the node where we start matching
    * @param parent the parent of the node where we start matching
    * @param input the input path (possibly a sublist of the original)
-   * @param wildcardContent contents absorbed by a wildcard
-   * @param path the path matched so far
+   * @param wildcardStart the offset in the input path at which the contents absorbed by a wildcard start
+   * @param wildcardEnd the offset in the input path just after the contents absorbed by a wildcard
    * @param match an object containing information about the match
    * @param matchState state variable tracking which part of the path we're in
    * @param expiration when this response process expires
@@ -257,8 +402,8 @@ public class SlowDBGraphmapper extends AbstractGraphmapper {
    * @throws NoMatchException
    * @see #match(String, String, String, String)
    */
-  protected int match(Connection connection, int node, int parent, List<String> input, String wildcardContent,
-      StringBuilder path, Match match, Match.State matchState, long expiration) throws NoMatchException {
+  protected int match(Connection connection, int node, int parent, List<String> input, int wildcardStart,
+      int wildcardEnd, Match match, Match.State matchState, long expiration) throws NoMatchException {
     // Return null if expiration has been reached.
     if (System.currentTimeMillis() >= expiration) {
       throw new NoMatchException("Match time expired.");
@@ -266,24 +411,28 @@ public class SlowDBGraphmapper extends AbstractGraphmapper {
 
     // If no more tokens in the input, see if this is a template.
     if (input.size() == 0) {
-      // If so, the path component is the botid.
-      String template = SlowDBNodemapper.getTemplate(connection, node);
+      String template = this.getTemplate(connection, node);
       if (template != null) {
-        match.setBotID(path.toString());
         match.setTemplate(template);
-        match.setFilenames(SlowDBNodemapper.getFilenames(connection, node));
+        match.setFilenames(this.getFilenames(connection, node));
         return node;
       }
       // (otherwise...)
       throw new NoMatchException();
     }
 
+    // Fetch the edges from this node, and from the nodes reached by following the input from it.
+    this.prefetch(connection, node, input);
+
     // Take the first word of the input as the head.
     String head = input.get(0).trim();
 
     // Take the rest as the tail.
     List<String> tail = input.subList(1, input.size());
 
+    // Note where the head is in the whole input path.
+    int position = match.getInputPath().size() - input.size();
+
     // Now proceed through the AIML matching sequence: _, a-z, *.
     Match.State _matchState = matchState;
 
@@ -294,10 +443,8 @@ public class SlowDBGraphmapper extends AbstractGraphmapper {
           _matchState, // target match state for wildcard content
           node, // current node
           tail, // current tail
-          true, // append new path? yes
-          wildcardContent, // current wildcard content
-          head, // new wildcard content
-          path, // current path
+          wildcardStart, wildcardEnd, // current wildcard content
+          position, position + 1, // new wildcard content (the head)
           match, // match object
           _matchState, // current match state
           expiration // expiration timestamp
@@ -311,7 +458,7 @@ public class SlowDBGraphmapper extends AbstractGraphmapper {
      * The node may have contained a _, but this led to no match. Or it didn't contain a _ at all. So let's see if it
      * contains the head.
      */
-    if (SlowDBNodemapper.containsKey(connection, node, head)) {
+    if (this.getChild(connection, node, head) != NO_NODE) {
       /*
        * Check now whether this head is a marker for the <that>, <topic> or <botid> segments of the path. If it is, set
        * the match state variable accordingly.
@@ -337,10 +484,8 @@ public class SlowDBGraphmapper extends AbstractGraphmapper {
             isMarker ? _matchState.preceding() : null, // target match state for wildcard content
             node, // current node
             tail, // current tail
-            !isMarker, // append new path? (only it this is not a marker)
-            wildcardContent, // current wildcard content (empty if this is a marker)
-            isMarker ? "" : wildcardContent, // new wildcard content
-            path, // current path
+            wildcardStart, wildcardEnd, // current wildcard content
+            isMarker ? position + 1 : wildcardStart, isMarker ? position + 1 : wildcardEnd, // new (empty if a marker)
             match, // match object
             _matchState, // current match state
             expiration // expiration timestamp
@@ -361,10 +506,8 @@ public class SlowDBGraphmapper extends AbstractGraphmapper {
           _matchState, // target match state for wildcard content
           node, // current node
           tail, // current tail
-          true, // append new path?
-          wildcardContent, // current wildcard content
-          head, // new wildcard content
-          path, // current path
+          wildcardStart, wildcardEnd, // current wildcard content
+          position, position + 1, // new wildcard content (the head)
           match, // match object
           _matchState, // current match state
           expiration // expiration timestamp
@@ -380,14 +523,13 @@ public class SlowDBGraphmapper extends AbstractGraphmapper {
      * content plus the head as the new star.
      */
     if (parent != NO_NODE &&
-        (node == SlowDBNodemapper.get(connection, parent, ASTERISK)
-        || node == SlowDBNodemapper.get(connection, parent, UNDERSCORE))) {
+        (node == this.getChild(connection, parent, ASTERISK)
+        || node == this.getChild(connection, parent, UNDERSCORE))) {
       return this.match(connection, // db access object
           node, // current node
           parent, // current path
           tail, // current tail
-          String.format("%s %s", wildcardContent, head), // head = wildcard content + head
-          path, // current path
+          wildcardStart, position + 1, // wildcard content + head
           match, // match object
           _matchState, // current match state
           expiration // expiration timestamp
@@ -409,10 +551,10 @@ public class SlowDBGraphmapper extends AbstractGraphmapper {
    * @param wildcardDestination
    * @param node
    * @param tail
-   * @param appendToPath
-   * @param currentWildcard
-   * @param newWildcard
-   * @param path
+   * @param currentWildcardStart
+   * @param currentWildcardEnd
+   * @param newWildcardStart
+   * @param newWildcardEnd
    * @param match
    * @param matchState
    * @param expiration
@@ -420,32 +562,36 @@ public class SlowDBGraphmapper extends AbstractGraphmapper {
    * @throws NoMatchException
    */
   protected int match(Connection connection, String key, Match.State wildcardDestination, int node, List<String> tail,
-      boolean appendToPath, String currentWildcard, String newWildcard, StringBuilder path, Match match,
+      int currentWildcardStart, int currentWildcardEnd, int newWildcardStart, int newWildcardEnd, Match match,
       Match.State matchState, long expiration) throws NoMatchException {
     // Does the nodemapper contain the key?
-    if (SlowDBNodemapper.containsKey(connection, node, key)) {
-      // If so, construct a new path from the current path plus the key.
-      StringBuilder newPath = new StringBuilder();
-      if (path.length() > 0) {
-        newPath.append(path);
-        newPath.append(' ');
-      }
-      newPath.append(key);
+    int child = this.getChild(connection, node, key);
+    if (child != NO_NODE) {
+      // If so, add the key to the path.
+      match.enterPath(key);
 
       // Try to get a match with the tail and this new path (may throw exception)
-      int result = this.match(connection, // db access object
-          SlowDBNodemapper.get(connection, node, key), // newly matched nodemapper
-          node, // current nodemapper as parent
-          tail, // current tail
-          newWildcard, // current wildcardContent
-          appendToPath ? newPath : new StringBuilder(), // either the new path, or a blank one
-          match, // match object
-          matchState, // current match state
-          expiration // expiration timestamp
-          );
-      // capture and push the wildcard content appropriate to the current match state.
-      if (wildcardDestination != null && currentWildcard.length() > 0) {
-        match.pushWildcardContent(wildcardDestination, currentWildcard);
+      int result;
+      try {
+        result = this.match(connection, // db access object
+            child, // newly matched nodemapper
+            node, // current nodemapper as parent
+            tail, // current tail
+            newWildcardStart, newWildcardEnd, // current wildcard content
+            match, // match object
+            matchState, // current match state
+            expiration // expiration timestamp
+            );
+      }
+      catch (NoMatchException e) {
+        // Abandon this branch of the path.
+        match.leavePath();
+        throw e;
+      }
+      // capture the wildcard content appropriate to the current match state.
+      if (wildcardDestination != null && wildcardDestination.compareTo(Match.State.IN_BOTID) < 0
+          && currentWildcardEnd > currentWildcardStart) {
+        match.captureWildcard(wildcardDestination, currentWildcardStart, currentWildcardEnd);
       }
       return result;
     }
@@ -460,13 +606,51 @@ public class SlowDBGraphmapper extends AbstractGraphmapper {
   public Match match(String input, String that, String topic, String botid) throws NoMatchException {
     Connection connection = this._core.getDBConnection();
     // Get the match, starting at the root, with an empty star and path, starting in "in input" mode.
-    Match match = new Match();
-    this.match(connection, this._root, NO_NODE, AbstractGraphmapper.composeInputPath(input, that, topic, botid), "", new StringBuilder(), match,
-        Match.State.IN_INPUT, System.currentTimeMillis() + this._responseTimeout);
-    this.close(connection);
+    List<String> inputPath = AbstractGraphmapper.composeInputPath(input, that, topic, botid);
+    Match match = new Match(inputPath);
+    this._matchEdges.set(new HashMap<Integer, Map<String, Integer>>());
+    try {
+      this.match(connection, this._root, NO_NODE, inputPath, 0, 0, match, Match.State.IN_INPUT,
+          System.currentTimeMillis() + this._responseTimeout);
+    }
+    finally {
+      this._matchEdges.remove();
+      this.close(connection);
+    }
     return match;
   }
 
+  /**
+   * Fetches, if they have not yet been fetched during this match, the edges from the given node and from the nodes
+   * reached by following the words at the start of the input from it. This takes two queries: one to follow the words
+   * (see {@link SlowDBNodemapper#getChain}), and one to fetch the edges from all the nodes found, so a stretch of
+   * literal words costs two queries rather than several for each word. Subclasses with their own caches may do this
+   * differently.
+   * 
+   * @param connection
+   * @param node
+   * @param input the input path from this node on
+   */
+  @SuppressWarnings("boxing")
+  protected void prefetch(Connection connection, int node, List<String> input) {
+    Map<Integer, Map<String, Integer>> edges = this._matchEdges.get();
+    if (edges == null || edges.containsKey(node)) {
+      return;
+    }
+    List<Integer> nodes = new ArrayList<Integer>();
+    nodes.add(node);
+    for (int reached : SlowDBNodemapper.getChain(connection, node, leadingWords(input))) {
+      if (!edges.containsKey(reached)) {
+        nodes.add(reached);
+      }
+    }
+    Map<Integer, Map<String, Integer>> fetched = SlowDBNodemapper.getChildren(connection, nodes);
+    for (Integer fetchedNode : nodes) {
+      Map<String, Integer> children = fetched.get(fetchedNode);
+      edges.put(fetchedNode, children == null ? Collections.<String, Integer> emptyMap() : children);
+    }
+  }
+
   private void print(int node, int indent, PrintWriter out) {
     /*
      * for (String key : nodemapper.keySet()) { out.print(Text.repeat(' ', indent)); out.print(key); out.print(' ');
@@ -506,9 +690,9 @@ public class SlowDBGraphmapper extends AbstractGraphmapper {
   public void removeCategory(String pattern, String that, String topic, Bot bot) {
     Connection connection = this._core.getDBConnection();
     try {
-      this.remove(connection, this.match(connection, this._root, 0, AbstractGraphmapper.composeInputPath(pattern, that, topic, bot.getID()),
-          "", new StringBuilder(), new Match(), Match.State.IN_INPUT, System.currentTimeMillis()
-              + this._responseTimeout));
+      List<String> inputPath = AbstractGraphmapper.composeInputPath(pattern, that, topic, bot.getID());
+      this.remove(connection, this.match(connection, this._root, 0, inputPath, 0, 0, new Match(inputPath),
+          Match.State.IN_INPUT, System.currentTimeMillis() + this._responseTimeout));
     }
     catch (NoMatchException e) {
       this._logger.error(String.format("Could not find category to remove (%s:%s:%s)", pattern, that, topic, bot));
@@ -518,37 +702,69 @@ public class SlowDBGraphmapper extends AbstractGraphmapper {
   
 
   /**
-   * Start a transaction, and turn off foreign key checking.
+   * Begins collecting the categories from the given file, to be stored together when it has been read.
    * 
    * @see org.aitools.programd.graph.AbstractGraphmapper#beforeLoad(java.net.URL, java.lang.String)
    */
   @Override
   public void beforeLoad(URL path, String botid) {
-//    Connection connection = this._core.getDBConnection();
-//    try {
-//      connection.createStatement().execute("SET FOREIGN_KEY_CHECKS=0");
-//      connection.createStatement().execute("START TRANSACTION");
-//    }
-//    catch (SQLException e) {
-//      throw new DeveloperError("SQL error trying to prepare for loading transaction.", e);
-//    }
+    this._loaders.put(path, new DBGraphLoader(path, this._root, this._categoryLoadNotifyInterval));
   }
 
   /**
-   * Commit the transaction, and turn foreign key checking back on.
+   * Stores the categories collected from the given file, in a single transaction, with a {@link DBGraphLoader}. Then
+   * stores, one at a time, those whose paths already led to templates, applying the merge policy.
    * 
    * @see org.aitools.programd.graph.AbstractGraphmapper#afterLoad(java.net.URL, java.lang.String)
    */
   @Override
   public void afterLoad(URL path, String botid) {
-//    Connection connection = this._core.getDBConnection();
-//    try {
-//      connection.createStatement().execute("COMMIT");
-//      connection.createStatement().execute("SET FOREIGN_KEY_CHECKS=1");
-//    }
-//    catch (SQLException e) {
-//      throw new DeveloperError("SQL error trying to prepare for loading transaction.", e);
-//    }
+    DBGraphLoader loader = this._loaders.remove(path);
+    if (loader == null) {
+      return;
+    }
+    List<DBGraphLoader.Category> deferred;
+    Connection connection = this._core.getDBConnection();
+    try {
+      connection.setAutoCommit(false);
+      deferred = loader.store(connection);
+      connection.commit();
+    }
+    catch (SQLException e) {
+      this.rollback(connection);
+      throw new DeveloperError(String.format("SQL error trying to store categories from \"%s\".", path), e);
+    }
+    catch (RuntimeException e) {
+      this.rollback(connection);
+      throw e;
+    }
+    finally {
+      try {
+        connection.setAutoCommit(true);
+      }
+      catch (SQLException e) {
+        this._logger.error("DB error when ending loading transaction.", e);
+      }
+      this.close(connection);
+    }
+    this._totalCategories += loader.getCategoryCount() - deferred.size();
+    for (DBGraphLoader.Category category : deferred) {
+      this.store(category.pattern, category.that, category.topic, category.template, botid, path);
+    }
+  }
+
+  /**
+   * Rolls back the current transaction on the given connection.
+   * 
+   * @param connection
+   */
+  protected void rollback(Connection connection) {
+    try {
+      connection.rollback();
+    }
+    catch (SQLException e) {
+      this._logger.error("DB error when rolling back transaction.", e);
+    }
   }
 
   /**
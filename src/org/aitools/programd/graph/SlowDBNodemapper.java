@@ -10,18 +10,27 @@
 package org.aitools.programd.graph;
 
 import java.io.FileNotFoundException;
+import java.io.UnsupportedEncodingException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.aitools.util.db.Entity;
+import org.aitools.util.db.SQLDialect;
 import org.aitools.util.resource.URLTools;
 import org.aitools.util.runtime.DeveloperError;
 import org.aitools.util.runtime.UserError;
@@ -33,76 +42,82 @@ import org.aitools.util.runtime.UserError;
  * a {@link Connection} argument, and an <code>int</code> node identifier, in addition to the usual arguments required
  * by a <code>Nodemapper</code>.
  * 
- * This will work best if the underlying DBMS is able to support PreparedStatement pooling.
+ * Statements are prepared, each time they are needed, from the connection that is passed in, so that no two threads
+ * share a statement. This will work best if the connections pool their prepared statements (as those from
+ * {@link org.aitools.util.db.DBConnectionManager} do).
  * 
  * Some methods having to do with size and height are not implemented, on the theory that they are not particularly
  * needed for a database-based implementation (which has other means of optimization open to it). There are also some
  * special methods dealing with filenames, templates, etc. because we maintain special tables for those.
  * 
+ * Templates are stored by content: each distinct template is stored once, identified by a hash of its text (see
+ * {@link #hash(String)}), and the hash is also kept with each node that uses the template, so that the text can be
+ * looked up (or found in a cache) without a join.
+ * 
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
  */
 public class SlowDBNodemapper {
   
-  private static PreparedStatement ADD_FILENAME;
-  private static PreparedStatement ASSOCIATE_BOT_WITH_FILE;
-  private static PreparedStatement CONTAINS_KEY;
-  private static PreparedStatement FILE_PRESENT;
-  private static PreparedStatement FILE_PRESENT_FOR_BOT;
-  private static PreparedStatement GET_NODE;
-  private static PreparedStatement GET_BOTID_NODES_FOR_FILE;
-  private static PreparedStatement GET_BOTS_FOR_FILE;
-  private static PreparedStatement GET_FILENAMES;
-  private static PreparedStatement GET_FILENAMES_FOR_BOT;
-  private static PreparedStatement GET_LAST_LOADED;
-  private static PreparedStatement GET_PARENT;
-  private static PreparedStatement GET_TEMPLATE;
-  private static PreparedStatement GET_TEMPLATE_ID;
-  private static PreparedStatement PUT;
-  private static PreparedStatement CREATE_NODE;
-  private static PreparedStatement REMOVE;
-  private static PreparedStatement REMOVE_BOTID_FROM_FILENAME;
-  private static PreparedStatement REMOVE_FILENAME;
-  private static PreparedStatement SET_TEMPLATE;
-  private static PreparedStatement ASSOCIATE_TEMPLATE_WITH_NODE;
-  private static PreparedStatement SIZE;
-  private static PreparedStatement STORE_BOTID_NODE_FILE;
-  
-  /**
-   * Initialize prepared statements.
-   * 
-   * @param connection
-   */
-  public static void initializePreparedStatements(Connection connection) {
-    try {
-      ADD_FILENAME = connection.prepareStatement("INSERT INTO file_node (file_id, node_id) VALUES (?, ?)");
-      ASSOCIATE_BOT_WITH_FILE = connection.prepareStatement("INSERT INTO bot_file (bot_id, file_id) VALUES (?, ?)");
-      CONTAINS_KEY = connection.prepareStatement("SELECT 1 FROM edge WHERE from_node_id = ? AND label = ?");
-      FILE_PRESENT = connection.prepareStatement("SELECT 1 FROM file WHERE path = ?");
-      FILE_PRESENT_FOR_BOT = connection.prepareStatement("SELECT 1 FROM file INNER JOIN bot_file ON file.id = bot_file.file_id INNER JOIN bot ON bot.id = bot_file.bot_id WHERE file.path = ? AND bot.label = ?");
-      GET_NODE = connection.prepareStatement("SELECT to_node_id FROM edge WHERE from_node_id = ? AND label = ?");
-      GET_BOTID_NODES_FOR_FILE = connection.prepareStatement("SELECT botidnode_id from botidnode_file INNER JOIN file ON botidnode_file.file_id = file.id WHERE file.path = ?");
-      GET_BOTS_FOR_FILE = connection.prepareStatement("SELECT bot.label FROM bot_file INNER JOIN file ON bot_file.file_id = file.id INNER JOIN bot ON bot.id = bot_file.bot_id WHERE file.path = ?");
-      GET_FILENAMES = connection.prepareStatement("SELECT file.path from file_node INNER JOIN file ON file_node.file_id = file.id WHERE file_node.node_id = ?");
-      GET_FILENAMES_FOR_BOT = connection.prepareStatement("SELECT file.path FROM bot_file INNER JOIN file ON bot_file.file_id = file.id INNER JOIN bot ON bot_file.bot_id = bot.id WHERE bot.id = (SELECT id FROM bot WHERE label = ?)");
-      GET_LAST_LOADED = connection.prepareStatement("SELECT last_loaded FROM file WHERE path = ?");
-      GET_PARENT = connection.prepareStatement("SELECT from_node_id FROM edge WHERE to_node_id = ?");
-      GET_TEMPLATE = connection.prepareStatement("SELECT text from template INNER JOIN node_template ON node_template.template_id = template.id WHERE node_template.node_id = ?");
-      GET_TEMPLATE_ID = connection.prepareStatement("SELECT template_id FROM node_template WHERE node_id = ?");
-      PUT = connection.prepareStatement("INSERT INTO edge (from_node_id, label, to_node_id) VALUES (?, ?, ?)");
-      CREATE_NODE = connection.prepareStatement("INSERT INTO node () VALUES ()", Statement.RETURN_GENERATED_KEYS);
-      REMOVE = connection.prepareStatement("DELETE FROM edge WHERE from_node_id = ? AND to_node_id = ?");
-      REMOVE_BOTID_FROM_FILENAME = connection.prepareStatement("DELETE FROM botidnode_file WHERE botidnode_id = ? AND file_id = ?");
-      REMOVE_FILENAME = connection.prepareStatement("DELETE FROM file_node WHERE node_id = ?");
-      SET_TEMPLATE = connection.prepareStatement("INSERT INTO template (text) VALUES (?)", Statement.RETURN_GENERATED_KEYS);
-      ASSOCIATE_TEMPLATE_WITH_NODE = connection.prepareStatement("INSERT INTO node_template (node_id, template_id) VALUES (?, ?)");
-      SIZE = connection.prepareStatement("SELECT COUNT(from_node_id) FROM edge WHERE from_node_id = ?");
-      STORE_BOTID_NODE_FILE = connection.prepareStatement("INSERT INTO botidnode_file (botidnode_id, file_id) VALUES (?, ?)");
-    }
-    catch (SQLException e) {
-      throw new DeveloperError("SQL error when initializing prepared statements.", e);
-    }
-  }
+  private static final String ADD_FILENAME =
+      "INSERT INTO file_node (file_id, node_id) VALUES (?, ?)";
+  private static final String ASSOCIATE_BOT_WITH_FILE =
+      "INSERT INTO bot_file (bot_id, file_id) VALUES (?, ?)";
+  private static final String CONTAINS_KEY =
+      "SELECT 1 FROM edge WHERE from_node_id = ? AND label = ?";
+  private static final String FILE_PRESENT =
+      "SELECT 1 FROM file WHERE path = ?";
+  private static final String FILE_PRESENT_FOR_BOT =
+      "SELECT 1 FROM file INNER JOIN bot_file ON file.id = bot_file.file_id INNER JOIN bot ON bot.id = bot_file.bot_id WHERE file.path = ? AND bot.label = ?";
+  private static final String GET_NODE =
+      "SELECT to_node_id FROM edge WHERE from_node_id = ? AND label = ?";
+  private static final String GET_BOTID_NODES_FOR_FILE =
+      "SELECT botidnode_id from botidnode_file INNER JOIN file ON botidnode_file.file_id = file.id WHERE file.path = ?";
+  private static final String GET_BOTS_FOR_FILE =
+      "SELECT bot.label FROM bot_file INNER JOIN file ON bot_file.file_id = file.id INNER JOIN bot ON bot.id = bot_file.bot_id WHERE file.path = ?";
+  private static final String GET_CHILDREN =
+      "SELECT label, to_node_id FROM edge WHERE from_node_id = ?";
+  private static final String GET_FILENAMES =
+      "SELECT file.path from file_node INNER JOIN file ON file_node.file_id = file.id WHERE file_node.node_id = ?";
+  private static final String GET_FILENAMES_FOR_BOT =
+      "SELECT file.path FROM bot_file INNER JOIN file ON bot_file.file_id = file.id INNER JOIN bot ON bot_file.bot_id = bot.id WHERE bot.id = (SELECT id FROM bot WHERE label = ?)";
+  private static final String GET_LAST_LOADED =
+      "SELECT last_loaded FROM file WHERE path = ?";
+  private static final String GET_PARENT =
+      "SELECT from_node_id FROM edge WHERE to_node_id = ?";
+  private static final String GET_TEMPLATE =
+      "SELECT text from template INNER JOIN node_template ON node_template.template_id = template.id WHERE node_template.node_id = ?";
+  private static final String GET_TEMPLATE_BY_HASH =
+      "SELECT text FROM template WHERE hash = ?";
+  private static final String GET_TEMPLATE_HASH =
+      "SELECT template_hash FROM node_template WHERE node_id = ?";
+  private static final String GET_TEMPLATE_ID =
+      "SELECT template_id FROM node_template WHERE node_id = ?";
+  private static final String PUT =
+      "INSERT INTO edge (from_node_id, label, to_node_id) VALUES (?, ?, ?)";
+  private static final String REMOVE =
+      "DELETE FROM edge WHERE from_node_id = ? AND to_node_id = ?";
+  private static final String REMOVE_BOTID_FROM_FILENAME =
+      "DELETE FROM botidnode_file WHERE botidnode_id = ? AND file_id = ?";
+  private static final String REMOVE_FILENAME =
+      "DELETE FROM file_node WHERE node_id = ?";
+  private static final String REMOVE_TEMPLATE =
+      "DELETE FROM node_template WHERE node_id = ?";
+  private static final String SET_TEMPLATE =
+      "INSERT INTO template (hash, text) VALUES (?, ?)";
+  private static final String ASSOCIATE_TEMPLATE_WITH_NODE =
+      "INSERT INTO node_template (node_id, template_id, template_hash) VALUES (?, ?, ?)";
+  private static final String SIZE =
+      "SELECT COUNT(from_node_id) FROM edge WHERE from_node_id = ?";
+  private static final String STORE_BOTID_NODE_FILE =
+      "INSERT INTO botidnode_file (botidnode_id, file_id) VALUES (?, ?)";
+
+  /** The tables that hold the graph, in an order in which they can be emptied. */
+  private static final String[] GRAPH_TABLES = { "node_template", "template", "edge", "botidnode_file", "bot_file",
+      "file_node", "node", "file" };
 
+  /** The most nodes whose edges are fetched with a single query. */
+  public static final int CHILDREN_BATCH_SIZE = 500;
+  
   /**
    * Adds the given filename to the list of filenames associated with the given node.
    * 
@@ -116,9 +131,11 @@ public class SlowDBNodemapper {
     int file_id = Entity.getOrCreate(connection, "file", "path", filename.toExternalForm());
 
     try {
-      ADD_FILENAME.setInt(1, file_id);
-      ADD_FILENAME.setInt(2, node);
-      ADD_FILENAME.execute();
+      PreparedStatement statement = connection.prepareStatement(ADD_FILENAME);
+      statement.setInt(1, file_id);
+      statement.setInt(2, node);
+      statement.execute();
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError(String.format("SQL error trying to associate filename \"%s\" with node %d.", filename.toExternalForm(), node), e);
@@ -138,9 +155,11 @@ public class SlowDBNodemapper {
     int fileID = Entity.getOrCreate(connection, "file", "path", filename.toExternalForm());
     
     try {
-      ASSOCIATE_BOT_WITH_FILE.setInt(1, botID);
-      ASSOCIATE_BOT_WITH_FILE.setInt(2, fileID);
-      ASSOCIATE_BOT_WITH_FILE.execute();
+      PreparedStatement statement = connection.prepareStatement(ASSOCIATE_BOT_WITH_FILE);
+      statement.setInt(1, botID);
+      statement.setInt(2, fileID);
+      statement.execute();
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError(String.format("SQL error trying to associate bot \"%s\" with file \"%s\".", bot, filename.toExternalForm()), e);
@@ -160,11 +179,13 @@ public class SlowDBNodemapper {
   public static boolean containsKey(Connection connection, int node, String key) {
     boolean result;
     try {
-      CONTAINS_KEY.setInt(1, node);
-      CONTAINS_KEY.setString(2, key);
-      ResultSet results = CONTAINS_KEY.executeQuery();
+      PreparedStatement statement = connection.prepareStatement(CONTAINS_KEY);
+      statement.setInt(1, node);
+      statement.setString(2, key);
+      ResultSet results = statement.executeQuery();
       result = results.next();
       results.close();
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError(String.format("SQL error trying to check whether node %d maps to key \"%s\".", node, key), e);
@@ -182,10 +203,12 @@ public class SlowDBNodemapper {
   public static boolean fileIsAlreadyPresent(Connection connection, URL file) {
     boolean result;
     try {
-      FILE_PRESENT.setString(1, file.toExternalForm());
-      ResultSet results = FILE_PRESENT.executeQuery();
+      PreparedStatement statement = connection.prepareStatement(FILE_PRESENT);
+      statement.setString(1, file.toExternalForm());
+      ResultSet results = statement.executeQuery();
       result = results.next();
       results.close();
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError(String.format("SQL error trying to check whether file \"%s\" is already present.", file.toExternalForm()), e);
@@ -204,11 +227,13 @@ public class SlowDBNodemapper {
   public static boolean fileIsAlreadyPresentForBot(Connection connection, URL file, String bot) {
     boolean result;
     try {
-      FILE_PRESENT_FOR_BOT.setString(1, file.toExternalForm());
-      FILE_PRESENT_FOR_BOT.setString(2, bot);
-      ResultSet results = FILE_PRESENT_FOR_BOT.executeQuery();
+      PreparedStatement statement = connection.prepareStatement(FILE_PRESENT_FOR_BOT);
+      statement.setString(1, file.toExternalForm());
+      statement.setString(2, bot);
+      ResultSet results = statement.executeQuery();
       result = results.next();
       results.close();
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError(String.format("SQL error trying to check whether file \"%s\" is already present for bot \"%s\".", file.toExternalForm(), bot), e);
@@ -229,13 +254,15 @@ public class SlowDBNodemapper {
   public static int get(Connection connection, int node, String key) {
     int toNode = -1;
     try {
-      GET_NODE.setInt(1, node);
-      GET_NODE.setString(2, key);
-      ResultSet results = GET_NODE.executeQuery();
+      PreparedStatement statement = connection.prepareStatement(GET_NODE);
+      statement.setInt(1, node);
+      statement.setString(2, key);
+      ResultSet results = statement.executeQuery();
       if (results.next()) {
         toNode = results.getInt(1);
       }
       results.close();
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError(String.format("SQL error trying to get node %d mapped via key \"%s\".", node, key), e);
@@ -254,12 +281,14 @@ public class SlowDBNodemapper {
   public static Set<Integer> getBotIDNodesForFile(Connection connection, URL file) {
     Set<Integer> result = new HashSet<Integer>();
     try {
-      GET_BOTID_NODES_FOR_FILE.setString(1, file.toExternalForm());
-      ResultSet results = GET_BOTID_NODES_FOR_FILE.executeQuery();
+      PreparedStatement statement = connection.prepareStatement(GET_BOTID_NODES_FOR_FILE);
+      statement.setString(1, file.toExternalForm());
+      ResultSet results = statement.executeQuery();
       while (results.next()) {
         result.add(results.getInt(1));
       }
       results.close();
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError(String.format("SQL error trying to get botid nodes for file \"%s\".", file.toExternalForm()), e);
@@ -277,12 +306,14 @@ public class SlowDBNodemapper {
   public static List<String> getBotsForFilename(Connection connection, URL filename) {
     List<String> result = new ArrayList<String>();
     try {
-      GET_BOTS_FOR_FILE.setString(1, filename.toExternalForm());
-      ResultSet results = GET_BOTS_FOR_FILE.executeQuery();
+      PreparedStatement statement = connection.prepareStatement(GET_BOTS_FOR_FILE);
+      statement.setString(1, filename.toExternalForm());
+      ResultSet results = statement.executeQuery();
       while (results.next()) {
         result.add(results.getString(1));
       }
       results.close();
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError(String.format("SQL error trying to get bots for filename \"%s\".", filename.toExternalForm()), e);
@@ -290,6 +321,127 @@ public class SlowDBNodemapper {
     return result;
   }
 
+  /**
+   * Follows the given labels from the given node, as far as there are edges with those labels, in a single query.
+   * 
+   * @param connection
+   * @param node
+   * @param labels the labels to follow, in order
+   * @return the nodes reached (the first via the first label, and so on), which may be fewer than the labels
+   */
+  @SuppressWarnings("boxing")
+  public static List<Integer> getChain(Connection connection, int node, List<String> labels) {
+    List<Integer> result = new ArrayList<Integer>();
+    if (labels.isEmpty()) {
+      return result;
+    }
+    StringBuilder select = new StringBuilder("SELECT e0.to_node_id");
+    for (int index = 1; index < labels.size(); index++) {
+      select.append(String.format(", e%d.to_node_id", index));
+    }
+    select.append(" FROM edge e0");
+    for (int index = 1; index < labels.size(); index++) {
+      select.append(String.format(" LEFT JOIN edge e%d ON e%d.from_node_id = e%d.to_node_id AND e%d.label = ?", index,
+          index, index - 1, index));
+    }
+    select.append(" WHERE e0.from_node_id = ? AND e0.label = ?");
+    try {
+      PreparedStatement statement = connection.prepareStatement(select.toString());
+      int parameter = 1;
+      for (int index = 1; index < labels.size(); index++) {
+        statement.setString(parameter++, labels.get(index));
+      }
+      statement.setInt(parameter++, node);
+      statement.setString(parameter, labels.get(0));
+      ResultSet results = statement.executeQuery();
+      if (results.next()) {
+        for (int index = 1; index <= labels.size(); index++) {
+          int id = results.getInt(index);
+          if (results.wasNull()) {
+            break;
+          }
+          result.add(id);
+        }
+      }
+      results.close();
+      statement.close();
+    }
+    catch (SQLException e) {
+      throw new DeveloperError(String.format("SQL error trying to follow %s from node %d.", labels, node), e);
+    }
+    return result;
+  }
+
+  /**
+   * Returns all the edges from the given node, in a single query.
+   * 
+   * @param connection
+   * @param node
+   * @return the nodes to which the given node points, keyed by edge label
+   */
+  @SuppressWarnings("boxing")
+  public static Map<String, Integer> getChildren(Connection connection, int node) {
+    Map<String, Integer> result = new HashMap<String, Integer>();
+    try {
+      PreparedStatement statement = connection.prepareStatement(GET_CHILDREN);
+      statement.setInt(1, node);
+      ResultSet results = statement.executeQuery();
+      while (results.next()) {
+        result.put(results.getString(1), results.getInt(2));
+      }
+      results.close();
+      statement.close();
+    }
+    catch (SQLException e) {
+      throw new DeveloperError(String.format("SQL error trying to get edges from node %d.", node), e);
+    }
+    return result;
+  }
+
+  /**
+   * Returns all the edges from each of the given nodes, with one query for each (up to) {@link #CHILDREN_BATCH_SIZE}
+   * nodes.
+   * 
+   * @param connection
+   * @param nodes
+   * @return the nodes to which each of the given nodes points, keyed by edge label, keyed by node (nodes with no edges
+   *         are left out)
+   */
+  @SuppressWarnings("boxing")
+  public static Map<Integer, Map<String, Integer>> getChildren(Connection connection, Collection<Integer> nodes) {
+    Map<Integer, Map<String, Integer>> result = new HashMap<Integer, Map<String, Integer>>();
+    Iterator<Integer> iterator = nodes.iterator();
+    while (iterator.hasNext()) {
+      StringBuilder select = new StringBuilder("SELECT from_node_id, label, to_node_id FROM edge WHERE from_node_id IN (");
+      for (int count = 0; count < CHILDREN_BATCH_SIZE && iterator.hasNext(); count++) {
+        if (count > 0) {
+          select.append(',');
+        }
+        select.append(iterator.next().intValue());
+      }
+      select.append(')');
+      try {
+        Statement statement = connection.createStatement();
+        ResultSet results = statement.executeQuery(select.toString());
+        while (results.next()) {
+          int from = results.getInt(1);
+          Map<String, Integer> children = result.get(from);
+          if (children == null) {
+            children = new HashMap<String, Integer>();
+            result.put(from, children);
+          }
+          children.put(results.getString(2), results.getInt(3));
+        }
+        results.close();
+        statement.close();
+      }
+      catch (SQLException e) {
+        throw new DeveloperError("SQL error trying to get edges from nodes.", e);
+      }
+    }
+    return result;
+  }
+
   /**
    * Returns a list of filenames associated with the given node.
    * 
@@ -301,12 +453,14 @@ public class SlowDBNodemapper {
   public static List<String> getFilenames(Connection connection, int node) {
     List<String> result = new ArrayList<String>();
     try {
-      GET_FILENAMES.setInt(1, node);
-      ResultSet results = GET_FILENAMES.executeQuery();
+      PreparedStatement statement = connection.prepareStatement(GET_FILENAMES);
+      statement.setInt(1, node);
+      ResultSet results = statement.executeQuery();
       while (results.next()) {
         result.add(results.getString(1));
       }
       results.close();
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError(String.format("SQL error trying to get filenames associated with node %d.", node), e);
@@ -324,8 +478,9 @@ public class SlowDBNodemapper {
   public static List<URL> getFilenamesForBot(Connection connection, String bot) {
     List<URL> result = new ArrayList<URL>();
     try {
-      GET_FILENAMES_FOR_BOT.setString(1, bot);
-      ResultSet results = GET_FILENAMES_FOR_BOT.executeQuery();
+      PreparedStatement statement = connection.prepareStatement(GET_FILENAMES_FOR_BOT);
+      statement.setString(1, bot);
+      ResultSet results = statement.executeQuery();
       while (results.next()) {
         String filename = results.getString(1);
         try {
@@ -336,6 +491,7 @@ public class SlowDBNodemapper {
         }
       }
       results.close();
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError(String.format("SQL error trying to get filenames associated with bot \"%s\".", bot), e);
@@ -353,12 +509,14 @@ public class SlowDBNodemapper {
   public static long getLastLoaded(Connection connection, URL file) {
     long result = -1;
     try {
-      GET_LAST_LOADED.setString(1, file.toExternalForm());
-      ResultSet results = GET_LAST_LOADED.executeQuery();
+      PreparedStatement statement = connection.prepareStatement(GET_LAST_LOADED);
+      statement.setString(1, file.toExternalForm());
+      ResultSet results = statement.executeQuery();
       if (results.next()) {
         result = results.getTimestamp(1).getTime();
       }
       results.close();
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError(String.format("SQL error trying to get last-loaded time for file \"%s\".", file.toExternalForm()), e);
@@ -366,6 +524,43 @@ public class SlowDBNodemapper {
     return result;
   }
 
+  /**
+   * Returns those of the given nodes that have templates attached, with one query for each (up to)
+   * {@link #CHILDREN_BATCH_SIZE} nodes.
+   * 
+   * @param connection
+   * @param nodes
+   * @return the given nodes that have templates attached
+   */
+  @SuppressWarnings("boxing")
+  public static Set<Integer> getNodesWithTemplates(Connection connection, Collection<Integer> nodes) {
+    Set<Integer> result = new HashSet<Integer>();
+    Iterator<Integer> iterator = nodes.iterator();
+    while (iterator.hasNext()) {
+      StringBuilder select = new StringBuilder("SELECT node_id FROM node_template WHERE node_id IN (");
+      for (int count = 0; count < CHILDREN_BATCH_SIZE && iterator.hasNext(); count++) {
+        if (count > 0) {
+          select.append(',');
+        }
+        select.append(iterator.next().intValue());
+      }
+      select.append(')');
+      try {
+        Statement statement = connection.createStatement();
+        ResultSet results = statement.executeQuery(select.toString());
+        while (results.next()) {
+          result.add(results.getInt(1));
+        }
+        results.close();
+        statement.close();
+      }
+      catch (SQLException e) {
+        throw new DeveloperError("SQL error trying to find nodes with templates.", e);
+      }
+    }
+    return result;
+  }
+
   /**
    * Returns the parent of the given node.
    * 
@@ -378,12 +573,14 @@ public class SlowDBNodemapper {
   public static int getParent(Connection connection, int node) {
     int result = -1;
     try {
-      GET_PARENT.setInt(1, node);
-      ResultSet results = GET_PARENT.executeQuery();
+      PreparedStatement statement = connection.prepareStatement(GET_PARENT);
+      statement.setInt(1, node);
+      ResultSet results = statement.executeQuery();
       if (results.next()) {
         result = results.getInt(1);
       }
       results.close();
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError(String.format("SQL error trying to get parent of node %d.", node), e);
@@ -402,12 +599,14 @@ public class SlowDBNodemapper {
   public static String getTemplate(Connection connection, int node) {
     String template = null;
     try {
-      GET_TEMPLATE.setInt(1, node);
-      ResultSet results = GET_TEMPLATE.executeQuery();
+      PreparedStatement statement = connection.prepareStatement(GET_TEMPLATE);
+      statement.setInt(1, node);
+      ResultSet results = statement.executeQuery();
       if (results.next()) {
         template = results.getString(1);
       }
       results.close();
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError(String.format("SQL error trying to get template attached to node %d.", node), e);
@@ -415,6 +614,96 @@ public class SlowDBNodemapper {
     return template;
   }
 
+  /**
+   * Returns the text of the template with the given hash.
+   * 
+   * @param connection
+   * @param hash
+   * @return the text of the template (or <code>null</code> if there is none with the given hash)
+   */
+  public static String getTemplateByHash(Connection connection, String hash) {
+    String template = null;
+    try {
+      PreparedStatement statement = connection.prepareStatement(GET_TEMPLATE_BY_HASH);
+      statement.setString(1, hash);
+      ResultSet results = statement.executeQuery();
+      if (results.next()) {
+        template = results.getString(1);
+      }
+      results.close();
+      statement.close();
+    }
+    catch (SQLException e) {
+      throw new DeveloperError(String.format("SQL error trying to get template with hash %s.", hash), e);
+    }
+    return template;
+  }
+
+  /**
+   * Returns the hash of the template attached to the given node.
+   * 
+   * @param connection
+   * @param node
+   * @return the hash of the template attached to the given node (or <code>null</code> if there is none)
+   */
+  @SuppressWarnings("boxing")
+  public static String getTemplateHash(Connection connection, int node) {
+    String hash = null;
+    try {
+      PreparedStatement statement = connection.prepareStatement(GET_TEMPLATE_HASH);
+      statement.setInt(1, node);
+      ResultSet results = statement.executeQuery();
+      if (results.next()) {
+        hash = results.getString(1);
+      }
+      results.close();
+      statement.close();
+    }
+    catch (SQLException e) {
+      throw new DeveloperError(String.format("SQL error trying to get hash of template attached to node %d.", node), e);
+    }
+    return hash;
+  }
+
+  /**
+   * Returns the ids of those of the templates with the given hashes that are already stored, with one query for each
+   * (up to) {@link #CHILDREN_BATCH_SIZE} hashes.
+   * 
+   * @param connection
+   * @param hashes
+   * @return the ids of the stored templates, keyed by hash
+   */
+  @SuppressWarnings("boxing")
+  public static Map<String, Integer> getTemplateIDs(Connection connection, Collection<String> hashes) {
+    Map<String, Integer> result = new HashMap<String, Integer>();
+    Iterator<String> iterator = hashes.iterator();
+    while (iterator.hasNext()) {
+      List<String> batch = new ArrayList<String>();
+      StringBuilder select = new StringBuilder("SELECT hash, id FROM template WHERE hash IN (");
+      for (int count = 0; count < CHILDREN_BATCH_SIZE && iterator.hasNext(); count++) {
+        select.append(count > 0 ? ", ?" : "?");
+        batch.add(iterator.next());
+      }
+      select.append(')');
+      try {
+        PreparedStatement statement = connection.prepareStatement(select.toString());
+        for (int index = 0; index < batch.size(); index++) {
+          statement.setString(index + 1, batch.get(index));
+        }
+        ResultSet results = statement.executeQuery();
+        while (results.next()) {
+          result.put(results.getString(1), results.getInt(2));
+        }
+        results.close();
+        statement.close();
+      }
+      catch (SQLException e) {
+        throw new DeveloperError("SQL error trying to find stored templates.", e);
+      }
+    }
+    return result;
+  }
+
   /**
    * Returns the id of the template (but not its content) attached to the given node.
    * 
@@ -426,12 +715,14 @@ public class SlowDBNodemapper {
   public static int getTemplateID(Connection connection, int node) {
     int id = -1;
     try {
-      GET_TEMPLATE_ID.setInt(1, node);
-      ResultSet results = GET_TEMPLATE_ID.executeQuery();
+      PreparedStatement statement = connection.prepareStatement(GET_TEMPLATE_ID);
+      statement.setInt(1, node);
+      ResultSet results = statement.executeQuery();
       if (results.next()) {
         id = results.getInt(1);
       }
       results.close();
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError(String.format("SQL error trying to get id of template attached to node %d.", node), e);
@@ -439,6 +730,29 @@ public class SlowDBNodemapper {
     return id;
   }
 
+  /**
+   * Returns the hash by which the given template is stored: the SHA-1 digest of its text (in UTF-8), in hexadecimal.
+   * 
+   * @param template
+   * @return the hash of the template
+   */
+  public static String hash(String template) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(template.getBytes("UTF-8"));
+      StringBuilder hash = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        hash.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return hash.toString();
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new DeveloperError("SHA-1 is not available.", e);
+    }
+    catch (UnsupportedEncodingException e) {
+      throw new DeveloperError("UTF-8 is not available.", e);
+    }
+  }
+
   /**
    * Creates a new edge labeled with the given key from the given node to a newly created node.
    * 
@@ -453,14 +767,18 @@ public class SlowDBNodemapper {
     int to_node = -1;
     try {
       // See if this edge exists already.
-      GET_NODE.setInt(1, from_node);
-      GET_NODE.setString(2, key);
-      ResultSet edgeCheck = GET_NODE.executeQuery();
+      PreparedStatement getNode = connection.prepareStatement(GET_NODE);
+      getNode.setInt(1, from_node);
+      getNode.setString(2, key);
+      ResultSet edgeCheck = getNode.executeQuery();
       boolean exists = edgeCheck.next();
       edgeCheck.close();
+      getNode.close();
       if (!exists) {
-        CREATE_NODE.execute();
-        ResultSet results = CREATE_NODE.getGeneratedKeys();
+        PreparedStatement createNode = connection.prepareStatement(SQLDialect.of(connection).insertDefaultRow("node"),
+            Statement.RETURN_GENERATED_KEYS);
+        createNode.execute();
+        ResultSet results = createNode.getGeneratedKeys();
         if (results.next()) {
           to_node = results.getInt(1);
         }
@@ -468,11 +786,14 @@ public class SlowDBNodemapper {
           throw new DeveloperError(String.format("No node id generated!"), new NullPointerException());
         }
         results.close();
+        createNode.close();
 
-        PUT.setInt(1, from_node);
-        PUT.setString(2, key);
-        PUT.setInt(3, to_node);
-        PUT.execute();
+        PreparedStatement put = connection.prepareStatement(PUT);
+        put.setInt(1, from_node);
+        put.setString(2, key);
+        put.setInt(3, to_node);
+        put.execute();
+        put.close();
       }
       else {
         throw new IllegalArgumentException("Trying to recreate edge that already exists.");
@@ -498,9 +819,11 @@ public class SlowDBNodemapper {
   @SuppressWarnings("boxing")
   public static void remove(Connection connection, int from_node, int to_node) {
     try {
-      REMOVE.setInt(1, from_node);
-      REMOVE.setInt(2, to_node);
-      REMOVE.execute();
+      PreparedStatement statement = connection.prepareStatement(REMOVE);
+      statement.setInt(1, from_node);
+      statement.setInt(2, to_node);
+      statement.execute();
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError(String.format("SQL error trying to remove edge from node %d to node %d.", from_node, to_node), e);
@@ -520,8 +843,10 @@ public class SlowDBNodemapper {
     int fileID = Entity.getOrCreate(connection, "file", "path", filename.toExternalForm());
     
     try {
-      REMOVE_BOTID_FROM_FILENAME.setInt(1, botID);
-      REMOVE_BOTID_FROM_FILENAME.setInt(2, fileID);
+      PreparedStatement statement = connection.prepareStatement(REMOVE_BOTID_FROM_FILENAME);
+      statement.setInt(1, botID);
+      statement.setInt(2, fileID);
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError(String.format("SQL error trying to remove association between botid for \"%s\" and filename \"%s\".", bot, filename.toExternalForm()), e);
@@ -538,17 +863,20 @@ public class SlowDBNodemapper {
   @SuppressWarnings("boxing")
   public static void setFilename(Connection connection, int node, URL filename) {
     try {
-      REMOVE_FILENAME.setInt(1, node);
-      REMOVE_FILENAME.close();
-      addFilename(connection, node, filename);
+      PreparedStatement statement = connection.prepareStatement(REMOVE_FILENAME);
+      statement.setInt(1, node);
+      statement.execute();
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError(String.format("SQL error trying to remove filenames associated with node %d.", node), e);
     }
+    addFilename(connection, node, filename);
   }
 
   /**
-   * Sets the template associated with the given node.
+   * Sets the template associated with the given node (replacing any it already has). The template is stored only if
+   * an identical one is not already stored.
    * 
    * @param connection
    * @param node
@@ -556,23 +884,33 @@ public class SlowDBNodemapper {
    */
   @SuppressWarnings("boxing")
   public static void setTemplate(Connection connection, int node, String template) {
-    int templateID = -1;
+    String hash = hash(template);
+    Integer templateID = getTemplateIDs(connection, Collections.singleton(hash)).get(hash);
     try {
-      SET_TEMPLATE.setString(1, template);
-      SET_TEMPLATE.execute();
-      ResultSet results = SET_TEMPLATE.getGeneratedKeys();
-      if (results.next()) {
-        templateID = results.getInt(1);
-      }
-      else {
-        throw new DeveloperError(String.format("No template id generated!"), new NullPointerException());
+      if (templateID == null) {
+        PreparedStatement statement = connection.prepareStatement(SET_TEMPLATE, Statement.RETURN_GENERATED_KEYS);
+        statement.setString(1, hash);
+        statement.setString(2, template);
+        statement.execute();
+        ResultSet results = statement.getGeneratedKeys();
+        if (results.next()) {
+          templateID = results.getInt(1);
+        }
+        else {
+          throw new DeveloperError(String.format("No template id generated!"), new NullPointerException());
+        }
+        results.close();
+        statement.close();
       }
-      results.close();
+      PreparedStatement statement = connection.prepareStatement(REMOVE_TEMPLATE);
+      statement.setInt(1, node);
+      statement.execute();
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError(String.format("SQL error trying to attach template to node %d.", node), e);
     }
-    associateTemplateWithNode(connection, node, templateID);
+    associateTemplateWithNode(connection, node, templateID, hash);
   }
   
   /**
@@ -581,14 +919,18 @@ public class SlowDBNodemapper {
    * @param connection
    * @param node
    * @param templateID
+   * @param hash the hash of the template
    */
   @SuppressWarnings("boxing")
-  public static void associateTemplateWithNode(Connection connection, int node, int templateID) {
+  public static void associateTemplateWithNode(Connection connection, int node, int templateID, String hash) {
     
     try {
-      ASSOCIATE_TEMPLATE_WITH_NODE.setInt(1, node);
-      ASSOCIATE_TEMPLATE_WITH_NODE.setInt(2, templateID);
-      ASSOCIATE_TEMPLATE_WITH_NODE.execute();
+      PreparedStatement statement = connection.prepareStatement(ASSOCIATE_TEMPLATE_WITH_NODE);
+      statement.setInt(1, node);
+      statement.setInt(2, templateID);
+      statement.setString(3, hash);
+      statement.execute();
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError(String.format("SQL error trying to attach template id %d to node %d.", templateID, node), e);
@@ -606,12 +948,14 @@ public class SlowDBNodemapper {
   public static int size(Connection connection, int node) {
     int count = -1;
     try {
-      SIZE.setInt(1, node);
-      ResultSet results = SIZE.executeQuery();
+      PreparedStatement statement = connection.prepareStatement(SIZE);
+      statement.setInt(1, node);
+      ResultSet results = statement.executeQuery();
       if (results.next()) {
         count = results.getInt(1);
       }
       results.close();
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError(String.format("SQL error trying to get edge count from node %d.", node), e);
@@ -630,9 +974,11 @@ public class SlowDBNodemapper {
   public static void storeBotIDNodeFile(Connection connection, int node, URL file) {
     int fileId = Entity.getOrCreate(connection, "file", "path", file.toExternalForm());
     try {
-      STORE_BOTID_NODE_FILE.setInt(1, node);
-      STORE_BOTID_NODE_FILE.setInt(2, fileId);
-      STORE_BOTID_NODE_FILE.execute();
+      PreparedStatement statement = connection.prepareStatement(STORE_BOTID_NODE_FILE);
+      statement.setInt(1, node);
+      statement.setInt(2, fileId);
+      statement.execute();
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError(String.format("SQL error trying to associate file \"%s\" with node %d.", file.toExternalForm(), node), e);
@@ -661,11 +1007,14 @@ public class SlowDBNodemapper {
         }
       }
       results.close();
+      select.close();
       
       // If no node was found, create the root.
       if (id == -1) {
-        CREATE_NODE.execute();
-        results = CREATE_NODE.getGeneratedKeys();
+        PreparedStatement createNode = connection.prepareStatement(SQLDialect.of(connection).insertDefaultRow("node"),
+            Statement.RETURN_GENERATED_KEYS);
+        createNode.execute();
+        results = createNode.getGeneratedKeys();
         if (results.next()) {
           id = results.getInt(1);
         }
@@ -673,6 +1022,7 @@ public class SlowDBNodemapper {
           throw new DeveloperError("No node id generated when trying to create root node!");
         }
         results.close();
+        createNode.close();
       }
       return id;
     }
@@ -690,15 +1040,12 @@ public class SlowDBNodemapper {
    */
   public static void eraseAll(Connection connection) {
     try {
+      SQLDialect dialect = SQLDialect.of(connection);
       Statement statement = connection.createStatement();
-      statement.execute("TRUNCATE node_template");
-      statement.execute("TRUNCATE template");
-      statement.execute("TRUNCATE edge");
-      statement.execute("TRUNCATE botidnode_file");
-      statement.execute("TRUNCATE bot_file");
-      statement.execute("TRUNCATE file_node");
-      statement.execute("TRUNCATE node");
-      statement.execute("TRUNCATE file");
+      for (String table : GRAPH_TABLES) {
+        statement.execute(dialect.truncate(table));
+      }
+      statement.close();
     }
     catch (SQLException e) {
       throw new DeveloperError("SQL error when trying to reset the graph.", e);
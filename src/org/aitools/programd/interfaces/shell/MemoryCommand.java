@@ -24,7 +24,7 @@ public class MemoryCommand extends ShellCommand {
   public static final String ARGUMENT_TEMPLATE = "";
 
   /** Shell help line. */
-  private static final String HELP_LINE = "shows statistics on free/available memory";
+  private static final String HELP_LINE = "shows statistics on free/available memory and the predicate caches";
 
   /**
    * Creates a new LoadCommand.
@@ -34,7 +34,7 @@ public class MemoryCommand extends ShellCommand {
   }
 
   /**
-   * Displays a report of memory usage.
+   * Displays a report of memory usage, and of the use of the predicate caches.
    * 
    * @see org.aitools.programd.interfaces.shell.ShellCommand#handle(java.lang.String,
    *      org.aitools.programd.interfaces.shell.Shell)
@@ -42,6 +42,7 @@ public class MemoryCommand extends ShellCommand {
   @Override
   public void handle(String commandLine, Shell shell) {
     shell.showMessage(UserSystem.memoryReport());
+    shell.showMessage(shell.getCore().getPredicateMaster().getCacheReport());
   }
 
   /**
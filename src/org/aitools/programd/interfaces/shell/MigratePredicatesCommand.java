@@ -0,0 +1,62 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.interfaces.shell;
+
+import org.aitools.programd.predicates.FlatFilePredicateManager;
+import org.aitools.programd.predicates.PredicateManager;
+
+/**
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ * 
+ */
+public class MigratePredicatesCommand extends ShellCommand {
+
+  /** Shell command string. */
+  public static final String COMMAND_STRING = "/migrate predicates";
+
+  /** Argument template. */
+  public static final String ARGUMENT_TEMPLATE = "";
+
+  /** Shell help line. */
+  private static final String HELP_LINE = "converts flat-file predicates stored in the old layout to the new one";
+
+  /**
+   * Creates a new MigratePredicatesCommand.
+   */
+  public MigratePredicatesCommand() {
+    super(COMMAND_STRING, ARGUMENT_TEMPLATE, HELP_LINE);
+  }
+
+  /**
+   * Migrates the predicates files, if the flat-file predicate manager is in use.
+   * 
+   * @see org.aitools.programd.interfaces.shell.ShellCommand#handle(java.lang.String,
+   *      org.aitools.programd.interfaces.shell.Shell)
+   */
+  @Override
+  public void handle(String commandLine, Shell shell) {
+    PredicateManager manager = shell.getCore().getPredicateMaster();
+    if (manager instanceof FlatFilePredicateManager) {
+      int count = ((FlatFilePredicateManager) manager).migrate();
+      shell.showMessage(String.format("Migrated %,d predicates files.", Integer.valueOf(count)));
+    }
+    else {
+      shell.showMessage("The predicate manager in use does not store predicates in flat files.");
+    }
+  }
+
+  /**
+   * @see org.aitools.programd.interfaces.shell.ShellCommand#handles(java.lang.String)
+   */
+  @Override
+  public boolean handles(String commandLine) {
+    return commandLine.toLowerCase().equals(COMMAND_STRING);
+  }
+}
@@ -444,6 +444,7 @@ public class Shell extends Thread {
       return;
     }
     this.botid = newBotID;
+    this._core.prefetchPredicates(this.hostname, this.botid);
     this.botName = this.bots.get(newBotID).getPropertyValue(this.botNamePredicate);
     this.showMessage("Switched to bot \"" + newBotID + "\" (name: \"" + this.botName + "\").");
     // Send the connect string and print the first response.
@@ -24,10 +24,16 @@ public class ShellCommandRegistry extends ObjectExemplarRegistry<ShellCommand> {
   private static final String[] COMMAND_LIST = { "org.aitools.programd.interfaces.shell.AIMLCommand",
       "org.aitools.programd.interfaces.shell.BotListCommand",
       "org.aitools.programd.interfaces.shell.CategoriesCommand",
+      "org.aitools.programd.interfaces.shell.ChatLogStatsCommand",
+      "org.aitools.programd.interfaces.shell.DBPoolCommand",
       "org.aitools.programd.interfaces.shell.FlushPredicatesCommand",
-      "org.aitools.programd.interfaces.shell.HelpCommand", "org.aitools.programd.interfaces.shell.ListBotFilesCommand",
+      "org.aitools.programd.interfaces.shell.HelpCommand",
+      "org.aitools.programd.interfaces.shell.JavaScriptStatsCommand",
+      "org.aitools.programd.interfaces.shell.ListBotFilesCommand",
       "org.aitools.programd.interfaces.shell.ListCommandablesCommand",
       "org.aitools.programd.interfaces.shell.LoadCommand", "org.aitools.programd.interfaces.shell.MemoryCommand",
+      "org.aitools.programd.interfaces.shell.MigratePredicatesCommand",
+      "org.aitools.programd.interfaces.shell.PredicateStatsCommand",
       "org.aitools.programd.interfaces.shell.PrintGraphCommand", "org.aitools.programd.interfaces.shell.TalkToCommand",
       "org.aitools.programd.test.aiml.TestCommand", "org.aitools.programd.interfaces.shell.UnloadCommand",
       "org.aitools.programd.interfaces.shell.WhoCommand" };
@@ -9,11 +9,20 @@
 
 package org.aitools.programd.interpreter;
 
+import org.aitools.programd.CoreSettings;
+
 /**
  * An <code>Interpreter</code> handles some server-side script.
  */
 abstract public interface Interpreter {
 
+  /**
+   * Configures the interpreter from the given settings. This is called once, before anything is evaluated.
+   * 
+   * @param settings the settings to use
+   */
+  public void configure(CoreSettings settings);
+
   /**
    * Evaluates a given JavaScript expression for a given userid.
    * 
@@ -21,4 +30,9 @@ abstract public interface Interpreter {
    * @return the result of evaluating the expression
    */
   public String evaluate(String expression);
+
+  /**
+   * @return a summary of the work the interpreter has done (for the shell)
+   */
+  public String getReport();
 }
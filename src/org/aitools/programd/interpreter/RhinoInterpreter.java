@@ -1,12 +1,55 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
 package org.aitools.programd.interpreter;
 
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.aitools.programd.CoreSettings;
 import org.apache.log4j.Logger;
 import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Script;
 import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
 
 /**
+ * <p>
  * An implementation of {@link org.aitools.programd.interpreter.Interpreter} that handles server-side JavaScript using
  * the Rhino package.
+ * </p>
+ * <p>
+ * The standard objects are initialized only once per shared scope, and shared scopes are sealed and pooled for reuse;
+ * each evaluation runs in a fresh child scope of one, so evaluations cannot see each other's variables. Compiled
+ * scripts are kept (up to the configured number) keyed on their source text. If a time limit is configured,
+ * evaluations run on worker threads and are abandoned if they do not finish in time.
+ * </p>
+ * <p>
+ * The Rhino release in use offers no way to count instructions or stop a running script, so an abandoned script's
+ * thread is interrupted and left to finish or die. A fresh worker is started for the next evaluation, so a stuck one
+ * holds up nothing else; but so that runaway scripts cannot take over the machine, once as many are stuck as there are
+ * processors, further evaluations are refused (and counted) until some of them finish. Stuck and refused evaluations
+ * are logged, and shown (with the compilation and execution times) by the <code>/javascript stats</code> shell command.
+ * </p>
  * 
  * @author Jon Baer
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
@@ -16,12 +59,184 @@ public class RhinoInterpreter implements Interpreter {
   /** The logger. */
   private static final Logger logger = Logger.getLogger("programd");
 
+  /** The name given to evaluated scripts. */
+  private static final String SOURCE_NAME = "<cmd>";
+
+  /** The default maximum number of compiled scripts to keep. */
+  private static final int DEFAULT_SCRIPT_CACHE_SIZE = 100;
+
+  /** The sealed shared scopes available for reuse. */
+  private ConcurrentLinkedQueue<ScriptableObject> _sharedScopes = new ConcurrentLinkedQueue<ScriptableObject>();
+
+  /** Compiled scripts, keyed on their source text. */
+  private Map<String, Script> _scripts = createScriptCache(DEFAULT_SCRIPT_CACHE_SIZE);
+
+  /** How long (in milliseconds) an evaluation may run (or 0 for no limit). */
+  private long _timeLimit = 0;
+
+  /** The worker threads that run evaluations when there is a time limit. */
+  private ExecutorService _workers;
+
+  /** The most evaluations that may be stuck (running after being abandoned) before new ones are refused. */
+  private int _maxStuck = Runtime.getRuntime().availableProcessors();
+
+  /** The number of evaluations still running after being abandoned. */
+  private AtomicInteger _stuckCount = new AtomicInteger();
+
+  /** The number of evaluations refused because too many were stuck. */
+  private AtomicLong _refusedCount = new AtomicLong();
+
+  /** The number of scripts compiled. */
+  private AtomicLong _compileCount = new AtomicLong();
+
+  /** The total time (in nanoseconds) spent compiling. */
+  private AtomicLong _compileTime = new AtomicLong();
+
+  /** The number of scripts executed. */
+  private AtomicLong _executeCount = new AtomicLong();
+
+  /** The total time (in nanoseconds) spent executing. */
+  private AtomicLong _executeTime = new AtomicLong();
+
+  /** The number of evaluations abandoned for running too long. */
+  private AtomicLong _timeoutCount = new AtomicLong();
+
+  /**
+   * An evaluation run on a worker thread, which notes whether it finished before or after being abandoned.
+   */
+  private class Evaluation implements Callable<String> {
+
+    /** The evaluation is running. */
+    private static final int RUNNING = 0;
+
+    /** The evaluation has finished. */
+    private static final int FINISHED = 1;
+
+    /** The evaluation was abandoned (and may still be running). */
+    private static final int ABANDONED = 2;
+
+    /** The expression to evaluate. */
+    private String _expression;
+
+    /** The state of the evaluation. */
+    private AtomicInteger _state = new AtomicInteger(RUNNING);
+
+    /**
+     * @param expression the expression to evaluate
+     */
+    protected Evaluation(String expression) {
+      this._expression = expression;
+    }
+
+    /**
+     * Abandons the evaluation, counting it as stuck if it is still running.
+     */
+    protected void abandon() {
+      if (this._state.compareAndSet(RUNNING, ABANDONED)) {
+        RhinoInterpreter.this._stuckCount.incrementAndGet();
+      }
+    }
+
+    /**
+     * @see java.util.concurrent.Callable#call()
+     */
+    @Override
+    public String call() {
+      try {
+        return RhinoInterpreter.this.evaluateNow(this._expression);
+      }
+      finally {
+        if (!this._state.compareAndSet(RUNNING, FINISHED)) {
+          int stuck = RhinoInterpreter.this._stuckCount.decrementAndGet();
+          logger.info(String.format("Abandoned JavaScript has finished (%d still stuck).", Integer.valueOf(stuck)));
+        }
+      }
+    }
+  }
+
+  /**
+   * @param size the maximum number of scripts to keep
+   * @return a (synchronized) map that keeps only the most recently used scripts
+   */
+  private static Map<String, Script> createScriptCache(final int size) {
+    return Collections.synchronizedMap(new LinkedHashMap<String, Script>(16, 0.75f, true) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Script> eldest) {
+        return size() > size;
+      }
+    });
+  }
+
+  /**
+   * @see org.aitools.programd.interpreter.Interpreter#configure(org.aitools.programd.CoreSettings)
+   */
+  @Override
+  public void configure(CoreSettings settings) {
+    int cacheSize = settings.getJavascriptScriptCacheSize();
+    this._scripts = createScriptCache(cacheSize > 0 ? cacheSize : DEFAULT_SCRIPT_CACHE_SIZE);
+    this._timeLimit = Math.max(0, settings.getJavascriptTimeLimit());
+    if (this._timeLimit > 0) {
+      // Threads are started as needed (and kept for a while when idle), so a stuck one never holds up another.
+      this._workers = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "JavaScript evaluation");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+  }
+
   /**
    * @see org.aitools.programd.interpreter.Interpreter#evaluate(java.lang.String)
    */
   @Override
   public String evaluate(String expression) {
     logger.debug("evaluate: \"" + expression + "\"");
+    if (this._workers == null) {
+      return this.evaluateNow(expression);
+    }
+    int stuck = this._stuckCount.get();
+    if (stuck >= this._maxStuck) {
+      this._refusedCount.incrementAndGet();
+      logger.warn(String.format("%d abandoned JavaScript evaluations are still running; refusing:%n%s",
+          Integer.valueOf(stuck), expression));
+      return "";
+    }
+    Evaluation evaluation = new Evaluation(expression);
+    Future<String> result = this._workers.submit(evaluation);
+    try {
+      return result.get(this._timeLimit, TimeUnit.MILLISECONDS);
+    }
+    catch (TimeoutException e) {
+      evaluation.abandon();
+      result.cancel(true);
+      this._timeoutCount.incrementAndGet();
+      logger.warn(String.format("JavaScript did not finish within %,dms; abandoned (%d now stuck):%n%s",
+          Long.valueOf(this._timeLimit), Integer.valueOf(this._stuckCount.get()), expression));
+    }
+    catch (InterruptedException e) {
+      result.cancel(true);
+      Thread.currentThread().interrupt();
+    }
+    catch (ExecutionException e) {
+      logger.warn(String.format("JavaScript exception.%nGot exception:%n%s%nwhen processing:%n%s", e.getCause(),
+          expression));
+    }
+    return "";
+  }
+
+  /**
+   * Evaluates the given expression on the current thread.
+   * 
+   * @param expression the expression to evaluate
+   * @return the result of evaluating the expression
+   */
+  protected String evaluateNow(String expression) {
     Context context;
     try {
       context = Context.enter();
@@ -31,17 +246,40 @@ public class RhinoInterpreter implements Interpreter {
       logger.error("Rhino JavaScript library is missing!", e);
       return "";
     }
-    Scriptable scope = context.initStandardObjects(null);
+    ScriptableObject shared = this._sharedScopes.poll();
+    if (shared == null) {
+      shared = context.initStandardObjects(null, true);
+      shared.sealObject();
+    }
 
     Object result = null;
     try {
-      result = context.evaluateString(scope, expression, "<cmd>", 1, null);
+      Script script = this._scripts.get(expression);
+      if (script == null) {
+        long start = System.nanoTime();
+        script = context.compileReader(shared, new StringReader(expression), SOURCE_NAME, 1, null);
+        this._compileTime.addAndGet(System.nanoTime() - start);
+        this._compileCount.incrementAndGet();
+        this._scripts.put(expression, script);
+      }
+      // Run in a child scope, so nothing is left behind in the shared one.
+      Scriptable scope = context.newObject(shared);
+      scope.setPrototype(shared);
+      scope.setParentScope(null);
+
+      long start = System.nanoTime();
+      result = script.exec(context, scope);
+      this._executeTime.addAndGet(System.nanoTime() - start);
+      this._executeCount.incrementAndGet();
     }
     catch (Exception e) {
       logger.warn(String.format(
           "JavaScript exception (see interpreter log).%nGot exception:%n%s%nwhen processing:%n%s", e, expression));
     }
-    Context.exit();
+    finally {
+      this._sharedScopes.offer(shared);
+      Context.exit();
+    }
     if (result != null) {
       return result.toString();
     }
@@ -49,4 +287,20 @@ public class RhinoInterpreter implements Interpreter {
     logger.info("JavaScript returned null!");
     return "";
   }
+
+  /**
+   * @return a summary of the time spent compiling and executing scripts, and of the evaluations abandoned and refused
+   * @see org.aitools.programd.interpreter.Interpreter#getReport()
+   */
+  @Override
+  @SuppressWarnings("boxing")
+  public String getReport() {
+    long compiles = this._compileCount.get();
+    long executions = this._executeCount.get();
+    return String.format("%,d scripts compiled (average %.2fms); %,d executed (average %.2fms); "
+        + "%,d abandoned for running too long (%,d still running); %,d refused because too many were stuck.",
+        compiles, compiles > 0 ? this._compileTime.get() / 1e6 / compiles : 0d, executions,
+        executions > 0 ? this._executeTime.get() / 1e6 / executions : 0d, this._timeoutCount.get(),
+        this._stuckCount.get(), this._refusedCount.get());
+  }
 }
@@ -0,0 +1,189 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.logging;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * <p>
+ * The layout of the binary chat log written by {@link BinaryChatLogAppender} and read by {@link BinaryChatLogReader}.
+ * </p>
+ * <p>
+ * The log is a series of segment files in one directory, named with a prefix and a sequence number (for instance,
+ * <code>chat-000001.log</code>). A segment starts with a header (the segment magic number and the format version),
+ * followed by records. Each record is the length of its body (an <code>int</code>) followed by the body: the time of
+ * the exchange (a <code>long</code>, in milliseconds since the epoch), then the botid, userid, input and reply, each as
+ * a length-prefixed UTF-8 string.
+ * </p>
+ * <p>
+ * Each segment has a sparse index beside it (for instance, <code>chat-000001.idx</code>): a header like that of the
+ * segment, followed by an entry for each block of records, giving the offset and length of the block in the segment,
+ * the number of records in it, the earliest and latest times in it, and a Bloom filter of the userids in it. A reader
+ * looking for a user's exchanges, or for those in a span of time, can skip every block that cannot contain any.
+ * Records after the last indexed block (as when a segment was not closed properly) are read without the help of the
+ * index.
+ * </p>
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class BinaryChatLog {
+
+  /** The magic number at the start of a segment. */
+  public static final int SEGMENT_MAGIC = 0x5044434c;
+
+  /** The magic number at the start of an index. */
+  public static final int INDEX_MAGIC = 0x50444358;
+
+  /** The version of the format. */
+  public static final int VERSION = 1;
+
+  /** The suffix of segment files. */
+  public static final String SEGMENT_SUFFIX = ".log";
+
+  /** The suffix of index files. */
+  public static final String INDEX_SUFFIX = ".idx";
+
+  /** The number of bits in the Bloom filter of each index entry. */
+  public static final int BLOOM_BITS = 2048;
+
+  /** The size of a segment (or index) header. */
+  public static final int HEADER_SIZE = 8;
+
+  /** The number of bits set in the Bloom filter for each userid. */
+  private static final int BLOOM_HASHES = 3;
+
+  /** The encoding of strings. */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private BinaryChatLog() {
+    // Not to be instantiated.
+  }
+
+  /**
+   * Adds the given userid to the given Bloom filter.
+   * 
+   * @param bloom
+   * @param userid
+   */
+  public static void addToBloom(byte[] bloom, String userid) {
+    int hash = userid.hashCode();
+    int step = Integer.rotateLeft(hash * 0x9e3779b9, 16) | 1;
+    for (int count = 0; count < BLOOM_HASHES; count++) {
+      int bit = ((hash + count * step) & 0x7fffffff) % BLOOM_BITS;
+      bloom[bit >> 3] |= 1 << (bit & 7);
+    }
+  }
+
+  /**
+   * @param bloom
+   * @param userid
+   * @return whether the given Bloom filter may contain the given userid (if not, it certainly does not)
+   */
+  public static boolean bloomMayContain(byte[] bloom, String userid) {
+    int hash = userid.hashCode();
+    int step = Integer.rotateLeft(hash * 0x9e3779b9, 16) | 1;
+    for (int count = 0; count < BLOOM_HASHES; count++) {
+      int bit = ((hash + count * step) & 0x7fffffff) % BLOOM_BITS;
+      if ((bloom[bit >> 3] & (1 << (bit & 7))) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param segment a segment file
+   * @return the index file of the segment
+   */
+  public static File indexFor(File segment) {
+    String name = segment.getName();
+    return new File(segment.getParentFile(), name.substring(0, name.length() - SEGMENT_SUFFIX.length())
+        + INDEX_SUFFIX);
+  }
+
+  /**
+   * Reads a string written by {@link #writeString(DataOutput, String)}.
+   * 
+   * @param in
+   * @return the string
+   * @throws IOException
+   */
+  public static String readString(DataInput in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, UTF8);
+  }
+
+  /**
+   * @param directory
+   * @param prefix
+   * @param number
+   * @return the segment file with the given prefix and number in the given directory
+   */
+  public static File segment(File directory, String prefix, int number) {
+    return new File(directory, String.format("%s-%06d%s", prefix, Integer.valueOf(number), SEGMENT_SUFFIX));
+  }
+
+  /**
+   * @param segment a segment file
+   * @param prefix the prefix of segment files
+   * @return the sequence number of the segment
+   */
+  public static int segmentNumber(File segment, String prefix) {
+    String name = segment.getName();
+    return Integer.parseInt(name.substring(prefix.length() + 1, name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  /**
+   * @param directory
+   * @param prefix
+   * @return the segment files with the given prefix in the given directory, in order
+   */
+  public static File[] segments(File directory, final String prefix) {
+    File[] segments = directory.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        String name = file.getName();
+        return file.isFile() && name.startsWith(prefix + "-") && name.endsWith(SEGMENT_SUFFIX)
+            && name.substring(prefix.length() + 1, name.length() - SEGMENT_SUFFIX.length()).matches("\\d+");
+      }
+    });
+    if (segments == null) {
+      return new File[0];
+    }
+    Arrays.sort(segments, new Comparator<File>() {
+      @Override
+      public int compare(File one, File other) {
+        return segmentNumber(one, prefix) - segmentNumber(other, prefix);
+      }
+    });
+    return segments;
+  }
+
+  /**
+   * Writes a string as its length in bytes followed by its UTF-8 encoding.
+   * 
+   * @param out
+   * @param string
+   * @throws IOException
+   */
+  public static void writeString(DataOutput out, String string) throws IOException {
+    byte[] bytes = string.getBytes(UTF8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+}
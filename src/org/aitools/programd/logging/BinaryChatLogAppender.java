@@ -0,0 +1,294 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.logging;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.helpers.OptionConverter;
+import org.apache.log4j.spi.ErrorCode;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * <p>
+ * Writes ChatLogEvents to a compact binary chat log (see {@link BinaryChatLog} for the layout), which is much cheaper to
+ * write than the text and XML chat logs, and much faster to search with {@link BinaryChatLogReader}. Other events are
+ * ignored.
+ * </p>
+ * <p>
+ * A new segment is started whenever the current one reaches the maximum segment size, and also whenever the appender
+ * is started (so a segment that was not closed properly is never written to again). Records are buffered, and written
+ * out when the {@link ChatLogWriter} has finished each batch (see {@link #flush()}).
+ * </p>
+ * <p>
+ * The parameters are <code>Directory</code> (where to put the segments), <code>Prefix</code> (how to begin their
+ * names; the default is <code>chat</code>), <code>MaxSegmentSize</code> (for instance, <code>64MB</code>, which is
+ * the default) and <code>IndexInterval</code> (how many records each index entry covers; the default is 64).
+ * </p>
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class BinaryChatLogAppender extends AppenderSkeleton implements Flushable {
+
+  /** The default maximum segment size. */
+  private static final long DEFAULT_MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  /** The default number of records covered by each index entry. */
+  private static final int DEFAULT_INDEX_INTERVAL = 64;
+
+  /** The directory where the segments are written. */
+  private File _directory;
+
+  /** The prefix of the segment names. */
+  private String _prefix = "chat";
+
+  /** The size at which a segment is closed and a new one started. */
+  private long _maxSegmentSize = DEFAULT_MAX_SEGMENT_SIZE;
+
+  /** The number of records covered by each index entry. */
+  private int _indexInterval = DEFAULT_INDEX_INTERVAL;
+
+  /** The number of the current segment. */
+  private int _segmentNumber;
+
+  /** The current segment. */
+  private DataOutputStream _segment;
+
+  /** The index of the current segment. */
+  private DataOutputStream _index;
+
+  /** The number of bytes written to the current segment. */
+  private long _position;
+
+  /** The body of the record being written. */
+  private ByteArrayOutputStream _body = new ByteArrayOutputStream(1024);
+
+  /** The offset of the current block. */
+  private long _blockOffset;
+
+  /** The number of records in the current block. */
+  private int _blockCount;
+
+  /** The earliest time in the current block. */
+  private long _blockFirst;
+
+  /** The latest time in the current block. */
+  private long _blockLast;
+
+  /** The Bloom filter of the userids in the current block. */
+  private byte[] _blockBloom = new byte[BinaryChatLog.BLOOM_BITS / 8];
+
+  /**
+   * Opens the first segment, after any already in the directory.
+   * 
+   * @see org.apache.log4j.AppenderSkeleton#activateOptions()
+   */
+  @Override
+  public synchronized void activateOptions() {
+    if (this._directory == null) {
+      this.errorHandler.error(String.format("No directory set for the binary chat log appender \"%s\".", this.name));
+      return;
+    }
+    if (!this._directory.isDirectory() && !this._directory.mkdirs()) {
+      this.errorHandler.error(String.format("Could not create the binary chat log directory \"%s\".",
+          this._directory));
+      return;
+    }
+    File[] segments = BinaryChatLog.segments(this._directory, this._prefix);
+    this._segmentNumber = segments.length == 0 ? 0 : BinaryChatLog.segmentNumber(segments[segments.length - 1],
+        this._prefix);
+    try {
+      this.openSegment();
+    }
+    catch (IOException e) {
+      this.errorHandler.error("Could not open a binary chat log segment.", e, ErrorCode.FILE_OPEN_FAILURE);
+    }
+  }
+
+  /**
+   * @see org.apache.log4j.AppenderSkeleton#append(org.apache.log4j.spi.LoggingEvent)
+   */
+  @Override
+  protected void append(LoggingEvent event) {
+    if (!(event instanceof ChatLogEvent) || this._segment == null) {
+      return;
+    }
+    ChatLogEvent exchange = (ChatLogEvent) event;
+    try {
+      this._body.reset();
+      DataOutputStream body = new DataOutputStream(this._body);
+      body.writeLong(exchange.timeStamp);
+      BinaryChatLog.writeString(body, exchange.getBotID());
+      BinaryChatLog.writeString(body, exchange.getUserID());
+      BinaryChatLog.writeString(body, exchange.getInput());
+      BinaryChatLog.writeString(body, exchange.getReply());
+      body.flush();
+
+      if (this._blockCount == 0) {
+        this._blockOffset = this._position;
+        this._blockFirst = exchange.timeStamp;
+        this._blockLast = exchange.timeStamp;
+      }
+      else {
+        this._blockFirst = Math.min(this._blockFirst, exchange.timeStamp);
+        this._blockLast = Math.max(this._blockLast, exchange.timeStamp);
+      }
+      BinaryChatLog.addToBloom(this._blockBloom, exchange.getUserID());
+      this._blockCount++;
+
+      this._segment.writeInt(this._body.size());
+      this._body.writeTo(this._segment);
+      this._position += 4 + this._body.size();
+
+      if (this._blockCount == this._indexInterval) {
+        this.writeIndexEntry();
+      }
+      if (this._position >= this._maxSegmentSize) {
+        this.closeSegment();
+        this.openSegment();
+      }
+    }
+    catch (IOException e) {
+      this.errorHandler.error("Could not write to the binary chat log.", e, ErrorCode.WRITE_FAILURE);
+    }
+  }
+
+  /**
+   * @see org.apache.log4j.Appender#close()
+   */
+  @Override
+  public synchronized void close() {
+    if (this.closed) {
+      return;
+    }
+    this.closed = true;
+    try {
+      this.closeSegment();
+    }
+    catch (IOException e) {
+      this.errorHandler.error("Could not close the binary chat log.", e, ErrorCode.CLOSE_FAILURE);
+    }
+  }
+
+  /**
+   * Finishes the current segment (indexing any records not yet indexed), and closes it.
+   * 
+   * @throws IOException
+   */
+  private void closeSegment() throws IOException {
+    if (this._segment == null) {
+      return;
+    }
+    if (this._blockCount > 0) {
+      this.writeIndexEntry();
+    }
+    this._segment.close();
+    this._index.close();
+    this._segment = null;
+    this._index = null;
+  }
+
+  /**
+   * Writes out the records (and index entries) written so far.
+   * 
+   * @see java.io.Flushable#flush()
+   */
+  @Override
+  public synchronized void flush() {
+    if (this._segment == null) {
+      return;
+    }
+    try {
+      this._segment.flush();
+      this._index.flush();
+    }
+    catch (IOException e) {
+      this.errorHandler.error("Could not write to the binary chat log.", e, ErrorCode.FLUSH_FAILURE);
+    }
+  }
+
+  /**
+   * Opens the next segment (and its index).
+   * 
+   * @throws IOException
+   */
+  private void openSegment() throws IOException {
+    this._segmentNumber++;
+    File segment = BinaryChatLog.segment(this._directory, this._prefix, this._segmentNumber);
+    this._segment = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(segment), 65536));
+    this._segment.writeInt(BinaryChatLog.SEGMENT_MAGIC);
+    this._segment.writeInt(BinaryChatLog.VERSION);
+    this._index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+        BinaryChatLog.indexFor(segment))));
+    this._index.writeInt(BinaryChatLog.INDEX_MAGIC);
+    this._index.writeInt(BinaryChatLog.VERSION);
+    this._position = BinaryChatLog.HEADER_SIZE;
+    this._blockCount = 0;
+  }
+
+  /**
+   * @see org.apache.log4j.Appender#requiresLayout()
+   */
+  @Override
+  public boolean requiresLayout() {
+    return false;
+  }
+
+  /**
+   * @param directory the directory where the segments are written
+   */
+  public void setDirectory(String directory) {
+    this._directory = new File(directory);
+  }
+
+  /**
+   * @param interval the number of records covered by each index entry
+   */
+  public void setIndexInterval(int interval) {
+    this._indexInterval = Math.max(interval, 1);
+  }
+
+  /**
+   * @param size the size at which a segment is closed and a new one started (for instance, <code>64MB</code>)
+   */
+  public void setMaxSegmentSize(String size) {
+    this._maxSegmentSize = OptionConverter.toFileSize(size, DEFAULT_MAX_SEGMENT_SIZE);
+  }
+
+  /**
+   * @param prefix the prefix of the segment names
+   */
+  public void setPrefix(String prefix) {
+    this._prefix = prefix;
+  }
+
+  /**
+   * Writes the index entry for the current block, and starts a new block.
+   * 
+   * @throws IOException
+   */
+  private void writeIndexEntry() throws IOException {
+    this._index.writeLong(this._blockOffset);
+    this._index.writeInt((int) (this._position - this._blockOffset));
+    this._index.writeInt(this._blockCount);
+    this._index.writeLong(this._blockFirst);
+    this._index.writeLong(this._blockLast);
+    this._index.write(this._blockBloom);
+    Arrays.fill(this._blockBloom, (byte) 0);
+    this._blockCount = 0;
+  }
+}
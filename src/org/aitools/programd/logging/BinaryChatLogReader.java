@@ -0,0 +1,412 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.logging;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Layout;
+
+/**
+ * <p>
+ * Reads the binary chat log written by {@link BinaryChatLogAppender}, optionally only the exchanges of one user, with
+ * one bot, or within a span of time. The indexes of the segments are used to skip the blocks of records that cannot
+ * contain any of the wanted exchanges.
+ * </p>
+ * <p>
+ * This can also be run from the command line, to print the exchanges as text or to export them as an XML chat log
+ * (the same as that written by {@link XMLChatLogLayout}):
+ * </p>
+ * 
+ * <pre>
+ * java org.aitools.programd.logging.BinaryChatLogReader directory [-prefix prefix] [-user userid] [-bot botid]
+ *     [-from time] [-to time] [-xml]
+ * </pre>
+ * <p>
+ * Times are given as <code>yyyy-MM-dd</code> or <code>yyyy-MM-dd'T'HH:mm:ss</code>, in local time; the span includes
+ * its start and excludes its end.
+ * </p>
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class BinaryChatLogReader {
+
+  /**
+   * Receives the exchanges read.
+   */
+  public static interface Handler {
+
+    /**
+     * @param event an exchange
+     * @throws IOException if the exchange cannot be handled
+     */
+    public void handle(ChatLogEvent event) throws IOException;
+  }
+
+  /**
+   * An entry in a segment index.
+   */
+  private static class Block {
+
+    /** The offset of the block in the segment. */
+    protected long offset;
+
+    /** The length of the block. */
+    protected int length;
+
+    /** The number of records in the block. */
+    protected int count;
+
+    /** The earliest time in the block. */
+    protected long first;
+
+    /** The latest time in the block. */
+    protected long last;
+
+    /** The Bloom filter of the userids in the block. */
+    protected byte[] bloom = new byte[BinaryChatLog.BLOOM_BITS / 8];
+  }
+
+  /** The usage message for the command line. */
+  private static final String USAGE = "Usage: BinaryChatLogReader directory [-prefix prefix] [-user userid] "
+      + "[-bot botid] [-from time] [-to time] [-xml]";
+
+  /** The directory of the log. */
+  private File _directory;
+
+  /** The prefix of the segment names. */
+  private String _prefix;
+
+  /** The userid whose exchanges are wanted (or null for all). */
+  private String _userid;
+
+  /** The botid whose exchanges are wanted (or null for all). */
+  private String _botid;
+
+  /** The start of the span of time wanted. */
+  private long _from = Long.MIN_VALUE;
+
+  /** The end of the span of time wanted. */
+  private long _to = Long.MAX_VALUE;
+
+  /** The number of blocks skipped with the help of the indexes. */
+  private int _skippedBlocks;
+
+  /**
+   * Creates a new reader of the log with the given prefix in the given directory.
+   * 
+   * @param directory the directory of the log
+   * @param prefix the prefix of the segment names
+   */
+  public BinaryChatLogReader(File directory, String prefix) {
+    this._directory = directory;
+    this._prefix = prefix;
+  }
+
+  /**
+   * @param segment
+   * @return the entries of the index of the given segment (empty if the index is missing or unreadable)
+   */
+  private static List<Block> readIndex(File segment) {
+    List<Block> blocks = new ArrayList<Block>();
+    File index = BinaryChatLog.indexFor(segment);
+    if (!index.isFile()) {
+      return blocks;
+    }
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index)));
+      try {
+        if (in.readInt() != BinaryChatLog.INDEX_MAGIC || in.readInt() != BinaryChatLog.VERSION) {
+          return blocks;
+        }
+        while (true) {
+          Block block = new Block();
+          block.offset = in.readLong();
+          block.length = in.readInt();
+          block.count = in.readInt();
+          block.first = in.readLong();
+          block.last = in.readLong();
+          in.readFully(block.bloom);
+          blocks.add(block);
+        }
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (EOFException e) {
+      // The end of the index (possibly in the middle of an entry that was being written).
+    }
+    catch (IOException e) {
+      blocks.clear();
+    }
+    return blocks;
+  }
+
+  /**
+   * @return the number of blocks skipped with the help of the indexes
+   */
+  public int getSkippedBlockCount() {
+    return this._skippedBlocks;
+  }
+
+  /**
+   * @param block
+   * @return whether the given block may contain any of the wanted exchanges
+   */
+  private boolean mayContain(Block block) {
+    return block.last >= this._from && block.first < this._to
+        && (this._userid == null || BinaryChatLog.bloomMayContain(block.bloom, this._userid));
+  }
+
+  /**
+   * Reads the wanted exchanges from all the segments, in order, passing each to the given handler.
+   * 
+   * @param handler
+   * @return the number of exchanges read
+   * @throws IOException
+   */
+  public int read(Handler handler) throws IOException {
+    int count = 0;
+    for (File segment : BinaryChatLog.segments(this._directory, this._prefix)) {
+      count += this.readSegment(segment, handler);
+    }
+    return count;
+  }
+
+  /**
+   * Reads records from the given stream until the given number have been read or the stream ends, passing the wanted
+   * ones to the given handler.
+   * 
+   * @param in
+   * @param records the most records to read
+   * @param handler
+   * @return the number of exchanges passed to the handler
+   * @throws IOException
+   */
+  private int readRecords(DataInputStream in, int records, Handler handler) throws IOException {
+    int count = 0;
+    for (int index = 0; index < records; index++) {
+      byte[] body;
+      try {
+        body = new byte[in.readInt()];
+        in.readFully(body);
+      }
+      catch (EOFException e) {
+        // The end of the segment (possibly in the middle of a record that was being written).
+        break;
+      }
+      DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+      long time = record.readLong();
+      String botid = BinaryChatLog.readString(record);
+      String userid = BinaryChatLog.readString(record);
+      if (time < this._from || time >= this._to || (this._userid != null && !this._userid.equals(userid))
+          || (this._botid != null && !this._botid.equals(botid))) {
+        continue;
+      }
+      String input = BinaryChatLog.readString(record);
+      String reply = BinaryChatLog.readString(record);
+      handler.handle(new ChatLogEvent(botid, userid, input, reply, time));
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Reads the wanted exchanges from the given segment, passing each to the given handler.
+   * 
+   * @param segment
+   * @param handler
+   * @return the number of exchanges read
+   * @throws IOException
+   */
+  private int readSegment(File segment, Handler handler) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(segment, "r");
+    try {
+      if (file.length() < BinaryChatLog.HEADER_SIZE || file.readInt() != BinaryChatLog.SEGMENT_MAGIC
+          || file.readInt() != BinaryChatLog.VERSION) {
+        throw new IOException(String.format("\"%s\" is not a binary chat log segment.", segment));
+      }
+      int count = 0;
+      long indexed = BinaryChatLog.HEADER_SIZE;
+      for (Block block : readIndex(segment)) {
+        if (block.offset != indexed || block.offset + block.length > file.length()) {
+          // The index does not agree with the segment; read the rest without it.
+          break;
+        }
+        indexed = block.offset + block.length;
+        if (!this.mayContain(block)) {
+          this._skippedBlocks++;
+          continue;
+        }
+        file.seek(block.offset);
+        count += this.readRecords(new DataInputStream(new BufferedInputStream(Channels.newInputStream(file
+            .getChannel()), Math.min(Math.max(block.length, 1), 65536))), block.count, handler);
+      }
+      file.seek(indexed);
+      count += this.readRecords(new DataInputStream(new BufferedInputStream(Channels.newInputStream(file
+          .getChannel()), 65536)), Integer.MAX_VALUE, handler);
+      return count;
+    }
+    finally {
+      file.close();
+    }
+  }
+
+  /**
+   * @param botid the botid whose exchanges are wanted (or null for all)
+   */
+  public void setBotID(String botid) {
+    this._botid = botid;
+  }
+
+  /**
+   * @param from the start of the span of time wanted (in milliseconds since the epoch; included)
+   * @param to the end of the span of time wanted (in milliseconds since the epoch; excluded)
+   */
+  public void setSpan(long from, long to) {
+    this._from = from;
+    this._to = to;
+  }
+
+  /**
+   * @param userid the userid whose exchanges are wanted (or null for all)
+   */
+  public void setUserID(String userid) {
+    this._userid = userid;
+  }
+
+  /**
+   * Writes the wanted exchanges from all the segments, in order, to the given writer with the given layout (after its
+   * header, and followed by its footer).
+   * 
+   * @param out
+   * @param layout
+   * @return the number of exchanges written
+   * @throws IOException
+   */
+  public int write(final Writer out, final Layout layout) throws IOException {
+    if (layout.getHeader() != null) {
+      out.write(layout.getHeader());
+    }
+    int count = this.read(new Handler() {
+      @Override
+      public void handle(ChatLogEvent event) throws IOException {
+        out.write(layout.format(event));
+      }
+    });
+    if (layout.getFooter() != null) {
+      out.write(layout.getFooter());
+    }
+    return count;
+  }
+
+  /**
+   * @param time a time given on the command line
+   * @return the time in milliseconds since the epoch
+   * @throws ParseException if the time cannot be understood
+   */
+  private static long parseTime(String time) throws ParseException {
+    return new SimpleDateFormat(time.indexOf('T') > 0 ? "yyyy-MM-dd'T'HH:mm:ss" : "yyyy-MM-dd").parse(time)
+        .getTime();
+  }
+
+  /**
+   * Prints the wanted exchanges from a binary chat log, as text or XML.
+   * 
+   * @param args see the class description
+   */
+  public static void main(String[] args) {
+    if (args.length < 1) {
+      System.err.println(USAGE);
+      System.exit(1);
+    }
+    String prefix = "chat";
+    String userid = null;
+    String botid = null;
+    long from = Long.MIN_VALUE;
+    long to = Long.MAX_VALUE;
+    boolean xml = false;
+    try {
+      for (int index = 1; index < args.length; index++) {
+        String option = args[index];
+        if ("-xml".equals(option)) {
+          xml = true;
+        }
+        else if (index + 1 == args.length) {
+          throw new IllegalArgumentException(option);
+        }
+        else if ("-prefix".equals(option)) {
+          prefix = args[++index];
+        }
+        else if ("-user".equals(option)) {
+          userid = args[++index];
+        }
+        else if ("-bot".equals(option)) {
+          botid = args[++index];
+        }
+        else if ("-from".equals(option)) {
+          from = parseTime(args[++index]);
+        }
+        else if ("-to".equals(option)) {
+          to = parseTime(args[++index]);
+        }
+        else {
+          throw new IllegalArgumentException(option);
+        }
+      }
+    }
+    catch (IllegalArgumentException e) {
+      System.err.println(USAGE);
+      System.exit(1);
+    }
+    catch (ParseException e) {
+      System.err.println(String.format("Cannot understand the time \"%s\".", e.getMessage()));
+      System.exit(1);
+    }
+
+    BinaryChatLogReader reader = new BinaryChatLogReader(new File(args[0]), prefix);
+    reader.setUserID(userid);
+    reader.setBotID(botid);
+    reader.setSpan(from, to);
+    try {
+      Writer out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"));
+      Layout layout;
+      if (xml) {
+        layout = new XMLChatLogLayout();
+      }
+      else {
+        SimpleChatLogLayout simple = new SimpleChatLogLayout();
+        simple.setTimestampFormat("yyyy-MM-dd HH:mm:ss");
+        layout = simple;
+      }
+      reader.write(out, layout);
+      out.flush();
+    }
+    catch (IOException e) {
+      System.err.println(String.format("Error reading the binary chat log: %s", e.getMessage()));
+      System.exit(1);
+    }
+  }
+}
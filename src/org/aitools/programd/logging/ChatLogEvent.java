@@ -54,7 +54,20 @@ public class ChatLogEvent extends LoggingEvent {
    * @param out the reply from the bot
    */
   public ChatLogEvent(String bot, String user, String in, String out) {
-    super(LOGGER_FQCN, Logger.getLogger("programd." + bot), Level.INFO, String.format(
+    this(bot, user, in, out, System.currentTimeMillis());
+  }
+
+  /**
+   * Creates a new ChatLogEvent for an exchange that occurred at the given time.
+   * 
+   * @param bot the botid with whom this exchange occurred
+   * @param user the userid with whom this exchange occurred
+   * @param in the input from the user
+   * @param out the reply from the bot
+   * @param time when the exchange occurred (in milliseconds since the epoch)
+   */
+  public ChatLogEvent(String bot, String user, String in, String out, long time) {
+    super(LOGGER_FQCN, Logger.getLogger("programd." + bot), time, Level.INFO, String.format(
         "%s -> %s: \"%s\"; %s -> %s: \"%s\"", user, bot, in, bot, user,
         Text.normalizeString(Characters.removeMarkup(out))), null);
     this.botid = bot;
@@ -0,0 +1,417 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.logging;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.aitools.programd.Core;
+import org.aitools.programd.CoreSettings;
+import org.aitools.programd.util.ManagedProcess;
+import org.aitools.util.db.Entity;
+import org.aitools.util.runtime.DeveloperError;
+import org.apache.log4j.Category;
+import org.apache.log4j.Logger;
+
+/**
+ * <p>
+ * Writes the chat log in the background, so that logging an exchange costs the response almost nothing. Exchanges are
+ * put on a bounded queue (without locking); this process takes them off in batches, turns them into
+ * {@link ChatLogEvent}s for the configured chat log appenders, and (if so configured) writes each batch to the
+ * <code>exchange</code> table of the database with a single multi-row insert.
+ * </p>
+ * <p>
+ * A batch is written as soon as it is full, or when the flush interval has passed. If the queue is full when an
+ * exchange is logged, the exchange is either dropped or the response waits until there is room, according to the
+ * overflow policy. Exchanges queued, written, dropped and lost to errors are counted (see {@link #getSummary()}).
+ * </p>
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class ChatLogWriter implements ManagedProcess {
+
+  /** What to do with an exchange when the queue is full. */
+  public static enum OverflowPolicy {
+    /** Drop the exchange. */
+    DROP,
+
+    /** Wait until there is room. */
+    BLOCK
+  }
+
+  /** How long (in nanoseconds) a response waits before looking again for room in a full queue. */
+  private static final long BLOCK_WAIT = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /** How long (in milliseconds) shutting down waits for the exchanges still queued to be written. */
+  private static final long SHUTDOWN_WAIT = 5000;
+
+  /** The most user (or bot) ids to remember. */
+  private static final int MAX_IDS = 10000;
+
+  /** The Core whose exchanges are logged. */
+  private Core _core;
+
+  /** The exchanges waiting to be written. */
+  private Queue<Exchange> _queue = new ConcurrentLinkedQueue<Exchange>();
+
+  /** The number of exchanges waiting (or about to be put on the queue). */
+  private AtomicInteger _size = new AtomicInteger();
+
+  /** The most exchanges that may wait. */
+  private int _capacity;
+
+  /** The most exchanges written at once. */
+  private int _batchSize;
+
+  /** The longest time (in nanoseconds) an exchange waits when fewer than a batch are waiting. */
+  private long _interval;
+
+  /** What to do when the queue is full. */
+  private OverflowPolicy _policy;
+
+  /** Whether to write exchanges to the database. */
+  private boolean _toDatabase;
+
+  /** The thread that writes the exchanges. */
+  private volatile Thread _thread;
+
+  /** Whether this is (still) running. */
+  private volatile boolean _running = true;
+
+  /** The number of exchanges queued. */
+  private AtomicLong _queued = new AtomicLong();
+
+  /** The number of exchanges written. */
+  private AtomicLong _written = new AtomicLong();
+
+  /** The number of exchanges dropped because the queue was full. */
+  private AtomicLong _dropped = new AtomicLong();
+
+  /** The number of exchanges that could not be written because of errors. */
+  private AtomicLong _failed = new AtomicLong();
+
+  /** The ids of the users in the database, by userid, least recently used first (used only by the writing thread). */
+  private Map<String, Integer> _userIDs = createIDCache();
+
+  /** The ids of the bots in the database, by botid, least recently used first (used only by the writing thread). */
+  private Map<String, Integer> _botIDs = createIDCache();
+
+  /** The logger whose appenders write the chat log. */
+  private Logger _chatLogger = Logger.getLogger("programd");
+
+  /** The general Program D logger. */
+  private Logger _logger = Logger.getLogger("programd");
+
+  /**
+   * An exchange waiting to be written.
+   */
+  private static class Exchange {
+
+    /** When the exchange happened. */
+    protected long time = System.currentTimeMillis();
+
+    /** The botid. */
+    protected String botid;
+
+    /** The userid. */
+    protected String userid;
+
+    /** The input. */
+    protected String input;
+
+    /** The response. */
+    protected String response;
+
+    /**
+     * @param bot
+     * @param user
+     * @param in
+     * @param out
+     */
+    protected Exchange(String bot, String user, String in, String out) {
+      this.botid = bot;
+      this.userid = user;
+      this.input = in;
+      this.response = out;
+    }
+  }
+
+  /**
+   * Creates a new ChatLogWriter for the given Core, reading its settings from there.
+   * 
+   * @param core the Core whose exchanges are logged
+   */
+  public ChatLogWriter(Core core) {
+    this._core = core;
+    CoreSettings settings = core.getSettings();
+    this._capacity = Math.max(settings.getChatLogQueueCapacity(), 1);
+    this._batchSize = Math.max(settings.getChatLogBatchSize(), 1);
+    this._interval = TimeUnit.MILLISECONDS.toNanos(Math.max(settings.getChatLogFlushInterval(), 1));
+    this._policy = "block".equalsIgnoreCase(settings.getChatLogOverflowPolicy()) ? OverflowPolicy.BLOCK
+        : OverflowPolicy.DROP;
+    this._toDatabase = settings.chatLogToDatabase();
+    if (this._toDatabase) {
+      // Connect now, so that the writing thread never has to wait for the Core to set up the connection pool.
+      try {
+        core.getDBConnection().close();
+      }
+      catch (SQLException e) {
+        this._logger.error("Error closing database connection.", e);
+      }
+    }
+  }
+
+  /**
+   * @return a map for remembering ids, which forgets the least recently used once it holds {@link #MAX_IDS}
+   */
+  private static Map<String, Integer> createIDCache() {
+    return new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+        return size() > MAX_IDS;
+      }
+    };
+  }
+
+  /**
+   * Flushes those of the chat log appenders that buffer what they write (such as the {@link BinaryChatLogAppender}),
+   * now that a batch has been written.
+   */
+  private void flushAppenders() {
+    for (Category logger = this._chatLogger; logger != null; logger = logger.getParent()) {
+      Enumeration<?> appenders = logger.getAllAppenders();
+      while (appenders.hasMoreElements()) {
+        Object appender = appenders.nextElement();
+        if (appender instanceof Flushable) {
+          try {
+            ((Flushable) appender).flush();
+          }
+          catch (IOException e) {
+            this._logger.error("Error flushing the chat log.", e);
+          }
+        }
+      }
+      if (!logger.getAdditivity()) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * @return a one-line summary of the counts
+   */
+  @SuppressWarnings("boxing")
+  public String getSummary() {
+    return String.format(
+        "Chat log: %,d exchanges queued, %,d written, %,d dropped, %,d failed, %,d waiting (%s when full).",
+        this._queued.get(), this._written.get(), this._dropped.get(), this._failed.get(), this._size.get(),
+        this._policy.toString().toLowerCase());
+  }
+
+  /**
+   * @return whether this is running
+   */
+  public boolean isRunning() {
+    return this._running;
+  }
+
+  /**
+   * Puts an exchange on the queue to be written. If the queue is full, the exchange is dropped, or this waits until
+   * there is room, according to the overflow policy.
+   * 
+   * @param input the input
+   * @param response the response
+   * @param userid the userid
+   * @param botid the botid
+   * @return whether the exchange was queued
+   */
+  public boolean log(String input, String response, String userid, String botid) {
+    Exchange exchange = new Exchange(botid, userid, input, response);
+    int size;
+    while (true) {
+      size = this._size.get();
+      if (size < this._capacity) {
+        if (this._size.compareAndSet(size, size + 1)) {
+          break;
+        }
+      }
+      else if (this._policy == OverflowPolicy.DROP || !this._running) {
+        this._dropped.incrementAndGet();
+        return false;
+      }
+      else {
+        LockSupport.unpark(this._thread);
+        LockSupport.parkNanos(BLOCK_WAIT);
+      }
+    }
+    this._queue.add(exchange);
+    this._queued.incrementAndGet();
+    if (size + 1 >= this._batchSize) {
+      LockSupport.unpark(this._thread);
+    }
+    return true;
+  }
+
+  /**
+   * @see java.lang.Runnable#run()
+   */
+  @Override
+  public void run() {
+    this._thread = Thread.currentThread();
+    long deadline = System.nanoTime() + this._interval;
+    List<Exchange> batch = new ArrayList<Exchange>(this._batchSize);
+    while (this._running || !this._queue.isEmpty()) {
+      if (this._running && this._size.get() < this._batchSize && System.nanoTime() < deadline) {
+        LockSupport.parkNanos(this, deadline - System.nanoTime());
+        continue;
+      }
+      Exchange exchange;
+      while (batch.size() < this._batchSize && (exchange = this._queue.poll()) != null) {
+        batch.add(exchange);
+      }
+      if (!batch.isEmpty()) {
+        this._size.addAndGet(-batch.size());
+        this.write(batch);
+        batch.clear();
+      }
+      deadline = System.nanoTime() + this._interval;
+    }
+  }
+
+  /**
+   * Stops this, once the exchanges still queued have been written (or a few seconds have passed).
+   * 
+   * @see org.aitools.programd.util.ManagedProcess#shutdown()
+   */
+  @Override
+  public void shutdown() {
+    this._running = false;
+    Thread thread = this._thread;
+    if (thread != null) {
+      LockSupport.unpark(thread);
+      try {
+        thread.join(SHUTDOWN_WAIT);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    this._logger.info(this.getSummary());
+  }
+
+  /**
+   * Writes a batch of exchanges to the chat log appenders, and to the database if so configured.
+   * 
+   * @param batch the exchanges
+   */
+  private void write(List<Exchange> batch) {
+    int failed = 0;
+    for (Exchange exchange : batch) {
+      try {
+        this._chatLogger.callAppenders(new ChatLogEvent(exchange.botid, exchange.userid, exchange.input,
+            exchange.response, exchange.time));
+      }
+      catch (Exception e) {
+        this._logger.error("Error writing an exchange to the chat log.", e);
+        failed++;
+      }
+    }
+    this.flushAppenders();
+    if (this._toDatabase) {
+      try {
+        this.writeToDatabase(batch);
+      }
+      catch (RuntimeException e) {
+        this._logger.error(String.format("Error writing %d exchanges to the database.", batch.size()), e);
+        failed = batch.size();
+      }
+    }
+    this._written.addAndGet(batch.size() - failed);
+    this._failed.addAndGet(failed);
+  }
+
+  /**
+   * Writes a batch of exchanges to the database with a single statement.
+   * 
+   * @param batch the exchanges
+   */
+  @SuppressWarnings("boxing")
+  private void writeToDatabase(List<Exchange> batch) {
+    Connection connection = this._core.getDBConnection();
+    try {
+      StringBuilder insert = new StringBuilder(
+          "INSERT INTO exchange (timestamp, user_id, bot_id, input, response) VALUES ");
+      for (int index = 0; index < batch.size(); index++) {
+        insert.append(index > 0 ? ", (?, ?, ?, ?, ?)" : "(?, ?, ?, ?, ?)");
+      }
+      PreparedStatement statement = connection.prepareStatement(insert.toString());
+      int parameter = 1;
+      for (Exchange exchange : batch) {
+        statement.setTimestamp(parameter++, new Timestamp(exchange.time));
+        statement.setInt(parameter++, this.idFor(this._userIDs, connection, "user", "name", exchange.userid));
+        statement.setInt(parameter++, this.idFor(this._botIDs, connection, "bot", "label", exchange.botid));
+        statement.setString(parameter++, exchange.input);
+        statement.setString(parameter++, exchange.response);
+      }
+      statement.executeUpdate();
+      statement.close();
+    }
+    catch (SQLException e) {
+      throw new DeveloperError("SQL error trying to write exchanges to the database.", e);
+    }
+    finally {
+      try {
+        connection.close();
+      }
+      catch (SQLException e) {
+        this._logger.error("Error closing database connection.", e);
+      }
+    }
+  }
+
+  /**
+   * Returns the id of the entity in the given table with the given value for the given field, creating the entity if
+   * necessary, and remembering the id in the given map.
+   * 
+   * @param ids the remembered ids
+   * @param connection the connection to use
+   * @param table the table
+   * @param field the field
+   * @param value the value
+   * @return the id
+   */
+  @SuppressWarnings("boxing")
+  private int idFor(Map<String, Integer> ids, Connection connection, String table, String field, String value) {
+    Integer id = ids.get(value);
+    if (id == null) {
+      id = Entity.getOrCreate(connection, table, field, value);
+      ids.put(value, id);
+    }
+    return id;
+  }
+}
@@ -0,0 +1,317 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.logging;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.aitools.programd.Core;
+import org.aitools.programd.CoreSettings;
+import org.aitools.programd.util.ManagedProcess;
+import org.aitools.util.resource.Filesystem;
+import org.apache.log4j.Logger;
+import org.apache.log4j.helpers.OptionConverter;
+
+/**
+ * <p>
+ * Writes gossip (captured by the <code>gossip</code> element) to the gossip file in the background, so that a response
+ * never waits for the disk. Entries are put on a bounded queue (without locking), and are dropped if it is full; this
+ * process takes them all off at each flush interval (or sooner, when the queue is half full) and appends them to the
+ * file with a single write. The file is forced to disk at the sync interval.
+ * </p>
+ * <p>
+ * When the file reaches its maximum size it is rotated: <code>gossip.txt</code> becomes <code>gossip.txt.1</code>,
+ * <code>gossip.txt.1</code> becomes <code>gossip.txt.2</code>, and so on, up to the number of backups kept.
+ * </p>
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class GossipWriter implements ManagedProcess {
+
+  /** How long (in milliseconds) shutting down waits for the entries still queued to be written. */
+  private static final long SHUTDOWN_WAIT = 5000;
+
+  /** The default size at which the file is rotated. */
+  private static final long DEFAULT_MAX_FILE_SIZE = 10 * 1024 * 1024;
+
+  /** The encoding of the gossip file. */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** The location of the gossip file. */
+  private URL _url;
+
+  /** The entries waiting to be written. */
+  private Queue<String> _queue = new ConcurrentLinkedQueue<String>();
+
+  /** The number of entries waiting (or about to be put on the queue). */
+  private AtomicInteger _size = new AtomicInteger();
+
+  /** The most entries that may wait. */
+  private int _capacity;
+
+  /** The longest time (in nanoseconds) an entry waits. */
+  private long _interval;
+
+  /** How often (in nanoseconds) the file is forced to disk (0 or less for never). */
+  private long _syncInterval;
+
+  /** The size at which the file is rotated. */
+  private long _maxFileSize;
+
+  /** How many rotated files are kept. */
+  private int _maxBackups;
+
+  /** The gossip file (open only while this is running, and only once there has been some gossip). */
+  private FileChannel _file;
+
+  /** The size of the gossip file. */
+  private long _fileSize;
+
+  /** When the file was last forced to disk. */
+  private long _lastSync;
+
+  /** Whether anything has been written since the file was last forced to disk. */
+  private boolean _unsynced;
+
+  /** The thread that writes the entries. */
+  private volatile Thread _thread;
+
+  /** Whether this is (still) running. */
+  private volatile boolean _running = true;
+
+  /** The number of entries written. */
+  private AtomicLong _written = new AtomicLong();
+
+  /** The number of entries dropped because the queue was full. */
+  private AtomicLong _dropped = new AtomicLong();
+
+  /** The number of entries that could not be written because of errors. */
+  private AtomicLong _failed = new AtomicLong();
+
+  /** The logger. */
+  private Logger _logger = Logger.getLogger("programd");
+
+  /**
+   * Creates a new GossipWriter for the given Core, reading its settings from there.
+   * 
+   * @param core the Core whose gossip is written
+   */
+  public GossipWriter(Core core) {
+    CoreSettings settings = core.getSettings();
+    this._url = settings.getGossipURL();
+    this._capacity = Math.max(settings.getGossipQueueCapacity(), 1);
+    this._interval = TimeUnit.MILLISECONDS.toNanos(Math.max(settings.getGossipFlushInterval(), 1));
+    this._syncInterval = TimeUnit.MILLISECONDS.toNanos(settings.getGossipSyncInterval());
+    this._maxFileSize = OptionConverter.toFileSize(settings.getGossipMaxFileSize(), DEFAULT_MAX_FILE_SIZE);
+    this._maxBackups = settings.getGossipMaxBackups();
+  }
+
+  /**
+   * Closes the gossip file (forcing it to disk first).
+   */
+  private void close() {
+    if (this._file == null) {
+      return;
+    }
+    try {
+      this._file.force(false);
+      this._file.close();
+    }
+    catch (IOException e) {
+      this._logger.error("Error closing the gossip file.", e);
+    }
+    this._file = null;
+    this._unsynced = false;
+  }
+
+  /**
+   * @return a one-line summary of the counts
+   */
+  @SuppressWarnings("boxing")
+  public String getSummary() {
+    return String.format("Gossip: %,d entries written, %,d dropped, %,d failed, %,d waiting.", this._written.get(),
+        this._dropped.get(), this._failed.get(), this._size.get());
+  }
+
+  /**
+   * Puts an entry on the queue to be written, unless the queue is full.
+   * 
+   * @param gossip the gossip
+   * @return whether the entry was queued
+   */
+  public boolean log(String gossip) {
+    int size;
+    do {
+      size = this._size.get();
+      if (size >= this._capacity || !this._running) {
+        this._dropped.incrementAndGet();
+        return false;
+      }
+    } while (!this._size.compareAndSet(size, size + 1));
+    this._queue.add(String.format("<li>%s</li>%n", gossip));
+    if (size + 1 == this._capacity / 2) {
+      LockSupport.unpark(this._thread);
+    }
+    return true;
+  }
+
+  /**
+   * Opens the gossip file for appending, creating it if necessary.
+   * 
+   * @throws IOException
+   */
+  private void open() throws IOException {
+    if (this._url == null) {
+      throw new IOException("No gossip file has been configured.");
+    }
+    File file = Filesystem.checkOrCreate(this._url.getPath(), "gossip file");
+    this._file = new FileOutputStream(file, true).getChannel();
+    this._fileSize = this._file.size();
+    this._lastSync = System.nanoTime();
+  }
+
+  /**
+   * Closes the gossip file, renames it and its backups, and opens a new one.
+   * 
+   * @throws IOException
+   */
+  private void rotate() throws IOException {
+    this.close();
+    File file = Filesystem.getBestFile(this._url.getPath());
+    if (this._maxBackups > 0) {
+      new File(file.getPath() + '.' + this._maxBackups).delete();
+      for (int backup = this._maxBackups - 1; backup > 0; backup--) {
+        new File(file.getPath() + '.' + backup).renameTo(new File(file.getPath() + '.' + (backup + 1)));
+      }
+      if (!file.renameTo(new File(file.getPath() + ".1"))) {
+        this._logger.warn(String.format("Could not rotate the gossip file \"%s\".", file.getAbsolutePath()));
+      }
+    }
+    else {
+      file.delete();
+    }
+    this.open();
+  }
+
+  /**
+   * @see java.lang.Runnable#run()
+   */
+  @Override
+  public void run() {
+    this._thread = Thread.currentThread();
+    StringBuilder batch = new StringBuilder();
+    while (this._running || !this._queue.isEmpty()) {
+      if (this._running) {
+        LockSupport.parkNanos(this, this._interval);
+      }
+      // Nothing that goes wrong with one batch may stop the writing of the next.
+      try {
+        int count = 0;
+        String entry;
+        while ((entry = this._queue.poll()) != null) {
+          batch.append(entry);
+          count++;
+        }
+        if (count > 0) {
+          this._size.addAndGet(-count);
+          this.write(batch, count);
+        }
+        if (this._unsynced && this._syncInterval > 0 && System.nanoTime() - this._lastSync >= this._syncInterval) {
+          this.sync();
+        }
+      }
+      catch (RuntimeException e) {
+        this._logger.error("Error in the gossip writer.", e);
+      }
+      finally {
+        batch.setLength(0);
+      }
+    }
+    this.close();
+  }
+
+  /**
+   * Stops this, once the entries still queued have been written (or a few seconds have passed).
+   * 
+   * @see org.aitools.programd.util.ManagedProcess#shutdown()
+   */
+  @Override
+  public void shutdown() {
+    this._running = false;
+    Thread thread = this._thread;
+    if (thread != null) {
+      LockSupport.unpark(thread);
+      try {
+        thread.join(SHUTDOWN_WAIT);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    this._logger.info(this.getSummary());
+  }
+
+  /**
+   * Forces the gossip file to disk.
+   */
+  private void sync() {
+    if (this._file == null) {
+      return;
+    }
+    try {
+      this._file.force(false);
+    }
+    catch (IOException e) {
+      this._logger.error("Error forcing the gossip file to disk.", e);
+    }
+    this._lastSync = System.nanoTime();
+    this._unsynced = false;
+  }
+
+  /**
+   * Appends a batch of entries to the gossip file, rotating it first if it has reached its maximum size.
+   * 
+   * @param batch the entries
+   * @param count the number of entries
+   */
+  private void write(CharSequence batch, int count) {
+    try {
+      if (this._file == null) {
+        this.open();
+      }
+      else if (this._fileSize >= this._maxFileSize) {
+        this.rotate();
+      }
+      ByteBuffer bytes = UTF8.encode(batch.toString());
+      this._fileSize += bytes.remaining();
+      while (bytes.hasRemaining()) {
+        this._file.write(bytes);
+      }
+      this._unsynced = true;
+      this._written.addAndGet(count);
+    }
+    catch (Exception e) {
+      this._logger.error(String.format("Error writing %d gossip entries.", Integer.valueOf(count)), e);
+      this._failed.addAndGet(count);
+      this.close();
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.parser;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the results of <code>srai</code> reductions for the duration of a single response, so that the same
+ * reduction reached several times (as happens a lot with synonym-collapsing categories) is matched and processed only
+ * once. A result is only remembered if every template processed in producing it was pure (see
+ * {@link TemplateAnalyzer}); anything that has side effects or reads mutable state must be processed every time.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class ReductionCache {
+
+  /** The remembered results, keyed by input, that and topic. */
+  private Map<String, String> _results = new HashMap<String, String>();
+
+  /** The number of impure templates processed so far in this response. */
+  private int _impureCount = 0;
+
+  /** The number of reductions answered from the cache. */
+  private int _hits = 0;
+
+  private static String key(String input, String that, String topic) {
+    return input + '\u0000' + that + '\u0000' + topic;
+  }
+
+  /**
+   * Returns the remembered result of reducing the given input with the given that and topic, or <code>null</code> if
+   * there is none.
+   * 
+   * @param input the reduced input
+   * @param that the that value in effect
+   * @param topic the topic value in effect
+   * @return the remembered result, or <code>null</code>
+   */
+  public String get(String input, String that, String topic) {
+    String result = this._results.get(key(input, that, topic));
+    if (result != null) {
+      this._hits++;
+    }
+    return result;
+  }
+
+  /**
+   * @return the number of reductions answered from the cache
+   */
+  public int getHitCount() {
+    return this._hits;
+  }
+
+  /**
+   * Returns the number of impure templates processed so far. A caller can compare the values returned before and after
+   * processing a reduction to find out whether the reduction's result may be remembered.
+   * 
+   * @return the number of impure templates processed so far
+   */
+  public int getImpureCount() {
+    return this._impureCount;
+  }
+
+  /**
+   * Notes that an impure template has been processed (or that something else has happened that makes the current
+   * reductions unsafe to remember).
+   */
+  public void noteImpure() {
+    this._impureCount++;
+  }
+
+  /**
+   * Remembers the result of reducing the given input with the given that and topic.
+   * 
+   * @param input the reduced input
+   * @param that the that value in effect
+   * @param topic the topic value in effect
+   * @param result the result of the reduction
+   */
+  public void put(String input, String that, String topic, String result) {
+    this._results.put(key(input, that, topic), result);
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.parser;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.aitools.programd.processor.aiml.AIMLProcessorRegistry;
+import org.aitools.programd.processor.aiml.BotProcessor;
+import org.aitools.programd.processor.aiml.FormalProcessor;
+import org.aitools.programd.processor.aiml.GenderProcessor;
+import org.aitools.programd.processor.aiml.IDProcessor;
+import org.aitools.programd.processor.aiml.LearnProcessor;
+import org.aitools.programd.processor.aiml.LowerCaseProcessor;
+import org.aitools.programd.processor.aiml.Person2Processor;
+import org.aitools.programd.processor.aiml.PersonProcessor;
+import org.aitools.programd.processor.aiml.SRAIProcessor;
+import org.aitools.programd.processor.aiml.SRProcessor;
+import org.aitools.programd.processor.aiml.SentenceProcessor;
+import org.aitools.programd.processor.aiml.SizeProcessor;
+import org.aitools.programd.processor.aiml.StarProcessor;
+import org.aitools.programd.processor.aiml.TemplateProcessor;
+import org.aitools.programd.processor.aiml.ThatStarProcessor;
+import org.aitools.programd.processor.aiml.TopicStarProcessor;
+import org.aitools.programd.processor.aiml.UpperCaseProcessor;
+import org.aitools.programd.processor.aiml.VersionProcessor;
+import org.jdom.CDATA;
+import org.jdom.Content;
+import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.jdom.Text;
+import org.jdom.input.SAXBuilder;
+
+/**
+ * <p>
+ * Inspects templates for properties that can be known before they are ever processed. At present this means
+ * determining whether a template is &quot;pure&quot;: whether the result of processing it depends only on the
+ * input/that/topic path that matched it (and on bot properties), with no side effects and no reads of mutable
+ * predicates. The results of <code>srai</code> reductions that pass only through pure templates may safely be
+ * remembered for the rest of a response.
+ * </p>
+ * <p>
+ * It can also tell whether a template is nothing but a static reduction (an <code>srai</code> of literal text), and
+ * whether a template depends on the particular match that reached it; the graph uses both to collapse chains of
+ * reductions when it is loaded.
+ * </p>
+ * <p>
+ * The analysis of each distinct template is done only once, the first time it is asked for (so long as it has not
+ * since been forgotten to make room for others).
+ * </p>
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class TemplateAnalyzer {
+
+  /** The AIML elements whose processing has no side effects and reads nothing but the match and bot properties. */
+  private static final Set<String> PURE_ELEMENTS = new HashSet<String>(Arrays.asList(BotProcessor.label,
+      FormalProcessor.label, GenderProcessor.label, IDProcessor.label, LowerCaseProcessor.label,
+      Person2Processor.label, PersonProcessor.label, SentenceProcessor.label, SizeProcessor.label,
+      SRAIProcessor.label, SRProcessor.label, StarProcessor.label, TemplateProcessor.label, ThatStarProcessor.label,
+      TopicStarProcessor.label, UpperCaseProcessor.label, VersionProcessor.label));
+
+  /** The AIML elements whose results depend on the particular match (its wildcard contents or its source file). */
+  private static final Set<String> MATCH_CONTEXT_ELEMENTS = new HashSet<String>(Arrays.asList(LearnProcessor.label,
+      SRProcessor.label, StarProcessor.label, ThatStarProcessor.label, TopicStarProcessor.label));
+
+  /** The default number of templates whose analyses are remembered. */
+  private static final int DEFAULT_MAX_TEMPLATES = 10000;
+
+  /**
+   * Purity results, keyed by the text of the template. (Not weakly keyed: a database-backed graph returns a new string
+   * each time a template is matched, so a weak entry would be lost almost at once.) The least recently used results are
+   * forgotten once there are more than the maximum.
+   */
+  private Map<String, Boolean> _purity;
+
+  /**
+   * Creates a new TemplateAnalyzer that remembers the analyses of a default number of templates.
+   */
+  public TemplateAnalyzer() {
+    this(DEFAULT_MAX_TEMPLATES);
+  }
+
+  /**
+   * Creates a new TemplateAnalyzer that remembers the analyses of at most the given number of templates.
+   * 
+   * @param maxTemplates the most templates whose analyses are remembered
+   */
+  public TemplateAnalyzer(final int maxTemplates) {
+    this._purity = Collections.synchronizedMap(new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+        return size() > maxTemplates;
+      }
+    });
+  }
+
+  /**
+   * Indicates whether the given template is pure (see the class description). A template that cannot be parsed is
+   * not considered pure.
+   * 
+   * @param template the template to check
+   * @return whether the given template is pure
+   */
+  public boolean isPure(String template) {
+    Boolean pure = this._purity.get(template);
+    if (pure == null) {
+      pure = Boolean.valueOf(analyzePurity(template));
+      this._purity.put(template, pure);
+    }
+    return pure.booleanValue();
+  }
+
+  /**
+   * If the given template consists of nothing but a single <code>srai</code> element containing only literal text, 
+   * returns that text; otherwise returns <code>null</code>. (Whitespace around the <code>srai</code> makes the
+   * template ineligible, since it would appear in the response.)
+   * 
+   * @param template the template to check
+   * @return the text of the static reduction, or <code>null</code>
+   */
+  @SuppressWarnings("unchecked")
+  public static String getReductionTarget(String template) {
+    Element root = parse(template);
+    if (root == null) {
+      return null;
+    }
+    List<Content> content = root.getContent();
+    if (content.size() != 1 || !(content.get(0) instanceof Element)) {
+      return null;
+    }
+    Element srai = (Element) content.get(0);
+    if (!AIMLProcessorRegistry.XMLNS.equals(srai.getNamespaceURI()) || !SRAIProcessor.label.equals(srai.getName())) {
+      return null;
+    }
+    StringBuilder target = new StringBuilder();
+    for (Content child : (List<Content>) srai.getContent()) {
+      if (!(child instanceof Text) || child instanceof CDATA) {
+        return null;
+      }
+      target.append(((Text) child).getText());
+    }
+    return target.toString();
+  }
+
+  /**
+   * Indicates whether the result of processing the given template depends on the particular match that reached it
+   * (wildcard contents, or the file it was loaded from). A template that cannot be parsed is assumed to depend on it.
+   * 
+   * @param template the template to check
+   * @return whether the template depends on its match
+   */
+  public static boolean usesMatchContext(String template) {
+    Element root = parse(template);
+    return root == null || usesMatchContext(root);
+  }
+
+  /**
+   * @param element the element to check
+   * @return whether the given element or any of its descendants depends on the match
+   */
+  @SuppressWarnings("unchecked")
+  private static boolean usesMatchContext(Element element) {
+    if (AIMLProcessorRegistry.XMLNS.equals(element.getNamespaceURI())
+        && MATCH_CONTEXT_ELEMENTS.contains(element.getName())) {
+      return true;
+    }
+    for (Content child : (List<Content>) element.getContent()) {
+      if (child instanceof Element && usesMatchContext((Element) child)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Parses the given template and checks whether it is pure.
+   * 
+   * @param template the template to analyze
+   * @return whether the template is pure
+   */
+  private static boolean analyzePurity(String template) {
+    Element root = parse(template);
+    return root != null && isPure(root);
+  }
+
+  /**
+   * @param template the template to parse
+   * @return the root element of the template, or <code>null</code> if it cannot be parsed
+   */
+  private static Element parse(String template) {
+    try {
+      return new SAXBuilder().build(new StringReader(template)).getRootElement();
+    }
+    catch (JDOMException e) {
+      return null;
+    }
+    catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Checks whether the given element and all of its descendants are pure. Elements from namespaces other than AIML are
+   * simply rendered, so they are pure if their content is.
+   * 
+   * @param element the element to check
+   * @return whether the given element is pure
+   */
+  @SuppressWarnings("unchecked")
+  private static boolean isPure(Element element) {
+    String namespaceURI = element.getNamespaceURI();
+    if (AIMLProcessorRegistry.XMLNS.equals(namespaceURI) && !PURE_ELEMENTS.contains(element.getName())) {
+      return false;
+    }
+    for (Content child : (List<Content>) element.getContent()) {
+      if (child instanceof Element && !isPure((Element) child)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
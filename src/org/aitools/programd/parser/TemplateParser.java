@@ -23,14 +23,26 @@ import org.jdom.Element;
  */
 public class TemplateParser extends GenericParser<AIMLProcessor> {
 
-  /** The inputs that matched the <code>pattern</code> associated with this template (helps to avoid endless loops). */
-  private ArrayList<String> _inputs = new ArrayList<String>();
+  /**
+   * The inputs that matched the <code>pattern</code> associated with this template (helps to avoid endless loops).
+   * Shared with any parsers created for <code>srai</code> reductions.
+   */
+  private ArrayList<String> _inputs;
+
+  /**
+   * The thats that matched the <code>pattern</code> associated with this template (helps to avoid endless loops).
+   * Shared with any parsers created for <code>srai</code> reductions.
+   */
+  private ArrayList<String> _thats;
 
-  /** The thats that matched the <code>pattern</code> associated with this template (helps to avoid endless loops). */
-  private ArrayList<String> _thats = new ArrayList<String>();
+  /**
+   * The topics that matched the <code>pattern</code> associated with this template (helps to avoid endless loops).
+   * Shared with any parsers created for <code>srai</code> reductions.
+   */
+  private ArrayList<String> _topics;
 
-  /** The topics that matched the <code>pattern</code> associated with this template (helps to avoid endless loops). */
-  private ArrayList<String> _topics = new ArrayList<String>();
+  /** The results of <code>srai</code> reductions remembered for the current response. */
+  private ReductionCache _reductions;
 
   /** The match(es) responsible for this template parser. */
   private ArrayList<Match> _matches = new ArrayList<Match>();
@@ -59,13 +71,31 @@ public class TemplateParser extends GenericParser<AIMLProcessor> {
   public TemplateParser(List<String> inputs, List<String> thats, List<String> topics, String userid, String botid,
       Core core) {
     super(core.getAIMLProcessorRegistry(), core);
-    this._inputs.addAll(inputs);
-    this._thats.addAll(thats);
-    this._topics.addAll(topics);
+    this._inputs = new ArrayList<String>(inputs);
+    this._thats = new ArrayList<String>(thats);
+    this._topics = new ArrayList<String>(topics);
+    this._reductions = new ReductionCache();
     this._userid = userid;
     this._botid = botid;
   }
 
+  /**
+   * Creates a parser for processing a <code>srai</code> reduction on behalf of the given parent. The new parser shares
+   * the parent's input/that/topic stacks (rather than copying them) and its remembered reductions; the caller is
+   * responsible for {@link #unwindTo unwinding} the stacks when the reduction is finished.
+   * 
+   * @param parent the parser on whose behalf the reduction is being processed
+   */
+  public TemplateParser(TemplateParser parent) {
+    super(parent.getCore().getAIMLProcessorRegistry(), parent.getCore());
+    this._inputs = parent._inputs;
+    this._thats = parent._thats;
+    this._topics = parent._topics;
+    this._reductions = parent._reductions;
+    this._userid = parent._userid;
+    this._botid = parent._botid;
+  }
+
   /**
    * @param userid
    * @param botid
@@ -84,10 +114,28 @@ public class TemplateParser extends GenericParser<AIMLProcessor> {
    * @param core the Core in use
    */
   public TemplateParser(String input, String that, String topic, String userid, String botid, Core core) {
+    this(input, that, topic, userid, botid, new ReductionCache(), core);
+  }
+
+  /**
+   * @param input
+   * @param that
+   * @param topic
+   * @param userid the userid for whom the template will be parsed
+   * @param botid the botid for whom the template will be parsed
+   * @param reductions the reductions remembered so far in the current response
+   * @param core the Core in use
+   */
+  public TemplateParser(String input, String that, String topic, String userid, String botid,
+      ReductionCache reductions, Core core) {
     super(core.getAIMLProcessorRegistry(), core);
+    this._inputs = new ArrayList<String>();
+    this._thats = new ArrayList<String>();
+    this._topics = new ArrayList<String>();
     this._inputs.add(input);
     this._thats.add(that);
     this._topics.add(topic);
+    this._reductions = reductions;
     this._userid = userid;
     this._botid = botid;
   }
@@ -151,6 +199,20 @@ public class TemplateParser extends GenericParser<AIMLProcessor> {
     return this._matches.get(this._matches.size() - 1);
   }
 
+  /**
+   * @return the reductions remembered so far in the current response
+   */
+  public ReductionCache getReductionCache() {
+    return this._reductions;
+  }
+
+  /**
+   * @return the current depth of the input/that/topic stacks
+   */
+  public int getStackDepth() {
+    return this._inputs.size();
+  }
+
   /**
    * Returns the that that matched the <code>that</code> associated with this template.
    * 
@@ -176,6 +238,23 @@ public class TemplateParser extends GenericParser<AIMLProcessor> {
     return this._userid;
   }
 
+  /**
+   * Pops entries off the input/that/topic stacks until they are no deeper than the given depth.
+   * 
+   * @param depth the depth to which to unwind the stacks
+   */
+  public void unwindTo(int depth) {
+    while (this._inputs.size() > depth) {
+      this._inputs.remove(this._inputs.size() - 1);
+    }
+    while (this._thats.size() > depth) {
+      this._thats.remove(this._thats.size() - 1);
+    }
+    while (this._topics.size() > depth) {
+      this._topics.remove(this._topics.size() - 1);
+    }
+  }
+
   /**
    * Processes the AIML within and including a given AIML element.
    * 
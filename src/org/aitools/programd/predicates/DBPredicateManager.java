@@ -13,28 +13,73 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.aitools.programd.Core;
 import org.aitools.util.db.Entity;
+import org.aitools.util.db.SQLDialect;
 import org.aitools.util.runtime.DeveloperError;
 
 /**
+ * <p>
  * A database-oriented {@link PredicateManager} . Uses a database for storage and retrieval of predicates.
+ * </p>
+ * <p>
+ * Only predicates that have changed are written, using multi-row upserts of up to a configurable number of rows each.
+ * The ids of bots and users are remembered, so that they need not be looked up every time.
+ * </p>
  * 
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
  */
 public class DBPredicateManager extends PredicateManager {
 
   private static final String LOAD_PREDICATE_SELECT =
-      "SELECT predicate.value FROM predicate " +
+      "SELECT predicate.%2$s FROM predicate " +
           "INNER JOIN bot ON predicate.bot_id = bot.id " +
-          "INNER JOIN user ON predicate.user_id = user.id " + 
-      "WHERE bot.id = ? AND user.name = ? AND predicate.name = ?";
+          "INNER JOIN %1$s ON predicate.user_id = %1$s.id " + 
+      "WHERE bot.label = ? AND %1$s.name = ? AND predicate.name = ?";
 
-  private static final String SET_PREDICATE_INSERT =
-      "INSERT INTO predicate (name, value, user_id, bot_id) " +
-          "VALUES (?, ?, ?, ?) ON DUPLICATE KEY UPDATE value = VALUES(value)";
+  private static final String LOAD_ALL_PREDICATES_SELECT =
+      "SELECT predicate.name, predicate.%2$s FROM predicate " +
+          "INNER JOIN bot ON predicate.bot_id = bot.id " +
+          "INNER JOIN %1$s ON predicate.user_id = %1$s.id " + 
+      "WHERE bot.label = ? AND %1$s.name = ?";
+
+  /** The columns of a predicate row, in the order in which their values are given. */
+  private static final List<String> PREDICATE_COLUMNS = Arrays.asList("name", "value", "user_id", "bot_id");
+
+  /** The columns that identify a predicate row. */
+  private static final List<String> PREDICATE_KEYS = Arrays.asList("user_id", "bot_id", "name");
+
+  /** The most user ids to remember. */
+  private static final int MAX_USER_IDS = 10000;
+
+  /** The most rows to write with a single statement (0 or less means no limit). */
+  private int _batchSize;
+
+  /** The dialect of the database (found once, when this is initialized). */
+  private SQLDialect _dialect;
+
+  /** The ids of bots, by botid. */
+  private Map<String, Integer> _botIds = Collections.synchronizedMap(new HashMap<String, Integer>());
+
+  /** The ids of users, by userid, least recently used first. */
+  private Map<String, Integer> _userIds = Collections.synchronizedMap(new LinkedHashMap<String, Integer>(16, 0.75f,
+      true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+      return this.size() > MAX_USER_IDS;
+    }
+  });
 
   /**
    * Creates a new DBMultiplexor with the given Core as owner.
@@ -43,72 +88,136 @@ public class DBPredicateManager extends PredicateManager {
    */
   public DBPredicateManager(Core core) {
     super(core);
+    this._batchSize = core.getSettings().getPredicateDbUpsertBatchSize();
   }
 
   /**
-   * @see org.aitools.programd.predicates.PredicateManager#dumpPredicates()
+   * Composes an upsert statement for the given number of rows.
    * 
-   *      TODO: get userid first
+   * @param dialect the dialect of the database
+   * @param rows the number of rows
+   * @return the statement
+   */
+  private static String composeInsert(SQLDialect dialect, int rows) {
+    return dialect.upsert("predicate", PREDICATE_COLUMNS, PREDICATE_KEYS, rows);
+  }
+
+  /**
+   * @param select one of the select statements, with places for the names of the user table and the value column
+   * @param dialect the dialect of the database
+   * @return the select statement for the given dialect
+   */
+  private static String composeSelect(String select, SQLDialect dialect) {
+    return String.format(select, dialect.identifier("user"), dialect.identifier("value"));
+  }
+
+  /**
+   * Returns the id of the entity in the given table with the given value for the given field, creating the entity if
+   * necessary, and remembering the id in the given map.
+   * 
+   * @param ids the remembered ids
+   * @param connection the connection to use
+   * @param table the table
+   * @param field the field
+   * @param value the value
+   * @return the id
    */
   @SuppressWarnings("boxing")
-  @Override
-  public void dumpPredicates() {
-    Connection connection = this._core.getDBConnection();
-    PreparedStatement insert;
+  private static int idFor(Map<String, Integer> ids, Connection connection, String table, String field, String value) {
+    Integer id = ids.get(value);
+    if (id == null) {
+      id = Entity.getOrCreate(connection, table, field, value);
+      ids.put(value, id);
+    }
+    return id;
+  }
+
+  /**
+   * Closes whichever of the given result set, statement and connection are not <code>null</code>, in that order. An
+   * error closing one is logged, and does not keep the others open.
+   * 
+   * @param records the result set (may be <code>null</code>)
+   * @param statement the statement (may be <code>null</code>)
+   * @param connection the connection (may be <code>null</code>)
+   */
+  private void close(ResultSet records, Statement statement, Connection connection) {
     try {
-      insert = connection.prepareStatement(SET_PREDICATE_INSERT);
-      insert.clearBatch();
-      for (String bot : this._bots.keySet()) {
-        Map<String, PredicateMap> predicateCache = this._bots.get(bot).getPredicateCache();
-        int bot_id = Entity.getOrCreate(connection, "bot", "label", bot);
-        for (String user : predicateCache.keySet()) {
-          PredicateMap predicateMap = predicateCache.get(user);
-          int user_id = Entity.getOrCreate(connection, "user", "name", user);
-          for (String name : predicateMap.keySet()) {
-            PredicateValue value = predicateMap.get(name);
-            insert.clearParameters();
-            insert.setInt(3, user_id);
-            insert.setInt(4, bot_id);
-            if (value.size() == 1) {
-              insert.setString(1, name);
-              insert.setString(2, value.getFirstValue());
-              insert.addBatch();
-            }
-            else {
-              for (int index = 1; index <= value.size(); index++) {
-                insert.setString(1, String.format("%s.%d", name, index));
-                insert.setString(2, value.get(index));
-                insert.addBatch();
-              }
-            }
-          }
-          predicateMap.clear();
-        }
+      if (records != null) {
+        records.close();
       }
-      insert.executeBatch();
-      connection.close();
     }
     catch (SQLException e) {
-      throw new DeveloperError("SQL error dumping predicates.", e);
+      this._logger.warn("Error closing result set.", e);
+    }
+    try {
+      if (statement != null) {
+        statement.close();
+      }
+    }
+    catch (SQLException e) {
+      this._logger.warn("Error closing statement.", e);
+    }
+    try {
+      if (connection != null) {
+        connection.close();
+      }
+    }
+    catch (SQLException e) {
+      this._logger.warn("Error closing database connection.", e);
     }
   }
 
   /**
-   * Prepares the {@link PreparedStatement}s that will be pooled and used for operations.
+   * Finds out the dialect of the database, and prepares the {@link PreparedStatement}s that will be pooled and used for
+   * operations.
    */
   @Override
   public void initialize() {
     Connection connection = this._core.getDBConnection();
-
-    // These will be pooled by the connection manager.
     try {
-      connection.prepareStatement(LOAD_PREDICATE_SELECT);
-      connection.prepareStatement(SET_PREDICATE_INSERT);
-      connection.close();
+      this._dialect = SQLDialect.of(connection);
+      // Closing these puts them in the connection manager's pool.
+      String[] statements = { composeSelect(LOAD_PREDICATE_SELECT, this._dialect),
+          composeSelect(LOAD_ALL_PREDICATES_SELECT, this._dialect), composeInsert(this._dialect, 1) };
+      for (String statement : statements) {
+        connection.prepareStatement(statement).close();
+      }
     }
     catch (SQLException e) {
       throw new DeveloperError("SQL exception creating PreparedStatements.", e);
     }
+    finally {
+      this.close(null, null, connection);
+    }
+  }
+
+  /**
+   * @see org.aitools.programd.predicates.PredicateManager#loadAll(java.lang.String, java.lang.String)
+   */
+  @Override
+  protected Map<String, String> loadAll(String user, String bot) {
+    Map<String, String> result = new HashMap<String, String>();
+    Connection connection = this._core.getDBConnection();
+    PreparedStatement select = null;
+    ResultSet records = null;
+    try {
+      select = connection.prepareStatement(composeSelect(LOAD_ALL_PREDICATES_SELECT, this._dialect));
+      select.clearParameters();
+      select.setString(1, bot);
+      select.setString(2, user);
+      records = select.executeQuery();
+      while (records.next()) {
+        result.put(records.getString("name"), records.getString("value"));
+      }
+    }
+    catch (SQLException e) {
+      this._logger.error("Database error.", e);
+      return null;
+    }
+    finally {
+      this.close(records, select, connection);
+    }
+    return result;
   }
 
   /**
@@ -119,27 +228,91 @@ public class DBPredicateManager extends PredicateManager {
   public String loadPredicate(String name, String user, String bot) throws NoSuchPredicateException {
     String result = null;
     Connection connection = this._core.getDBConnection();
+    PreparedStatement select = null;
+    ResultSet records = null;
     try {
-      PreparedStatement select = connection.prepareStatement(LOAD_PREDICATE_SELECT);
+      select = connection.prepareStatement(composeSelect(LOAD_PREDICATE_SELECT, this._dialect));
       select.clearParameters();
       select.setString(1, bot);
       select.setString(2, user);
       select.setString(3, name);
-      ResultSet records = select.executeQuery();
+      records = select.executeQuery();
       while (records.next()) {
         result = records.getString("value");
       }
-      records.close();
-      connection.close();
     }
     catch (SQLException e) {
       this._logger.error("Database error.", e);
       throw new NoSuchPredicateException(name);
     }
+    finally {
+      this.close(records, select, connection);
+    }
     if (result == null) {
       throw new NoSuchPredicateException(name);
     }
     // If found, return it.
     return result;
   }
+
+  /**
+   * Writes the given predicates with as few multi-row upserts as the batch size allows.
+   * 
+   * @see org.aitools.programd.predicates.PredicateManager#savePredicates(java.lang.String, java.lang.String,
+   *      java.util.Map)
+   */
+  @SuppressWarnings("boxing")
+  @Override
+  protected void savePredicates(String userid, String botid, Map<String, PredicateValue> predicates) {
+    // Convert the values to the names and values under which they are stored.
+    List<String[]> rows = new ArrayList<String[]>();
+    for (Map.Entry<String, PredicateValue> entry : predicates.entrySet()) {
+      String name = entry.getKey();
+      PredicateValue value = entry.getValue();
+      if (value.size() == 1) {
+        rows.add(new String[] { name, value.getFirstValue() });
+      }
+      else {
+        for (int index = 1; index <= value.size(); index++) {
+          rows.add(new String[] { String.format("%s.%d", name, index), value.get(index) });
+        }
+      }
+    }
+    if (rows.isEmpty()) {
+      return;
+    }
+    int batchSize = this._batchSize > 0 ? this._batchSize : rows.size();
+
+    Connection connection = this._core.getDBConnection();
+    PreparedStatement insert = null;
+    try {
+      int bot_id = idFor(this._botIds, connection, "bot", "label", botid);
+      int user_id = idFor(this._userIds, connection, "user", "name", userid);
+      for (int start = 0; start < rows.size(); start += batchSize) {
+        int count = Math.min(batchSize, rows.size() - start);
+        // All batches but the last are full, so the statement is only prepared again for the last one.
+        if (insert == null || count < batchSize) {
+          if (insert != null) {
+            insert.close();
+          }
+          insert = connection.prepareStatement(composeInsert(this._dialect, count));
+        }
+        insert.clearParameters();
+        int parameter = 1;
+        for (String[] row : rows.subList(start, start + count)) {
+          insert.setString(parameter++, row[0]);
+          insert.setString(parameter++, row[1]);
+          insert.setInt(parameter++, user_id);
+          insert.setInt(parameter++, bot_id);
+        }
+        insert.executeUpdate();
+      }
+    }
+    catch (SQLException e) {
+      throw new DeveloperError("SQL error saving predicates.", e);
+    }
+    finally {
+      this.close(null, insert, connection);
+    }
+  }
 }
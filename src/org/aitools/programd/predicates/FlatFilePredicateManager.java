@@ -9,21 +9,38 @@
 
 package org.aitools.programd.predicates;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 
 import org.aitools.programd.Core;
 import org.aitools.util.resource.Filesystem;
-import org.aitools.util.runtime.DeveloperError;
 import org.aitools.util.runtime.UserError;
 
 /**
- * Uses &quot;flat-file&quot; Java properties files to store predicate data.
+ * <p>
+ * Uses &quot;flat files&quot; to store predicate data, one file per user.
+ * </p>
+ * <p>
+ * The files for each bot are spread over two levels of subdirectories (256 of each), chosen by a hash of the userid, so
+ * that no directory gets too large. Each line of a file holds a predicate name and value, separated by a tab, with
+ * backslashes, tabs and line breaks escaped. A file is rewritten by writing a new file, forcing it to disk, and then
+ * renaming it over the old one, so that a crash never leaves a partly written file behind.
+ * </p>
+ * <p>
+ * Files in the old layout (Java properties files directly in each bot's directory) are still read, and are replaced
+ * by files in the new layout the next time predicates are saved for their users; {@link #migrate()} converts all of
+ * them at once.
+ * </p>
  * 
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
  */
@@ -32,11 +49,29 @@ public class FlatFilePredicateManager extends PredicateManager {
   /** The name of the subdirectory for the predicate files. */
   private String _dirname;
 
+  /** The directory for the predicate files. */
+  private File _directory;
+
   /** The suffix for a predicates storage file. */
-  private static final String PREDICATES_SUFFIX = ".predicates";
+  private static final String PREDICATES_SUFFIX = ".preds";
+
+  /** The suffix for a predicates storage file in the old layout. */
+  private static final String LEGACY_PREDICATES_SUFFIX = ".predicates";
+
+  /** The suffix for a predicates storage file that is being written. */
+  private static final String TEMP_SUFFIX = ".tmp";
 
   /** The string &quot;{@value} &quot;. */
-  private static final String FILE_LABEL = "FlatFilePredicateManager predicates file";
+  private static final String DIRECTORY_LABEL = "FlatFilePredicateManager directory";
+
+  /** The encoding of predicates files. */
+  private static final String ENCODING = "UTF-8";
+
+  /** The number of locks over which predicates files are spread. */
+  private static final int FILE_LOCK_COUNT = 64;
+
+  /** Locks for the predicates files (a file is read or written only while holding the lock it hashes to). */
+  private Object[] _fileLocks = new Object[FILE_LOCK_COUNT];
 
   /**
    * Creates a new FlatFilePredicateManager with the given Core as owner.
@@ -46,6 +81,75 @@ public class FlatFilePredicateManager extends PredicateManager {
   public FlatFilePredicateManager(Core core) {
     super(core);
     this._dirname = this._core.getSettings().getFfpmDirectory().getPath();
+    this._directory = Filesystem.getBestFile(this._dirname);
+    for (int index = 0; index < FILE_LOCK_COUNT; index++) {
+      this._fileLocks[index] = new Object();
+    }
+  }
+
+  /**
+   * Escapes backslashes, tabs and line breaks in the given string.
+   * 
+   * @param string the string to escape
+   * @param out where to write the escaped string
+   * @throws IOException if there is a problem writing
+   */
+  private static void escape(String string, Writer out) throws IOException {
+    for (int index = 0; index < string.length(); index++) {
+      char c = string.charAt(index);
+      switch (c) {
+        case '\\':
+          out.write("\\\\");
+          break;
+        case '\t':
+          out.write("\\t");
+          break;
+        case '\n':
+          out.write("\\n");
+          break;
+        case '\r':
+          out.write("\\r");
+          break;
+        default:
+          out.write(c);
+      }
+    }
+  }
+
+  /**
+   * Undoes {@link #escape(String, Writer)} for part of a line.
+   * 
+   * @param line the line
+   * @param start the start of the part to unescape
+   * @param end the end of the part to unescape
+   * @return the unescaped string
+   */
+  private static String unescape(String line, int start, int end) {
+    if (line.indexOf('\\', start) == -1 || line.indexOf('\\', start) >= end) {
+      return line.substring(start, end);
+    }
+    StringBuilder result = new StringBuilder(end - start);
+    for (int index = start; index < end; index++) {
+      char c = line.charAt(index);
+      if (c == '\\' && index + 1 < end) {
+        c = line.charAt(++index);
+        switch (c) {
+          case 't':
+            c = '\t';
+            break;
+          case 'n':
+            c = '\n';
+            break;
+          case 'r':
+            c = '\r';
+            break;
+          default:
+            // A backslash stands for itself.
+        }
+      }
+      result.append(c);
+    }
+    return result.toString();
   }
 
   /**
@@ -57,52 +161,24 @@ public class FlatFilePredicateManager extends PredicateManager {
    */
   @SuppressWarnings("boxing")
   protected String composeFilename(String user, String bot) {
-    return String.format("%s%c%s%c%s%s", this._dirname, File.separatorChar, bot, File.separatorChar, user,
+    // Spread the bits of the hash, so that similar userids go to different subdirectories.
+    int hash = user.hashCode() * 0x9E3779B9;
+    return String.format("%s%c%s%c%02x%c%02x%c%s%s", this._directory.getPath(), File.separatorChar, bot,
+        File.separatorChar, hash >>> 24, File.separatorChar, hash >>> 16 & 0xFF, File.separatorChar, user,
         PREDICATES_SUFFIX);
   }
 
   /**
-   * @see org.aitools.programd.predicates.PredicateManager#dumpPredicates()
+   * Composes the filename under which predicates were stored in the old layout.
+   * 
+   * @param user
+   * @param bot
+   * @return a filename
    */
-  @Override
-  public void dumpPredicates() {
-    {
-      for (String bot : this._bots.keySet()) {
-        Map<String, PredicateMap> predicateCache = this._bots.get(bot).getPredicateCache();
-        for (String user : predicateCache.keySet()) {
-          Properties predicates = this.loadPredicates(user, bot);
-          PredicateMap predicateMap = predicateCache.get(user);
-          for (String name : predicateMap.keySet()) {
-            PredicateValue value = predicateMap.get(name);
-            if (value.size() == 1) {
-              predicates.setProperty(name, value.getFirstValue());
-            }
-            else {
-              for (int index = 1; index <= value.size(); index++) {
-                predicates.setProperty(name + '.' + index, value.get(index));
-              }
-            }
-          }
-          predicateMap.clear();
-          String fileName = this.composeFilename(user, bot);
-          Filesystem.checkOrCreate(fileName, FILE_LABEL);
-          FileOutputStream outputStream;
-          try {
-            outputStream = Filesystem.getFileOutputStream(fileName);
-          }
-          catch (FileNotFoundException e) {
-            throw new DeveloperError(String.format("Could not locate just-created file: \"%s\".", fileName), e);
-          }
-
-          try {
-            predicates.store(outputStream, null);
-          }
-          catch (IOException e) {
-            throw new UserError("Error trying to save predicates.", e);
-          }
-        }
-      }
-    }
+  @SuppressWarnings("boxing")
+  protected String composeLegacyFilename(String user, String bot) {
+    return String.format("%s%c%s%c%s%s", this._directory.getPath(), File.separatorChar, bot, File.separatorChar, user,
+        LEGACY_PREDICATES_SUFFIX);
   }
 
   /**
@@ -113,16 +189,24 @@ public class FlatFilePredicateManager extends PredicateManager {
     // No initialization necessary.
   }
 
+  /**
+   * @see org.aitools.programd.predicates.PredicateManager#loadAll(java.lang.String, java.lang.String)
+   */
+  @Override
+  protected Map<String, String> loadAll(String user, String bot) {
+    return this.loadPredicates(user, bot);
+  }
+
   /**
    * @see org.aitools.programd.predicates.PredicateManager#loadPredicate(java.lang.String, java.lang.String,
    *      java.lang.String)
    */
   @Override
   public String loadPredicate(String name, String user, String bot) throws NoSuchPredicateException {
-    Properties predicates = this.loadPredicates(user, bot);
+    Map<String, String> predicates = this.loadPredicates(user, bot);
 
     // Try to get the predicate value.
-    String result = predicates.getProperty(name);
+    String result = predicates.get(name);
 
     if (result == null) {
       throw new NoSuchPredicateException(name);
@@ -131,24 +215,195 @@ public class FlatFilePredicateManager extends PredicateManager {
   }
 
   /**
-   * Loads the predicates file for a given user. Ensures that the directory exists.
+   * Loads the predicates file for a given user (or, if there is none, the file in the old layout).
    * 
    * @param user the user to look for
    * @param bot the bot with which to associate the user in the search
    * @return the predicates for the user
    */
-  protected Properties loadPredicates(String user, String bot) {
-    Properties predicates = new Properties();
-
-    File predicateFile = Filesystem.checkOrCreate(this.composeFilename(bot, user), FILE_LABEL);
-    if (predicateFile.canRead()) {
+  protected Map<String, String> loadPredicates(String user, String bot) {
+    String fileName = this.composeFilename(user, bot);
+    synchronized (this.lockFor(fileName)) {
       try {
-        predicates.load(new FileInputStream(predicateFile));
+        File predicateFile = new File(fileName);
+        if (!predicateFile.exists()) {
+          // The file may have been set aside by a rewrite that was interrupted.
+          Filesystem.recoverReplaced(predicateFile);
+        }
+        if (predicateFile.exists()) {
+          return readPredicates(predicateFile);
+        }
+        File legacyFile = new File(this.composeLegacyFilename(user, bot));
+        if (legacyFile.exists()) {
+          return readLegacyPredicates(legacyFile);
+        }
       }
       catch (IOException e) {
         throw new UserError("Error trying to load predicates.", e);
       }
     }
-    return predicates;
+    return new HashMap<String, String>();
+  }
+
+  /**
+   * @param fileName the name of a predicates file
+   * @return the lock to hold while reading or writing the file
+   */
+  private Object lockFor(String fileName) {
+    return this._fileLocks[(fileName.hashCode() & 0x7FFFFFFF) % FILE_LOCK_COUNT];
+  }
+
+  /**
+   * Converts all predicates files in the old layout to the new one, removing the old files.
+   * 
+   * @return the number of files converted
+   */
+  public int migrate() {
+    int count = 0;
+    File[] bots = this._directory.listFiles();
+    if (bots == null) {
+      return 0;
+    }
+    for (File botDirectory : bots) {
+      File[] files = botDirectory.listFiles();
+      if (files == null) {
+        continue;
+      }
+      String bot = botDirectory.getName();
+      for (File file : files) {
+        String name = file.getName();
+        if (!file.isFile() || !name.endsWith(LEGACY_PREDICATES_SUFFIX)) {
+          continue;
+        }
+        String user = name.substring(0, name.length() - LEGACY_PREDICATES_SUFFIX.length());
+        String fileName = this.composeFilename(user, bot);
+        synchronized (this.lockFor(fileName)) {
+          this.writePredicates(fileName, this.loadPredicates(user, bot));
+          file.delete();
+        }
+        count++;
+      }
+    }
+    this._logger.info(String.format("Migrated %,d predicates files to the new layout.", Integer.valueOf(count)));
+    return count;
+  }
+
+  /**
+   * Reads a predicates file in the old layout.
+   * 
+   * @param file the file to read
+   * @return the predicates in the file
+   * @throws IOException if the file cannot be read
+   */
+  private static Map<String, String> readLegacyPredicates(File file) throws IOException {
+    Properties properties = new Properties();
+    FileInputStream inputStream = new FileInputStream(file);
+    try {
+      properties.load(inputStream);
+    }
+    finally {
+      inputStream.close();
+    }
+    Map<String, String> result = new HashMap<String, String>(properties.size());
+    for (String name : properties.stringPropertyNames()) {
+      result.put(name, properties.getProperty(name));
+    }
+    return result;
+  }
+
+  /**
+   * Reads a predicates file.
+   * 
+   * @param file the file to read
+   * @return the predicates in the file
+   * @throws IOException if the file cannot be read
+   */
+  private static Map<String, String> readPredicates(File file) throws IOException {
+    Map<String, String> result = new HashMap<String, String>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int tab = line.indexOf('\t');
+        if (tab > 0) {
+          result.put(unescape(line, 0, tab), unescape(line, tab + 1, line.length()));
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+    return result;
+  }
+
+  /**
+   * Merges the given predicates into the user's predicates file, leaving any others in it as they were.
+   * 
+   * @see org.aitools.programd.predicates.PredicateManager#savePredicates(java.lang.String, java.lang.String,
+   *      java.util.Map)
+   */
+  @Override
+  protected void savePredicates(String userid, String botid, Map<String, PredicateValue> predicates) {
+    String fileName = this.composeFilename(userid, botid);
+    // Hold the lock throughout, so that no one reads the file while it is being rewritten.
+    synchronized (this.lockFor(fileName)) {
+      Map<String, String> values = this.loadPredicates(userid, botid);
+      for (Map.Entry<String, PredicateValue> entry : predicates.entrySet()) {
+        String name = entry.getKey();
+        PredicateValue value = entry.getValue();
+        if (value.size() == 1) {
+          values.put(name, value.getFirstValue());
+        }
+        else {
+          for (int index = 1; index <= value.size(); index++) {
+            values.put(name + '.' + index, value.get(index));
+          }
+        }
+      }
+      this.writePredicates(fileName, values);
+
+      // Once the file is in the new layout, any file in the old layout is out of date.
+      File legacyFile = new File(this.composeLegacyFilename(userid, botid));
+      if (legacyFile.exists()) {
+        legacyFile.delete();
+      }
+    }
+  }
+
+  /**
+   * Writes a predicates file, by writing a temporary file, forcing it to disk, and then renaming it. The caller must
+   * hold the lock for the file.
+   * 
+   * @param fileName the name of the file to write
+   * @param values the predicates to write
+   */
+  private void writePredicates(String fileName, Map<String, String> values) {
+    File file = new File(fileName);
+    if (!file.getParentFile().isDirectory()) {
+      Filesystem.checkOrCreateDirectory(file.getParent(), DIRECTORY_LABEL);
+    }
+    File tempFile = new File(fileName + TEMP_SUFFIX);
+    try {
+      FileOutputStream fileOut = new FileOutputStream(tempFile);
+      Writer out = new BufferedWriter(new OutputStreamWriter(fileOut, ENCODING));
+      try {
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+          escape(entry.getKey(), out);
+          out.write('\t');
+          escape(entry.getValue(), out);
+          out.write('\n');
+        }
+        // Otherwise the rename may reach the disk before the contents do.
+        out.flush();
+        fileOut.getFD().sync();
+      }
+      finally {
+        out.close();
+      }
+      Filesystem.replace(tempFile, file);
+    }
+    catch (IOException e) {
+      throw new UserError("Error trying to save predicates.", e);
+    }
   }
 }
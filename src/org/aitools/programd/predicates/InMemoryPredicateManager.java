@@ -37,21 +37,25 @@ public class InMemoryPredicateManager extends PredicateManager {
   /**
    * Does nothing.
    * 
-   * @see org.aitools.programd.predicates.PredicateManager#dumpPredicates()
+   * @see org.aitools.programd.predicates.PredicateManager#initialize()
    */
   @Override
-  protected void dumpPredicates() {
-    // Do nothing.
+  public void initialize() {
+    // No initialization necessary.
   }
 
   /**
-   * Does nothing.
-   * 
-   * @see org.aitools.programd.predicates.PredicateManager#initialize()
+   * @see org.aitools.programd.predicates.PredicateManager#loadAll(java.lang.String, java.lang.String)
    */
   @Override
-  public void initialize() {
-    // No initialization necessary.
+  protected Map<String, String> loadAll(String user, String bot) {
+    synchronized (this._predicateMaps) {
+      Map<String, Map<String, String>> userPredicates = this._predicateMaps.get(user);
+      if (userPredicates == null || !userPredicates.containsKey(bot)) {
+        return new HashMap<String, String>();
+      }
+      return new HashMap<String, String>(userPredicates.get(bot));
+    }
   }
 
   /**
@@ -60,27 +64,50 @@ public class InMemoryPredicateManager extends PredicateManager {
    */
   @Override
   public String loadPredicate(String name, String userid, String botid) throws NoSuchPredicateException {
-    Map<String, Map<String, String>> userPredicates;
-    if (this._predicateMaps.containsKey(userid)) {
-      userPredicates = this._predicateMaps.get(userid);
-    }
-    else {
-      userPredicates = new HashMap<String, Map<String, String>>();
-      this._predicateMaps.put(userid, userPredicates);
-    }
+    synchronized (this._predicateMaps) {
+      Map<String, Map<String, String>> userPredicates;
+      if (this._predicateMaps.containsKey(userid)) {
+        userPredicates = this._predicateMaps.get(userid);
+      }
+      else {
+        userPredicates = new HashMap<String, Map<String, String>>();
+        this._predicateMaps.put(userid, userPredicates);
+      }
 
-    Map<String, String> predicates;
-    if (userPredicates.containsKey(botid)) {
-      predicates = userPredicates.get(botid);
-    }
-    else {
-      predicates = new HashMap<String, String>();
-      userPredicates.put(botid, predicates);
-    }
+      Map<String, String> predicates;
+      if (userPredicates.containsKey(botid)) {
+        predicates = userPredicates.get(botid);
+      }
+      else {
+        predicates = new HashMap<String, String>();
+        userPredicates.put(botid, predicates);
+      }
 
-    if (!predicates.containsKey(name)) {
-      throw new NoSuchPredicateException(name);
+      if (!predicates.containsKey(name)) {
+        throw new NoSuchPredicateException(name);
+      }
+      return predicates.get(name);
     }
-    return predicates.get(name);
+  }
+
+  /**
+   * Does nothing.
+   * 
+   * @see org.aitools.programd.predicates.PredicateManager#savePredicates(java.lang.String, java.lang.String,
+   *      java.util.Map)
+   */
+  @Override
+  protected void savePredicates(String userid, String botid, Map<String, PredicateValue> predicates) {
+    // Do nothing.
+  }
+
+  /**
+   * Predicates are only kept in the cache, so there is nothing to write.
+   * 
+   * @see org.aitools.programd.predicates.PredicateManager#storesPredicates()
+   */
+  @Override
+  protected boolean storesPredicates() {
+    return false;
   }
 }
@@ -0,0 +1,942 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.predicates;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.aitools.programd.Core;
+import org.aitools.programd.CoreSettings;
+import org.aitools.programd.util.ManagedProcess;
+import org.aitools.util.resource.Filesystem;
+import org.aitools.util.runtime.UserError;
+
+/**
+ * <p>
+ * Stores predicates in a local, log-structured store in the ffpm directory, so that they survive restarts without
+ * needing a database.
+ * </p>
+ * <p>
+ * Every save is appended, as a single checksummed record, to a log file, and also kept in memory. When the log grows
+ * past a configurable size, a background compactor merges it into a store file (the previous store plus everything in
+ * the log) and starts a new log. The store file holds each user's predicates in a block, followed by an index of the
+ * blocks sorted by a hash of the bot and user; it is memory-mapped, and looked up by binary search on the index.
+ * </p>
+ * <p>
+ * On startup, the log is replayed into memory. A record that was only partly written when the process died fails its
+ * checksum, and is discarded along with anything after it. If a compaction was interrupted, the log it was compacting
+ * is replayed too, and the compaction is finished before anything else happens.
+ * </p>
+ * <p>
+ * Appends are not forced to disk one by one; they survive the process dying, but not necessarily the machine. The log
+ * is forced when all predicates are saved (as at shutdown), and the store is forced before it replaces the old one.
+ * </p>
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class LogPredicateManager extends PredicateManager {
+
+  /** The name of the log file. */
+  private static final String LOG_FILENAME = "predicates.log";
+
+  /** The name the log file is given while it is being compacted. */
+  private static final String COMPACTING_LOG_FILENAME = "predicates.log.compacting";
+
+  /** The name of the store file. */
+  private static final String STORE_FILENAME = "predicates.store";
+
+  /** The name of a store file that is being written. */
+  private static final String NEW_STORE_FILENAME = "predicates.store.new";
+
+  /** The string &quot;{@value} &quot;. */
+  private static final String DIRECTORY_LABEL = "LogPredicateManager directory";
+
+  /** The length of the store header (the offset of the index, and the number of index entries). */
+  private static final int HEADER_LENGTH = 12;
+
+  /** The length of an index entry (the hash of the bot and user, and the offset of their block). */
+  private static final int INDEX_ENTRY_LENGTH = 16;
+
+  /** The length of a log record header (the length of the record, and its checksum). */
+  private static final int RECORD_HEADER_LENGTH = 8;
+
+  /** The size of each memory-mapped segment of the store (a single mapping cannot be longer than 2GB). */
+  private static final int SEGMENT_SIZE = 1 << 30;
+
+  /** How long (in milliseconds) to wait before retrying a compaction that failed (doubled with each failure). */
+  private static final long COMPACTION_RETRY_DELAY = 10000;
+
+  /** The longest (in milliseconds) to wait before retrying a compaction that failed. */
+  private static final long COMPACTION_RETRY_MAX_DELAY = 3600000;
+
+  /** The encoding used for all strings. */
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** The directory where the files are kept. */
+  private File _directory;
+
+  /** The size the log may reach before it is compacted. */
+  private long _compactionThreshold;
+
+  /** Guards the log, the in-memory overlays and the store. */
+  private Object _storeLock = new Object();
+
+  /** The log. */
+  private FileChannel _log;
+
+  /** The current size of the log. */
+  private long _logSize = 0;
+
+  /** Everything saved since the log was last rotated, by owner key (see {@link #key}), with removals as nulls. */
+  private Map<String, Map<String, String>> _live = new HashMap<String, Map<String, String>>();
+
+  /** Everything in the log that is being compacted (or <code>null</code>, if there is no compaction going on). */
+  private Map<String, Map<String, String>> _compacting;
+
+  /** The memory-mapped store (or <code>null</code>, if there is none yet). */
+  private Store _store;
+
+  /** The background compactor. */
+  private Compactor _compactor;
+
+  /**
+   * Creates a new LogPredicateManager with the given Core as owner.
+   * 
+   * @param core the Core that owns this LogPredicateManager
+   */
+  public LogPredicateManager(Core core) {
+    super(core);
+    CoreSettings settings = this._core.getSettings();
+    this._directory = Filesystem.checkOrCreateDirectory(settings.getFfpmDirectory().getPath(), DIRECTORY_LABEL);
+    this._compactionThreshold = settings.getPredicateLogCompactionThreshold();
+  }
+
+  /**
+   * Compacts the log into the store when asked to. If a compaction fails, it is retried after a while (or sooner, if
+   * asked), waiting longer after each failure.
+   */
+  private class Compactor implements ManagedProcess {
+
+    /** Whether a compaction has been requested. */
+    private boolean _requested = false;
+
+    /** Whether this is (still) running. */
+    private volatile boolean _running = true;
+
+    /**
+     * Creates a new Compactor.
+     */
+    protected Compactor() {
+      // Nothing to do.
+    }
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    @SuppressWarnings("boxing")
+    public void run() {
+      long retryDelay = 0;
+      while (this._running) {
+        synchronized (this) {
+          try {
+            long until = retryDelay > 0 ? System.currentTimeMillis() + retryDelay : Long.MAX_VALUE;
+            long now = System.currentTimeMillis();
+            while (!this._requested && this._running && now < until) {
+              this.wait(until - now);
+              now = System.currentTimeMillis();
+            }
+          }
+          catch (InterruptedException e) {
+            this._running = false;
+          }
+          this._requested = false;
+        }
+        if (this._running) {
+          try {
+            LogPredicateManager.this.compact();
+            retryDelay = 0;
+          }
+          catch (UserError e) {
+            retryDelay = retryDelay == 0 ? COMPACTION_RETRY_DELAY : Math.min(retryDelay * 2,
+                COMPACTION_RETRY_MAX_DELAY);
+            LogPredicateManager.this._logger.error(String.format(
+                "Error compacting predicate log; will try again in %,d seconds.", retryDelay / 1000), e);
+          }
+        }
+      }
+    }
+
+    /**
+     * @see org.aitools.programd.util.ManagedProcess#shutdown()
+     */
+    @Override
+    public synchronized void shutdown() {
+      this._running = false;
+      this.notifyAll();
+    }
+
+    /**
+     * Asks for a compaction.
+     */
+    public synchronized void wake() {
+      this._requested = true;
+      this.notifyAll();
+    }
+  }
+
+  /**
+   * A position in a store (or a log record), from which values are read in sequence.
+   */
+  private static class Cursor {
+
+    /** The store. */
+    private Store _store;
+
+    /** The current position. */
+    private long _position;
+
+    /**
+     * @param store the store
+     * @param position the position from which to start reading
+     */
+    protected Cursor(Store store, long position) {
+      this._store = store;
+      this._position = position;
+    }
+
+    /**
+     * @return the int read
+     */
+    protected int readInt() {
+      int value = this._store.getInt(this._position);
+      this._position += 4;
+      return value;
+    }
+
+    /**
+     * Reads a string (or <code>null</code>).
+     * 
+     * @return the string read
+     */
+    protected String readString() {
+      int length = this.readInt();
+      if (length < 0) {
+        return null;
+      }
+      byte[] bytes = new byte[length];
+      this._store.get(this._position, bytes);
+      this._position += length;
+      return new String(bytes, UTF8);
+    }
+
+    /**
+     * Reads a set of names and values.
+     * 
+     * @param values the map into which to put the names and values
+     */
+    protected void readValues(Map<String, String> values) {
+      int count = this.readInt();
+      for (int index = 0; index < count; index++) {
+        String name = this.readString();
+        values.put(name, this.readString());
+      }
+    }
+  }
+
+  /**
+   * The contents of a store file, memory-mapped in segments so that the store may be larger than a single mapping
+   * allows, and read at long offsets. This is safe for use by multiple threads, since it only reads at absolute
+   * positions.
+   */
+  static class Store {
+
+    /** The segments, each (except perhaps the last) of the segment size. */
+    private ByteBuffer[] _segments;
+
+    /** The size of each segment. */
+    private int _segmentSize;
+
+    /**
+     * @param segments the segments
+     * @param segmentSize the size of each segment
+     */
+    protected Store(ByteBuffer[] segments, int segmentSize) {
+      this._segments = segments;
+      this._segmentSize = segmentSize;
+    }
+
+    /**
+     * @param bytes some bytes
+     * @return a store that reads the given bytes
+     */
+    protected static Store wrap(byte[] bytes) {
+      return new Store(new ByteBuffer[] { ByteBuffer.wrap(bytes) }, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads bytes, which may span segments.
+     * 
+     * @param offset the offset at which to start reading
+     * @param bytes the array to fill
+     */
+    protected void get(long offset, byte[] bytes) {
+      int done = 0;
+      while (done < bytes.length) {
+        long position = offset + done;
+        ByteBuffer segment = this._segments[(int) (position / this._segmentSize)].duplicate();
+        segment.position((int) (position % this._segmentSize));
+        int length = Math.min(bytes.length - done, segment.remaining());
+        segment.get(bytes, done, length);
+        done += length;
+      }
+    }
+
+    /**
+     * @param offset the offset of the int
+     * @return the int at the given offset
+     */
+    protected int getInt(long offset) {
+      ByteBuffer segment = this._segments[(int) (offset / this._segmentSize)];
+      int position = (int) (offset % this._segmentSize);
+      if (position + 4 <= segment.limit()) {
+        return segment.getInt(position);
+      }
+      byte[] bytes = new byte[4];
+      this.get(offset, bytes);
+      return ByteBuffer.wrap(bytes).getInt();
+    }
+
+    /**
+     * @param offset the offset of the long
+     * @return the long at the given offset
+     */
+    protected long getLong(long offset) {
+      ByteBuffer segment = this._segments[(int) (offset / this._segmentSize)];
+      int position = (int) (offset % this._segmentSize);
+      if (position + 8 <= segment.limit()) {
+        return segment.getLong(position);
+      }
+      byte[] bytes = new byte[8];
+      this.get(offset, bytes);
+      return ByteBuffer.wrap(bytes).getLong();
+    }
+  }
+
+  /**
+   * An entry in the index of a store that is being written.
+   */
+  private static class IndexEntry {
+
+    /** The hash of the owner key. */
+    protected long hash;
+
+    /** The botid. */
+    protected String botid;
+
+    /** The userid. */
+    protected String userid;
+
+    /** The offset of the owner's block in the old store (or -1 if there is none). */
+    protected long oldOffset;
+
+    /**
+     * @param bot the botid
+     * @param user the userid
+     * @param offset the offset of the owner's block in the old store (or -1 if there is none)
+     */
+    protected IndexEntry(String bot, String user, long offset) {
+      this.botid = bot;
+      this.userid = user;
+      this.hash = hash(key(bot, user));
+      this.oldOffset = offset;
+    }
+  }
+
+  /**
+   * Applies the values in <code>changes</code> (where a null value means removal) to <code>values</code>.
+   * 
+   * @param values the values to change
+   * @param changes the changes to apply (may be <code>null</code>)
+   */
+  private static void apply(Map<String, String> values, Map<String, String> changes) {
+    if (changes == null) {
+      return;
+    }
+    for (Map.Entry<String, String> change : changes.entrySet()) {
+      if (change.getValue() == null) {
+        values.remove(change.getKey());
+      }
+      else {
+        values.put(change.getKey(), change.getValue());
+      }
+    }
+  }
+
+  /**
+   * Converts predicate values to the names and values under which they are stored. Since a predicate may be stored
+   * either without an index or with indexes, this also removes whichever of those forms is not being saved.
+   * 
+   * @param predicates the predicate values, keyed by name
+   * @return the stored names and values (with removals as nulls)
+   */
+  private static Map<String, String> flatten(Map<String, PredicateValue> predicates) {
+    Map<String, String> result = new HashMap<String, String>();
+    for (Map.Entry<String, PredicateValue> entry : predicates.entrySet()) {
+      String name = entry.getKey();
+      PredicateValue value = entry.getValue();
+      if (value.size() == 1) {
+        result.put(name, value.getFirstValue());
+        for (int index = 1; index <= MAX_INDEX; index++) {
+          result.put(name + '.' + index, null);
+        }
+      }
+      else {
+        result.put(name, null);
+        for (int index = 1; index <= MAX_INDEX; index++) {
+          result.put(name + '.' + index, index <= value.size() ? value.get(index) : null);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Computes a 64-bit (FNV-1a) hash of an owner key.
+   * 
+   * @param key the owner key
+   * @return the hash
+   */
+  protected static long hash(String key) {
+    long hash = 0xcbf29ce484222325L;
+    for (int index = 0; index < key.length(); index++) {
+      hash ^= key.charAt(index);
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /**
+   * @param botid the botid
+   * @param userid the userid
+   * @return the key under which the predicates of the given bot and user are kept in memory
+   */
+  protected static String key(String botid, String userid) {
+    return botid + '\u0000' + userid;
+  }
+
+  /**
+   * Memory-maps the given file, if it exists, in segments of the given size.
+   * 
+   * @param file the file to map
+   * @param segmentSize the size of each segment
+   * @return the mapped file, or <code>null</code> if it does not exist
+   * @throws IOException if the file cannot be mapped
+   */
+  static Store map(File file, int segmentSize) throws IOException {
+    if (!file.exists()) {
+      return null;
+    }
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      // The mappings stay valid after the file is closed (and even after it is replaced).
+      FileChannel channel = raf.getChannel();
+      long length = channel.size();
+      int count = (int) Math.max((length + segmentSize - 1) / segmentSize, 1);
+      ByteBuffer[] segments = new ByteBuffer[count];
+      for (int segment = 0; segment < count; segment++) {
+        long start = (long) segment * segmentSize;
+        segments[segment] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, length - start));
+      }
+      return new Store(segments, segmentSize);
+    }
+    finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Writes a string (or <code>null</code>) to a stream.
+   * 
+   * @param out the stream
+   * @param string the string to write
+   * @throws IOException if there is a problem writing
+   */
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    if (string == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = string.getBytes(UTF8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Writes a set of names and values to a stream.
+   * 
+   * @param out the stream
+   * @param values the names and values
+   * @throws IOException if there is a problem writing
+   */
+  private static void writeValues(DataOutputStream out, Map<String, String> values) throws IOException {
+    out.writeInt(values.size());
+    for (Map.Entry<String, String> entry : values.entrySet()) {
+      writeString(out, entry.getKey());
+      writeString(out, entry.getValue());
+    }
+  }
+
+  /**
+   * Compacts the log into the store: the log is set aside (and a new one started), a new store is written from the
+   * old one and what was in the log, and the new store replaces the old one. If a previous compaction failed after the
+   * log was set aside, it is retried with the same log.
+   */
+  protected void compact() {
+    Map<String, Map<String, String>> compacting;
+    Store store;
+    File compactingLog = new File(this._directory, COMPACTING_LOG_FILENAME);
+    try {
+      synchronized (this._storeLock) {
+        if (this._compacting == null) {
+          if (this._logSize == 0) {
+            return;
+          }
+          this._log.force(false);
+          this._log.close();
+          if (!new File(this._directory, LOG_FILENAME).renameTo(compactingLog)) {
+            // Carry on appending to the log as it is.
+            this._log = this.openLog(this._logSize);
+            throw new IOException("Could not set the predicate log aside for compaction.");
+          }
+          this._log = this.openLog(0);
+          this._compacting = this._live;
+          this._live = new HashMap<String, Map<String, String>>();
+        }
+        compacting = this._compacting;
+        store = this._store;
+      }
+      long start = System.currentTimeMillis();
+      File newStore = new File(this._directory, NEW_STORE_FILENAME);
+      int owners = this.writeStore(newStore, store, compacting);
+      synchronized (this._storeLock) {
+        File storeFile = new File(this._directory, STORE_FILENAME);
+        Filesystem.replace(newStore, storeFile);
+        this._store = map(storeFile, SEGMENT_SIZE);
+        this._compacting = null;
+        compactingLog.delete();
+      }
+      this._logger.info(String.format("Compacted predicate log; store now holds predicates for %,d users (%,dms).",
+          owners, System.currentTimeMillis() - start));
+    }
+    catch (IOException e) {
+      throw new UserError("Error trying to compact predicate log.", e);
+    }
+  }
+
+  /**
+   * Recovers whatever is in the directory, and starts the compactor.
+   * 
+   * @see org.aitools.programd.predicates.PredicateManager#initialize()
+   */
+  @Override
+  public void initialize() {
+    this.recover();
+    this._compactor = new Compactor();
+    this._core.getManagedProcesses().start(this._compactor, "PredicateLogCompactor");
+  }
+
+  /**
+   * Looks up the given user's block in the store, and then applies anything saved since the store was written.
+   * 
+   * @see org.aitools.programd.predicates.PredicateManager#loadAll(java.lang.String, java.lang.String)
+   */
+  @Override
+  protected Map<String, String> loadAll(String user, String bot) {
+    String key = key(bot, user);
+    Map<String, String> compacting = null;
+    Map<String, String> live = null;
+    Store store;
+    synchronized (this._storeLock) {
+      if (this._compacting != null) {
+        compacting = this._compacting.get(key);
+      }
+      if (this._live.containsKey(key)) {
+        live = new HashMap<String, String>(this._live.get(key));
+      }
+      store = this._store;
+    }
+    Map<String, String> result = new HashMap<String, String>();
+    if (store != null) {
+      this.readBlock(store, bot, user, result);
+    }
+    apply(result, compacting);
+    apply(result, live);
+    return result;
+  }
+
+  /**
+   * @see org.aitools.programd.predicates.PredicateManager#loadPredicate(java.lang.String, java.lang.String,
+   *      java.lang.String)
+   */
+  @Override
+  public String loadPredicate(String name, String user, String bot) throws NoSuchPredicateException {
+    String result = this.loadAll(user, bot).get(name);
+    if (result == null) {
+      throw new NoSuchPredicateException(name);
+    }
+    return result;
+  }
+
+  /**
+   * Opens the log, truncated to the given length, for appending.
+   * 
+   * @param length the length of the valid part of the log
+   * @return the log
+   * @throws IOException if the log cannot be opened
+   */
+  private FileChannel openLog(long length) throws IOException {
+    FileChannel log = new RandomAccessFile(new File(this._directory, LOG_FILENAME), "rw").getChannel();
+    log.truncate(length);
+    log.position(length);
+    this._logSize = length;
+    return log;
+  }
+
+  /**
+   * Finds the block for the given bot and user in the store (if there is one) and reads its values.
+   * 
+   * @param store the store
+   * @param bot the botid
+   * @param user the userid
+   * @param values the map into which to put the values
+   */
+  private void readBlock(Store store, String bot, String user, Map<String, String> values) {
+    long indexOffset = store.getLong(0);
+    int count = store.getInt(8);
+    long hash = hash(key(bot, user));
+
+    // Find the first index entry with the hash.
+    int low = 0;
+    int high = count;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (store.getLong(indexOffset + (long) middle * INDEX_ENTRY_LENGTH) < hash) {
+        low = middle + 1;
+      }
+      else {
+        high = middle;
+      }
+    }
+
+    // Check each block with the hash (there is almost always only one) for the right bot and user.
+    for (int entry = low; entry < count; entry++) {
+      long entryOffset = indexOffset + (long) entry * INDEX_ENTRY_LENGTH;
+      if (store.getLong(entryOffset) != hash) {
+        break;
+      }
+      Cursor cursor = new Cursor(store, store.getLong(entryOffset + 8));
+      if (bot.equals(cursor.readString()) && user.equals(cursor.readString())) {
+        cursor.readValues(values);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Sets up the store and log from whatever is in the directory, replaying the log(s) and finishing any interrupted
+   * compaction.
+   */
+  private void recover() {
+    try {
+      new File(this._directory, NEW_STORE_FILENAME).delete();
+      File storeFile = new File(this._directory, STORE_FILENAME);
+      Filesystem.recoverReplaced(storeFile);
+      this._store = map(storeFile, SEGMENT_SIZE);
+      File compactingLog = new File(this._directory, COMPACTING_LOG_FILENAME);
+      if (compactingLog.exists()) {
+        this._compacting = new HashMap<String, Map<String, String>>();
+        this.replay(compactingLog, this._compacting);
+      }
+      File log = new File(this._directory, LOG_FILENAME);
+      long length = log.exists() ? this.replay(log, this._live) : 0;
+      this._log = this.openLog(length);
+    }
+    catch (IOException e) {
+      throw new UserError("Error trying to recover predicate store.", e);
+    }
+    if (this._compacting != null) {
+      this._logger.info("Finishing interrupted compaction of predicate log.");
+      this.compact();
+    }
+  }
+
+  /**
+   * Replays the records in a log into the given map, stopping at the first record that is incomplete or fails its
+   * checksum.
+   * 
+   * @param file the log to replay
+   * @param target the map into which to replay the records
+   * @return the length of the valid part of the log
+   * @throws IOException if the log cannot be read
+   */
+  @SuppressWarnings("boxing")
+  private long replay(File file, Map<String, Map<String, String>> target) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    long position = 0;
+    int records = 0;
+    CRC32 crc = new CRC32();
+    try {
+      while (true) {
+        int length = in.readInt();
+        int checksum = in.readInt();
+        if (length < 0 || position + RECORD_HEADER_LENGTH + length > file.length()) {
+          break;
+        }
+        byte[] record = new byte[length];
+        in.readFully(record);
+        crc.reset();
+        crc.update(record);
+        if ((int) crc.getValue() != checksum) {
+          break;
+        }
+        Cursor cursor = new Cursor(Store.wrap(record), 0);
+        String bot = cursor.readString();
+        String user = cursor.readString();
+        String key = key(bot, user);
+        Map<String, String> values = target.get(key);
+        if (values == null) {
+          values = new HashMap<String, String>();
+          target.put(key, values);
+        }
+        cursor.readValues(values);
+        position += RECORD_HEADER_LENGTH + length;
+        records++;
+      }
+    }
+    catch (EOFException e) {
+      // This is the normal end of the log.
+    }
+    finally {
+      in.close();
+    }
+    if (position < file.length()) {
+      this._logger.warn(String.format("Discarding %,d bytes of incomplete records at the end of \"%s\".",
+          file.length() - position, file.getPath()));
+    }
+    this._logger.info(String.format("Replayed %,d predicate records from \"%s\".", records, file.getPath()));
+    return position;
+  }
+
+  /**
+   * Writes all dirty predicates, and then forces the log to disk.
+   * 
+   * @see org.aitools.programd.predicates.PredicateManager#saveAll()
+   */
+  @Override
+  public void saveAll() {
+    super.saveAll();
+    synchronized (this._storeLock) {
+      try {
+        this._log.force(false);
+      }
+      catch (IOException e) {
+        this._logger.error("Error forcing predicate log to disk.", e);
+      }
+    }
+  }
+
+  /**
+   * Appends the given predicates to the log as a single record.
+   * 
+   * @see org.aitools.programd.predicates.PredicateManager#savePredicates(java.lang.String, java.lang.String,
+   *      java.util.Map)
+   */
+  @Override
+  protected void savePredicates(String userid, String botid, Map<String, PredicateValue> predicates) {
+    Map<String, String> values = flatten(predicates);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeLong(0);
+      writeString(out, botid);
+      writeString(out, userid);
+      writeValues(out, values);
+      out.close();
+    }
+    catch (IOException e) {
+      throw new UserError("Error trying to save predicates.", e);
+    }
+    byte[] record = bytes.toByteArray();
+    CRC32 crc = new CRC32();
+    crc.update(record, RECORD_HEADER_LENGTH, record.length - RECORD_HEADER_LENGTH);
+    ByteBuffer buffer = ByteBuffer.wrap(record);
+    buffer.putInt(0, record.length - RECORD_HEADER_LENGTH);
+    buffer.putInt(4, (int) crc.getValue());
+
+    boolean compact;
+    synchronized (this._storeLock) {
+      try {
+        while (buffer.hasRemaining()) {
+          this._log.write(buffer);
+        }
+      }
+      catch (IOException e) {
+        throw new UserError("Error trying to save predicates.", e);
+      }
+      this._logSize += record.length;
+      String key = key(botid, userid);
+      Map<String, String> live = this._live.get(key);
+      if (live == null) {
+        this._live.put(key, values);
+      }
+      else {
+        live.putAll(values);
+      }
+      compact = this._compactionThreshold > 0 && this._logSize >= this._compactionThreshold
+          && this._compacting == null;
+    }
+    if (compact) {
+      this._compactor.wake();
+    }
+  }
+
+  /**
+   * Writes all dirty predicates, stops the compactor, and closes the log.
+   * 
+   * @see org.aitools.programd.predicates.PredicateManager#shutdown()
+   */
+  @Override
+  public void shutdown() {
+    super.shutdown();
+    if (this._compactor != null) {
+      this._compactor.shutdown();
+    }
+    synchronized (this._storeLock) {
+      try {
+        this._log.close();
+      }
+      catch (IOException e) {
+        this._logger.error("Error closing predicate log.", e);
+      }
+    }
+  }
+
+  /**
+   * Writes a new store from an old one (if any) and a set of changes.
+   * 
+   * @param file the file to write
+   * @param oldStore the old store (may be <code>null</code>)
+   * @param changes the changes, by owner key (with removals as nulls)
+   * @return the number of users in the new store
+   * @throws IOException if there is a problem writing
+   */
+  private int writeStore(File file, Store oldStore, Map<String, Map<String, String>> changes) throws IOException {
+    // Collect the owners from the old store and the changes, and sort them by hash.
+    List<IndexEntry> entries = new ArrayList<IndexEntry>();
+    Set<String> seen = new HashSet<String>();
+    if (oldStore != null) {
+      long indexOffset = oldStore.getLong(0);
+      int count = oldStore.getInt(8);
+      for (int entry = 0; entry < count; entry++) {
+        long offset = oldStore.getLong(indexOffset + (long) entry * INDEX_ENTRY_LENGTH + 8);
+        Cursor cursor = new Cursor(oldStore, offset);
+        String bot = cursor.readString();
+        String user = cursor.readString();
+        entries.add(new IndexEntry(bot, user, offset));
+        seen.add(key(bot, user));
+      }
+    }
+    for (String key : changes.keySet()) {
+      if (!seen.contains(key)) {
+        int separator = key.indexOf('\u0000');
+        entries.add(new IndexEntry(key.substring(0, separator), key.substring(separator + 1), -1));
+      }
+    }
+    Collections.sort(entries, new Comparator<IndexEntry>() {
+      @Override
+      public int compare(IndexEntry one, IndexEntry other) {
+        return one.hash < other.hash ? -1 : (one.hash > other.hash ? 1 : 0);
+      }
+    });
+
+    // Write the blocks, then the index, then go back and fill in the header.
+    FileOutputStream fileOut = new FileOutputStream(file);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+    List<long[]> index = new ArrayList<long[]>(entries.size());
+    long position = HEADER_LENGTH;
+    // Each block is put together here first, to learn its length (the stream's own count stops at 2GB).
+    ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+    DataOutputStream block = new DataOutputStream(blockBytes);
+    try {
+      out.write(new byte[HEADER_LENGTH]);
+      for (IndexEntry entry : entries) {
+        Map<String, String> values = new HashMap<String, String>();
+        if (entry.oldOffset >= 0) {
+          Cursor cursor = new Cursor(oldStore, entry.oldOffset);
+          cursor.readString();
+          cursor.readString();
+          cursor.readValues(values);
+        }
+        apply(values, changes.get(key(entry.botid, entry.userid)));
+        if (values.isEmpty()) {
+          continue;
+        }
+        index.add(new long[] { entry.hash, position });
+        blockBytes.reset();
+        writeString(block, entry.botid);
+        writeString(block, entry.userid);
+        writeValues(block, values);
+        blockBytes.writeTo(out);
+        position += blockBytes.size();
+      }
+      for (long[] entry : index) {
+        out.writeLong(entry[0]);
+        out.writeLong(entry[1]);
+      }
+      out.flush();
+      fileOut.getFD().sync();
+    }
+    finally {
+      out.close();
+    }
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.writeLong(position);
+      raf.writeInt(index.size());
+      raf.getFD().sync();
+    }
+    finally {
+      raf.close();
+    }
+    return index.size();
+  }
+}
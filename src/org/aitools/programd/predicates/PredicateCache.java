@@ -0,0 +1,214 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.predicates;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Holds a bot's cached predicates, keyed by userid. The cache can be trimmed (see {@link #evict(int, long)}) to a
+ * maximum number of users, and of users who have not been heard from for a while; the predicates of a user are never
+ * evicted while they have changes that have not yet been written to storage, nor while another thread holds their
+ * lock.
+ * </p>
+ * <p>
+ * Looking up a user takes no lock that other users need: each map notes when its user was last heard from, and only
+ * trimming the cache sorts the users by that time (so the order in which they are evicted is only approximately least
+ * recently used first). This class is safe for use by multiple threads.
+ * </p>
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class PredicateCache {
+
+  /**
+   * A user whose predicates may be evicted, with the time they were last heard from when the cache was trimmed (which
+   * does not change while the users are sorted).
+   */
+  private static class Candidate implements Comparable<Candidate> {
+
+    /** The userid. */
+    protected String userid;
+
+    /** The cached predicates of the user. */
+    protected PredicateMap predicates;
+
+    /** When the user was last heard from. */
+    protected long lastAccess;
+
+    /**
+     * @param user the userid
+     * @param cached the cached predicates of the user
+     */
+    protected Candidate(String user, PredicateMap cached) {
+      this.userid = user;
+      this.predicates = cached;
+      this.lastAccess = cached.getLastAccess();
+    }
+
+    /**
+     * @see java.lang.Comparable#compareTo(java.lang.Object)
+     */
+    @Override
+    public int compareTo(Candidate other) {
+      return this.lastAccess < other.lastAccess ? -1 : this.lastAccess == other.lastAccess ? 0 : 1;
+    }
+  }
+
+  /** The cached predicates, keyed by userid. */
+  private ConcurrentMap<String, PredicateMap> _users = new ConcurrentHashMap<String, PredicateMap>();
+
+  /** The number of times the predicates of a user were found in the cache. */
+  private AtomicLong _hits = new AtomicLong();
+
+  /** The number of times the predicates of a user were not found in the cache. */
+  private AtomicLong _misses = new AtomicLong();
+
+  /** The number of users whose predicates have been evicted. */
+  private AtomicLong _evictions = new AtomicLong();
+
+  /**
+   * Indicates whether the predicates of the given user are in the cache.
+   * 
+   * @param userid the userid
+   * @return whether the predicates of the given user are in the cache
+   */
+  public boolean contains(String userid) {
+    return this._users.containsKey(userid);
+  }
+
+  /**
+   * Removes the predicates of users from the cache, least recently used first, until no more than
+   * <code>maxUsers</code> remain and none has been idle for more than <code>idleTimeout</code> milliseconds. Users whose
+   * predicates have unsaved changes, or are in use, are skipped. Evicted predicates are marked as such. Only one thread
+   * trims the cache at a time.
+   * 
+   * @param maxUsers the most users to keep (0 or less means no limit)
+   * @param idleTimeout the longest a user may be idle (0 or less means no limit)
+   * @return the number of users evicted
+   */
+  public synchronized int evict(int maxUsers, long idleTimeout) {
+    long now = System.currentTimeMillis();
+    boolean bySize = maxUsers > 0 && this._users.size() > maxUsers;
+    if (!bySize && idleTimeout <= 0) {
+      return 0;
+    }
+    List<Candidate> candidates = new ArrayList<Candidate>();
+    for (Map.Entry<String, PredicateMap> entry : this._users.entrySet()) {
+      Candidate candidate = new Candidate(entry.getKey(), entry.getValue());
+      // When trimming only by idle time, there is no need to consider (or sort) users who are not idle.
+      if (bySize || now - candidate.lastAccess > idleTimeout) {
+        candidates.add(candidate);
+      }
+    }
+    if (bySize) {
+      Collections.sort(candidates);
+    }
+    int evicted = 0;
+    for (Candidate candidate : candidates) {
+      boolean overSize = maxUsers > 0 && this._users.size() > maxUsers;
+      boolean idle = idleTimeout > 0 && now - candidate.lastAccess > idleTimeout;
+      if (!overSize && !idle) {
+        if (bySize) {
+          break;
+        }
+        continue;
+      }
+      PredicateMap predicates = candidate.predicates;
+      if (predicates.tryLock()) {
+        try {
+          // A user heard from again since the candidates were gathered is kept, unless the cache is still too big.
+          if (!predicates.isDirty() && (overSize || now - predicates.getLastAccess() > idleTimeout)) {
+            predicates.markEvicted();
+            this._users.remove(candidate.userid, predicates);
+            evicted++;
+          }
+        }
+        finally {
+          predicates.unlock();
+        }
+      }
+    }
+    this._evictions.addAndGet(evicted);
+    return evicted;
+  }
+
+  /**
+   * Returns the cached predicates of the given user (or <code>null</code>), without counting this as hearing from the
+   * user.
+   * 
+   * @param userid the userid
+   * @return the cached predicates of the given user, or <code>null</code>
+   */
+  public PredicateMap get(String userid) {
+    return this._users.get(userid);
+  }
+
+  /**
+   * @return the number of users whose predicates have been evicted
+   */
+  public long getEvictionCount() {
+    return this._evictions.get();
+  }
+
+  /**
+   * @return the number of times the predicates of a user were found in the cache
+   */
+  public long getHitCount() {
+    return this._hits.get();
+  }
+
+  /**
+   * @return the number of times the predicates of a user were not found in the cache
+   */
+  public long getMissCount() {
+    return this._misses.get();
+  }
+
+  /**
+   * Returns the cached predicates of the given user, or a new, empty map (which is cached) if there are none, and notes
+   * that the user has been heard from.
+   * 
+   * @param userid the userid
+   * @return the predicates of the given user
+   */
+  public PredicateMap predicatesFor(String userid) {
+    PredicateMap predicates = this._users.get(userid);
+    if (predicates == null) {
+      PredicateMap created = new PredicateMap();
+      predicates = this._users.putIfAbsent(userid, created);
+      if (predicates == null) {
+        predicates = created;
+        this._misses.incrementAndGet();
+      }
+      else {
+        this._hits.incrementAndGet();
+      }
+    }
+    else {
+      this._hits.incrementAndGet();
+    }
+    predicates.touch(System.currentTimeMillis());
+    return predicates;
+  }
+
+  /**
+   * @return the number of users whose predicates are cached
+   */
+  public int size() {
+    return this._users.size();
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.predicates;
+
+import org.aitools.programd.util.ManagedProcess;
+import org.apache.log4j.Logger;
+
+/**
+ * Writes changed predicates to storage in the background, on behalf of a {@link PredicateManager}. It wakes up every
+ * flush interval, or sooner if the manager asks it to, and writes batches of changed predicates until there are none
+ * left. Then it evicts from the predicate caches any users who have been idle for too long.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class PredicateFlusher implements ManagedProcess {
+
+  /** The manager whose predicates this writes. */
+  private PredicateManager _manager;
+
+  /** How long (in milliseconds) to wait between flushes (0 means wait until woken). */
+  private long _interval;
+
+  /** Whether a flush has been requested since the last one started. */
+  private boolean _wakeRequested = false;
+
+  /** Whether this is (still) running. */
+  private volatile boolean _running = true;
+
+  /** The general Program D logger. */
+  private Logger _logger = Logger.getLogger("programd");
+
+  /**
+   * Creates a new PredicateFlusher for the given manager.
+   * 
+   * @param manager the manager whose predicates to write
+   * @param interval how long (in milliseconds) to wait between flushes (0 or less means wait until woken)
+   */
+  public PredicateFlusher(PredicateManager manager, int interval) {
+    this._manager = manager;
+    this._interval = Math.max(interval, 0);
+  }
+
+  /**
+   * @return whether this is running
+   */
+  public boolean isRunning() {
+    return this._running;
+  }
+
+  /**
+   * @see java.lang.Runnable#run()
+   */
+  @Override
+  public void run() {
+    while (this._running) {
+      synchronized (this) {
+        try {
+          if (!this._wakeRequested) {
+            this.wait(this._interval);
+          }
+        }
+        catch (InterruptedException e) {
+          this._running = false;
+        }
+        this._wakeRequested = false;
+      }
+      try {
+        while (this._manager.flushBatch() > 0 && this._manager.hasDirtyPredicates()) {
+          // Keep going until there is nothing left to write (or nothing can be written).
+        }
+        this._manager.evictIdleUsers();
+      }
+      catch (RuntimeException e) {
+        this._logger.error("Error writing predicates.", e);
+      }
+    }
+  }
+
+  /**
+   * Stops this. Any predicates still waiting to be written are left to {@link PredicateManager#saveAll()}.
+   * 
+   * @see org.aitools.programd.util.ManagedProcess#shutdown()
+   */
+  @Override
+  public synchronized void shutdown() {
+    this._running = false;
+    this.notifyAll();
+  }
+
+  /**
+   * Asks this to flush as soon as possible, rather than waiting for the rest of the flush interval.
+   */
+  public synchronized void wake() {
+    this._wakeRequested = true;
+    this.notifyAll();
+  }
+}
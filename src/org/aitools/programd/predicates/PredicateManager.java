@@ -9,8 +9,22 @@
 
 package org.aitools.programd.predicates;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import org.aitools.programd.Bot;
 import org.aitools.programd.Bots;
 import org.aitools.programd.Core;
 import org.aitools.programd.CoreSettings;
@@ -19,13 +33,18 @@ import org.apache.log4j.Logger;
 
 /**
  * <p>
- * Maintains predicate values for userids. Every public set and get method checks the size of the cache, and saves out
- * part of it if it has exceeded a configurable limit.
+ * Maintains predicate values for userids. Predicates are read from and changed in the bots' predicate caches; every
+ * change also marks the predicate as dirty (awaiting storage). A {@link PredicateFlusher} writes dirty predicates to
+ * storage in the background, in batches, so no request waits while predicates are saved. A predicate that is changed
+ * several times before it is written is only written once, with its latest value.
  * </p>
  * <p>
- * This currently has the defect that it doesn't choose intelligently which userids' predicates to cache (it should do
- * this for the ones who have not been heard from the longest). The HashMap that contains the predicates (keyed by
- * userid) makes no guarantees about order. :-(
+ * If too many dirty predicates pile up (because storage cannot keep up), changes wait until the flusher has caught up.
+ * </p>
+ * <p>
+ * There is no lock on the manager as a whole. Each user's predicates are locked (see {@link PredicateMap#lock()})
+ * while they are read or changed, so requests from different users never wait for each other, even while one of them
+ * is loading predicates from storage. The dirty queue has a lock of its own, which is only held briefly.
  * </p>
  * 
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
@@ -35,6 +54,12 @@ abstract public class PredicateManager {
   /** Maximum index of indexed predicates. */
   public static final int MAX_INDEX = 5;
 
+  /** The most prefetch requests that may wait for a prefetch thread. */
+  private static final int PREFETCH_QUEUE_SIZE = 1000;
+
+  /** The fraction of a full cache (1 in this many users) that is evicted at once, so that it is not trimmed per user. */
+  private static final int EVICTION_FRACTION = 16;
+
   /**
    * Returns, from the cache, an ArrayList of values assigned to a <code>name</code> for a predicate for a
    * <code>userid</code>. If the <code>name</code> exists in a predicate for the <code>userid</code> but it is not
@@ -56,11 +81,44 @@ abstract public class PredicateManager {
 
   }
 
-  /** The number of predicate set operations to allow before saving predicates. */
+  /** The number of dirty predicates at which the flusher is woken without waiting for the flush interval. */
   private int _flushSize;
 
-  /** A counter for tracking the number of predicate set operations. */
-  protected int _setCount = 0;
+  /** The largest number of dirty predicates to write at a time (0 or less means no limit). */
+  private int _batchSize;
+
+  /** The most dirty predicates allowed before changes wait for the flusher (0 or less means no limit). */
+  private int _dirtyMax;
+
+  /** The dirty predicates, by owner, with the owners that have waited longest first (guarded by itself). */
+  private LinkedHashMap<PredicateOwner, DirtyPredicates> _dirty = new LinkedHashMap<PredicateOwner, DirtyPredicates>();
+
+  /** The number of dirty predicates (guarded by {@link #_dirty}). */
+  private int _dirtyCount = 0;
+
+  /** The most users whose predicates are kept in each bot's cache (0 or less means no limit). */
+  private int _cacheMaxUsers;
+
+  /** How long (in milliseconds) the predicates of an idle user are kept in the cache (0 or less means no limit). */
+  private long _cacheIdleTimeout;
+
+  /** The most characters of a pushed value that are kept (0 or less means no limit). */
+  private int _pushMaxLength;
+
+  /** Held while predicates are being written, so that they are written in the order in which they changed. */
+  private Object _saveLock = new Object();
+
+  /** The background flusher (<code>null</code> if this does not store predicates anywhere). */
+  protected PredicateFlusher _flusher;
+
+  /** The threads that load the predicates of users ahead of time (<code>null</code> if there is no prefetching). */
+  private ThreadPoolExecutor _prefetchers;
+
+  /** Logs the counts of predicate reads and writes now and then (<code>null</code> if they are not logged). */
+  private Timer _statsLogger;
+
+  /** Counts of predicate reads and writes. */
+  protected PredicateStats _stats = new PredicateStats();
 
   /** The predicate empty default. */
   protected String _predicateEmptyDefault;
@@ -75,7 +133,8 @@ abstract public class PredicateManager {
   protected Logger _logger;
 
   /**
-   * Creates a new PredicateMaster with the given Core as its owner.
+   * Creates a new PredicateMaster with the given Core as its owner. Nothing is set up or started until
+   * {@link #start()} is called.
    * 
    * @param core the Core that owns this PredicateMaster
    */
@@ -86,7 +145,124 @@ abstract public class PredicateManager {
     this._predicateEmptyDefault = coreSettings.getPredicateEmptyDefault();
     this._logger = Logger.getLogger("programd");
     this._flushSize = coreSettings.getPredicateFlushPeriod();
-    this.initialize();
+    this._batchSize = coreSettings.getPredicateFlushBatchSize();
+    this._dirtyMax = coreSettings.getPredicateDirtyQueueMax();
+    this._cacheMaxUsers = coreSettings.getPredicateCacheMaxUsers();
+    this._cacheIdleTimeout = coreSettings.getPredicateCacheIdleTimeout();
+    this._pushMaxLength = coreSettings.getPredicatePushMaxLength();
+  }
+
+  /**
+   * The user and bot to whom some predicates belong.
+   */
+  private static class PredicateOwner {
+
+    /** The userid. */
+    protected String userid;
+
+    /** The botid. */
+    protected String botid;
+
+    /**
+     * @param user the userid
+     * @param bot the botid
+     */
+    protected PredicateOwner(String user, String bot) {
+      this.userid = user;
+      this.botid = bot;
+    }
+
+    /**
+     * @see java.lang.Object#equals(java.lang.Object)
+     */
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof PredicateOwner)) {
+        return false;
+      }
+      PredicateOwner other = (PredicateOwner) obj;
+      return this.userid.equals(other.userid) && this.botid.equals(other.botid);
+    }
+
+    /**
+     * @see java.lang.Object#hashCode()
+     */
+    @Override
+    public int hashCode() {
+      return 31 * this.userid.hashCode() + this.botid.hashCode();
+    }
+  }
+
+  /**
+   * The names of a user's dirty predicates, with the cached predicates in which they are found. The queue holds on to
+   * the predicates themselves (rather than looking them up again in the cache), so that they can always be written.
+   */
+  private static class DirtyPredicates {
+
+    /** The cached predicates. */
+    protected PredicateMap predicates;
+
+    /** The names of the dirty predicates. */
+    protected Set<String> names = new HashSet<String>();
+
+    /**
+     * @param cached the cached predicates
+     */
+    protected DirtyPredicates(PredicateMap cached) {
+      this.predicates = cached;
+    }
+  }
+
+  /**
+   * Copies of some of a user's predicates, waiting to be written.
+   */
+  private static class PendingWrite {
+
+    /** The user and bot to whom the predicates belong. */
+    protected PredicateOwner owner;
+
+    /** The cached predicates from which the values were copied. */
+    protected PredicateMap predicates;
+
+    /** The change count of each predicate when its value was copied. */
+    protected Map<String, Integer> changeCounts;
+
+    /** The copied values, keyed by name. */
+    protected Map<String, PredicateValue> values;
+
+    /**
+     * @param predicateOwner the user and bot to whom the predicates belong
+     * @param cached the cached predicates from which the values are copied
+     * @param size the number of values to expect
+     */
+    protected PendingWrite(PredicateOwner predicateOwner, PredicateMap cached, int size) {
+      this.owner = predicateOwner;
+      this.predicates = cached;
+      this.changeCounts = new HashMap<String, Integer>(size);
+      this.values = new HashMap<String, PredicateValue>(size);
+    }
+  }
+
+  /**
+   * If too many dirty predicates are already waiting to be written, waits until the flusher has caught up. Must be
+   * called before locking the user's predicates.
+   */
+  protected void awaitCapacity() {
+    if (this._flusher == null || this._dirtyMax <= 0) {
+      return;
+    }
+    synchronized (this._dirty) {
+      while (this._dirtyCount >= this._dirtyMax && this._flusher.isRunning()) {
+        this._flusher.wake();
+        try {
+          this._dirty.wait();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
   }
 
   /**
@@ -97,6 +273,7 @@ abstract public class PredicateManager {
    * @return the best available default predicate
    */
   protected String bestAvailableDefault(String name, String botid) {
+    this._stats.noteDefault(name, botid);
     Map<String, PredicateInfo> predicatesInfo = this._bots.get(botid).getPredicatesInfo();
 
     // There may be an individual default defined.
@@ -112,21 +289,117 @@ abstract public class PredicateManager {
   }
 
   /**
-   * Saves all predicates and removes them from memory.
+   * Shortens a value that is to be pushed, if it is longer than the configured maximum, by keeping only its end (which
+   * is where the last sentence, used when matching <code>that</code>, is found).
+   * 
+   * @param value the value to shorten
+   * @return the value, or its end
    */
-  abstract protected void dumpPredicates();
+  protected String clip(String value) {
+    if (this._pushMaxLength <= 0 || value.length() <= this._pushMaxLength) {
+      return value;
+    }
+    return value.substring(value.length() - this._pushMaxLength).trim();
+  }
 
   /**
-   * Checks the predicate cache, and saves out predicates if necessary.
+   * Removes from the bots' caches the predicates of users who have not been heard from for longer than the cache idle
+   * timeout (unless they have unsaved changes).
+   * 
+   * @return the number of users evicted
+   */
+  public int evictIdleUsers() {
+    if (this._flusher == null || this._cacheIdleTimeout <= 0) {
+      return 0;
+    }
+    int evicted = 0;
+    for (Bot bot : this._bots.values()) {
+      evicted += bot.getPredicateCache().evict(0, this._cacheIdleTimeout);
+    }
+    return evicted;
+  }
+
+  /**
+   * Writes a batch of dirty predicates to storage. The batch is taken from the dirty queue, and the values are copied
+   * while holding each user's lock, but they are written without holding any lock that a request might need. A
+   * predicate is only noted as saved if it has not been changed again since it was copied (in which case it is already
+   * back on the dirty queue). If writing the predicates of some user fails, they are marked dirty again, to be retried
+   * later.
+   * 
+   * @return the number of predicates written
    */
   @SuppressWarnings("boxing")
-  protected void flushIfNecessary() {
-    // See if we have exceeded the cacheMax.
-    if (this._setCount > this._flushSize) {
-      if (this._logger.isDebugEnabled()) {
-        this._logger.debug(String.format("Set count %d exceeds flush size %d.", this._setCount, this._flushSize));
+  public int flushBatch() {
+    synchronized (this._saveLock) {
+      Map<PredicateOwner, DirtyPredicates> dirty = new LinkedHashMap<PredicateOwner, DirtyPredicates>();
+      synchronized (this._dirty) {
+        int count = 0;
+        Iterator<Map.Entry<PredicateOwner, DirtyPredicates>> iterator = this._dirty.entrySet().iterator();
+        while (iterator.hasNext() && (this._batchSize <= 0 || count < this._batchSize)) {
+          Map.Entry<PredicateOwner, DirtyPredicates> entry = iterator.next();
+          iterator.remove();
+          dirty.put(entry.getKey(), entry.getValue());
+          count += entry.getValue().names.size();
+        }
+        this._dirtyCount -= count;
+        // Anyone waiting for room can go ahead now.
+        this._dirty.notifyAll();
       }
-      this.saveAll();
+      List<PendingWrite> batch = new ArrayList<PendingWrite>(dirty.size());
+      for (Map.Entry<PredicateOwner, DirtyPredicates> entry : dirty.entrySet()) {
+        PredicateOwner owner = entry.getKey();
+        Set<String> names = entry.getValue().names;
+        // Dirty predicates are never evicted, but even if these have been, their values are still here to be written.
+        PredicateMap predicates = entry.getValue().predicates;
+        predicates.lock();
+        try {
+          PendingWrite write = new PendingWrite(owner, predicates, names.size());
+          for (String name : names) {
+            write.changeCounts.put(name, predicates.getChangeCount(name));
+            PredicateValue value = predicates.get(name);
+            if (value != null) {
+              write.values.put(name, new PredicateValue(value));
+            }
+          }
+          batch.add(write);
+        }
+        finally {
+          predicates.unlock();
+        }
+      }
+      int saved = 0;
+      for (PendingWrite write : batch) {
+        try {
+          this.savePredicates(write.owner.userid, write.owner.botid, write.values);
+          saved += write.values.size();
+          write.predicates.lock();
+          try {
+            for (Map.Entry<String, Integer> change : write.changeCounts.entrySet()) {
+              write.predicates.noteSaved(change.getKey(), change.getValue());
+            }
+          }
+          finally {
+            write.predicates.unlock();
+          }
+        }
+        catch (RuntimeException e) {
+          this._logger.error(String.format("Error saving predicates for user \"%s\" (bot \"%s\").",
+              write.owner.userid, write.owner.botid), e);
+          write.predicates.lock();
+          try {
+            for (String name : write.values.keySet()) {
+              this.markDirty(name, write.predicates, write.owner.userid, write.owner.botid);
+            }
+          }
+          finally {
+            write.predicates.unlock();
+          }
+        }
+      }
+      if (saved > 0 && this._logger.isDebugEnabled()) {
+        this._logger.debug(String.format("Saved %d predicates.", saved));
+      }
+      return saved;
     }
   }
 
@@ -142,55 +415,21 @@ abstract public class PredicateManager {
    *         given <code>userid</code>
    */
   @SuppressWarnings("boxing")
-  public synchronized String get(String name, int index, String userid, String botid) {
-    // Get existing or new predicates map for userid.
-    PredicateMap predicates = this._bots.get(botid).predicatesFor(userid);
+  public String get(String name, int index, String userid, String botid) {
+    this._stats.noteRead(name, botid);
 
-    String result = null;
+    // Get and lock existing or new predicates map for userid.
+    PredicateMap predicates = this.lockPredicatesFor(userid, botid);
+    try {
+      String result = null;
 
-    // Get the list of values.
-    PredicateValue value = null;
-    if (!predicates.containsKey(name)) {
-      // No values cached; try loading.
-      if (this._logger.isDebugEnabled()) {
-        this._logger.debug(String.format("Predicate \"%s\" is not cached; attempting to load.", name));
-      }
-      try {
-        value = this.loadMultivaluedPredicate(name, predicates, userid, botid);
-        if (this._logger.isDebugEnabled()) {
-          this._logger.debug(String.format("Successfully loaded predicate \"%s\".", name));
-        }
-        predicates.put(name, value);
-      }
-      catch (NoSuchPredicateException e) {
-        // Still no list, so set and cache default.
-        if (this._logger.isDebugEnabled()) {
-          this._logger
-              .debug(String.format("Could not load predicate \"%s\"; setting to best available default.", name));
-        }
-        result = this.bestAvailableDefault(name, botid);
-        predicates.put(name, result);
-      }
-    }
-    else {
-      try {
-        value = getMultivaluedPredicateValue(name, predicates);
+      // Get the list of values.
+      PredicateValue value = null;
+      if (!predicates.containsKey(name)) {
+        // No values cached; try loading.
         if (this._logger.isDebugEnabled()) {
-          this._logger.debug(String.format("Successfully retrieved multi-valued predicate \"%s\" from cache.", name));
+          this._logger.debug(String.format("Predicate \"%s\" is not cached; attempting to load.", name));
         }
-      }
-      catch (NoSuchPredicateException e) {
-        assert false : "predicates.containsKey(name) but getMultivaluedPredicateValue(name, predicates) throws NoSuchPredicateException!";
-      }
-    }
-
-    if (value != null) {
-      // The index may be invalid.
-      try {
-        // Get the value at index.
-        result = value.get(index);
-      }
-      catch (IndexOutOfBoundsException e) {
         try {
           value = this.loadMultivaluedPredicate(name, predicates, userid, botid);
           if (this._logger.isDebugEnabled()) {
@@ -198,27 +437,67 @@ abstract public class PredicateManager {
           }
           predicates.put(name, value);
         }
-        catch (NoSuchPredicateException ee) {
-          assert false;
+        catch (NoSuchPredicateException e) {
+          // Still no list, so set and cache default.
+          if (this._logger.isDebugEnabled()) {
+            this._logger
+                .debug(String.format("Could not load predicate \"%s\"; setting to best available default.", name));
+          }
+          result = this.bestAvailableDefault(name, botid);
+          predicates.put(name, result);
+        }
+      }
+      else {
+        try {
+          value = getMultivaluedPredicateValue(name, predicates);
+          if (this._logger.isDebugEnabled()) {
+            this._logger.debug(String.format("Successfully retrieved multi-valued predicate \"%s\" from cache.", name));
+          }
+        }
+        catch (NoSuchPredicateException e) {
+          assert false : "predicates.containsKey(name) but getMultivaluedPredicateValue(name, predicates) throws NoSuchPredicateException!";
         }
+      }
+
+      if (value != null) {
+        // The index may be invalid.
         try {
           // Get the value at index.
           result = value.get(index);
         }
-        catch (IndexOutOfBoundsException ee) {
-          // Return the best available default.
-          result = this.bestAvailableDefault(name, botid);
-          this._logger
-              .warn(String
-                  .format(
-                      "Index %d not available for predicate \"%s\" (user \"%s\", bot \"%s\").  Returning best available default.",
-                      index, name, userid, botid));
+        catch (IndexOutOfBoundsException e) {
+          try {
+            value = this.loadMultivaluedPredicate(name, predicates, userid, botid);
+            if (this._logger.isDebugEnabled()) {
+              this._logger.debug(String.format("Successfully loaded predicate \"%s\".", name));
+            }
+            predicates.put(name, value);
+          }
+          catch (NoSuchPredicateException ee) {
+            // Nothing more is stored; fall back to the default below.
+          }
+          try {
+            // Get the value at index.
+            result = value.get(index);
+          }
+          catch (IndexOutOfBoundsException ee) {
+            // Return the best available default.
+            result = this.bestAvailableDefault(name, botid);
+            this._logger
+                .warn(String
+                    .format(
+                        "Index %d not available for predicate \"%s\" (user \"%s\", bot \"%s\").  Returning best available default.",
+                        index, name, userid, botid));
+          }
         }
       }
-    }
 
-    // Return the value.
-    return result;
+      // Return the value.
+      return result;
+    }
+    finally {
+      predicates.unlock();
+    }
   }
 
   /**
@@ -229,38 +508,48 @@ abstract public class PredicateManager {
    * @param botid
    * @return the <code>value</code> associated with the given <code>name</code>, for the given <code>userid</code>
    */
-  public synchronized String get(String name, String userid, String botid) {
-    // Get existing or new predicates map for userid.
-    PredicateMap predicates = this._bots.get(botid).predicatesFor(userid);
+  public String get(String name, String userid, String botid) {
+    this._stats.noteRead(name, botid);
 
-    // Try to get the predicate value from the cache.
-    if (predicates.containsKey(name)) {
-      return predicates.get(name).getFirstValue();
-    }
-    // otherwise...
-    if (this._logger.isDebugEnabled()) {
-      this._logger.debug(String.format("Predicate \"%s\" is not cached.", name));
-    }
-    String loadedValue;
+    // Get and lock existing or new predicates map for userid.
+    PredicateMap predicates = this.lockPredicatesFor(userid, botid);
     try {
-      loadedValue = this.loadPredicate(name, userid, botid);
-      if (this._logger.isDebugEnabled()) {
-        this._logger.debug(String.format("Successfully loaded predicate \"%s\".", name));
+      // Try to get the predicate value from the cache.
+      if (predicates.containsKey(name)) {
+        return predicates.get(name).getFirstValue();
       }
-    }
-    catch (NoSuchPredicateException e) {
-      // If not found, set and cache the best available default.
+      // otherwise...
       if (this._logger.isDebugEnabled()) {
-        this._logger.debug(String.format("Could not load predicate \"%s\"; setting to best available default.", name));
+        this._logger.debug(String.format("Predicate \"%s\" is not cached.", name));
+      }
+      String loadedValue;
+      try {
+        if (predicates.isLoaded()) {
+          // Everything stored for this user is already in the cache.
+          throw new NoSuchPredicateException(name);
+        }
+        loadedValue = this.loadPredicate(name, userid, botid);
+        if (this._logger.isDebugEnabled()) {
+          this._logger.debug(String.format("Successfully loaded predicate \"%s\".", name));
+        }
+      }
+      catch (NoSuchPredicateException e) {
+        // If not found, set and cache the best available default.
+        if (this._logger.isDebugEnabled()) {
+          this._logger.debug(String.format("Could not load predicate \"%s\"; setting to best available default.", name));
+        }
+        loadedValue = this.bestAvailableDefault(name, botid);
       }
-      loadedValue = this.bestAvailableDefault(name, botid);
-    }
 
-    // Cache it.
-    predicates.put(name, new PredicateValue(loadedValue));
+      // Cache it.
+      predicates.put(name, new PredicateValue(loadedValue));
 
-    // Return the loaded value.
-    return loadedValue;
+      // Return the loaded value.
+      return loadedValue;
+    }
+    finally {
+      predicates.unlock();
+    }
   }
 
   /**
@@ -310,11 +599,112 @@ abstract public class PredicateManager {
     return value;
   }
 
+  /**
+   * @return a summary of the use of the bots' predicate caches
+   */
+  @SuppressWarnings("boxing")
+  public String getCacheReport() {
+    int users = 0;
+    long hits = 0;
+    long misses = 0;
+    long evictions = 0;
+    for (Bot bot : this._bots.values()) {
+      PredicateCache cache = bot.getPredicateCache();
+      users += cache.size();
+      hits += cache.getHitCount();
+      misses += cache.getMissCount();
+      evictions += cache.getEvictionCount();
+    }
+    return String.format("Predicates cached for %,d users; %,d cache hits, %,d misses, %,d users evicted.", users,
+        hits, misses, evictions);
+  }
+
+  /**
+   * @return the counts of predicate reads and writes
+   */
+  public PredicateStats getStats() {
+    return this._stats;
+  }
+
+  /**
+   * @return whether any dirty predicates are waiting to be written
+   */
+  public boolean hasDirtyPredicates() {
+    synchronized (this._dirty) {
+      return this._dirtyCount > 0;
+    }
+  }
+
   /**
    * Does whatever initialization is needed for the particular PredicateManager.
    */
   abstract public void initialize();
 
+  /**
+   * Loads all of the predicates stored for a given user/bot combination, in one go. Indexed predicates appear as they
+   * are stored, with their index appended to their name (<code>name.1</code>, <code>name.2</code>, and so on).
+   * 
+   * @param user user identifier
+   * @param bot bot identifier
+   * @return the stored predicates, keyed by name (empty if there are none), or <code>null</code> if they could not be
+   *         loaded (in which case predicates will be loaded one at a time as they are needed)
+   */
+  abstract protected Map<String, String> loadAll(String user, String bot);
+
+  /**
+   * Loads all of the predicates stored for a given user/bot combination into the given (newly created) map, and marks
+   * it as loaded. If a predicate is stored both with and without indexes, the indexed values are used.
+   * 
+   * @param predicates the user predicates
+   * @param userid the userid
+   * @param botid the botid
+   */
+  protected void loadAllInto(PredicateMap predicates, String userid, String botid) {
+    Map<String, String> stored = this.loadAll(userid, botid);
+    if (stored == null) {
+      return;
+    }
+    Map<String, String[]> indexed = new HashMap<String, String[]>();
+    for (Map.Entry<String, String> entry : stored.entrySet()) {
+      String name = entry.getKey();
+      int dot = name.lastIndexOf('.');
+      if (dot > 0) {
+        int index;
+        try {
+          index = Integer.parseInt(name.substring(dot + 1));
+        }
+        catch (NumberFormatException e) {
+          index = 0;
+        }
+        if (index >= 1 && index <= MAX_INDEX) {
+          String baseName = name.substring(0, dot);
+          String[] values = indexed.get(baseName);
+          if (values == null) {
+            values = new String[MAX_INDEX];
+            indexed.put(baseName, values);
+          }
+          values[index - 1] = entry.getValue();
+          continue;
+        }
+      }
+      predicates.put(name, entry.getValue());
+    }
+    // Indexed values are put in last, so they replace any unindexed ones.
+    for (Map.Entry<String, String[]> entry : indexed.entrySet()) {
+      ArrayList<String> values = new ArrayList<String>(MAX_INDEX);
+      for (String value : entry.getValue()) {
+        if (value == null) {
+          break;
+        }
+        values.add(value);
+      }
+      if (values.size() > 0) {
+        predicates.put(entry.getKey(), values);
+      }
+    }
+    predicates.markLoaded();
+  }
+
   /**
    * Tries to load a predicate with <code>name</code> for <code>userid</code> from the Multiplexor into the
    * <code>predicates</code>. If successful, tries to get the value list for name. If unsuccessful, throws a
@@ -336,6 +726,11 @@ abstract public class PredicateManager {
       throw new NullPointerException("Cannot call loadMultivaluedPredicate with null predicates!");
     }
 
+    // If everything stored for this user is already in the cache, there is nothing more to load.
+    if (predicates.isLoaded()) {
+      throw new NoSuchPredicateException(name);
+    }
+
     // Try to load the predicate as an indexed predicate.
     int index = 1;
     String loadedValue;
@@ -383,6 +778,65 @@ abstract public class PredicateManager {
    */
   abstract protected String loadPredicate(String name, String user, String bot) throws NoSuchPredicateException;
 
+  /**
+   * Returns the cached predicates of the given user for the given bot (creating them if necessary, and loading all of
+   * the user's stored predicates into them), locked by the current thread. The caller must unlock them when done with
+   * them.
+   * 
+   * @param userid the userid
+   * @param botid the botid
+   * @return the locked predicates
+   */
+  protected PredicateMap lockPredicatesFor(String userid, String botid) {
+    PredicateMap predicates = this.predicatesFor(userid, botid);
+    predicates.lock();
+    // The predicates may have been evicted before we got the lock; if so, get them again.
+    while (predicates.isEvicted()) {
+      predicates.unlock();
+      predicates = this.predicatesFor(userid, botid);
+      predicates.lock();
+    }
+    // The first time a user's predicates are touched, load everything stored for them at once.
+    if (!predicates.isLoaded()) {
+      this.loadAllInto(predicates, userid, botid);
+    }
+    return predicates;
+  }
+
+  /**
+   * Marks a predicate as dirty, so that it will be written by the flusher. A predicate that is already dirty is not
+   * counted again. Must be called while holding the lock on the user's predicates.
+   * 
+   * @param name the predicate name
+   * @param predicates the cached predicates of the user
+   * @param userid the userid
+   * @param botid the botid
+   */
+  protected void markDirty(String name, PredicateMap predicates, String userid, String botid) {
+    if (this._flusher == null) {
+      return;
+    }
+    predicates.noteChange(name);
+    PredicateOwner owner = new PredicateOwner(userid, botid);
+    synchronized (this._dirty) {
+      DirtyPredicates dirty = this._dirty.get(owner);
+      if (dirty == null) {
+        dirty = new DirtyPredicates(predicates);
+        this._dirty.put(owner, dirty);
+      }
+      else if (dirty.predicates != predicates) {
+        // The predicates queued were evicted (so everything in them was saved) and have been loaded again since.
+        dirty.predicates = predicates;
+      }
+      if (dirty.names.add(name)) {
+        this._dirtyCount++;
+        if (this._flushSize > 0 && this._dirtyCount >= this._flushSize) {
+          this._flusher.wake();
+        }
+      }
+    }
+  }
+
   /**
    * Returns the name or value of a predicate, depending on whether or not it is &quot;return-name-when-set&quot;.
    * 
@@ -404,6 +858,53 @@ abstract public class PredicateManager {
     return value;
   }
 
+  /**
+   * Returns the cached predicates of the given user for the given bot (creating them if necessary). If a new user's
+   * predicates would take the bot's cache over its limit, the least recently used users are evicted first (a few at
+   * once, since finding them means looking at every user in the cache).
+   * 
+   * @param userid the userid
+   * @param botid the botid
+   * @return the cached predicates
+   */
+  protected PredicateMap predicatesFor(String userid, String botid) {
+    PredicateCache cache = this._bots.get(botid).getPredicateCache();
+    if (this._flusher != null && this._cacheMaxUsers > 0 && cache.size() >= this._cacheMaxUsers
+        && !cache.contains(userid)) {
+      cache.evict(this._cacheMaxUsers - Math.max(this._cacheMaxUsers / EVICTION_FRACTION, 1), this._cacheIdleTimeout);
+    }
+    return cache.predicatesFor(userid);
+  }
+
+  /**
+   * Starts loading, in the background, the stored predicates of the given user for the given bot, unless they are
+   * already cached. This is meant to be called when a user's session starts, so that the predicates are in memory by
+   * the time the first input needs them.
+   * 
+   * @param userid the userid
+   * @param botid the botid
+   */
+  public void prefetch(final String userid, final String botid) {
+    if (this._prefetchers == null) {
+      return;
+    }
+    Bot bot = this._bots.get(botid);
+    if (bot == null || bot.getPredicateCache().contains(userid)) {
+      return;
+    }
+    this._prefetchers.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          PredicateManager.this.lockPredicatesFor(userid, botid).unlock();
+        }
+        catch (RuntimeException e) {
+          PredicateManager.this._logger.warn(String.format("Could not prefetch predicates for \"%s\".", userid), e);
+        }
+      }
+    });
+  }
+
   /**
    * Pushes a new <code>value</code> onto an indexed predicate <code>name</code> for a given <code>userid</code>, and
    * returns either the <code>name</code> or the <code>value</code>, depending on the predicate type.
@@ -414,37 +915,54 @@ abstract public class PredicateManager {
    * @param botid
    * @return the <code>name</code> or the <code>value</code>, depending on the predicate type
    */
-  public synchronized String push(String name, String newValue, String userid, String botid) {
-    // Get existing or new predicates map for userid.
-    PredicateMap userPredicates = this._bots.get(botid).predicatesFor(userid);
+  public String push(String name, String newValue, String userid, String botid) {
+    this._stats.noteWrite(name, userid, botid);
 
-    // Get, load or create the list of values.
-    PredicateValue value = this.getLoadOrCreateMultivaluedPredicate(name, userPredicates, userid, botid);
+    // Wait for room in the dirty queue.
+    this.awaitCapacity();
 
-    // Push the new value onto the indexed predicate list.
-    value.push(Characters.removeMarkup(newValue));
+    // Get and lock existing or new predicates map for userid.
+    PredicateMap userPredicates = this.lockPredicatesFor(userid, botid);
+    try {
+      // Get, load or create the list of values.
+      PredicateValue value = this.getLoadOrCreateMultivaluedPredicate(name, userPredicates, userid, botid);
 
-    // Increment the set count.
-    this._setCount++;
+      // Push the new value onto the indexed predicate list.
+      value.push(this.clip(Characters.removeMarkup(newValue)));
 
-    // Flush if necessary.
-    this.flushIfNecessary();
+      // Mark it for writing.
+      this.markDirty(name, userPredicates, userid, botid);
 
-    // Return the name or value.
-    return this.nameOrValue(name, newValue, botid);
+      // Return the name or value.
+      return this.nameOrValue(name, newValue, botid);
+    }
+    finally {
+      userPredicates.unlock();
+    }
   }
 
   /**
-   * Saves all predicates and empties the caches.
+   * Writes all dirty predicates now, without waiting for the flusher.
    */
   public void saveAll() {
     if (this._logger.isDebugEnabled()) {
       this._logger.debug("Saving all predicates.");
     }
-    this.dumpPredicates();
-    this._setCount = 0;
+    while (this.flushBatch() > 0 && this.hasDirtyPredicates()) {
+      // Keep going until there is nothing left to write (or nothing can be written).
+    }
   }
 
+  /**
+   * Writes the given predicates of the given user to storage. The values are copies of those in the cache, so they may
+   * be written at leisure.
+   * 
+   * @param userid the userid
+   * @param botid the botid
+   * @param predicates the predicates to write, keyed by name
+   */
+  abstract protected void savePredicates(String userid, String botid, Map<String, PredicateValue> predicates);
+
   /**
    * Sets a <code>value</code> of an indexed predicate <code>name</code> for a given <code>userid</code>, and returns
    * either the <code>name</code> or the <code>value</code>, depending on the predicate type.
@@ -456,24 +974,30 @@ abstract public class PredicateManager {
    * @param botid
    * @return the <code>name</code> or the <code>value</code>, depending on the predicate type
    */
-  public synchronized String set(String name, int index, String valueToSet, String userid, String botid) {
-    // Get existing or new predicates map for userid.
-    PredicateMap predicates = this._bots.get(botid).predicatesFor(userid);
+  public String set(String name, int index, String valueToSet, String userid, String botid) {
+    this._stats.noteWrite(name, userid, botid);
 
-    // Get, load or create the list of values.
-    PredicateValue value = this.getLoadOrCreateMultivaluedPredicate(name, predicates, userid, botid);
+    // Wait for room in the dirty queue.
+    this.awaitCapacity();
 
-    // Try to set the predicate value at the index.
-    value.add(index, valueToSet);
+    // Get and lock existing or new predicates map for userid.
+    PredicateMap predicates = this.lockPredicatesFor(userid, botid);
+    try {
+      // Get, load or create the list of values.
+      PredicateValue value = this.getLoadOrCreateMultivaluedPredicate(name, predicates, userid, botid);
 
-    // Increment the set count.
-    this._setCount++;
+      // Try to set the predicate value at the index.
+      value.add(index, valueToSet);
 
-    // Flush if necessary.
-    this.flushIfNecessary();
+      // Mark it for writing.
+      this.markDirty(name, predicates, userid, botid);
 
-    // Return the name or value.
-    return this.nameOrValue(name, valueToSet, botid);
+      // Return the name or value.
+      return this.nameOrValue(name, valueToSet, botid);
+    }
+    finally {
+      predicates.unlock();
+    }
   }
 
   /**
@@ -486,20 +1010,90 @@ abstract public class PredicateManager {
    * @param botid
    * @return the <code>name</code> or the <code>value</code>, depending on the predicate type
    */
-  public synchronized String set(String name, String value, String userid, String botid) {
-    // Get existing or new predicates map for userid.
-    PredicateMap predicates = this._bots.get(botid).predicatesFor(userid);
+  public String set(String name, String value, String userid, String botid) {
+    this._stats.noteWrite(name, userid, botid);
 
-    // Put the new value into the predicate.
-    predicates.put(name, new PredicateValue(value));
+    // Wait for room in the dirty queue.
+    this.awaitCapacity();
 
-    // Increment the set count.
-    this._setCount++;
+    // Get and lock existing or new predicates map for userid.
+    PredicateMap predicates = this.lockPredicatesFor(userid, botid);
+    try {
+      // Put the new value into the predicate.
+      predicates.put(name, new PredicateValue(value));
+
+      // Mark it for writing.
+      this.markDirty(name, predicates, userid, botid);
+
+      // Return the name or value.
+      return this.nameOrValue(name, value, botid);
+    }
+    finally {
+      predicates.unlock();
+    }
+  }
+
+  /**
+   * Stops the threads started by {@link #start()}, and writes all dirty predicates. This is called by the Core when it
+   * shuts down, after the flusher has been stopped.
+   */
+  public void shutdown() {
+    if (this._statsLogger != null) {
+      this._statsLogger.cancel();
+    }
+    if (this._prefetchers != null) {
+      this._prefetchers.shutdownNow();
+    }
+    if (this._flusher != null) {
+      this._flusher.shutdown();
+    }
+    this.saveAll();
+  }
 
-    // Flush if necessary.
-    this.flushIfNecessary();
+  /**
+   * Sets up this manager (see {@link #initialize()}), and starts the threads that write, log and prefetch predicates.
+   * This is called by the Core once the manager has been constructed, so that a subclass is fully constructed before
+   * any of its methods are called.
+   */
+  public void start() {
+    CoreSettings coreSettings = this._core.getSettings();
+    this.initialize();
+    int statsLogInterval = coreSettings.getPredicateStatsLogInterval();
+    if (statsLogInterval > 0) {
+      this._statsLogger = new Timer("PredicateStatsLogger", true);
+      this._statsLogger.schedule(new TimerTask() {
+        @Override
+        public void run() {
+          PredicateManager.this._logger.info(PredicateManager.this._stats.getSummary());
+        }
+      }, statsLogInterval, statsLogInterval);
+    }
+    if (this.storesPredicates()) {
+      this._flusher = new PredicateFlusher(this, coreSettings.getPredicateFlushInterval());
+      this._core.getManagedProcesses().start(this._flusher, "PredicateFlusher");
+      int prefetchThreads = coreSettings.getPredicatePrefetchThreads();
+      if (prefetchThreads > 0) {
+        // Prefetching is only a help, so requests that find the queue full are dropped.
+        this._prefetchers = new ThreadPoolExecutor(prefetchThreads, prefetchThreads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(PREFETCH_QUEUE_SIZE), new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PredicatePrefetcher");
+                thread.setDaemon(true);
+                return thread;
+              }
+            }, new ThreadPoolExecutor.DiscardPolicy());
+      }
+    }
+  }
 
-    // Return the name or value.
-    return this.nameOrValue(name, value, botid);
+  /**
+   * Indicates whether this manager stores predicates anywhere (if not, there is no need to keep track of which ones
+   * have changed).
+   * 
+   * @return whether this manager stores predicates
+   */
+  protected boolean storesPredicates() {
+    return true;
   }
 }
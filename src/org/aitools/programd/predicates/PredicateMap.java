@@ -11,9 +11,11 @@ package org.aitools.programd.predicates;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A map of predicate names to values.
+ * A map of predicate names to values. A thread that reads or changes the map must hold its lock (see {@link #lock()}).
  * 
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
  */
@@ -24,11 +26,112 @@ public class PredicateMap extends HashMap<String, PredicateValue> {
    */
   private static final long serialVersionUID = 1L;
 
+  /** When the user to whom these predicates belong was last heard from (noted without holding the lock). */
+  private volatile long _lastAccess;
+
+  /** The number of changes made to these predicates. */
+  private int _changeCount = 0;
+
+  /** The names of predicates with changes not yet written to storage, with the change count of their last change. */
+  private Map<String, Integer> _unsaved = new HashMap<String, Integer>();
+
+  /** Held by whoever is reading or changing these predicates. */
+  private ReentrantLock _lock = new ReentrantLock();
+
+  /** Whether these predicates have been evicted from the cache (and so must not be used any more). */
+  private boolean _evicted = false;
+
+  /** Whether everything stored for the user has been loaded into this map. */
+  private boolean _loaded = false;
+
   /**
    * Creates a new <code>PredicateMap</code>.
    */
   public PredicateMap() {
     super();
+    this._lastAccess = System.currentTimeMillis();
+  }
+
+  /**
+   * @param name a predicate name
+   * @return the change count when the named predicate was last changed, or <code>null</code> if all of its changes have
+   *         been written to storage
+   */
+  public Integer getChangeCount(String name) {
+    return this._unsaved.get(name);
+  }
+
+  /**
+   * @return when the user to whom these predicates belong was last heard from
+   */
+  public long getLastAccess() {
+    return this._lastAccess;
+  }
+
+  /**
+   * @return whether any changes to these predicates have not yet been written to storage
+   */
+  public boolean isDirty() {
+    return !this._unsaved.isEmpty();
+  }
+
+  /**
+   * @return whether these predicates have been evicted from the cache
+   */
+  public boolean isEvicted() {
+    return this._evicted;
+  }
+
+  /**
+   * @return whether everything stored for the user has been loaded into this map
+   */
+  public boolean isLoaded() {
+    return this._loaded;
+  }
+
+  /**
+   * Locks these predicates, waiting if another thread holds the lock.
+   */
+  public void lock() {
+    this._lock.lock();
+  }
+
+  /**
+   * Notes that these predicates have been evicted from the cache. Must be called while holding the lock.
+   */
+  public void markEvicted() {
+    this._evicted = true;
+  }
+
+  /**
+   * Notes that everything stored for the user has been loaded into this map (so that a predicate that is not in it is
+   * not stored at all).
+   */
+  public void markLoaded() {
+    this._loaded = true;
+  }
+
+  /**
+   * Notes that a change has been made to the named predicate.
+   * 
+   * @param name the predicate name
+   */
+  public void noteChange(String name) {
+    this._changeCount++;
+    this._unsaved.put(name, Integer.valueOf(this._changeCount));
+  }
+
+  /**
+   * Notes that the named predicate has been written to storage as it was at the given change count. If it has been
+   * changed again since then, it is still unsaved.
+   * 
+   * @param name the predicate name
+   * @param changeCount the change count of the predicate when it was copied for writing
+   */
+  public void noteSaved(String name, Integer changeCount) {
+    if (changeCount != null && changeCount.equals(this._unsaved.get(name))) {
+      this._unsaved.remove(name);
+    }
   }
 
   /**
@@ -50,4 +153,29 @@ public class PredicateMap extends HashMap<String, PredicateValue> {
   public void put(String name, String value) {
     this.put(name, new PredicateValue(value));
   }
+
+  /**
+   * Notes that the user to whom these predicates belong has been heard from. Need not be called while holding the lock.
+   * 
+   * @param now the current time
+   */
+  public void touch(long now) {
+    this._lastAccess = now;
+  }
+
+  /**
+   * Locks these predicates if no other thread holds the lock.
+   * 
+   * @return whether the lock was acquired
+   */
+  public boolean tryLock() {
+    return this._lock.tryLock();
+  }
+
+  /**
+   * Unlocks these predicates.
+   */
+  public void unlock() {
+    this._lock.unlock();
+  }
 }
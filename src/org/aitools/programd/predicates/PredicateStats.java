@@ -0,0 +1,234 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.predicates;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Counts how often predicates are read and written, by predicate name and by bot, and how often a read finds no value
+ * and falls back to a default. The users who write predicates most often are tracked from a sample of writes, keeping
+ * only a bounded number of candidates (the &quot;space-saving&quot; method), so that a few very busy users stand out
+ * however many users there are.
+ * </p>
+ * <p>
+ * This class is safe for use by multiple threads. Counting takes a map lookup and an atomic increment.
+ * </p>
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class PredicateStats {
+
+  /** The index of the read count. */
+  private static final int READS = 0;
+
+  /** The index of the write count. */
+  private static final int WRITES = 1;
+
+  /** The index of the default count. */
+  private static final int DEFAULTS = 2;
+
+  /** One in how many writes is counted for the user who made it. */
+  private static final int USER_SAMPLE_INTERVAL = 16;
+
+  /** How many busy users are reported. */
+  private static final int TOP_USERS = 10;
+
+  /** How many candidates for the busiest users are tracked. */
+  private static final int USER_CANDIDATES = 100;
+
+  /** How many predicate names are reported. */
+  private static final int TOP_PREDICATES = 10;
+
+  /** The counts for each predicate name. */
+  private ConcurrentHashMap<String, AtomicLongArray> _predicates = new ConcurrentHashMap<String, AtomicLongArray>();
+
+  /** The counts for each bot. */
+  private ConcurrentHashMap<String, AtomicLongArray> _bots = new ConcurrentHashMap<String, AtomicLongArray>();
+
+  /** The number of writes seen (used for sampling). */
+  private AtomicLong _writes = new AtomicLong();
+
+  /** The (sampled) write counts of the candidates for the busiest users, by userid. */
+  private Map<String, long[]> _users = new HashMap<String, long[]>();
+
+  /**
+   * @param map the map in which to find the counts
+   * @param key the key whose counts are wanted
+   * @return the counts for the key (created if necessary)
+   */
+  private static AtomicLongArray countsFor(ConcurrentHashMap<String, AtomicLongArray> map, String key) {
+    AtomicLongArray counts = map.get(key);
+    if (counts == null) {
+      counts = new AtomicLongArray(3);
+      AtomicLongArray existing = map.putIfAbsent(key, counts);
+      if (existing != null) {
+        counts = existing;
+      }
+    }
+    return counts;
+  }
+
+  /**
+   * Sorts the entries of the given map that have a non-zero count of the given kind, highest first, and returns the top
+   * ones.
+   * 
+   * @param map the map
+   * @param which which count to sort by
+   * @param limit how many entries to return
+   * @return the top entries
+   */
+  private static List<Map.Entry<String, AtomicLongArray>> top(Map<String, AtomicLongArray> map, final int which,
+      int limit) {
+    List<Map.Entry<String, AtomicLongArray>> entries = new ArrayList<Map.Entry<String, AtomicLongArray>>();
+    for (Map.Entry<String, AtomicLongArray> entry : map.entrySet()) {
+      if (entry.getValue().get(which) > 0) {
+        entries.add(entry);
+      }
+    }
+    Collections.sort(entries, new Comparator<Map.Entry<String, AtomicLongArray>>() {
+      @Override
+      public int compare(Map.Entry<String, AtomicLongArray> one, Map.Entry<String, AtomicLongArray> other) {
+        return Long.signum(other.getValue().get(which) - one.getValue().get(which));
+      }
+    });
+    return entries.subList(0, Math.min(limit, entries.size()));
+  }
+
+  /**
+   * @return a report of the counts, with the most-used predicates, the counts for each bot, and the busiest users
+   */
+  @SuppressWarnings("boxing")
+  public String getReport() {
+    String lineSeparator = System.getProperty("line.separator");
+    StringBuilder report = new StringBuilder(this.getSummary());
+    report.append(lineSeparator).append("Most read predicates:");
+    for (Map.Entry<String, AtomicLongArray> entry : top(this._predicates, READS, TOP_PREDICATES)) {
+      report.append(String.format(" %s (%,d)", entry.getKey(), entry.getValue().get(READS)));
+    }
+    report.append(lineSeparator).append("Most written predicates:");
+    for (Map.Entry<String, AtomicLongArray> entry : top(this._predicates, WRITES, TOP_PREDICATES)) {
+      report.append(String.format(" %s (%,d)", entry.getKey(), entry.getValue().get(WRITES)));
+    }
+    report.append(lineSeparator).append("Predicates most often defaulted:");
+    for (Map.Entry<String, AtomicLongArray> entry : top(this._predicates, DEFAULTS, TOP_PREDICATES)) {
+      report.append(String.format(" %s (%,d)", entry.getKey(), entry.getValue().get(DEFAULTS)));
+    }
+    for (Map.Entry<String, AtomicLongArray> entry : this._bots.entrySet()) {
+      AtomicLongArray counts = entry.getValue();
+      report.append(lineSeparator).append(
+          String.format("Bot \"%s\": %,d reads, %,d writes, %,d defaults used.", entry.getKey(), counts.get(READS),
+              counts.get(WRITES), counts.get(DEFAULTS)));
+    }
+    List<Map.Entry<String, long[]>> users;
+    synchronized (this._users) {
+      users = new ArrayList<Map.Entry<String, long[]>>(this._users.entrySet());
+      Collections.sort(users, new Comparator<Map.Entry<String, long[]>>() {
+        @Override
+        public int compare(Map.Entry<String, long[]> one, Map.Entry<String, long[]> other) {
+          return Long.signum(other.getValue()[0] - one.getValue()[0]);
+        }
+      });
+      report.append(lineSeparator).append("Users writing most (estimated):");
+      for (Map.Entry<String, long[]> entry : users.subList(0, Math.min(TOP_USERS, users.size()))) {
+        report.append(String.format(" %s (~%,d)", entry.getKey(), entry.getValue()[0] * USER_SAMPLE_INTERVAL));
+      }
+    }
+    return report.toString();
+  }
+
+  /**
+   * @return a one-line summary of the counts
+   */
+  @SuppressWarnings("boxing")
+  public String getSummary() {
+    return String.format("Predicates: %,d reads, %,d writes, %,d defaults used, %,d distinct names.", this.total(READS),
+        this.total(WRITES), this.total(DEFAULTS), this._predicates.size());
+  }
+
+  /**
+   * Notes that a read of the given predicate found no value, so a default was used.
+   * 
+   * @param name the predicate name
+   * @param botid the botid
+   */
+  public void noteDefault(String name, String botid) {
+    countsFor(this._predicates, name).incrementAndGet(DEFAULTS);
+    countsFor(this._bots, botid).incrementAndGet(DEFAULTS);
+  }
+
+  /**
+   * Notes a read of the given predicate.
+   * 
+   * @param name the predicate name
+   * @param botid the botid
+   */
+  public void noteRead(String name, String botid) {
+    countsFor(this._predicates, name).incrementAndGet(READS);
+    countsFor(this._bots, botid).incrementAndGet(READS);
+  }
+
+  /**
+   * Notes a write of the given predicate by the given user.
+   * 
+   * @param name the predicate name
+   * @param userid the userid
+   * @param botid the botid
+   */
+  public void noteWrite(String name, String userid, String botid) {
+    countsFor(this._predicates, name).incrementAndGet(WRITES);
+    countsFor(this._bots, botid).incrementAndGet(WRITES);
+    if (this._writes.incrementAndGet() % USER_SAMPLE_INTERVAL != 0) {
+      return;
+    }
+    synchronized (this._users) {
+      long[] count = this._users.get(userid);
+      if (count != null) {
+        count[0]++;
+        return;
+      }
+      if (this._users.size() < USER_CANDIDATES) {
+        this._users.put(userid, new long[] { 1 });
+        return;
+      }
+      // Replace the candidate with the lowest count, taking over its count (so the counts are upper bounds).
+      String lowest = null;
+      long lowestCount = Long.MAX_VALUE;
+      for (Map.Entry<String, long[]> entry : this._users.entrySet()) {
+        if (entry.getValue()[0] < lowestCount) {
+          lowest = entry.getKey();
+          lowestCount = entry.getValue()[0];
+        }
+      }
+      this._users.remove(lowest);
+      this._users.put(userid, new long[] { lowestCount + 1 });
+    }
+  }
+
+  /**
+   * @param which which count to add up
+   * @return the total of the given count over all bots
+   */
+  private long total(int which) {
+    long total = 0;
+    for (AtomicLongArray counts : this._bots.values()) {
+      total += counts.get(which);
+    }
+    return total;
+  }
+}
@@ -14,18 +14,34 @@ import java.util.ArrayList;
 import org.apache.log4j.Logger;
 
 /**
+ * <p>
  * A <code>PredicateValue</code> is, naturally, the value of a predicate. It can either have a single String value, or a
  * list of values.
+ * </p>
+ * <p>
+ * A list of values is kept in a ring buffer that holds at most {@link PredicateManager#MAX_INDEX} values, so that
+ * pushing a value (as is done with <code>that</code> and <code>input</code> for every reply) takes constant time, and
+ * the values that fall off the end are simply overwritten.
+ * </p>
  * 
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
  */
 public class PredicateValue {
 
+  /** The most values a list can hold. */
+  private static final int CAPACITY = PredicateManager.MAX_INDEX;
+
   /** The single value (if assigned). */
   private String singleValue;
 
-  /** The list of values (if assigned). */
-  private ArrayList<String> valueList;
+  /** The ring buffer holding the list of values (if assigned). */
+  private String[] ring;
+
+  /** The position in the ring buffer of the first value in the list. */
+  private int head;
+
+  /** The number of values in the list. */
+  private int count;
 
   /** Whether this PredicateValue has multiple values. */
   private boolean multiValued;
@@ -33,13 +49,35 @@ public class PredicateValue {
   private static Logger LOGGER = Logger.getLogger("programd");
 
   /**
-   * Creates a new <code>PredicateValue</code> with the given list of values.
+   * Creates a new <code>PredicateValue</code> with the given list of values. Only the first
+   * {@link PredicateManager#MAX_INDEX} values are kept.
    * 
    * @param values the list of values to assign
    */
   public PredicateValue(ArrayList<String> values) {
-    this.valueList = values;
+    this.ring = new String[CAPACITY];
     this.multiValued = true;
+    for (String value : values) {
+      if (this.count == CAPACITY) {
+        break;
+      }
+      this.ring[this.count++] = value;
+    }
+  }
+
+  /**
+   * Creates a new <code>PredicateValue</code> that is a copy of the given one.
+   * 
+   * @param other the value to copy
+   */
+  public PredicateValue(PredicateValue other) {
+    this.singleValue = other.singleValue;
+    if (other.ring != null) {
+      this.ring = other.ring.clone();
+    }
+    this.head = other.head;
+    this.count = other.count;
+    this.multiValued = other.multiValued;
   }
 
   /**
@@ -53,7 +91,9 @@ public class PredicateValue {
   }
 
   /**
-   * Adds the given value into the value list at the given index.
+   * Adds the given value into the value list at the given index, moving the values at and after that index along by
+   * one (the last value falls off the end if the list is full). If the index is not valid, the value is added at the
+   * front of the list.
    * 
    * @param index the index at which to add a value
    * @param value the new value
@@ -62,26 +102,38 @@ public class PredicateValue {
     if (!this.multiValued) {
       this.becomeMultiValued();
     }
-    try {
-      this.valueList.add(index - 1, value);
+    int position = index - 1;
+    if (position < 0 || position > this.count) {
+      position = 0;
+    }
+    if (position == CAPACITY) {
+      return;
     }
-    catch (IndexOutOfBoundsException e) {
-      this.valueList.add(0, value);
+    for (int moving = Math.min(this.count, CAPACITY - 1); moving > position; moving--) {
+      this.ring[this.slot(moving)] = this.ring[this.slot(moving - 1)];
+    }
+    this.ring[this.slot(position)] = value;
+    if (this.count < CAPACITY) {
+      this.count++;
     }
   }
 
   /**
-   * Adds the given value. In all cases, this means the <code>PredicateValue</code> becomes multi-valued.
+   * Adds the given value to the end of the list (unless the list is full). In all cases, this means the
+   * <code>PredicateValue</code> becomes multi-valued.
    * 
    * @param value the value to add
    */
   public void add(String value) {
-    this.multiValued = true;
-    this.singleValue = null;
-    if (this.valueList == null) {
-      this.valueList = new ArrayList<String>(PredicateManager.MAX_INDEX);
+    if (!this.multiValued) {
+      this.multiValued = true;
+      this.singleValue = null;
+      this.ring = new String[CAPACITY];
+    }
+    if (this.count < CAPACITY) {
+      this.ring[this.slot(this.count)] = value;
+      this.count++;
     }
-    this.valueList.add(value);
   }
 
   /**
@@ -99,8 +151,10 @@ public class PredicateValue {
       LOGGER.debug("Converting predicate value to multi-valued.");
     }
     this.multiValued = true;
-    this.valueList = new ArrayList<String>(1);
-    this.valueList.add(this.singleValue);
+    this.ring = new String[CAPACITY];
+    this.ring[0] = this.singleValue;
+    this.head = 0;
+    this.count = 1;
     this.singleValue = null;
     return this;
   }
@@ -116,7 +170,10 @@ public class PredicateValue {
       }
       throw new IndexOutOfBoundsException();
     }
-    return this.valueList.get(index - 1);
+    if (index < 1 || index > this.count) {
+      throw new IndexOutOfBoundsException();
+    }
+    return this.ring[this.slot(index - 1)];
   }
 
   /**
@@ -127,7 +184,10 @@ public class PredicateValue {
    */
   public String getFirstValue() {
     if (this.multiValued) {
-      return this.valueList.get(0);
+      if (this.count == 0) {
+        throw new IndexOutOfBoundsException();
+      }
+      return this.ring[this.head];
     }
     // otherwise...
     return this.singleValue;
@@ -141,8 +201,8 @@ public class PredicateValue {
   }
 
   /**
-   * Pushes a value onto the front of a list, and pops off any values at the end of the list so that the list size is no
-   * more than {@link PredicateManager#MAX_INDEX}.
+   * Pushes a value onto the front of a list; if the list already holds {@link PredicateManager#MAX_INDEX} values, the
+   * last one is dropped.
    * 
    * @param value the value to push
    */
@@ -150,9 +210,10 @@ public class PredicateValue {
     if (!this.multiValued) {
       this.becomeMultiValued();
     }
-    this.valueList.add(0, value);
-    while (this.valueList.size() > PredicateManager.MAX_INDEX) {
-      this.valueList.remove(this.valueList.size() - 1);
+    this.head = (this.head + CAPACITY - 1) % CAPACITY;
+    this.ring[this.head] = value;
+    if (this.count < CAPACITY) {
+      this.count++;
     }
   }
 
@@ -164,6 +225,14 @@ public class PredicateValue {
       return 1;
     }
     // otherwise...
-    return this.valueList.size();
+    return this.count;
+  }
+
+  /**
+   * @param position the (0-based) position of a value in the list
+   * @return the position in the ring buffer where it is kept
+   */
+  private int slot(int position) {
+    return (this.head + position) % CAPACITY;
   }
 }
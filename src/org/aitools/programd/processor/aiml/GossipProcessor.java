@@ -9,19 +9,14 @@
 
 package org.aitools.programd.processor.aiml;
 
-import java.io.FileWriter;
-import java.io.IOException;
-
 import org.aitools.programd.Core;
 import org.aitools.programd.parser.TemplateParser;
 import org.aitools.programd.processor.ProcessorException;
-import org.aitools.util.resource.Filesystem;
-import org.aitools.util.runtime.DeveloperError;
-import org.aitools.util.runtime.UserError;
 import org.jdom.Element;
 
 /**
  * Handles a <code><a href="http://aitools.org/aiml/TR/2001/WD-aiml/#section-gossip">gossip</a></code> element.
+ * The gossip is written to the gossip file in the background, by the {@link org.aitools.programd.logging.GossipWriter}.
  * 
  * @author Jon Baer
  * @author Thomas Ringate, Pedro Colla
@@ -31,8 +26,6 @@ public class GossipProcessor extends AIMLProcessor {
   /** The label (as required by the registration scheme). */
   public static final String label = "gossip";
 
-  private static FileWriter gossipFile;
-
   /**
    * Creates a new GossipProcessor using the given Core.
    * 
@@ -51,25 +44,8 @@ public class GossipProcessor extends AIMLProcessor {
     // Get the gossip.
     String response = parser.evaluate(element.getContent());
 
-    // Initialize the FileWriter if necessary.
-    if (gossipFile == null) {
-      try {
-        gossipFile = new FileWriter(Filesystem.checkOrCreate(parser.getCore().getSettings().getGossipURL().getPath(),
-            "gossip file"));
-      }
-      catch (IOException e) {
-        throw new UserError(e);
-      }
-    }
-
-    // Put the gossip in the log.
-    try {
-      gossipFile.append(String.format("<li>%s</li>%n", response));
-      gossipFile.flush();
-    }
-    catch (IOException e) {
-      throw new DeveloperError("Error trying to write gossip.", e);
-    }
+    // Put the gossip in the log (this does not wait for it to be written).
+    parser.getCore().getGossipWriter().log(response);
     return "";
   }
 }
@@ -0,0 +1,216 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.processor.aiml;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aitools.programd.SessionListener;
+import org.aitools.util.math.MersenneTwisterFast;
+import org.jdom.Attribute;
+import org.jdom.Content;
+import org.jdom.Element;
+import org.jdom.Text;
+
+/**
+ * <p>
+ * Keeps track, for each user, of which list items of each <code>random</code> element have already been chosen, so
+ * that the non-repeating random strategy (see {@link RandomProcessor}) can avoid repeats. The choices made from each
+ * element are kept as a bit set.
+ * </p>
+ * <p>
+ * Templates are parsed afresh every time they are matched, so a <code>random</code> element is identified by a
+ * fingerprint of its content rather than by the element object. The state kept for a user is discarded when the
+ * user's session ends, or when the user has not been heard from for {@link #IDLE_TIMEOUT} milliseconds.
+ * </p>
+ * <p>
+ * This class is safe for use by multiple threads.
+ * </p>
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class RandomChoices implements SessionListener {
+
+  /** How long (in milliseconds) the state of a user who has not been heard from is kept. */
+  public static final long IDLE_TIMEOUT = 30 * 60 * 1000L;
+
+  /** How many choices are made between checks for idle users. */
+  private static final int SWEEP_INTERVAL = 1000;
+
+  /** The choices made so far, by userid. */
+  private ConcurrentHashMap<String, UserChoices> _users = new ConcurrentHashMap<String, UserChoices>();
+
+  /** The number of choices made since the last check for idle users. */
+  private AtomicInteger _sinceSweep = new AtomicInteger();
+
+  /**
+   * The choices made from a single <code>random</code> element.
+   */
+  private static class Choices {
+
+    /** The number of list items. */
+    protected int size;
+
+    /** The list items chosen so far in the current round. */
+    protected BitSet chosen;
+
+    /** The number of list items chosen so far in the current round. */
+    protected int count = 0;
+
+    /** The last list item chosen (or <code>-1</code>). */
+    protected int last = -1;
+
+    /**
+     * @param itemCount the number of list items
+     */
+    protected Choices(int itemCount) {
+      this.size = itemCount;
+      this.chosen = new BitSet(itemCount);
+    }
+
+    /**
+     * Chooses a list item that has not yet been chosen in this round. At the start of a new round, the last item chosen
+     * in the previous one is avoided, so that no item is ever chosen twice in a row.
+     * 
+     * @param generator the random number generator to use
+     * @return the index of the chosen list item
+     */
+    protected int next(MersenneTwisterFast generator) {
+      int excluded = this.count == 0 ? this.last : -1;
+      int available = this.size - this.count - (excluded >= 0 ? 1 : 0);
+      int skip = generator.nextInt(available);
+      int choice = this.chosen.nextClearBit(0);
+      while (choice == excluded || skip > 0) {
+        if (choice != excluded) {
+          skip--;
+        }
+        choice = this.chosen.nextClearBit(choice + 1);
+      }
+      this.last = choice;
+      this.count++;
+      if (this.count == this.size) {
+        this.chosen.clear();
+        this.count = 0;
+      }
+      else {
+        this.chosen.set(choice);
+      }
+      return choice;
+    }
+  }
+
+  /**
+   * The choices made for a single user.
+   */
+  private static class UserChoices {
+
+    /** The choices from each <code>random</code> element, keyed by botid and element fingerprint. */
+    protected Map<Long, Choices> elements = new HashMap<Long, Choices>();
+
+    /** When this user was last heard from. */
+    protected volatile long lastAccess;
+  }
+
+  /**
+   * Chooses a list item from the given <code>random</code> element for the given user and bot, avoiding repeats.
+   * 
+   * @param element the <code>random</code> element
+   * @param itemCount the number of list items in the element
+   * @param userid the user for whom to choose
+   * @param botid the bot for whom to choose
+   * @param generator the random number generator to use
+   * @return the index of the chosen list item
+   */
+  @SuppressWarnings("boxing")
+  public int choose(Element element, int itemCount, String userid, String botid, MersenneTwisterFast generator) {
+    long now = System.currentTimeMillis();
+    if (this._sinceSweep.incrementAndGet() >= SWEEP_INTERVAL) {
+      this._sinceSweep.set(0);
+      this.sweep(now);
+    }
+    UserChoices user = this._users.get(userid);
+    if (user == null) {
+      user = new UserChoices();
+      UserChoices existing = this._users.putIfAbsent(userid, user);
+      if (existing != null) {
+        user = existing;
+      }
+    }
+    long key = (long) botid.hashCode() << 32 | fingerprint(element) & 0xFFFFFFFFL;
+    synchronized (user) {
+      user.lastAccess = now;
+      Choices choices = user.elements.get(key);
+      if (choices == null || choices.size != itemCount) {
+        choices = new Choices(itemCount);
+        user.elements.put(key, choices);
+      }
+      return choices.next(generator);
+    }
+  }
+
+  /**
+   * @return the number of users for whom choices are being kept
+   */
+  public int getUserCount() {
+    return this._users.size();
+  }
+
+  /**
+   * Discards the choices made for the given user.
+   * 
+   * @see org.aitools.programd.SessionListener#sessionEnded(java.lang.String)
+   */
+  @Override
+  public void sessionEnded(String userid) {
+    this._users.remove(userid);
+  }
+
+  /**
+   * Discards the choices made for users who have not been heard from for a while.
+   * 
+   * @param now the current time
+   */
+  private void sweep(long now) {
+    for (Iterator<UserChoices> iterator = this._users.values().iterator(); iterator.hasNext();) {
+      if (now - iterator.next().lastAccess > IDLE_TIMEOUT) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Computes a fingerprint of the given element's content, which is the same for every parse of the same template.
+   * 
+   * @param element the element
+   * @return the fingerprint
+   */
+  @SuppressWarnings("unchecked")
+  private static int fingerprint(Element element) {
+    int hash = element.getName().hashCode();
+    for (Attribute attribute : (List<Attribute>) element.getAttributes()) {
+      hash = 31 * hash + attribute.getName().hashCode();
+      hash = 31 * hash + attribute.getValue().hashCode();
+    }
+    for (Content child : (List<Content>) element.getContent()) {
+      if (child instanceof Element) {
+        hash = 31 * hash + fingerprint((Element) child);
+      }
+      else if (child instanceof Text) {
+        hash = 31 * hash + ((Text) child).getText().hashCode();
+      }
+    }
+    return hash;
+  }
+}
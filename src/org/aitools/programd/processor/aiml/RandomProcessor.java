@@ -9,17 +9,13 @@
 
 package org.aitools.programd.processor.aiml;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import org.aitools.programd.Core;
 import org.aitools.programd.CoreSettings;
 import org.aitools.programd.parser.TemplateParser;
 import org.aitools.programd.processor.ProcessorException;
 import org.aitools.util.math.MersenneTwisterFast;
-import org.apache.commons.collections.map.LRUMap;
 import org.jdom.Element;
 
 /**
@@ -47,6 +43,11 @@ import org.jdom.Element;
  * elements in a kind of stack-based fashion, so no list item will be repeated (within the same per-user, per-bot space)
  * until all others have been chosen.
  * </p>
+ * <p>
+ * Each thread has its own generator of random numbers, which serves every user and <code>random</code> element (each
+ * choice is still uniformly distributed over the element's list items). What is remembered per user for the
+ * non-repeating strategy is kept in {@link RandomChoices}.
+ * </p>
  * 
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
  * @author Jon Baer
@@ -61,27 +62,27 @@ public class RandomProcessor extends AIMLProcessor {
   /** The tag name for a listitem element. */
   public static final String LI = "li";
 
-  @SuppressWarnings("boxing")
-  private static List<Integer> makeIncrementingList(int size) {
-    List<Integer> result = new ArrayList<Integer>();
-    for (int index = 0; index < size; index++) {
-      result.add(index);
-    }
-    return result;
-  }
+  /** The key under which the {@link RandomChoices} are stored in the Core. */
+  private static final String CHOICES = "choices";
 
-  /**
-   * The map in which MersenneTwisterFast random number generators will be stored for each unique botid + userid +
-   * random element.
-   */
-  private LRUMap generators = new LRUMap(100);
+  /** Seeds the generators for new threads, so that each thread has its own series of random numbers. */
+  private static final MersenneTwisterFast SEEDS = new MersenneTwisterFast(System.nanoTime());
+
+  /** One random number generator per thread, so that no generator is ever shared. */
+  private static final ThreadLocal<MersenneTwisterFast> GENERATOR = new ThreadLocal<MersenneTwisterFast>() {
+    @Override
+    protected MersenneTwisterFast initialValue() {
+      synchronized (SEEDS) {
+        return new MersenneTwisterFast(SEEDS.nextLong());
+      }
+    }
+  };
 
   /**
-   * The map in which indices not-yet-used listitems will be stored if non-repeating random choosing is enabled. (We
-   * store indices rather than references to the listitems themselves, because the DOM Element doesn't appear to
-   * implement equals() in a way that makes List operations like remove() work.
+   * The choices made so far by each user, if non-repeating random choosing is enabled (volatile, since it is checked
+   * before taking the lock in {@link #getChoices()}).
    */
-  private Map<String, List<Integer>> availableIndices = new HashMap<String, List<Integer>>();
+  private volatile RandomChoices _choices;
 
   /**
    * Creates a new RandomProcessor using the given Core.
@@ -90,29 +91,35 @@ public class RandomProcessor extends AIMLProcessor {
    */
   public RandomProcessor(Core core) {
     super(core);
-    this.availableIndices = core.getStoredObject(RandomProcessor.class.getName(), "availableIndices",
-        this.availableIndices);
-    this.generators = core.getStoredObject(RandomProcessor.class.getName(), "generators", this.generators);
+  }
+
+  /**
+   * Gets the choices made so far, creating them (and registering them to hear about ended sessions) the first time.
+   * 
+   * @return the choices made so far
+   */
+  private RandomChoices getChoices() {
+    RandomChoices choices = this._choices;
+    if (choices == null) {
+      synchronized (RandomProcessor.class) {
+        choices = this._core.getStoredObject(RandomProcessor.class.getName(), CHOICES, null);
+        if (choices == null) {
+          choices = new RandomChoices();
+          this._core.getStoredObject(RandomProcessor.class.getName(), CHOICES, choices);
+          this._core.addSessionListener(choices);
+        }
+        this._choices = choices;
+      }
+    }
+    return choices;
   }
 
   /**
    * @see AIMLProcessor#process(Element, TemplateParser)
    */
-  @SuppressWarnings({ "boxing", "unchecked" })
+  @SuppressWarnings("unchecked")
   @Override
   public String process(Element element, TemplateParser parser) throws ProcessorException {
-    // Construct the identifying string (botid + userid + element
-    // contents).
-    String userid = parser.getUserID();
-    String identifier = parser.getBotID() + userid + element.hashCode();
-
-    // Does the generators map already contain this one?
-    MersenneTwisterFast generator = (MersenneTwisterFast) this.generators.get(identifier);
-    if (generator == null) {
-      generator = new MersenneTwisterFast(System.currentTimeMillis());
-      this.generators.put(identifier, generator);
-    }
-
     List<Element> listitems = element.getChildren();
     int nodeCount = listitems.size();
 
@@ -122,56 +129,13 @@ public class RandomProcessor extends AIMLProcessor {
     }
 
     // Otherwise, select a random element of the listitem (if strategy is pure-random).
+    int choice;
     if (this._core.getSettings().getRandomStrategy() == CoreSettings.RandomStrategy.PURE_RANDOM) {
-      return parser.evaluate(listitems.get(generator.nextInt(nodeCount)).getContent());
-    }
-
-    // If we get here, then the no-repeat strategy is wanted.
-    List<Integer> indices;
-    Integer choice = null;
-
-    // Check whether this random + userid + botid has been selected before.
-    if (this.availableIndices.containsKey(identifier)) {
-      // If it has, get the remaining available sets.
-      indices = this.availableIndices.get(identifier);
-
-      // Note that, because of the logic below, this set will never get to size 0.
-      assert indices.size() > 0 : "Random strategy logic failed.";
-
-      /*
-       * If it is complete, then we've been through all before, and the last index in the list was the last one chosen
-       * (see below), so make sure this first choice does not repeat the last one.
-       */
-      if (indices.size() == nodeCount) {
-        choice = indices.get(generator.nextInt(indices.size() - 1));
-      }
-      else {
-        // Otherwise just make a random choice from the indices.
-        choice = indices.get(generator.nextInt(indices.size()));
-      }
+      choice = GENERATOR.get().nextInt(nodeCount);
     }
     else {
-      // If it has not (been selected before), create a new set containing an index for each listitem.
-      indices = makeIncrementingList(nodeCount);
-      this.availableIndices.put(identifier, indices);
-
-      // Make a random choice from the indices.
-      choice = indices.get(generator.nextInt(indices.size()));
-    }
-
-    // Remove the chosen index.
-    indices.remove(choice);
-
-    // If this has reduced the size to zero,
-    if (indices.size() == 0) {
-      // Reconstitute the list,
-      indices.addAll(makeIncrementingList(nodeCount));
-
-      // but remove the last choice,
-      indices.remove(choice);
-
-      // and place it last, so we can avoid repeating it next go-round (see above).
-      indices.add(choice);
+      // If we get here, then the no-repeat strategy is wanted.
+      choice = this.getChoices().choose(element, nodeCount, parser.getUserID(), parser.getBotID(), GENERATOR.get());
     }
 
     // Evaluate the node corresponding to the chosen index.
@@ -41,7 +41,8 @@ public class SRAIProcessor extends AIMLProcessor {
   /**
    * Processes a &lt;srai/&gt; element. First, all elements contained within a given &lt;srai/&gt; are evaluated, and
    * the result is recursively fed as input to the pattern matching process. The result of such evaluation (which itself
-   * might be recursive) is returned as the result.
+   * might be recursive) is returned as the result. The recursive parser shares the input/that/topic stacks of the
+   * current one, which are unwound again once the reduction is finished.
    * 
    * @param element the <code>srai</code> element
    * @param parser the parser that is at work
@@ -53,10 +54,12 @@ public class SRAIProcessor extends AIMLProcessor {
   public String process(Element element, TemplateParser parser) throws ProcessorException {
     String input = parser.evaluate(element.getContent());
     matchLogger.debug("[SYMBOLIC REDUCTION]");
-    String userid = parser.getUserID();
-    String botid = parser.getBotID();
-    TemplateParser recursiveParser = new TemplateParser(parser.getInputs(), parser.getThats(), parser.getTopics(),
-        userid, botid, this._core);
-    return this._core.getInternalResponse(input, userid, botid, recursiveParser);
+    int depth = parser.getStackDepth();
+    try {
+      return this._core.getInternalResponse(input, parser.getUserID(), parser.getBotID(), new TemplateParser(parser));
+    }
+    finally {
+      parser.unwindTo(depth);
+    }
   }
 }
@@ -138,5 +138,9 @@ public class BotServlet extends HttpServlet {
     }
     // otherwise...
     this.bot = this.core.getBot(this.botid);
+
+    // Whether the session is new or resumed, start loading the user's predicates (unless they are already cached)
+    // while the rest of the request is handled.
+    this.core.prefetchPredicates(this.userid, this.botid);
   }
 }
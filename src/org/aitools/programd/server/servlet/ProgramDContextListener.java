@@ -12,6 +12,8 @@ import java.net.URL;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
+import javax.servlet.http.HttpSessionEvent;
+import javax.servlet.http.HttpSessionListener;
 
 import org.aitools.programd.Core;
 import org.aitools.util.resource.URLTools;
@@ -19,7 +21,7 @@ import org.aitools.util.resource.URLTools;
 /**
  * @author <a href="mailto:noel@x-31.com">Noel Bush</a>
  */
-public class ProgramDContextListener implements ServletContextListener {
+public class ProgramDContextListener implements ServletContextListener, HttpSessionListener {
 
   /** The key for saving the Core object in the servlet context. */
   public static final String KEY_CORE = "core";
@@ -70,4 +72,26 @@ public class ProgramDContextListener implements ServletContextListener {
     Core core = new Core(baseURL, URLTools.contextualize(baseURL, config));
     this.context.setAttribute(KEY_CORE, core);
   }
+
+  /**
+   * @see javax.servlet.http.HttpSessionListener#sessionCreated(javax.servlet.http.HttpSessionEvent)
+   */
+  @Override
+  public void sessionCreated(HttpSessionEvent se) {
+    // Nothing to do until the session is used.
+  }
+
+  /**
+   * Tells the Core that the user whose session this was has gone.
+   * 
+   * @see javax.servlet.http.HttpSessionListener#sessionDestroyed(javax.servlet.http.HttpSessionEvent)
+   */
+  @Override
+  public void sessionDestroyed(HttpSessionEvent se) {
+    Core core = (Core) se.getSession().getServletContext().getAttribute(KEY_CORE);
+    String userid = (String) se.getSession().getAttribute("userid");
+    if (core != null && userid != null) {
+      core.endSession(userid);
+    }
+  }
 }
@@ -9,8 +9,20 @@
 
 package org.aitools.util.db;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.sql.DataSource;
 
@@ -20,47 +32,161 @@ import org.apache.commons.dbcp.ConnectionFactory;
 import org.apache.commons.dbcp.DriverManagerConnectionFactory;
 import org.apache.commons.dbcp.PoolableConnectionFactory;
 import org.apache.commons.dbcp.PoolingDataSource;
+import org.apache.commons.pool.KeyedObjectPoolFactory;
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import org.apache.commons.pool.impl.GenericKeyedObjectPoolFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
+import org.apache.log4j.Logger;
 
 
 /**
+ * <p>
  * A class for managing pooled connections to the database.
+ * </p>
+ * <p>
+ * The pool grows as needed up to its maximum size, and idle connections beyond the minimum are closed after a while,
+ * so the pool shrinks again when the load drops. Idle connections can be checked with a validation query, so that
+ * connections dropped by the server are discarded rather than handed out. A caller that finds no free connection waits
+ * for one for at most a configurable time.
+ * </p>
+ * <p>
+ * The time taken to get each connection is recorded (in a histogram with power-of-two buckets), along with the number
+ * of connections in use. Connections that are kept longer than the leak timeout are reported (once each) with the
+ * stack trace of the code that got them, since they have probably been lost without being closed.
+ * </p>
  * 
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
  */
 public class DBConnectionManager {
-  
+
+  /** How often (in milliseconds) to look for idle connections to close, and for leaked connections. */
+  private static final long EVICTION_INTERVAL = 60000;
+
+  /** How long (in milliseconds) a connection beyond the minimum may stay idle before it is closed. */
+  private static final long IDLE_TIMEOUT = 300000;
+
+  /** The number of buckets in the borrowing time histogram (the last one takes everything from 4 seconds on). */
+  private static final int LATENCY_BUCKETS = 14;
+
   private DataSource _dataSource;
-  
+
+  /** The pool of connections. */
+  private GenericObjectPool _connectionPool;
+
+  /** How long (in milliseconds) a connection may be kept before it is reported as leaked (0 or less for never). */
+  private long _leakTimeout;
+
+  /** The connections currently borrowed. */
+  private Map<Connection, Borrowing> _borrowed = new ConcurrentHashMap<Connection, Borrowing>();
+
+  /** The number of times a connection has been borrowed. */
+  private AtomicLong _borrowCount = new AtomicLong();
+
+  /** The number of times a connection could not be had. */
+  private AtomicLong _failureCount = new AtomicLong();
+
+  /** The number of connections reported as leaked. */
+  private AtomicLong _leakCount = new AtomicLong();
+
+  /** The most connections borrowed at once. */
+  private AtomicInteger _peakActive = new AtomicInteger();
+
+  /** The borrowing times: bucket 0 counts those under 1 ms; bucket n counts those from 2^(n-1) up to 2^n ms. */
+  private AtomicLongArray _latencies = new AtomicLongArray(LATENCY_BUCKETS);
+
+  /** The timer that looks for leaked connections (if leak detection is on). */
+  private Timer _leakDetector;
+
+  /** The logger. */
+  protected Logger _logger = Logger.getLogger("programd");
+
+  /**
+   * When and where a connection was borrowed.
+   */
+  private static class Borrowing {
+
+    /** When the connection was borrowed. */
+    protected long time = System.currentTimeMillis();
+
+    /** Where the connection was borrowed (if leak detection is on). */
+    protected Throwable where;
+
+    /** Whether the connection has already been reported as leaked. */
+    protected volatile boolean reported = false;
+
+    /**
+     * @param trace whether to record where the connection was borrowed
+     */
+    protected Borrowing(boolean trace) {
+      if (trace) {
+        this.where = new Throwable("Connection borrowed here");
+      }
+    }
+  }
+
   /**
    * Create a new database connection manager using the given driver (classname)
    * and database URI (DBMS-specific).
    * 
-   * @param logger
    * @param driver
    * @param uri
    * @param username
    * @param password
    * @param minIdle
    * @param maxActive
+   * @param maxOpenStatements the most prepared statements kept open for reuse on each connection (0 or less means
+   *          prepared statements are not pooled)
+   * @param maxWait how long (in milliseconds) to wait for a free connection (0 or less means wait indefinitely)
+   * @param validationQuery a query used to check idle connections (null or empty means they are not checked)
+   * @param leakTimeout how long (in milliseconds) a connection may be kept before it is reported as leaked (0 or less
+   *          means leaks are not looked for)
    */
-  public DBConnectionManager(String driver, String uri, String username, String password, int minIdle, int maxActive) {
-    
+  public DBConnectionManager(String driver, String uri, String username, String password, int minIdle, int maxActive,
+      int maxOpenStatements, int maxWait, String validationQuery, int leakTimeout) {
+
     Classes.verifyAvailable(driver, "database driver");
-    
-    GenericObjectPool connectionPool = new GenericObjectPool(null);
-    connectionPool.setMinIdle(minIdle);
-    connectionPool.setMaxActive(maxActive);
-    
+
+    boolean validate = validationQuery != null && validationQuery.trim().length() > 0;
+
+    this._connectionPool = new GenericObjectPool(null);
+    this._connectionPool.setMinIdle(minIdle);
+    this._connectionPool.setMaxActive(maxActive);
+    this._connectionPool.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_BLOCK);
+    this._connectionPool.setMaxWait(maxWait > 0 ? maxWait : -1);
+    // The evictor closes idle connections beyond the minimum, and (if there is a query) checks the idle ones.
+    this._connectionPool.setTimeBetweenEvictionRunsMillis(EVICTION_INTERVAL);
+    this._connectionPool.setSoftMinEvictableIdleTimeMillis(IDLE_TIMEOUT);
+    this._connectionPool.setNumTestsPerEvictionRun(Math.max(maxActive, 3));
+    this._connectionPool.setTestWhileIdle(validate);
+
     ConnectionFactory connectionFactory =
         new DriverManagerConnectionFactory(uri, username, password);
-    
+
+    // Each connection keeps its own pool of prepared statements, so they are never shared between threads.
+    KeyedObjectPoolFactory statementPoolFactory = null;
+    if (maxOpenStatements > 0) {
+      statementPoolFactory = new GenericKeyedObjectPoolFactory(null, -1, GenericKeyedObjectPool.WHEN_EXHAUSTED_FAIL,
+          0, 1, maxOpenStatements);
+    }
+
     @SuppressWarnings("unused")
     PoolableConnectionFactory poolableConnectionFactory =
-        new PoolableConnectionFactory(connectionFactory, connectionPool, null, null, false, true);
-    
-    this._dataSource = new PoolingDataSource(connectionPool);
-    
+        new PoolableConnectionFactory(connectionFactory, this._connectionPool, statementPoolFactory,
+            validate ? validationQuery : null, false, true);
+
+    this._dataSource = new PoolingDataSource(this._connectionPool);
+
+    this._leakTimeout = leakTimeout;
+    if (leakTimeout > 0) {
+      this._leakDetector = new Timer("DBLeakDetector", true);
+      this._leakDetector.schedule(new TimerTask() {
+        @Override
+        public void run() {
+          DBConnectionManager.this.reportLeaks();
+        }
+      }, Math.min(EVICTION_INTERVAL, leakTimeout), Math.min(EVICTION_INTERVAL, leakTimeout));
+    }
+
     // Was using DdlUtils here, but it did not correctly work for all column properties.
     //this.checkDBSchema();
   }
@@ -71,12 +197,120 @@ public class DBConnectionManager {
    * @return the database connection
    */
   public Connection getDBConnection() {
-    
+
+    long start = System.nanoTime();
+    final Connection connection;
     try {
-      return this._dataSource.getConnection();
+      connection = this._dataSource.getConnection();
     }
     catch (SQLException e) {
+      this._failureCount.incrementAndGet();
       throw new UserError("Error connecting to database.", e);
     }
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    this._latencies.incrementAndGet(elapsed == 0 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(elapsed),
+        LATENCY_BUCKETS - 1));
+    this._borrowCount.incrementAndGet();
+
+    // The connection is wrapped so that closing it can be noticed.
+    Connection tracked = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+        new Class<?>[] { Connection.class }, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if ("close".equals(method.getName())) {
+              DBConnectionManager.this._borrowed.remove(proxy);
+            }
+            else if ("equals".equals(method.getName())) {
+              return Boolean.valueOf(proxy == args[0]);
+            }
+            else if ("hashCode".equals(method.getName())) {
+              return Integer.valueOf(System.identityHashCode(proxy));
+            }
+            try {
+              return method.invoke(connection, args);
+            }
+            catch (InvocationTargetException e) {
+              throw e.getCause();
+            }
+          }
+        });
+    this._borrowed.put(tracked, new Borrowing(this._leakTimeout > 0));
+    int active = this._borrowed.size();
+    int peak;
+    do {
+      peak = this._peakActive.get();
+    } while (active > peak && !this._peakActive.compareAndSet(peak, active));
+    return tracked;
+  }
+
+  /**
+   * @return a report of the state of the pool: connections in use and idle, borrowing times, and leaks
+   */
+  @SuppressWarnings("boxing")
+  public String getReport() {
+    String lineSeparator = System.getProperty("line.separator");
+    StringBuilder report = new StringBuilder();
+    report.append(String.format("Connections: %,d active, %,d idle (min idle %,d, max active %,d, peak active %,d).",
+        this._connectionPool.getNumActive(), this._connectionPool.getNumIdle(), this._connectionPool.getMinIdle(),
+        this._connectionPool.getMaxActive(), this._peakActive.get()));
+    report.append(lineSeparator).append(
+        String.format("Borrowed %,d times; %,d failed; %,d reported as leaked; %,d outstanding.",
+            this._borrowCount.get(), this._failureCount.get(), this._leakCount.get(), this._borrowed.size()));
+    report.append(lineSeparator).append("Time to borrow:");
+    for (int bucket = 0; bucket < LATENCY_BUCKETS; bucket++) {
+      long count = this._latencies.get(bucket);
+      if (count > 0) {
+        if (bucket == 0) {
+          report.append(String.format(" <1ms: %,d", count));
+        }
+        else if (bucket == LATENCY_BUCKETS - 1) {
+          report.append(String.format(" >=%,dms: %,d", 1L << (bucket - 1), count));
+        }
+        else {
+          report.append(String.format(" %,d-%,dms: %,d", 1L << (bucket - 1), (1L << bucket) - 1, count));
+        }
+      }
+    }
+    long now = System.currentTimeMillis();
+    long longest = 0;
+    for (Borrowing borrowing : this._borrowed.values()) {
+      longest = Math.max(longest, now - borrowing.time);
+    }
+    if (longest > 0) {
+      report.append(lineSeparator).append(String.format("Longest held connection: %,dms.", longest));
+    }
+    return report.toString();
+  }
+
+  /**
+   * Reports (once each) the connections that have been kept longer than the leak timeout.
+   */
+  @SuppressWarnings("boxing")
+  protected void reportLeaks() {
+    long now = System.currentTimeMillis();
+    for (Borrowing borrowing : this._borrowed.values()) {
+      long held = now - borrowing.time;
+      if (held > this._leakTimeout && !borrowing.reported) {
+        borrowing.reported = true;
+        this._leakCount.incrementAndGet();
+        this._logger.warn(String.format("A database connection has been kept for %,dms; it has probably been leaked.",
+            held), borrowing.where);
+      }
+    }
+  }
+
+  /**
+   * Stops looking for leaks and closes the pool.
+   */
+  public void shutdown() {
+    if (this._leakDetector != null) {
+      this._leakDetector.cancel();
+    }
+    try {
+      this._connectionPool.close();
+    }
+    catch (Exception e) {
+      this._logger.warn("Error closing the database connection pool.", e);
+    }
   }
 }
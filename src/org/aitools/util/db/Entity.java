@@ -14,7 +14,6 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.HashMap;
 
 import org.aitools.util.runtime.DeveloperError;
 
@@ -25,14 +24,13 @@ import org.aitools.util.runtime.DeveloperError;
  * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
  */
 public class Entity {
-  
-  private static HashMap<String, PreparedStatement> PREPARED_SELECTS = new HashMap<String, PreparedStatement>();
-  private static HashMap<String, PreparedStatement> PREPARED_INSERTS = new HashMap<String, PreparedStatement>();
 
   /**
    * Try to find an entity in the given table that is identified by the given value
    * for the given field.  If the entity is not found, create it.  Then, in either case,
    * return the id of the entity.  (This assumes a standard field "id" for such "entities".)
+   * The statements are prepared from the given connection, so this is safe for use by
+   * multiple threads, each with its own connection.
    * 
    * @param connection
    * @param table
@@ -42,42 +40,24 @@ public class Entity {
    */
   public static int getOrCreate(Connection connection, String table, String field, String value) {
     
-    String key = table + field;
-    PreparedStatement statement;
-    if (PREPARED_SELECTS.containsKey(key)) {
-      statement = PREPARED_SELECTS.get(key);
-    }
-    else {
-      try {
-        statement = connection.prepareStatement(
-            String.format("SELECT id from %s WHERE %s = ?", table, field));
-      }
-      catch (SQLException e) {
-        throw new DeveloperError("SQL error trying to initialize prepare statement.", e);
-      }
-      PREPARED_SELECTS.put(key, statement);
-    }
-    
     try {
       // Try to find an existing entity in the given table with the given value for the given field.
       int id = -1;
+      String name = SQLDialect.of(connection).identifier(table);
+      PreparedStatement statement = connection.prepareStatement(
+          String.format("SELECT id from %s WHERE %s = ?", name, field));
       statement.setString(1, value);
       ResultSet results = statement.executeQuery();
       if (results.next()) {
         id = results.getInt(1);
       }
       results.close();
+      statement.close();
       
       // If the entity was not found, create it.
       if (id == -1) {
-        if (PREPARED_INSERTS.containsKey(key)) {
-          statement = PREPARED_INSERTS.get(key);
-        }
-        else {
-          statement = connection.prepareStatement(
-              String.format("INSERT INTO %s (%s) VALUES (?)", table, field), Statement.RETURN_GENERATED_KEYS);
-          PREPARED_INSERTS.put(key, statement);
-        }
+        statement = connection.prepareStatement(
+            String.format("INSERT INTO %s (%s) VALUES (?)", name, field), Statement.RETURN_GENERATED_KEYS);
         statement.setString(1, value);
         statement.execute();
         results = statement.getGeneratedKeys();
@@ -88,6 +68,7 @@ public class Entity {
           throw new DeveloperError(String.format("No %s id generated!", table));
         }
         results.close();
+        statement.close();
       }
       return id;
     }
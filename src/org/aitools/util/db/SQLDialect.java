@@ -0,0 +1,195 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.util.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.aitools.util.runtime.DeveloperError;
+
+/**
+ * <p>
+ * The statements whose form depends on the database in use. Everything else is written in SQL that MySQL and the
+ * embedded databases (such as H2 and HSQLDB) all accept. The dialect is chosen by asking a connection which database
+ * it is connected to (see {@link #of(Connection)}).
+ * </p>
+ * <p>
+ * The schema for MySQL is in <code>resources/database/programd-schema.sql</code>; an equivalent schema for embedded
+ * databases is in <code>resources/database/programd-schema-embedded.sql</code>.
+ * </p>
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public enum SQLDialect {
+
+  /** MySQL. */
+  MYSQL {
+
+    @Override
+    public String identifier(String name) {
+      return name;
+    }
+
+    @Override
+    public String insertDefaultRow(String table) {
+      return String.format("INSERT INTO %s () VALUES ()", table);
+    }
+
+    @Override
+    public String truncate(String table) {
+      return String.format("TRUNCATE %s", table);
+    }
+
+    @Override
+    public String upsert(String table, List<String> columns, List<String> keys, int rows) {
+      StringBuilder upsert = new StringBuilder(String.format("INSERT INTO %s (%s) VALUES ", this.identifier(table),
+          this.join(columns, "", ", ")));
+      appendRows(upsert, columns.size(), rows);
+      upsert.append(" ON DUPLICATE KEY UPDATE ");
+      String separator = "";
+      for (String column : columns) {
+        if (!keys.contains(column)) {
+          upsert.append(separator).append(String.format("%1$s = VALUES(%1$s)", this.identifier(column)));
+          separator = ", ";
+        }
+      }
+      return upsert.toString();
+    }
+  },
+
+  /** Standard SQL, as spoken by embedded databases such as H2 and HSQLDB. */
+  STANDARD {
+
+    @Override
+    public String identifier(String name) {
+      return RESERVED.contains(name) ? String.format("\"%s\"", name.toUpperCase()) : name;
+    }
+
+    @Override
+    public String insertDefaultRow(String table) {
+      return String.format("INSERT INTO %s (id) VALUES (DEFAULT)", table);
+    }
+
+    @Override
+    public String truncate(String table) {
+      return String.format("DELETE FROM %s", this.identifier(table));
+    }
+
+    @Override
+    public String upsert(String table, List<String> columns, List<String> keys, int rows) {
+      StringBuilder upsert = new StringBuilder(String.format("MERGE INTO %s USING (VALUES ", this.identifier(table)));
+      appendRows(upsert, columns.size(), rows);
+      upsert.append(String.format(") AS source (%s) ON ", this.join(columns, "", ", ")));
+      String separator = "";
+      for (String key : keys) {
+        upsert.append(separator).append(String.format("%s.%2$s = source.%2$s", this.identifier(table),
+            this.identifier(key)));
+        separator = " AND ";
+      }
+      upsert.append(" WHEN MATCHED THEN UPDATE SET ");
+      separator = "";
+      for (String column : columns) {
+        if (!keys.contains(column)) {
+          upsert.append(separator).append(String.format("%1$s = source.%1$s", this.identifier(column)));
+          separator = ", ";
+        }
+      }
+      upsert.append(String.format(" WHEN NOT MATCHED THEN INSERT (%s) VALUES (%s)", this.join(columns, "", ", "),
+          this.join(columns, "source.", ", ")));
+      return upsert.toString();
+    }
+  };
+
+  /** Table and column names that are reserved words in standard SQL (and so must be quoted). */
+  protected static final List<String> RESERVED = Arrays.asList("user", "value");
+
+  /**
+   * Returns the dialect spoken by the database to which the given connection is connected: {@link #MYSQL} for MySQL,
+   * and {@link #STANDARD} for anything else.
+   * 
+   * @param connection
+   * @return the dialect
+   */
+  public static SQLDialect of(Connection connection) {
+    try {
+      return connection.getMetaData().getDatabaseProductName().toLowerCase().contains("mysql") ? MYSQL : STANDARD;
+    }
+    catch (SQLException e) {
+      throw new DeveloperError("SQL error trying to find out which database is in use.", e);
+    }
+  }
+
+  /**
+   * Appends the given number of rows of parameters to the given statement.
+   * 
+   * @param statement
+   * @param columns the number of columns in each row
+   * @param rows the number of rows
+   */
+  protected static void appendRows(StringBuilder statement, int columns, int rows) {
+    for (int row = 0; row < rows; row++) {
+      statement.append(row > 0 ? ", (" : "(");
+      for (int column = 0; column < columns; column++) {
+        statement.append(column > 0 ? ", ?" : "?");
+      }
+      statement.append(')');
+    }
+  }
+
+  /**
+   * @param names
+   * @param prefix what to put before each name
+   * @param separator what to put between names
+   * @return the names (quoted if necessary), each with the prefix, joined by the separator
+   */
+  protected String join(List<String> names, String prefix, String separator) {
+    StringBuilder result = new StringBuilder();
+    for (String name : names) {
+      if (result.length() > 0) {
+        result.append(separator);
+      }
+      result.append(prefix).append(this.identifier(name));
+    }
+    return result.toString();
+  }
+
+  /**
+   * @param name the name of a table or column
+   * @return the name, quoted if necessary
+   */
+  public abstract String identifier(String name);
+
+  /**
+   * @param table a table with an auto-generated <code>id</code> column and no other required columns
+   * @return a statement that inserts a row with only default values into the table
+   */
+  public abstract String insertDefaultRow(String table);
+
+  /**
+   * @param table
+   * @return a statement that deletes all the rows in the table
+   */
+  public abstract String truncate(String table);
+
+  /**
+   * Composes a statement that inserts the given number of rows into the given table, updating instead any rows that
+   * already exist with the same keys. The parameters are the values of the columns, in the given order, for each row
+   * in turn.
+   * 
+   * @param table the table
+   * @param columns the columns whose values are given
+   * @param keys the columns (among those given) that identify a row
+   * @param rows the number of rows
+   * @return the statement
+   */
+  public abstract String upsert(String table, List<String> columns, List<String> keys, int rows);
+}
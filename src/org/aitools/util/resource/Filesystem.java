@@ -74,6 +74,9 @@ public class Filesystem {
 
   private static final String SLASH = "/";
 
+  /** The suffix given to a file that is set aside while it is being replaced. */
+  private static final String ASIDE_SUFFIX = ".old";
+
   /**
    * Adds the given path to the given ZipOutputStream, omitting the given prefix from the ZipEntry created.
    * 
@@ -655,6 +658,53 @@ public class Filesystem {
     }
   }
 
+  /**
+   * Finishes (or undoes) a {@link #replace(File, File)} that was interrupted: if the target is missing but was set
+   * aside, it is put back; otherwise whatever was set aside is deleted.
+   * 
+   * @param target the file that was being replaced
+   */
+  public static void recoverReplaced(File target) {
+    File aside = new File(target.getPath() + ASIDE_SUFFIX);
+    if (!aside.exists()) {
+      return;
+    }
+    if (target.exists()) {
+      aside.delete();
+    }
+    else if (aside.renameTo(target)) {
+      LOGGER.warn(String.format("Restored \"%s\", which was being replaced.", target.getPath()));
+    }
+  }
+
+  /**
+   * Replaces one file with another by renaming it. Where a file cannot be renamed over an existing one (as on
+   * Windows), the existing file is first set aside (renamed with <code>.old</code> appended) and deleted once the new
+   * one is in place; if this is interrupted, {@link #recoverReplaced(File)} will clean up.
+   * 
+   * @param source the new file
+   * @param target the file to replace
+   * @throws IOException if the file cannot be replaced
+   */
+  public static void replace(File source, File target) throws IOException {
+    if (source.renameTo(target)) {
+      return;
+    }
+    if (!target.exists()) {
+      throw new IOException(String.format("Could not rename \"%s\" to \"%s\".", source.getPath(), target.getPath()));
+    }
+    File aside = new File(target.getPath() + ASIDE_SUFFIX);
+    aside.delete();
+    if (!target.renameTo(aside)) {
+      throw new IOException(String.format("Could not move \"%s\" aside to replace it.", target.getPath()));
+    }
+    if (!source.renameTo(target)) {
+      aside.renameTo(target);
+      throw new IOException(String.format("Could not rename \"%s\" to \"%s\".", source.getPath(), target.getPath()));
+    }
+    aside.delete();
+  }
+
   /**
    * Sets the root path.
    * 
@@ -0,0 +1,56 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd;
+
+import org.aitools.util.resource.Filesystem;
+
+/**
+ * Creates the cores used by tests. Their settings start no background threads for predicates (no flusher timer, no
+ * prefetching and no stats logging), so that tests decide when predicates are written, and leave nothing running.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class TestCores {
+
+  private TestCores() {
+    // Not to be instantiated.
+  }
+
+  /**
+   * @return new settings (otherwise the defaults) that start no background threads for predicates
+   */
+  public static ProgrammaticCoreSettings settings() {
+    ProgrammaticCoreSettings settings = new ProgrammaticCoreSettings();
+    settings.setPredicateFlushInterval(0);
+    settings.setPredicateFlushPeriod(0);
+    settings.setPredicatePrefetchThreads(0);
+    settings.setPredicateStatsLogInterval(0);
+    return settings;
+  }
+
+  /**
+   * @param settings
+   * @return a new core with the given settings, working in the current directory
+   */
+  public static Core create(CoreSettings settings) {
+    return new Core(Filesystem.getWorkingDirectory(), settings);
+  }
+
+  /**
+   * @param settings
+   * @param botid
+   * @return a new core with the given settings, working in the current directory, with a bot with the given id
+   */
+  public static Core create(CoreSettings settings, String botid) {
+    Core core = create(settings);
+    core.addBot(new Bot(botid, core.getSettings()));
+    return core;
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.graph;
+
+import static org.junit.Assert.*;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.aitools.programd.Bot;
+import org.aitools.programd.Core;
+import org.aitools.programd.ProgrammaticCoreSettings;
+import org.aitools.programd.TestCores;
+import org.aitools.programd.util.NoMatchException;
+import org.aitools.util.db.StubDatabase;
+import org.aitools.util.db.StubDriver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the node cache of {@link CachingDBGraphmapper}, against the graph tables kept in memory behind a stub
+ * database.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class CachingDBGraphmapperTest {
+
+  private static final String TESTBOT_ID = "TestBot";
+
+  private static final String DATABASE = "CachingDBGraphmapperTest";
+
+  private static final int PINNED_LEVELS = 2;
+
+  private static final int MAX_NODES = 10;
+
+  private static final String CHILDREN_IN = "SELECT from_node_id, label, to_node_id FROM edge WHERE from_node_id IN";
+
+  private GraphTables _tables;
+
+  private StubDatabase _database;
+
+  private Core _core;
+
+  private Bot _testBot;
+
+  private CachingDBGraphmapper _graphmapper;
+
+  private URL _source;
+
+  /**
+   * Creates a core whose graph is kept in the stub database.
+   * 
+   * @throws Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    this._tables = new GraphTables();
+    this._database = new StubDatabase("MySQL", this._tables);
+    ProgrammaticCoreSettings settings = TestCores.settings();
+    settings.setGraphmapperImplementation(CachingDBGraphmapper.class.getName());
+    settings.setGraphCachePinnedLevels(PINNED_LEVELS);
+    settings.setGraphCacheMaxNodes(MAX_NODES);
+    settings.setDatabaseDriver(StubDriver.class.getName());
+    settings.setDatabaseURI(StubDriver.register(DATABASE, this._database));
+    this._core = TestCores.create(settings, TESTBOT_ID);
+    this._testBot = this._core.getBot(TESTBOT_ID);
+    this._graphmapper = (CachingDBGraphmapper) this._core.getGraphmapper();
+    this._source = new URL("file:/test.aiml");
+  }
+
+  /**
+   * Shuts down the core.
+   */
+  @After
+  public void tearDown() {
+    this._core.shutdown();
+    StubDriver.unregister(DATABASE);
+  }
+
+  /**
+   * Once an input has been matched, matching it again is answered entirely from the cache.
+   * 
+   * @throws NoMatchException
+   */
+  @Test
+  public void testRepeatedMatchNeedsNoQueries() throws NoMatchException {
+    this.add("HELLO THERE", "Hi!");
+    assertEquals("Hi!", this.match("HELLO THERE"));
+    this._database.clear();
+    assertEquals("Hi!", this.match("HELLO THERE"));
+    assertEquals(0, this._database.getExecutions().size());
+  }
+
+  /**
+   * The pinned levels are fetched with one query for each level, however many nodes there are in it.
+   * 
+   * @throws NoMatchException
+   */
+  @Test
+  public void testPinnedLevelsFetchedALevelAtATime() throws NoMatchException {
+    this.add("ONE A", "1");
+    this.add("TWO B", "2");
+    this.add("THREE C", "3");
+    this._database.clear();
+    assertEquals("2", this.match("TWO B"));
+
+    List<String> queries = new ArrayList<String>();
+    for (StubDatabase.Execution execution : this._database.getExecutions()) {
+      if (execution.sql.startsWith(CHILDREN_IN)) {
+        queries.add(execution.sql);
+      }
+    }
+    // One query for each pinned level, then one for the nodes reached from there.
+    assertEquals(PINNED_LEVELS + 1, queries.size());
+    assertTrue(queries.get(0).endsWith(String.format("(%d)", Integer.valueOf(this._graphmapper._root))));
+    for (String word : Arrays.asList("ONE", "TWO", "THREE")) {
+      assertTrue(queries.get(1).contains(this._tables.getChild(this._graphmapper._root, word).toString()));
+    }
+
+    // Having been pinned, the top levels are not fetched again.
+    this._database.clear();
+    assertEquals("3", this.match("THREE C"));
+    assertFalse(this._database.getExecutions().get(0).sql.endsWith(
+        String.format("(%d)", Integer.valueOf(this._graphmapper._root))));
+  }
+
+  /**
+   * Adding a category discards the cache, so that the new category can be matched.
+   * 
+   * @throws NoMatchException
+   */
+  @Test
+  public void testAddDiscardsCache() throws NoMatchException {
+    this.add("HELLO *", "Wildcard");
+    assertEquals("Wildcard", this.match("HELLO THERE"));
+    this.add("HELLO THERE", "Exact");
+    assertEquals("Exact", this.match("HELLO THERE"));
+    assertEquals("Wildcard", this.match("HELLO YOU"));
+  }
+
+  /**
+   * The categories of a file are stored together when it has been loaded, in one transaction, and the cache is
+   * discarded then (and not for each category).
+   * 
+   * @throws NoMatchException
+   */
+  @Test
+  public void testLoadDiscardsCacheAfterFile() throws NoMatchException {
+    this.add("HELLO", "Hello.");
+    assertEquals("Hello.", this.match("HELLO"));
+
+    this._graphmapper.beforeLoad(this._source, TESTBOT_ID);
+    this._graphmapper.add("HELLO THERE", "*", "*", "Hi there.", this._testBot, this._source);
+    this._graphmapper.add("GOODBYE", "*", "*", "Bye.", this._testBot, this._source);
+    this._database.clear();
+    // Until the file has been loaded, nothing is stored, and the cache is kept.
+    assertEquals("Hello.", this.match("HELLO"));
+    assertEquals(0, this._database.getExecutions().size());
+
+    this._graphmapper.afterLoad(this._source, TESTBOT_ID);
+    assertEquals(1, this._database.getCommitCount());
+    assertEquals("Hi there.", this.match("HELLO THERE"));
+    assertEquals("Bye.", this.match("GOODBYE"));
+    assertEquals("Hello.", this.match("HELLO"));
+  }
+
+  /**
+   * No more than the maximum number of nodes (besides the pinned ones) are kept, and those kept are the ones most
+   * recently visited.
+   * 
+   * @throws NoMatchException
+   */
+  @Test
+  public void testRecentNodesBounded() throws NoMatchException {
+    this.add("ONE", "1");
+    this.add("TWO", "2");
+    assertEquals("1", this.match("ONE"));
+    assertEquals("2", this.match("TWO"));
+
+    this._database.clear();
+    assertEquals("2", this.match("TWO"));
+    assertEquals(0, this._database.getExecutions().size());
+    assertEquals("1", this.match("ONE"));
+    assertTrue(this._database.getExecutions().size() > 0);
+  }
+
+  private void add(String pattern, String template) {
+    this._graphmapper.add(pattern, "*", "*", template, this._testBot, this._source);
+  }
+
+  private String match(String input) throws NoMatchException {
+    return this._graphmapper.match(input, "*", "*", TESTBOT_ID).getTemplate();
+  }
+}
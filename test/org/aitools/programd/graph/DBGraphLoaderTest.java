@@ -0,0 +1,210 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.graph;
+
+import static org.junit.Assert.*;
+
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.aitools.util.db.StubDatabase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the bulk storing of categories by {@link DBGraphLoader}, against the graph tables kept in memory behind a stub
+ * database.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class DBGraphLoaderTest {
+
+  private static final String TESTBOT_ID = "TestBot";
+
+  private static final String CHILDREN_IN = "SELECT from_node_id, label, to_node_id FROM edge WHERE from_node_id IN";
+
+  private GraphTables _tables;
+
+  private StubDatabase _database;
+
+  private Connection _connection;
+
+  private int _root;
+
+  private URL _source;
+
+  /**
+   * Creates the stub database and its root node.
+   * 
+   * @throws Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    this._tables = new GraphTables();
+    this._database = new StubDatabase("MySQL", this._tables);
+    this._connection = this._database.connect();
+    this._root = SlowDBNodemapper.getRoot(this._connection);
+    this._source = new URL("file:/test.aiml");
+    this._database.clear();
+  }
+
+  /**
+   * Closes the connection, and checks that nothing else was left open.
+   * 
+   * @throws SQLException
+   */
+  @After
+  public void tearDown() throws SQLException {
+    this._connection.close();
+    assertEquals(0, this._database.getOpenStatementCount());
+    assertEquals(0, this._database.getOpenResultSetCount());
+  }
+
+  /**
+   * The categories of a new file are stored with batched insertions, after a single query to find what already
+   * exists, and the paths they share are stored once.
+   * 
+   * @throws SQLException
+   */
+  @Test
+  public void testStoresNewFileInBatches() throws SQLException {
+    DBGraphLoader loader = this.loader();
+    this.add(loader, "HELLO", "Hello.");
+    this.add(loader, "HELLO THERE", "Hi there.");
+    this.add(loader, "HELLO *", "Hi.");
+    assertTrue(loader.store(this._connection).isEmpty());
+
+    assertEquals("Hello.", this.templateAt("HELLO"));
+    assertEquals("Hi there.", this.templateAt("HELLO THERE"));
+    assertEquals("Hi.", this.templateAt("HELLO *"));
+    assertEquals(1, this._database.count(CHILDREN_IN));
+    for (StubDatabase.Execution execution : this._database.getExecutions()) {
+      if (execution.sql.startsWith("INSERT INTO edge") || execution.sql.startsWith("INSERT INTO node ")
+          || execution.sql.startsWith("INSERT INTO template ")) {
+        assertTrue(execution.toString(), execution.batched);
+      }
+    }
+    // The root, HELLO (shared), and the nodes after it on each path (THERE or *, then six more).
+    assertEquals(1 + 1 + 6 + 7 + 7, this._tables.getNodeCount());
+    assertEquals(this._tables.getNodeCount() - 1, this._tables.getEdgeCount());
+    assertEquals(this._source.toExternalForm(), this._tables.getFilenames(this.nodeAt("HELLO THERE")).get(0));
+  }
+
+  /**
+   * The nodes already in the graph are reused. Categories whose paths already lead to templates, whether stored
+   * before or earlier in the same file, are handed back (in the order in which they were added) instead of being
+   * stored.
+   * 
+   * @throws SQLException
+   */
+  @Test
+  public void testExistingPathsReusedAndDuplicatesDeferred() throws SQLException {
+    DBGraphLoader first = this.loader();
+    this.add(first, "HELLO", "Hello.");
+    this.add(first, "HELLO THERE", "Hi there.");
+    first.store(this._connection);
+    int nodes = this._tables.getNodeCount();
+
+    DBGraphLoader second = this.loader();
+    this.add(second, "HELLO YOU", "Hi, you.");
+    this.add(second, "HELLO THERE", "Hello there.");
+    this.add(second, "HELLO YOU", "Hello, you.");
+    this.add(second, "HELLO", "Hi.");
+    List<DBGraphLoader.Category> deferred = second.store(this._connection);
+
+    assertEquals(3, deferred.size());
+    assertEquals("Hello there.", deferred.get(0).template);
+    assertEquals("Hello, you.", deferred.get(1).template);
+    assertEquals("Hi.", deferred.get(2).template);
+    assertEquals("Hi, you.", this.templateAt("HELLO YOU"));
+    assertEquals("Hi there.", this.templateAt("HELLO THERE"));
+    assertEquals("Hello.", this.templateAt("HELLO"));
+    // Only the path from YOU on is new.
+    assertEquals(nodes + 7, this._tables.getNodeCount());
+  }
+
+  /**
+   * A file with more categories than fit in a batch is stored with several batches, none of them too big.
+   * 
+   * @throws SQLException
+   */
+  @Test
+  public void testLargeFileSplitIntoBatches() throws SQLException {
+    int count = 1500;
+    DBGraphLoader loader = this.loader();
+    for (int index = 0; index < count; index++) {
+      this.add(loader, "WORD" + index, "Template " + index + ".");
+    }
+    assertTrue(loader.store(this._connection).isEmpty());
+
+    assertEquals(count, loader.getCategoryCount());
+    for (int index = 0; index < count; index += 97) {
+      assertEquals("Template " + index + ".", this.templateAt("WORD" + index));
+    }
+    int statements = 0;
+    for (int size : this._database.getBatchSizes()) {
+      assertTrue(size <= 1000);
+      statements += size;
+    }
+    // Each category has 7 new nodes and edges, a template, an association with it, a file association and a
+    // botid node association.
+    assertEquals(count * (7 + 7 + 1 + 1 + 1 + 1), statements);
+  }
+
+  /**
+   * A template used by several categories, in the same file or in files loaded one after another, is stored only
+   * once, and each node using it keeps its hash.
+   * 
+   * @throws SQLException
+   */
+  @Test
+  public void testIdenticalTemplatesStoredOnce() throws SQLException {
+    DBGraphLoader first = this.loader();
+    this.add(first, "HELLO", "Hello.");
+    this.add(first, "HI", "Hello.");
+    this.add(first, "HOWDY", "Howdy.");
+    assertTrue(first.store(this._connection).isEmpty());
+    assertEquals(2, this._tables.getTemplateCount());
+
+    DBGraphLoader second = this.loader();
+    this.add(second, "GREETINGS", "Hello.");
+    this.add(second, "HEY", "Hey.");
+    assertTrue(second.store(this._connection).isEmpty());
+    assertEquals(3, this._tables.getTemplateCount());
+
+    String hash = SlowDBNodemapper.hash("Hello.");
+    for (String pattern : new String[] { "HELLO", "HI", "GREETINGS" }) {
+      assertEquals("Hello.", this.templateAt(pattern));
+      assertEquals(hash, this._tables.getTemplateHash(this.nodeAt(pattern)));
+    }
+    assertEquals(SlowDBNodemapper.hash("Hey."), this._tables.getTemplateHash(this.nodeAt("HEY")));
+  }
+
+  private void add(DBGraphLoader loader, String pattern, String template) {
+    loader.add(SlowDBGraphmapper.composePath(pattern, "*", "*", TESTBOT_ID), pattern, "*", "*", template);
+  }
+
+  private DBGraphLoader loader() {
+    return new DBGraphLoader(this._source, this._root, 0);
+  }
+
+  private int nodeAt(String pattern) {
+    Integer node = this._tables.follow(this._root, SlowDBGraphmapper.composePath(pattern, "*", "*", TESTBOT_ID));
+    assertNotNull(pattern, node);
+    return node.intValue();
+  }
+
+  private String templateAt(String pattern) {
+    return this._tables.getTemplate(this.nodeAt(pattern));
+  }
+}
@@ -11,75 +11,205 @@ package org.aitools.programd.graph;
 
 import static org.junit.Assert.*;
 
+import java.net.URL;
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
 
 import org.aitools.programd.Core;
-import org.aitools.util.resource.Filesystem;
+import org.aitools.programd.ProgrammaticCoreSettings;
+import org.aitools.programd.TestCores;
+import org.aitools.util.db.EmbeddedDatabase;
+import org.aitools.util.db.SQLDialect;
 import org.junit.After;
+import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 /**
- * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ * Tests the statements of {@link SlowDBNodemapper} against a real (embedded) database, made from the schema for
+ * embedded databases, so that the {@link SQLDialect#STANDARD} dialect is used.
  * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
  */
-public class DBNodemapperTest
-{
-    static Core CORE;
-
-    Connection connection;
-
-    /**
-     * @throws java.lang.Exception
-     */
-    @BeforeClass
-    public static void setUpBeforeClass() throws Exception
-    {
-        CORE = new Core(Filesystem.getWorkingDirectory());
-    }
+public class DBNodemapperTest {
+
+  static ProgrammaticCoreSettings SETTINGS;
+
+  static Core CORE;
+
+  /** All the tables in the schema, those that refer to others first. */
+  static final String[] TABLES = { "bot_file", "bot_user", "botidnode_file", "edge", "exchange", "file_node",
+      "node_template", "predicate", "bot", "file", "node", "template", "user" };
+
+  Connection connection;
+
+  int root;
+
+  URL source;
+
+  /**
+   * Creates the embedded database, and a core that uses it.
+   * 
+   * @throws Exception
+   */
+  @BeforeClass
+  public static void setUpBeforeClass() throws Exception {
+    SETTINGS = TestCores.settings();
+    EmbeddedDatabase.create("DBNodemapperTest", SETTINGS);
+    CORE = TestCores.create(SETTINGS);
+  }
+
+  /**
+   * Shuts down the core, and drops the embedded database.
+   * 
+   * @throws Exception
+   */
+  @AfterClass
+  public static void tearDownAfterClass() throws Exception {
+    CORE.shutdown();
+    EmbeddedDatabase.drop(SETTINGS);
+  }
 
-    /**
-     * @throws java.lang.Exception
-     */
-    @Before
-    public void setUp() throws Exception
-    {
-        this.connection = CORE.getDBConnection();
-        Statement statement = this.connection.createStatement();
-        statement.execute("TRUNCATE `bot`");
-        statement.execute("TRUNCATE `file`");
-        statement.execute("TRUNCATE `node`");
-        statement.execute("TRUNCATE `template`");
-        statement.execute("TRUNCATE `user`");
-        statement.execute("TRUNCATE `bot_file`");
-        statement.execute("TRUNCATE `bot_user`");
-        statement.execute("TRUNCATE `botidnode_file`");
-        statement.execute("TRUNCATE `edge`");
-        statement.execute("TRUNCATE `exchange`");
-        statement.execute("TRUNCATE `file_node`");
-        statement.execute("TRUNCATE `node_template`");
-        statement.execute("TRUNCATE `predicate`");
-        statement.close();
+  /**
+   * Empties every table, and creates the root node.
+   * 
+   * @throws Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    this.connection = CORE.getDBConnection();
+    assertEquals(SQLDialect.STANDARD, SQLDialect.of(this.connection));
+    Statement statement = this.connection.createStatement();
+    SQLDialect dialect = SQLDialect.of(this.connection);
+    for (String table : TABLES) {
+      statement.execute(dialect.truncate(table));
     }
+    statement.close();
+    this.root = SlowDBNodemapper.getRoot(this.connection);
+    this.source = new URL("file:/test.aiml");
+  }
 
-    /**
-     * @throws java.lang.Exception
-     */
-    @After
-    public void tearDown() throws Exception
-    {
-        this.connection.close();
+  /**
+   * Closes the connection.
+   * 
+   * @throws Exception
+   */
+  @After
+  public void tearDown() throws Exception {
+    this.connection.close();
+  }
+
+  /**
+   * Nodes are created, found, counted, followed and removed.
+   */
+  @Test
+  @SuppressWarnings("boxing")
+  public void testNodes() {
+    assertEquals(this.root, SlowDBNodemapper.getRoot(this.connection));
+    int hello = SlowDBNodemapper.put(this.connection, this.root, "HELLO");
+    int there = SlowDBNodemapper.put(this.connection, hello, "THERE");
+    int you = SlowDBNodemapper.put(this.connection, hello, "YOU");
+
+    assertTrue(SlowDBNodemapper.containsKey(this.connection, this.root, "HELLO"));
+    assertFalse(SlowDBNodemapper.containsKey(this.connection, this.root, "THERE"));
+    assertEquals(hello, SlowDBNodemapper.get(this.connection, this.root, "HELLO"));
+    assertEquals(2, SlowDBNodemapper.size(this.connection, hello));
+    assertEquals(hello, SlowDBNodemapper.getParent(this.connection, you));
+
+    Map<Integer, Map<String, Integer>> children = SlowDBNodemapper.getChildren(this.connection,
+        Arrays.asList(this.root, hello, there));
+    assertEquals(2, children.size());
+    assertEquals(Collections.singletonMap("HELLO", hello), children.get(this.root));
+    assertEquals(you, children.get(hello).get("YOU").intValue());
+    assertEquals(Arrays.asList(hello, there),
+        SlowDBNodemapper.getChain(this.connection, this.root, Arrays.asList("HELLO", "THERE", "AGAIN")));
+
+    SlowDBNodemapper.remove(this.connection, hello, there);
+    assertEquals(1, SlowDBNodemapper.size(this.connection, hello));
+    assertFalse(SlowDBNodemapper.containsKey(this.connection, hello, "THERE"));
+  }
+
+  /**
+   * Templates (including text outside ASCII) are stored once however many nodes use them, found by node and by hash,
+   * and replaced.
+   * 
+   * @throws Exception
+   */
+  @Test
+  @SuppressWarnings("boxing")
+  public void testTemplates() throws Exception {
+    int hello = SlowDBNodemapper.put(this.connection, this.root, "HELLO");
+    int hi = SlowDBNodemapper.put(this.connection, this.root, "HI");
+    SlowDBNodemapper.setTemplate(this.connection, hello, "Caf\u00e9.");
+    SlowDBNodemapper.setTemplate(this.connection, hi, "Caf\u00e9.");
+
+    assertEquals(1, this.count("template"));
+    assertEquals("Caf\u00e9.", SlowDBNodemapper.getTemplate(this.connection, hi));
+    String hash = SlowDBNodemapper.hash("Caf\u00e9.");
+    assertEquals(hash, SlowDBNodemapper.getTemplateHash(this.connection, hello));
+    assertEquals("Caf\u00e9.", SlowDBNodemapper.getTemplateByHash(this.connection, hash));
+    assertEquals(SlowDBNodemapper.getTemplateID(this.connection, hello),
+        SlowDBNodemapper.getTemplateID(this.connection, hi));
+    assertEquals(new HashSet<Integer>(Arrays.asList(hello, hi)),
+        SlowDBNodemapper.getNodesWithTemplates(this.connection, Arrays.asList(this.root, hello, hi)));
+
+    SlowDBNodemapper.setTemplate(this.connection, hello, "Hi.");
+    assertEquals("Hi.", SlowDBNodemapper.getTemplate(this.connection, hello));
+    assertEquals("Caf\u00e9.", SlowDBNodemapper.getTemplate(this.connection, hi));
+    assertEquals(2, this.count("template"));
+    assertEquals(2, this.count("node_template"));
+  }
+
+  /**
+   * Files are associated with nodes and bots, and the whole graph is erased.
+   * 
+   * @throws Exception
+   */
+  @Test
+  @SuppressWarnings("boxing")
+  public void testFilesAndErase() throws Exception {
+    int hello = SlowDBNodemapper.put(this.connection, this.root, "HELLO");
+    assertFalse(SlowDBNodemapper.fileIsAlreadyPresent(this.connection, this.source));
+    SlowDBNodemapper.setFilename(this.connection, hello, this.source);
+    SlowDBNodemapper.setFilename(this.connection, hello, new URL("file:/other.aiml"));
+    assertEquals(Collections.singletonList("file:/other.aiml"), SlowDBNodemapper.getFilenames(this.connection, hello));
+    assertTrue(SlowDBNodemapper.fileIsAlreadyPresent(this.connection, this.source));
+
+    SlowDBNodemapper.associateBotWithFile(this.connection, "TestBot", this.source);
+    assertTrue(SlowDBNodemapper.fileIsAlreadyPresentForBot(this.connection, this.source, "TestBot"));
+    assertFalse(SlowDBNodemapper.fileIsAlreadyPresentForBot(this.connection, this.source, "OtherBot"));
+    assertEquals(Collections.singletonList("TestBot"), SlowDBNodemapper.getBotsForFilename(this.connection,
+        this.source));
+    SlowDBNodemapper.storeBotIDNodeFile(this.connection, hello, this.source);
+    assertEquals(Collections.singleton(hello), SlowDBNodemapper.getBotIDNodesForFile(this.connection, this.source));
+
+    SlowDBNodemapper.setTemplate(this.connection, hello, "Hello.");
+    SlowDBNodemapper.eraseAll(this.connection);
+    for (String table : new String[] { "node", "edge", "template", "node_template", "file", "file_node" }) {
+      assertEquals(table, 0, this.count(table));
     }
+  }
 
-    /**
-     * 
-     */
-    @Test
-    @SuppressWarnings("static-method")
-    public void testSomething()
-    {
-        fail("Not yet implemented");
+  /**
+   * @param table
+   * @return the number of rows in the given table
+   * @throws Exception
+   */
+  private int count(String table) throws Exception {
+    Statement statement = this.connection.createStatement();
+    try {
+      ResultSet results = statement.executeQuery("SELECT COUNT(*) FROM " + SQLDialect.STANDARD.identifier(table));
+      results.next();
+      return results.getInt(1);
+    }
+    finally {
+      statement.close();
     }
+  }
 }
@@ -0,0 +1,459 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.graph;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.aitools.util.db.StubDatabase;
+
+/**
+ * <p>
+ * The graph tables (<code>node</code>, <code>edge</code>, <code>template</code>, <code>node_template</code>,
+ * <code>file</code>, <code>file_node</code>, <code>bot</code>, <code>bot_file</code> and <code>botidnode_file</code>),
+ * kept in memory and answering the statements that {@link SlowDBNodemapper}, {@link DBGraphLoader} and
+ * {@link org.aitools.util.db.Entity} send them through a {@link StubDatabase}. Only those statements are understood;
+ * any other is refused, so that a test notices when the SQL changes.
+ * </p>
+ * <p>
+ * The unique index on template hashes is enforced, as is there being only one template for each node.
+ * </p>
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+class GraphTables implements StubDatabase.Responder {
+
+  private static final Pattern CHILDREN_IN = Pattern
+      .compile("SELECT from_node_id, label, to_node_id FROM edge WHERE from_node_id IN \\(([0-9,]+)\\)");
+
+  private static final Pattern TEMPLATES_IN = Pattern.compile("SELECT node_id FROM node_template WHERE node_id IN \\(([0-9,]+)\\)");
+
+  private static final Pattern HASHES_IN = Pattern.compile("SELECT hash, id FROM template WHERE hash IN \\(\\?(, \\?)*\\)");
+
+  private static final Pattern ENTITY_SELECT = Pattern.compile("SELECT id from (file|bot) WHERE (path|label) = \\?");
+
+  private static final Pattern ENTITY_INSERT = Pattern.compile("INSERT INTO (file|bot) \\((path|label)\\) VALUES \\(\\?\\)");
+
+  private static final Pattern TRUNCATE = Pattern.compile("TRUNCATE (\\w+)");
+
+  /** The ids of the nodes. */
+  private TreeSet<Integer> _nodes = new TreeSet<Integer>();
+
+  /** The edges, by label, by the node from which they lead. */
+  private Map<Integer, Map<String, Integer>> _edges = new HashMap<Integer, Map<String, Integer>>();
+
+  /** The text of each template, by id. */
+  private Map<Integer, String> _templates = new LinkedHashMap<Integer, String>();
+
+  /** The id of each template, by hash. */
+  private Map<String, Integer> _templateIDs = new HashMap<String, Integer>();
+
+  /** The id and hash of the template of each node, by node. */
+  private Map<Integer, Object[]> _nodeTemplates = new HashMap<Integer, Object[]>();
+
+  /** The ids of the files, by path. */
+  private Map<String, Integer> _files = new LinkedHashMap<String, Integer>();
+
+  /** The ids of the bots, by label. */
+  private Map<String, Integer> _bots = new LinkedHashMap<String, Integer>();
+
+  /** The (file, node) pairs in file_node. */
+  private List<int[]> _fileNodes = new ArrayList<int[]>();
+
+  /** The (bot, file) pairs in bot_file. */
+  private List<int[]> _botFiles = new ArrayList<int[]>();
+
+  /** The (botid node, file) pairs in botidnode_file. */
+  private List<int[]> _botidNodeFiles = new ArrayList<int[]>();
+
+  /** The last id generated. */
+  private int _lastID = 0;
+
+  /**
+   * @param from
+   * @param label
+   * @return the node to which the given node points via the given label (or null if it does not)
+   */
+  public synchronized Integer getChild(int from, String label) {
+    Map<String, Integer> children = this._edges.get(Integer.valueOf(from));
+    return children == null ? null : children.get(label);
+  }
+
+  /**
+   * @return the number of edges
+   */
+  public synchronized int getEdgeCount() {
+    int count = 0;
+    for (Map<String, Integer> children : this._edges.values()) {
+      count += children.size();
+    }
+    return count;
+  }
+
+  /**
+   * @param node
+   * @return the paths of the files associated with the given node
+   */
+  public synchronized List<String> getFilenames(int node) {
+    List<String> result = new ArrayList<String>();
+    for (int[] pair : this._fileNodes) {
+      if (pair[1] == node) {
+        result.add(this.pathOf(pair[0]));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the number of nodes
+   */
+  public synchronized int getNodeCount() {
+    return this._nodes.size();
+  }
+
+  /**
+   * @param node
+   * @return the text of the template attached to the given node (or null if there is none)
+   */
+  public synchronized String getTemplate(int node) {
+    Object[] template = this._nodeTemplates.get(Integer.valueOf(node));
+    return template == null ? null : this._templates.get(template[0]);
+  }
+
+  /**
+   * @return the number of (distinct) templates stored
+   */
+  public synchronized int getTemplateCount() {
+    return this._templates.size();
+  }
+
+  /**
+   * @param node
+   * @return the hash stored beside the template of the given node (or null if there is none)
+   */
+  public synchronized String getTemplateHash(int node) {
+    Object[] template = this._nodeTemplates.get(Integer.valueOf(node));
+    return template == null ? null : (String) template[1];
+  }
+
+  /**
+   * Follows the given path from the given node.
+   * 
+   * @param from
+   * @param path
+   * @return the node reached (or null if the path cannot be followed)
+   */
+  public synchronized Integer follow(int from, List<String> path) {
+    Integer node = Integer.valueOf(from);
+    for (String label : path) {
+      node = this.getChild(node.intValue(), label);
+      if (node == null) {
+        return null;
+      }
+    }
+    return node;
+  }
+
+  /**
+   * @see org.aitools.util.db.StubDatabase.Responder#respond(java.lang.String, java.util.List)
+   */
+  @Override
+  public synchronized List<Object[]> respond(String sql, List<Object> parameters) throws SQLException {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    Matcher matcher;
+
+    // Nodes and edges.
+    if (sql.equals("SELECT MIN(id) from node")) {
+      rows.add(new Object[] { this._nodes.isEmpty() ? null : this._nodes.first() });
+    }
+    else if (sql.equals("INSERT INTO node () VALUES ()")) {
+      Integer id = Integer.valueOf(++this._lastID);
+      this._nodes.add(id);
+      rows.add(new Object[] { id });
+    }
+    else if (sql.equals("SELECT to_node_id FROM edge WHERE from_node_id = ? AND label = ?")
+        || sql.equals("SELECT 1 FROM edge WHERE from_node_id = ? AND label = ?")) {
+      Integer child = this.getChild(intAt(parameters, 0), (String) parameters.get(1));
+      if (child != null) {
+        rows.add(new Object[] { child });
+      }
+    }
+    else if (sql.equals("SELECT label, to_node_id FROM edge WHERE from_node_id = ?")) {
+      Map<String, Integer> children = this._edges.get(parameters.get(0));
+      if (children != null) {
+        for (Map.Entry<String, Integer> edge : children.entrySet()) {
+          rows.add(new Object[] { edge.getKey(), edge.getValue() });
+        }
+      }
+    }
+    else if ((matcher = CHILDREN_IN.matcher(sql)).matches()) {
+      for (String from : matcher.group(1).split(",")) {
+        Integer node = Integer.valueOf(from);
+        Map<String, Integer> children = this._edges.get(node);
+        if (children != null) {
+          for (Map.Entry<String, Integer> edge : children.entrySet()) {
+            rows.add(new Object[] { node, edge.getKey(), edge.getValue() });
+          }
+        }
+      }
+    }
+    else if (sql.startsWith("SELECT e0.to_node_id")) {
+      // A chain: the parameters are the labels after the first, then the node, then the first label.
+      int length = parameters.size() - 1;
+      List<String> labels = new ArrayList<String>();
+      labels.add((String) parameters.get(length));
+      for (int index = 0; index < length - 1; index++) {
+        labels.add((String) parameters.get(index));
+      }
+      Object[] row = new Object[length];
+      Integer node = (Integer) parameters.get(length - 1);
+      for (int index = 0; index < length && node != null; index++) {
+        node = this.getChild(node.intValue(), labels.get(index));
+        row[index] = node;
+      }
+      if (row[0] != null) {
+        rows.add(row);
+      }
+    }
+    else if (sql.equals("INSERT INTO edge (from_node_id, label, to_node_id) VALUES (?, ?, ?)")) {
+      Integer from = (Integer) parameters.get(0);
+      Integer to = (Integer) parameters.get(2);
+      if (!this._nodes.contains(from) || !this._nodes.contains(to)) {
+        throw new SQLException(String.format("Foreign key violation: edge %s -> %s.", from, to));
+      }
+      Map<String, Integer> children = this._edges.get(from);
+      if (children == null) {
+        children = new LinkedHashMap<String, Integer>();
+        this._edges.put(from, children);
+      }
+      children.put((String) parameters.get(1), to);
+    }
+    else if (sql.equals("DELETE FROM edge WHERE from_node_id = ? AND to_node_id = ?")) {
+      Map<String, Integer> children = this._edges.get(parameters.get(0));
+      if (children != null) {
+        children.values().remove(parameters.get(1));
+      }
+    }
+    else if (sql.equals("SELECT from_node_id FROM edge WHERE to_node_id = ?")) {
+      for (Map.Entry<Integer, Map<String, Integer>> from : this._edges.entrySet()) {
+        if (from.getValue().containsValue(parameters.get(0))) {
+          rows.add(new Object[] { from.getKey() });
+        }
+      }
+    }
+    else if (sql.equals("SELECT COUNT(from_node_id) FROM edge WHERE from_node_id = ?")) {
+      Map<String, Integer> children = this._edges.get(parameters.get(0));
+      rows.add(new Object[] { Integer.valueOf(children == null ? 0 : children.size()) });
+    }
+
+    // Templates.
+    else if ((matcher = HASHES_IN.matcher(sql)).matches()) {
+      for (Object hash : parameters) {
+        Integer id = this._templateIDs.get(hash);
+        if (id != null) {
+          rows.add(new Object[] { hash, id });
+        }
+      }
+    }
+    else if (sql.equals("INSERT INTO template (hash, text) VALUES (?, ?)")) {
+      String hash = (String) parameters.get(0);
+      if (this._templateIDs.containsKey(hash)) {
+        throw new SQLException(String.format("Duplicate entry \"%s\" for key \"hash\".", hash));
+      }
+      Integer id = Integer.valueOf(++this._lastID);
+      this._templates.put(id, (String) parameters.get(1));
+      this._templateIDs.put(hash, id);
+      rows.add(new Object[] { id });
+    }
+    else if (sql.equals("SELECT text from template INNER JOIN node_template ON node_template.template_id = template.id WHERE node_template.node_id = ?")) {
+      Object[] template = this._nodeTemplates.get(parameters.get(0));
+      if (template != null) {
+        rows.add(new Object[] { this._templates.get(template[0]) });
+      }
+    }
+    else if (sql.equals("SELECT text FROM template WHERE hash = ?")) {
+      Integer id = this._templateIDs.get(parameters.get(0));
+      if (id != null) {
+        rows.add(new Object[] { this._templates.get(id) });
+      }
+    }
+    else if (sql.equals("SELECT template_hash FROM node_template WHERE node_id = ?")
+        || sql.equals("SELECT template_id FROM node_template WHERE node_id = ?")) {
+      Object[] template = this._nodeTemplates.get(parameters.get(0));
+      if (template != null) {
+        rows.add(new Object[] { template[sql.contains("template_hash") ? 1 : 0] });
+      }
+    }
+    else if ((matcher = TEMPLATES_IN.matcher(sql)).matches()) {
+      for (String node : matcher.group(1).split(",")) {
+        if (this._nodeTemplates.containsKey(Integer.valueOf(node))) {
+          rows.add(new Object[] { Integer.valueOf(node) });
+        }
+      }
+    }
+    else if (sql.equals("INSERT INTO node_template (node_id, template_id, template_hash) VALUES (?, ?, ?)")) {
+      if (this._nodeTemplates.containsKey(parameters.get(0))) {
+        throw new SQLException(String.format("Node %s already has a template.", parameters.get(0)));
+      }
+      if (!this._templates.containsKey(parameters.get(1))) {
+        throw new SQLException(String.format("Foreign key violation: template %s.", parameters.get(1)));
+      }
+      this._nodeTemplates.put((Integer) parameters.get(0), new Object[] { parameters.get(1), parameters.get(2) });
+    }
+    else if (sql.equals("DELETE FROM node_template WHERE node_id = ?")) {
+      this._nodeTemplates.remove(parameters.get(0));
+    }
+
+    // Files and bots.
+    else if ((matcher = ENTITY_SELECT.matcher(sql)).matches()) {
+      Integer id = this.entities(matcher.group(1)).get(parameters.get(0));
+      if (id != null) {
+        rows.add(new Object[] { id });
+      }
+    }
+    else if ((matcher = ENTITY_INSERT.matcher(sql)).matches()) {
+      Integer id = Integer.valueOf(++this._lastID);
+      this.entities(matcher.group(1)).put((String) parameters.get(0), id);
+      rows.add(new Object[] { id });
+    }
+    else if (sql.equals("SELECT 1 FROM file WHERE path = ?")) {
+      if (this._files.containsKey(parameters.get(0))) {
+        rows.add(new Object[] { Integer.valueOf(1) });
+      }
+    }
+    else if (sql.equals("INSERT INTO file_node (file_id, node_id) VALUES (?, ?)")) {
+      this._fileNodes.add(new int[] { intAt(parameters, 0), intAt(parameters, 1) });
+    }
+    else if (sql.equals("DELETE FROM file_node WHERE node_id = ?")) {
+      for (int index = this._fileNodes.size() - 1; index >= 0; index--) {
+        if (this._fileNodes.get(index)[1] == intAt(parameters, 0)) {
+          this._fileNodes.remove(index);
+        }
+      }
+    }
+    else if (sql.equals("SELECT file.path from file_node INNER JOIN file ON file_node.file_id = file.id WHERE file_node.node_id = ?")) {
+      for (String path : this.getFilenames(intAt(parameters, 0))) {
+        rows.add(new Object[] { path });
+      }
+    }
+    else if (sql.equals("INSERT INTO bot_file (bot_id, file_id) VALUES (?, ?)")) {
+      this._botFiles.add(new int[] { intAt(parameters, 0), intAt(parameters, 1) });
+    }
+    else if (sql.equals("SELECT file.path FROM bot_file INNER JOIN file ON bot_file.file_id = file.id INNER JOIN bot ON bot_file.bot_id = bot.id WHERE bot.id = (SELECT id FROM bot WHERE label = ?)")) {
+      Integer bot = this._bots.get(parameters.get(0));
+      for (int[] pair : this._botFiles) {
+        if (bot != null && pair[0] == bot.intValue()) {
+          rows.add(new Object[] { this.pathOf(pair[1]) });
+        }
+      }
+    }
+    else if (sql.equals("SELECT 1 FROM file INNER JOIN bot_file ON file.id = bot_file.file_id INNER JOIN bot ON bot.id = bot_file.bot_id WHERE file.path = ? AND bot.label = ?")) {
+      Integer file = this._files.get(parameters.get(0));
+      Integer bot = this._bots.get(parameters.get(1));
+      for (int[] pair : this._botFiles) {
+        if (file != null && bot != null && pair[0] == bot.intValue() && pair[1] == file.intValue()) {
+          rows.add(new Object[] { Integer.valueOf(1) });
+        }
+      }
+    }
+    else if (sql.equals("INSERT INTO botidnode_file (botidnode_id, file_id) VALUES (?, ?)")) {
+      this._botidNodeFiles.add(new int[] { intAt(parameters, 0), intAt(parameters, 1) });
+    }
+    else if (sql.equals("SELECT botidnode_id from botidnode_file INNER JOIN file ON botidnode_file.file_id = file.id WHERE file.path = ?")) {
+      Integer file = this._files.get(parameters.get(0));
+      for (int[] pair : this._botidNodeFiles) {
+        if (file != null && pair[1] == file.intValue()) {
+          rows.add(new Object[] { Integer.valueOf(pair[0]) });
+        }
+      }
+    }
+    else if ((matcher = TRUNCATE.matcher(sql)).matches()) {
+      this.truncate(matcher.group(1));
+    }
+    else {
+      throw new SQLException(String.format("Statement not understood: %s", sql));
+    }
+    return rows;
+  }
+
+  /**
+   * @param table <code>file</code> or <code>bot</code>
+   * @return the ids of the entities in the table, by path or label
+   */
+  private Map<String, Integer> entities(String table) {
+    return "file".equals(table) ? this._files : this._bots;
+  }
+
+  /**
+   * @param parameters
+   * @param index
+   * @return the parameter at the given index, as an int
+   */
+  private static int intAt(List<Object> parameters, int index) {
+    return ((Integer) parameters.get(index)).intValue();
+  }
+
+  /**
+   * @param file
+   * @return the path of the file with the given id
+   */
+  private String pathOf(int file) {
+    for (Map.Entry<String, Integer> entry : this._files.entrySet()) {
+      if (entry.getValue().intValue() == file) {
+        return entry.getKey();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Empties the given table.
+   * 
+   * @param table
+   * @throws SQLException
+   */
+  private void truncate(String table) throws SQLException {
+    if ("template".equals(table)) {
+      this._templates.clear();
+      this._templateIDs.clear();
+    }
+    else if ("node_template".equals(table)) {
+      this._nodeTemplates.clear();
+    }
+    else if ("edge".equals(table)) {
+      this._edges.clear();
+    }
+    else if ("botidnode_file".equals(table)) {
+      this._botidNodeFiles.clear();
+    }
+    else if ("bot_file".equals(table)) {
+      this._botFiles.clear();
+    }
+    else if ("file_node".equals(table)) {
+      this._fileNodes.clear();
+    }
+    else if ("node".equals(table)) {
+      this._nodes.clear();
+    }
+    else if ("file".equals(table)) {
+      this._files.clear();
+    }
+    else {
+      throw new SQLException(String.format("Unknown table %s.", table));
+    }
+  }
+}
@@ -12,6 +12,7 @@ package org.aitools.programd.graph;
 import static org.junit.Assert.*;
 
 import java.net.URL;
+import java.util.Arrays;
 
 import org.aitools.programd.Bot;
 import org.aitools.programd.Core;
@@ -80,4 +81,21 @@ abstract public class GraphmapperTest
         this._graphmapper.addCategory("test", null, null, "Test passed", this._testBot, BASE_URL);
         assertEquals("Test passed", this._graphmapper.match("test", "*", "*", TESTBOT_ID).getTemplate());
     }
+
+    /**
+     * Test method for the wildcard captures and path of a {@link Match}.
+     * @throws NoMatchException 
+     */
+    @Test
+    public void testMatchWildcards() throws NoMatchException
+    {
+        this._graphmapper.addCategory("a * b _", "x *", null, "Test passed", this._testBot, BASE_URL);
+        Match match = this._graphmapper.match("a one two b three", "x four five", "six", TESTBOT_ID);
+        assertEquals(Arrays.asList("one two", "three"), match.getInputStars());
+        assertEquals(Arrays.asList("four five"), match.getThatStars());
+        assertEquals(Arrays.asList("six"), match.getTopicStars());
+        assertEquals("A * B _", match.getPattern());
+        assertEquals("X *", match.getThat());
+        assertEquals(TESTBOT_ID, match.getBotID());
+    }
 }
@@ -0,0 +1,128 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.graph;
+
+import static org.junit.Assert.*;
+
+import java.net.URL;
+
+import org.aitools.programd.Bot;
+import org.aitools.programd.Core;
+import org.aitools.programd.ProgrammaticCoreSettings;
+import org.aitools.programd.TestCores;
+import org.aitools.programd.util.NoMatchException;
+import org.aitools.util.db.StubDatabase;
+import org.aitools.util.db.StubDriver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures the round trips to the database made by {@link SlowDBGraphmapper} when matching, against the graph tables
+ * kept in memory behind a stub database.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class SlowDBGraphmapperTest {
+
+  private static final String TESTBOT_ID = "TestBot";
+
+  private static final String DATABASE = "SlowDBGraphmapperTest";
+
+  private StubDatabase _database;
+
+  private Core _core;
+
+  private Bot _testBot;
+
+  private SlowDBGraphmapper _graphmapper;
+
+  private URL _source;
+
+  /**
+   * Creates a core whose graph is kept in the stub database.
+   * 
+   * @throws Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    this._database = new StubDatabase("MySQL", new GraphTables());
+    ProgrammaticCoreSettings settings = TestCores.settings();
+    settings.setGraphmapperImplementation(SlowDBGraphmapper.class.getName());
+    settings.setDatabaseDriver(StubDriver.class.getName());
+    settings.setDatabaseURI(StubDriver.register(DATABASE, this._database));
+    this._core = TestCores.create(settings, TESTBOT_ID);
+    this._testBot = this._core.getBot(TESTBOT_ID);
+    this._graphmapper = (SlowDBGraphmapper) this._core.getGraphmapper();
+    this._source = new URL("file:/test.aiml");
+  }
+
+  /**
+   * Shuts down the core.
+   */
+  @After
+  public void tearDown() {
+    this._core.shutdown();
+    StubDriver.unregister(DATABASE);
+  }
+
+  /**
+   * A stretch of literal words costs two queries for each {@link SlowDBGraphmapper#LITERAL_CHAIN_LENGTH} words (one to
+   * follow them, one to fetch the edges of the nodes reached), rather than several for each word.
+   * 
+   * @throws NoMatchException
+   */
+  @Test
+  public void testLiteralInputNeedsFewRoundTrips() throws NoMatchException {
+    String input = "ONE TWO THREE FOUR FIVE SIX SEVEN EIGHT NINE TEN";
+    this.add(input, "Counted.");
+    this._database.clear();
+    assertEquals("Counted.", this.match(input));
+
+    // The path is the input, <that>, *, <topic>, *, <botid> and the bot id.
+    int path = 10 + 6;
+    int chains = (path + SlowDBGraphmapper.LITERAL_CHAIN_LENGTH - 1) / SlowDBGraphmapper.LITERAL_CHAIN_LENGTH;
+    assertEquals(chains, this._database.count("SELECT e0.to_node_id"));
+    assertEquals(chains, this._database.count("SELECT from_node_id, label, to_node_id FROM edge WHERE from_node_id IN"));
+    // Besides those, only the template (its hash, then its text) and its filenames are looked up.
+    assertEquals(2 * chains + 3, this._database.getExecutions().size());
+
+    // The template text is cached by hash, so a second match needs one query fewer.
+    this._database.clear();
+    assertEquals("Counted.", this.match(input));
+    assertEquals(2 * chains + 2, this._database.getExecutions().size());
+  }
+
+  /**
+   * The prefetched edges do not change the order in which the branches are tried: <code>_</code>, then the word, then
+   * <code>*</code>.
+   * 
+   * @throws NoMatchException
+   */
+  @Test
+  public void testWildcardPrecedenceKept() throws NoMatchException {
+    this.add("HELLO *", "Star.");
+    this.add("HELLO THERE", "Exact.");
+    this.add("_ THERE", "Underscore.");
+    this.add("GOODBYE THERE", "Goodbye.");
+    assertEquals("Underscore.", this.match("HELLO THERE"));
+    assertEquals("Underscore.", this.match("GOODBYE THERE"));
+    assertEquals("Star.", this.match("HELLO YOU"));
+    assertEquals("Star.", this.match("HELLO THERE YOU"));
+  }
+
+  private void add(String pattern, String template) {
+    this._graphmapper.add(pattern, "*", "*", template, this._testBot, this._source);
+  }
+
+  private String match(String input) throws NoMatchException {
+    return this._graphmapper.match(input, "*", "*", TESTBOT_ID).getTemplate();
+  }
+}
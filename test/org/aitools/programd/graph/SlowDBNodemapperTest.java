@@ -0,0 +1,292 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.graph;
+
+import static org.junit.Assert.*;
+
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.aitools.util.db.StubDatabase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the statements composed and sent by {@link SlowDBNodemapper}, against the graph tables kept in memory behind a
+ * stub database.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class SlowDBNodemapperTest {
+
+  private GraphTables _tables;
+
+  private StubDatabase _database;
+
+  private Connection _connection;
+
+  private int _root;
+
+  private URL _source;
+
+  /**
+   * Creates the stub database and its root node.
+   * 
+   * @throws Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    this._tables = new GraphTables();
+    this._database = new StubDatabase("MySQL", this._tables);
+    this._connection = this._database.connect();
+    this._root = SlowDBNodemapper.getRoot(this._connection);
+    this._source = new URL("file:/test.aiml");
+    this._database.clear();
+  }
+
+  /**
+   * Closes the connection.
+   * 
+   * @throws SQLException
+   */
+  @After
+  public void tearDown() throws SQLException {
+    this._connection.close();
+  }
+
+  /**
+   * Every statement is prepared from the connection given, and closed (with its results) before returning, so that
+   * nothing is shared between connections or left open.
+   */
+  @Test
+  public void testStatementsPreparedFromConnectionAndClosed() {
+    int hello = SlowDBNodemapper.put(this._connection, this._root, "HELLO");
+    assertTrue(SlowDBNodemapper.containsKey(this._connection, this._root, "HELLO"));
+    assertEquals(hello, SlowDBNodemapper.get(this._connection, this._root, "HELLO"));
+    assertEquals(1, SlowDBNodemapper.size(this._connection, this._root));
+    assertEquals(this._root, SlowDBNodemapper.getParent(this._connection, hello));
+    SlowDBNodemapper.setFilename(this._connection, hello, this._source);
+    SlowDBNodemapper.setTemplate(this._connection, hello, "Hello.");
+    assertEquals("Hello.", SlowDBNodemapper.getTemplate(this._connection, hello));
+    assertEquals(1, SlowDBNodemapper.getFilenames(this._connection, hello).size());
+    SlowDBNodemapper.remove(this._connection, this._root, hello);
+    assertEquals(0, SlowDBNodemapper.size(this._connection, this._root));
+
+    assertTrue(this._database.getPrepareCount() > 0);
+    assertEquals(0, this._database.getOpenStatementCount());
+    assertEquals(0, this._database.getOpenResultSetCount());
+  }
+
+  /**
+   * Setting the filename of a node removes the filenames it had before.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testSetFilenameReplaces() throws Exception {
+    int hello = SlowDBNodemapper.put(this._connection, this._root, "HELLO");
+    SlowDBNodemapper.setFilename(this._connection, hello, this._source);
+    SlowDBNodemapper.setFilename(this._connection, hello, new URL("file:/other.aiml"));
+    assertEquals(2, this._database.count("DELETE FROM file_node"));
+    assertEquals("file:/other.aiml", SlowDBNodemapper.getFilenames(this._connection, hello).get(0));
+    assertEquals(1, SlowDBNodemapper.getFilenames(this._connection, hello).size());
+  }
+
+  /**
+   * The edges of many nodes are fetched with one query for each (up to) {@link SlowDBNodemapper#CHILDREN_BATCH_SIZE}
+   * of them, and nodes with no edges are left out of the result.
+   */
+  @Test
+  @SuppressWarnings("boxing")
+  public void testChildrenFetchedInChunks() {
+    int hello = SlowDBNodemapper.put(this._connection, this._root, "HELLO");
+    int there = SlowDBNodemapper.put(this._connection, hello, "THERE");
+    int you = SlowDBNodemapper.put(this._connection, hello, "YOU");
+    List<Integer> nodes = new ArrayList<Integer>();
+    nodes.add(this._root);
+    nodes.add(hello);
+    for (int node = 1000; nodes.size() < 2 * SlowDBNodemapper.CHILDREN_BATCH_SIZE + 1; node++) {
+      nodes.add(node);
+    }
+    this._database.clear();
+    Map<Integer, Map<String, Integer>> children = SlowDBNodemapper.getChildren(this._connection, nodes);
+
+    assertEquals(Arrays.asList(SlowDBNodemapper.CHILDREN_BATCH_SIZE, SlowDBNodemapper.CHILDREN_BATCH_SIZE, 1),
+        this.inListSizes("SELECT from_node_id, label, to_node_id FROM edge WHERE from_node_id IN"));
+    assertEquals(2, children.size());
+    assertEquals(Collections.singletonMap("HELLO", hello), children.get(this._root));
+    assertEquals(there, children.get(hello).get("THERE").intValue());
+    assertEquals(you, children.get(hello).get("YOU").intValue());
+    assertEquals(0, this._database.getOpenStatementCount());
+  }
+
+  /**
+   * The nodes with templates, among many, are found with one query for each (up to)
+   * {@link SlowDBNodemapper#CHILDREN_BATCH_SIZE} of them.
+   */
+  @Test
+  @SuppressWarnings("boxing")
+  public void testNodesWithTemplatesFoundInChunks() {
+    int hello = SlowDBNodemapper.put(this._connection, this._root, "HELLO");
+    SlowDBNodemapper.setTemplate(this._connection, hello, "Hello.");
+    List<Integer> nodes = new ArrayList<Integer>();
+    nodes.add(this._root);
+    nodes.add(hello);
+    for (int node = 1000; nodes.size() < SlowDBNodemapper.CHILDREN_BATCH_SIZE + 10; node++) {
+      nodes.add(node);
+    }
+    this._database.clear();
+
+    assertEquals(Collections.singleton(hello), SlowDBNodemapper.getNodesWithTemplates(this._connection, nodes));
+    assertEquals(Arrays.asList(SlowDBNodemapper.CHILDREN_BATCH_SIZE, 10),
+        this.inListSizes("SELECT node_id FROM node_template WHERE node_id IN"));
+    assertTrue(SlowDBNodemapper.getNodesWithTemplates(this._connection, Collections.<Integer> emptyList()).isEmpty());
+    assertEquals(2, this._database.getExecutions().size());
+  }
+
+  /**
+   * A chain of labels is followed with a single query, joining the edge table once for each label after the first,
+   * and stops where the labels can no longer be followed.
+   */
+  @Test
+  @SuppressWarnings("boxing")
+  public void testChainFollowedInOneQuery() {
+    int one = SlowDBNodemapper.put(this._connection, this._root, "ONE");
+    int two = SlowDBNodemapper.put(this._connection, one, "TWO");
+    int three = SlowDBNodemapper.put(this._connection, two, "THREE");
+    this._database.clear();
+
+    assertEquals(Arrays.asList(one, two, three),
+        SlowDBNodemapper.getChain(this._connection, this._root, Arrays.asList("ONE", "TWO", "THREE")));
+    assertEquals(Arrays.asList(one, two),
+        SlowDBNodemapper.getChain(this._connection, this._root, Arrays.asList("ONE", "TWO", "FOUR", "THREE")));
+    assertEquals(Collections.emptyList(),
+        SlowDBNodemapper.getChain(this._connection, this._root, Arrays.asList("TWO", "THREE")));
+    assertEquals(Collections.emptyList(),
+        SlowDBNodemapper.getChain(this._connection, this._root, Collections.<String> emptyList()));
+
+    List<StubDatabase.Execution> executions = this._database.getExecutions();
+    assertEquals(3, executions.size());
+    StubDatabase.Execution chain = executions.get(1);
+    assertEquals("SELECT e0.to_node_id, e1.to_node_id, e2.to_node_id, e3.to_node_id FROM edge e0"
+        + " LEFT JOIN edge e1 ON e1.from_node_id = e0.to_node_id AND e1.label = ?"
+        + " LEFT JOIN edge e2 ON e2.from_node_id = e1.to_node_id AND e2.label = ?"
+        + " LEFT JOIN edge e3 ON e3.from_node_id = e2.to_node_id AND e3.label = ?"
+        + " WHERE e0.from_node_id = ? AND e0.label = ?", chain.sql);
+    assertEquals(Arrays.<Object> asList("TWO", "FOUR", "THREE", this._root, "ONE"), chain.parameters);
+    assertEquals(0, this._database.getOpenStatementCount());
+  }
+
+  /**
+   * A template is hashed by the SHA-1 digest of its text in UTF-8, in lowercase hexadecimal, as MySQL's
+   * <code>SHA1()</code> would give it.
+   */
+  @Test
+  public void testHashIsSHA1OfUTF8() {
+    assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", SlowDBNodemapper.hash("abc"));
+    assertEquals("da39a3ee5e6b4b0d3255bfef95601890afd80709", SlowDBNodemapper.hash(""));
+    assertEquals("f424452a9673918c6f09b0cdd35b20be8e6ae7d7", SlowDBNodemapper.hash("caf\u00e9"));
+  }
+
+  /**
+   * Identical templates set on different nodes are stored once, and each node keeps the hash of its template beside
+   * it.
+   */
+  @Test
+  public void testIdenticalTemplatesStoredOnce() {
+    int hello = SlowDBNodemapper.put(this._connection, this._root, "HELLO");
+    int hi = SlowDBNodemapper.put(this._connection, this._root, "HI");
+    SlowDBNodemapper.setTemplate(this._connection, hello, "Hello.");
+    SlowDBNodemapper.setTemplate(this._connection, hi, "Hello.");
+
+    assertEquals(1, this._tables.getTemplateCount());
+    assertEquals(1, this._database.count("INSERT INTO template"));
+    String hash = SlowDBNodemapper.hash("Hello.");
+    assertEquals(hash, this._tables.getTemplateHash(hello));
+    assertEquals(hash, this._tables.getTemplateHash(hi));
+    assertEquals(hash, SlowDBNodemapper.getTemplateHash(this._connection, hi));
+    assertEquals("Hello.", SlowDBNodemapper.getTemplateByHash(this._connection, hash));
+    assertEquals(SlowDBNodemapper.getTemplateID(this._connection, hello),
+        SlowDBNodemapper.getTemplateID(this._connection, hi));
+  }
+
+  /**
+   * Setting a different template on a node replaces the one it had (the old one is still stored, for any other node
+   * that uses it).
+   */
+  @Test
+  public void testSetTemplateReplaces() {
+    int hello = SlowDBNodemapper.put(this._connection, this._root, "HELLO");
+    int hi = SlowDBNodemapper.put(this._connection, this._root, "HI");
+    SlowDBNodemapper.setTemplate(this._connection, hello, "Hello.");
+    SlowDBNodemapper.setTemplate(this._connection, hi, "Hello.");
+    SlowDBNodemapper.setTemplate(this._connection, hello, "Hi.");
+
+    assertEquals("Hi.", SlowDBNodemapper.getTemplate(this._connection, hello));
+    assertEquals(SlowDBNodemapper.hash("Hi."), this._tables.getTemplateHash(hello));
+    assertEquals("Hello.", SlowDBNodemapper.getTemplate(this._connection, hi));
+    assertEquals(2, this._tables.getTemplateCount());
+
+    // Setting the same template again stores nothing new.
+    SlowDBNodemapper.setTemplate(this._connection, hello, "Hi.");
+    assertEquals("Hi.", SlowDBNodemapper.getTemplate(this._connection, hello));
+    assertEquals(2, this._tables.getTemplateCount());
+    assertEquals(0, this._database.getOpenStatementCount());
+  }
+
+  /**
+   * The stored templates among many hashes are found with one query for each (up to)
+   * {@link SlowDBNodemapper#CHILDREN_BATCH_SIZE} of them, and the hashes not stored are left out of the result.
+   */
+  @Test
+  @SuppressWarnings("boxing")
+  public void testTemplateIDsFoundInChunks() {
+    int hello = SlowDBNodemapper.put(this._connection, this._root, "HELLO");
+    SlowDBNodemapper.setTemplate(this._connection, hello, "Hello.");
+    List<String> hashes = new ArrayList<String>();
+    for (int index = 0; index < SlowDBNodemapper.CHILDREN_BATCH_SIZE; index++) {
+      hashes.add(SlowDBNodemapper.hash("Template " + index + "."));
+    }
+    hashes.add(SlowDBNodemapper.hash("Hello."));
+    this._database.clear();
+    Map<String, Integer> ids = SlowDBNodemapper.getTemplateIDs(this._connection, hashes);
+
+    assertEquals(Arrays.asList(SlowDBNodemapper.CHILDREN_BATCH_SIZE, 1),
+        this.inListSizes("SELECT hash, id FROM template WHERE hash IN"));
+    assertEquals(Collections.singletonMap(SlowDBNodemapper.hash("Hello."),
+        SlowDBNodemapper.getTemplateID(this._connection, hello)), ids);
+    assertTrue(SlowDBNodemapper.getTemplateIDs(this._connection, Collections.<String> emptyList()).isEmpty());
+    assertEquals(3, this._database.getExecutions().size());
+  }
+
+  /**
+   * Counts the values in the IN list of each of the statements executed that start with the given prefix.
+   * 
+   * @param prefix
+   * @return the number of values in each IN list, in order
+   */
+  private List<Integer> inListSizes(String prefix) {
+    List<Integer> sizes = new ArrayList<Integer>();
+    for (StubDatabase.Execution execution : this._database.getExecutions()) {
+      if (execution.sql.startsWith(prefix)) {
+        String list = execution.sql.substring(execution.sql.indexOf(" IN (") + 5, execution.sql.length() - 1);
+        sizes.add(Integer.valueOf(list.split(",").length));
+      }
+    }
+    return sizes;
+  }
+}
@@ -0,0 +1,291 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.logging;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.aitools.util.resource.Filesystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests the binary chat log, from the {@link BinaryChatLogAppender} to the {@link BinaryChatLogReader}.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class BinaryChatLogTest {
+
+  private static final String PREFIX = "chat";
+
+  private static final String TESTBOT_ID = "TestBot";
+
+  /** The time of the first exchange written; each one after is a second later. */
+  private static final long START = 1200000000000L;
+
+  /** The number of records covered by each index entry. */
+  private static final int INTERVAL = 4;
+
+  private File _directory;
+
+  private BinaryChatLogAppender _appender;
+
+  /**
+   * Creates an empty directory for the log, and an appender writing to it.
+   * 
+   * @throws IOException if the directory cannot be created
+   */
+  @Before
+  public void setUp() throws IOException {
+    this._directory = File.createTempFile("chatlog", "");
+    this._directory.delete();
+    this._directory.mkdir();
+    this._appender = this.appender(null);
+  }
+
+  /**
+   * Closes the appender and deletes the directory.
+   */
+  @After
+  public void tearDown() {
+    this._appender.close();
+    Filesystem.deleteDirectoryContents(this._directory);
+    this._directory.delete();
+  }
+
+  /**
+   * Every exchange written is read back, in order and unchanged, including text outside ASCII.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testRoundTrip() throws IOException {
+    for (int index = 0; index < 10; index++) {
+      this.append(index, "User" + index % 3);
+    }
+    this._appender.doAppend(new ChatLogEvent(TESTBOT_ID, "Us\u00e9r", "Caf\u00e9?", "\u65e5\u672c", START + 10000));
+    this._appender.close();
+
+    List<ChatLogEvent> events = this.read(new BinaryChatLogReader(this._directory, PREFIX));
+    assertEquals(11, events.size());
+    for (int index = 0; index < 10; index++) {
+      ChatLogEvent event = events.get(index);
+      assertEquals(TESTBOT_ID, event.getBotID());
+      assertEquals("User" + index % 3, event.getUserID());
+      assertEquals("Input " + index, event.getInput());
+      assertEquals("Reply " + index, event.getReply());
+      assertEquals(START + index * 1000, event.timeStamp);
+    }
+    assertEquals("Us\u00e9r", events.get(10).getUserID());
+    assertEquals("Caf\u00e9?", events.get(10).getInput());
+    assertEquals("\u65e5\u672c", events.get(10).getReply());
+  }
+
+  /**
+   * Looking for one user's exchanges reads only the blocks whose Bloom filters may contain the user.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testUserFilterSkipsBlocks() throws IOException {
+    for (int index = 0; index < 24; index++) {
+      this.append(index, index >= 8 && index < 16 ? "Bob" : "Alice");
+    }
+    this._appender.close();
+
+    BinaryChatLogReader reader = new BinaryChatLogReader(this._directory, PREFIX);
+    reader.setUserID("Bob");
+    List<ChatLogEvent> events = this.read(reader);
+    assertEquals(8, events.size());
+    assertEquals("Input 8", events.get(0).getInput());
+    assertEquals("Input 15", events.get(7).getInput());
+    assertEquals(4, reader.getSkippedBlockCount());
+
+    reader.setUserID("Carol");
+    assertEquals(0, this.read(reader).size());
+  }
+
+  /**
+   * Looking for the exchanges in a span of time reads only the blocks that overlap it; the span includes its start
+   * and excludes its end.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testSpanSkipsBlocks() throws IOException {
+    for (int index = 0; index < 24; index++) {
+      this.append(index, "Alice");
+    }
+    this._appender.close();
+
+    BinaryChatLogReader reader = new BinaryChatLogReader(this._directory, PREFIX);
+    reader.setSpan(START + 5 * 1000, START + 12 * 1000);
+    List<ChatLogEvent> events = this.read(reader);
+    assertEquals(7, events.size());
+    assertEquals("Input 5", events.get(0).getInput());
+    assertEquals("Input 11", events.get(6).getInput());
+    // Of the six blocks, only the second and third overlap the span.
+    assertEquals(4, reader.getSkippedBlockCount());
+
+    reader.setSpan(Long.MIN_VALUE, Long.MAX_VALUE);
+    reader.setBotID("OtherBot");
+    assertEquals(0, this.read(reader).size());
+  }
+
+  /**
+   * The log is split into segments once they reach the maximum size, and an appender started on a directory that
+   * already holds segments begins a new one after them; the reader reads them all, in order.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testSegmentsReadInOrder() throws IOException {
+    this._appender.close();
+    this._appender = this.appender("1KB");
+    for (int index = 0; index < 60; index++) {
+      this.append(index, "Alice");
+    }
+    this._appender.close();
+    int segments = BinaryChatLog.segments(this._directory, PREFIX).length;
+    assertTrue(segments > 1);
+
+    this._appender = this.appender(null);
+    for (int index = 60; index < 70; index++) {
+      this.append(index, "Alice");
+    }
+    this._appender.close();
+    assertEquals(segments + 1, BinaryChatLog.segments(this._directory, PREFIX).length);
+
+    List<ChatLogEvent> events = this.read(new BinaryChatLogReader(this._directory, PREFIX));
+    assertEquals(70, events.size());
+    for (int index = 0; index < 70; index++) {
+      assertEquals("Input " + index, events.get(index).getInput());
+    }
+  }
+
+  /**
+   * The records written after the last index entry (as when Program D stopped without closing the log) are still read,
+   * up to the last complete one.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testReadsPastLastIndexedBlock() throws IOException {
+    for (int index = 0; index < 10; index++) {
+      this.append(index, index < 8 ? "Alice" : "Bob");
+    }
+    // Write out what has been appended, without closing the segment (and so without indexing the last two records).
+    this._appender.flush();
+    File segment = BinaryChatLog.segment(this._directory, PREFIX, 1);
+    assertEquals(BinaryChatLog.HEADER_SIZE + 2 * 32 + 2 * (BinaryChatLog.BLOOM_BITS / 8),
+        BinaryChatLog.indexFor(segment).length());
+
+    assertEquals(10, this.read(new BinaryChatLogReader(this._directory, PREFIX)).size());
+    BinaryChatLogReader reader = new BinaryChatLogReader(this._directory, PREFIX);
+    reader.setUserID("Bob");
+    assertEquals(2, this.read(reader).size());
+
+    // Cut the last record short, as if the process had died while writing it.
+    RandomAccessFile file = new RandomAccessFile(segment, "rw");
+    try {
+      file.setLength(file.length() - 3);
+    }
+    finally {
+      file.close();
+    }
+    List<ChatLogEvent> events = this.read(new BinaryChatLogReader(this._directory, PREFIX));
+    assertEquals(9, events.size());
+    assertEquals("Input 8", events.get(8).getInput());
+  }
+
+  /**
+   * The log can be exported as an XML chat log, like that written by {@link XMLChatLogLayout}.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testExportsXML() throws Exception {
+    for (int index = 0; index < 3; index++) {
+      this.append(index, "Alice");
+    }
+    this._appender.doAppend(new ChatLogEvent(TESTBOT_ID, "Bob", "Is 1 < 2 & 3 > 2?", "Yes.", START + 3000));
+    this._appender.close();
+
+    StringWriter out = new StringWriter();
+    assertEquals(4, new BinaryChatLogReader(this._directory, PREFIX).write(out, new XMLChatLogLayout()));
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    Document log = factory.newDocumentBuilder().parse(new InputSource(new StringReader(out.toString())));
+    assertEquals("log", log.getDocumentElement().getLocalName());
+    assertEquals(4, log.getElementsByTagName("record").getLength());
+    NodeList inputs = log.getElementsByTagName("input");
+    assertEquals("Input 0", inputs.item(0).getTextContent());
+    assertEquals("Is 1 < 2 & 3 > 2?", inputs.item(3).getTextContent());
+    assertEquals("Bob", log.getElementsByTagName("userid").item(3).getTextContent());
+  }
+
+  /**
+   * Writes an exchange numbered as given.
+   * 
+   * @param index
+   * @param userid
+   */
+  private void append(int index, String userid) {
+    this._appender.doAppend(new ChatLogEvent(TESTBOT_ID, userid, "Input " + index, "Reply " + index, START + index
+        * 1000));
+  }
+
+  /**
+   * @param maxSegmentSize the maximum segment size (or null for the default)
+   * @return a new appender on the log directory
+   */
+  private BinaryChatLogAppender appender(String maxSegmentSize) {
+    BinaryChatLogAppender appender = new BinaryChatLogAppender();
+    appender.setName("BinaryChatLogTest");
+    appender.setDirectory(this._directory.getAbsolutePath());
+    appender.setPrefix(PREFIX);
+    appender.setIndexInterval(INTERVAL);
+    if (maxSegmentSize != null) {
+      appender.setMaxSegmentSize(maxSegmentSize);
+    }
+    appender.activateOptions();
+    return appender;
+  }
+
+  /**
+   * @param reader
+   * @return the exchanges read by the given reader
+   * @throws IOException
+   */
+  private List<ChatLogEvent> read(BinaryChatLogReader reader) throws IOException {
+    final List<ChatLogEvent> events = new ArrayList<ChatLogEvent>();
+    int count = reader.read(new BinaryChatLogReader.Handler() {
+      @Override
+      public void handle(ChatLogEvent event) {
+        events.add(event);
+      }
+    });
+    assertEquals(events.size(), count);
+    return events;
+  }
+}
@@ -0,0 +1,337 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.logging;
+
+import static org.junit.Assert.*;
+
+import java.io.Flushable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aitools.programd.Core;
+import org.aitools.programd.ProgrammaticCoreSettings;
+import org.aitools.programd.TestCores;
+import org.aitools.util.db.StubDatabase;
+import org.aitools.util.db.StubDriver;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the batching, overflow policies and shutdown of the {@link ChatLogWriter}.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class ChatLogWriterTest {
+
+  private static final String TESTBOT_ID = "TestBot";
+
+  private static final String DATABASE = "ChatLogWriterTest";
+
+  /** How long (in milliseconds) to wait for anything that should happen. */
+  private static final long WAIT = 5000;
+
+  /** A flush interval long enough that it never passes during a test. */
+  private static final int NEVER = 60000;
+
+  private ProgrammaticCoreSettings _settings;
+
+  private Core _core;
+
+  private ChatLogWriter _writer;
+
+  private RecordingAppender _appender;
+
+  /**
+   * A chat log appender that remembers the exchanges it is given, and how often it is flushed.
+   */
+  private static class RecordingAppender extends AppenderSkeleton implements Flushable {
+
+    /** The inputs of the exchanges appended, in order. */
+    protected List<String> inputs = Collections.synchronizedList(new ArrayList<String>());
+
+    /** The number of flushes. */
+    protected AtomicInteger flushes = new AtomicInteger();
+
+    /**
+     * Creates a new RecordingAppender.
+     */
+    protected RecordingAppender() {
+      super();
+    }
+
+    @Override
+    protected void append(LoggingEvent event) {
+      if (event instanceof ChatLogEvent) {
+        this.inputs.add(((ChatLogEvent) event).getInput());
+      }
+    }
+
+    @Override
+    public void close() {
+      // Nothing to close.
+    }
+
+    @Override
+    public void flush() {
+      this.flushes.incrementAndGet();
+    }
+
+    @Override
+    public boolean requiresLayout() {
+      return false;
+    }
+  }
+
+  /**
+   * Prepares the settings, and starts recording the chat log.
+   */
+  @Before
+  public void setUp() {
+    this._settings = TestCores.settings();
+    this._appender = new RecordingAppender();
+    Logger.getLogger("programd").addAppender(this._appender);
+  }
+
+  /**
+   * Stops the writer and the core, and stops recording the chat log.
+   */
+  @After
+  public void tearDown() {
+    if (this._writer != null) {
+      this._writer.shutdown();
+    }
+    Logger.getLogger("programd").removeAppender(this._appender);
+    if (this._core != null) {
+      this._core.shutdown();
+    }
+    StubDriver.unregister(DATABASE);
+  }
+
+  /**
+   * Exchanges are written a full batch at a time, and those that do not fill a batch wait for the flush interval.
+   */
+  @Test
+  public void testFullBatchesWrittenAtOnce() {
+    this.create(100, 10, NEVER, "drop");
+    this.log(0, 25);
+    this.run();
+    this.awaitWritten(20);
+
+    assertEquals(20, this._appender.inputs.size());
+    assertTrue(this._writer.getSummary(), this._writer.getSummary().contains("5 waiting"));
+    this._writer.shutdown();
+    assertEquals(inputs(0, 25), this._appender.inputs);
+    assertEquals(3, this._appender.flushes.get());
+  }
+
+  /**
+   * Fewer exchanges than a batch are written together once the flush interval has passed.
+   */
+  @Test
+  public void testPartialBatchWrittenAfterInterval() {
+    this.create(100, 10, 50, "drop");
+    this.log(0, 3);
+    long start = System.nanoTime();
+    this.run();
+    this.awaitWritten(3);
+
+    assertTrue(System.nanoTime() - start >= 50 * 1000000L);
+    this._writer.shutdown();
+    assertEquals(inputs(0, 3), this._appender.inputs);
+    assertEquals(1, this._appender.flushes.get());
+  }
+
+  /**
+   * With the drop policy, an exchange logged while the queue is full is dropped (and counted), and the response does
+   * not wait.
+   */
+  @Test
+  public void testDroppedWhenFull() {
+    this.create(5, 100, NEVER, "drop");
+    for (int index = 0; index < 5; index++) {
+      assertTrue(this._writer.log("Input " + index, "Response", "User", TESTBOT_ID));
+    }
+    assertFalse(this._writer.log("Input 5", "Response", "User", TESTBOT_ID));
+    assertFalse(this._writer.log("Input 6", "Response", "User", TESTBOT_ID));
+    assertEquals("Chat log: 5 exchanges queued, 0 written, 2 dropped, 0 failed, 5 waiting (drop when full).",
+        this._writer.getSummary());
+
+    this.run();
+    this._writer.shutdown();
+    assertEquals(inputs(0, 5), this._appender.inputs);
+    assertEquals("Chat log: 5 exchanges queued, 5 written, 2 dropped, 0 failed, 0 waiting (drop when full).",
+        this._writer.getSummary());
+  }
+
+  /**
+   * With the block policy, an exchange logged while the queue is full waits until there is room, and is not lost.
+   * 
+   * @throws InterruptedException
+   */
+  @Test
+  public void testBlockedWhenFull() throws InterruptedException {
+    this.create(2, 2, NEVER, "block");
+    this.log(0, 2);
+    final AtomicBoolean queued = new AtomicBoolean();
+    Thread blocked = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        queued.set(ChatLogWriterTest.this._writer.log("Input 2", "Response", "User", TESTBOT_ID));
+      }
+    });
+    blocked.start();
+    Thread.sleep(50);
+    assertTrue(blocked.isAlive());
+
+    this.run();
+    blocked.join(WAIT);
+    assertFalse(blocked.isAlive());
+    assertTrue(queued.get());
+    this._writer.shutdown();
+    assertEquals(inputs(0, 3), this._appender.inputs);
+    assertEquals("Chat log: 3 exchanges queued, 3 written, 0 dropped, 0 failed, 0 waiting (block when full).",
+        this._writer.getSummary());
+  }
+
+  /**
+   * Shutting down writes the exchanges still waiting, without waiting for the flush interval.
+   */
+  @Test
+  public void testDrainedOnShutdown() {
+    this.create(1000, 100, NEVER, "drop");
+    this.run();
+    this.log(0, 50);
+    long start = System.currentTimeMillis();
+    this._writer.shutdown();
+
+    assertTrue(System.currentTimeMillis() - start < WAIT);
+    assertFalse(this._writer.isRunning());
+    assertEquals(inputs(0, 50), this._appender.inputs);
+    String summary = this._writer.getSummary();
+    assertTrue(summary, summary.contains("50 written, 0 dropped, 0 failed, 0 waiting"));
+  }
+
+  /**
+   * A batch is written to the database with a single multi-row insert, and the ids of users and bots are looked up
+   * only once.
+   */
+  @Test
+  public void testBatchWrittenToDatabaseWithOneInsert() {
+    StubDatabase database = new StubDatabase("MySQL", new StubDatabase.Responder() {
+      @Override
+      public List<Object[]> respond(String sql, List<Object> parameters) {
+        return Collections.singletonList(new Object[] { Integer.valueOf(1) });
+      }
+    });
+    this._settings.setDatabaseDriver(StubDriver.class.getName());
+    this._settings.setDatabaseURI(StubDriver.register(DATABASE, database));
+    this._settings.setChatLogToDatabase(true);
+    this.create(100, 10, NEVER, "drop");
+    for (int index = 0; index < 10; index++) {
+      this._writer.log("Input " + index, "Response", index % 2 == 0 ? "Alice" : "Bob", TESTBOT_ID);
+    }
+    database.clear();
+    this.run();
+    this._writer.shutdown();
+
+    assertEquals(1, database.count("INSERT INTO exchange (timestamp, user_id, bot_id, input, response) VALUES"));
+    for (StubDatabase.Execution execution : database.getExecutions()) {
+      if (execution.sql.startsWith("INSERT INTO exchange")) {
+        assertEquals(10 * 5, execution.parameters.size());
+      }
+    }
+    assertEquals(2, database.count("SELECT id from user"));
+    assertEquals(1, database.count("SELECT id from bot"));
+    assertTrue(this._writer.getSummary(), this._writer.getSummary().contains("10 written"));
+  }
+
+  /**
+   * Waits until the given number of exchanges have been written to the chat log (failing if they never are).
+   * 
+   * @param count
+   */
+  private void awaitWritten(int count) {
+    long deadline = System.currentTimeMillis() + WAIT;
+    while (this._appender.inputs.size() < count && System.currentTimeMillis() < deadline) {
+      try {
+        Thread.sleep(1);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    assertTrue(String.format("Only %d exchanges written.", Integer.valueOf(this._appender.inputs.size())),
+        this._appender.inputs.size() >= count);
+  }
+
+  /**
+   * Creates the core and a writer (not yet running) with the given chat log settings.
+   * 
+   * @param capacity
+   * @param batchSize
+   * @param flushInterval
+   * @param policy
+   */
+  private void create(int capacity, int batchSize, int flushInterval, String policy) {
+    this._settings.setChatLogQueueCapacity(capacity);
+    this._settings.setChatLogBatchSize(batchSize);
+    this._settings.setChatLogFlushInterval(flushInterval);
+    this._settings.setChatLogOverflowPolicy(policy);
+    this._core = TestCores.create(this._settings);
+    this._writer = new ChatLogWriter(this._core);
+  }
+
+  /**
+   * @param start
+   * @param end
+   * @return the inputs of the exchanges numbered from <code>start</code> up to (but not including) <code>end</code>
+   */
+  private static List<String> inputs(int start, int end) {
+    List<String> inputs = new ArrayList<String>();
+    for (int index = start; index < end; index++) {
+      inputs.add("Input " + index);
+    }
+    return inputs;
+  }
+
+  /**
+   * Logs the exchanges numbered from <code>start</code> up to (but not including) <code>end</code>.
+   * 
+   * @param start
+   * @param end
+   */
+  private void log(int start, int end) {
+    for (int index = start; index < end; index++) {
+      assertTrue(this._writer.log("Input " + index, "Response", "User", TESTBOT_ID));
+    }
+  }
+
+  /**
+   * Starts the writer, and waits until it has written what was waiting (if a batch or more) and is waiting for more, so
+   * that shutting it down will wait for it.
+   */
+  private void run() {
+    Thread thread = new Thread(this._writer, "ChatLogWriterTest");
+    thread.setDaemon(true);
+    thread.start();
+    long deadline = System.currentTimeMillis() + WAIT;
+    while (thread.getState() != Thread.State.TIMED_WAITING && System.currentTimeMillis() < deadline) {
+      Thread.yield();
+    }
+  }
+}
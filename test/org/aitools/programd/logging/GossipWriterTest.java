@@ -0,0 +1,211 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.logging;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.aitools.programd.Core;
+import org.aitools.programd.ProgrammaticCoreSettings;
+import org.aitools.programd.TestCores;
+import org.aitools.util.resource.Filesystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the writing, rotation and error handling of the {@link GossipWriter}.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class GossipWriterTest {
+
+  /** How long (in milliseconds) to wait for anything that should happen. */
+  private static final long WAIT = 5000;
+
+  private File _directory;
+
+  private File _file;
+
+  private Core _core;
+
+  private GossipWriter _writer;
+
+  private Thread _thread;
+
+  /**
+   * Creates an empty directory for the gossip file.
+   * 
+   * @throws IOException if the directory cannot be created
+   */
+  @Before
+  public void setUp() throws IOException {
+    this._directory = File.createTempFile("gossip", "");
+    this._directory.delete();
+    this._directory.mkdir();
+    this._file = new File(this._directory, "gossip.txt");
+  }
+
+  /**
+   * Stops the writer and the core, and deletes the directory.
+   */
+  @After
+  public void tearDown() {
+    if (this._writer != null) {
+      this._writer.shutdown();
+    }
+    if (this._core != null) {
+      this._core.shutdown();
+    }
+    Filesystem.deleteDirectoryContents(this._directory);
+    this._directory.delete();
+  }
+
+  /**
+   * Entries are appended to the file, each as a list item.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testEntriesAppended() throws IOException {
+    this.start("10MB", 0);
+    assertTrue(this._writer.log("one"));
+    assertTrue(this._writer.log("two"));
+    this.awaitWritten(2);
+    assertTrue(this._writer.log("three"));
+    this._writer.shutdown();
+
+    String nl = String.format("%n");
+    assertEquals("<li>one</li>" + nl + "<li>two</li>" + nl + "<li>three</li>" + nl, read(this._file));
+    assertEquals("Gossip: 3 entries written, 0 dropped, 0 failed, 0 waiting.", this._writer.getSummary());
+  }
+
+  /**
+   * Once the file reaches its maximum size, it is rotated, keeping only the configured number of backups.
+   * 
+   * @throws IOException
+   */
+  @Test
+  public void testRotationKeepsBackups() throws IOException {
+    this.start("1", 2);
+    String[] entries = { "one", "two", "three", "four" };
+    for (int index = 0; index < entries.length; index++) {
+      this._writer.log(entries[index]);
+      this.awaitWritten(index + 1);
+    }
+
+    assertTrue(read(this._file).contains("four"));
+    assertTrue(read(new File(this._file.getPath() + ".1")).contains("three"));
+    assertTrue(read(new File(this._file.getPath() + ".2")).contains("two"));
+    assertFalse(new File(this._file.getPath() + ".3").exists());
+  }
+
+  /**
+   * When the file cannot be written, the entries are counted as failed, and the writer carries on (forcing nothing to
+   * disk), so that later entries are written once the file can be written again.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testSurvivesWriteFailure() throws Exception {
+    this.start("1", 0);
+    this._writer.log("one");
+    this.awaitWritten(1);
+
+    // Put a directory (which cannot be deleted, since it is not empty) where the file is.
+    assertTrue(this._file.delete());
+    assertTrue(this._file.mkdir());
+    File blocker = new File(this._file, "blocker");
+    assertTrue(blocker.createNewFile());
+    this._writer.log("two");
+    long deadline = System.currentTimeMillis() + WAIT;
+    while (!this._writer.getSummary().contains("1 failed") && System.currentTimeMillis() < deadline) {
+      Thread.sleep(1);
+    }
+    assertTrue(this._writer.getSummary(), this._writer.getSummary().contains("1 failed"));
+    // Give the writer the chance to look at whether to force the (closed) file to disk.
+    Thread.sleep(50);
+    assertTrue(this._thread.isAlive());
+
+    assertTrue(blocker.delete());
+    assertTrue(this._file.delete());
+    this._writer.log("three");
+    this.awaitWritten(2);
+    assertTrue(read(this._file).contains("three"));
+    assertEquals("Gossip: 2 entries written, 0 dropped, 1 failed, 0 waiting.", this._writer.getSummary());
+  }
+
+  /**
+   * Waits until the given number of entries have been written (failing if they never are).
+   * 
+   * @param count
+   */
+  private void awaitWritten(int count) {
+    String written = String.format("Gossip: %d entries written", Integer.valueOf(count));
+    long deadline = System.currentTimeMillis() + WAIT;
+    while (!this._writer.getSummary().startsWith(written) && System.currentTimeMillis() < deadline) {
+      try {
+        Thread.sleep(1);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    assertTrue(this._writer.getSummary(), this._writer.getSummary().startsWith(written));
+  }
+
+  /**
+   * Creates the core, and starts a writer with the given settings that writes to the gossip file.
+   * 
+   * @param maxFileSize
+   * @param maxBackups
+   * @throws IOException
+   */
+  private void start(String maxFileSize, int maxBackups) throws IOException {
+    ProgrammaticCoreSettings settings = TestCores.settings();
+    settings.setGossipURL(this._file.toURI().toURL());
+    settings.setGossipFlushInterval(5);
+    settings.setGossipSyncInterval(1);
+    settings.setGossipMaxFileSize(maxFileSize);
+    settings.setGossipMaxBackups(maxBackups);
+    this._core = TestCores.create(settings);
+    this._writer = new GossipWriter(this._core);
+    this._thread = new Thread(this._writer, "GossipWriterTest");
+    this._thread.setDaemon(true);
+    this._thread.start();
+  }
+
+  /**
+   * @param file
+   * @return the contents of the given file (in UTF-8)
+   * @throws IOException
+   */
+  private static String read(File file) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[4096];
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        bytes.write(buffer, 0, count);
+      }
+    }
+    finally {
+      in.close();
+    }
+    return bytes.toString("UTF-8");
+  }
+}
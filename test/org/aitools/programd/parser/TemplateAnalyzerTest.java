@@ -0,0 +1,70 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.parser;
+
+import static org.junit.Assert.*;
+
+import org.aitools.programd.processor.aiml.AIMLProcessorRegistry;
+import org.junit.Test;
+
+/**
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class TemplateAnalyzerTest {
+
+  private static String template(String content) {
+    return String.format("<template xmlns=\"%s\">%s</template>", AIMLProcessorRegistry.XMLNS, content);
+  }
+
+  /**
+   * Templates made only of text, reductions and match-dependent elements are pure.
+   */
+  @Test
+  public void testPureTemplates() {
+    TemplateAnalyzer analyzer = new TemplateAnalyzer();
+    assertTrue(analyzer.isPure(template("Hello there.")));
+    assertTrue(analyzer.isPure(template("<srai>HELLO</srai>")));
+    assertTrue(analyzer.isPure(template("<srai>HELLO <star/></srai>")));
+    assertTrue(analyzer.isPure(template("<uppercase><person><star index=\"2\"/></person></uppercase>")));
+    assertTrue(analyzer.isPure(template("My name is <bot name=\"name\"/>.")));
+  }
+
+  /**
+   * Templates with side effects or reads of mutable state are impure.
+   */
+  @Test
+  public void testImpureTemplates() {
+    TemplateAnalyzer analyzer = new TemplateAnalyzer();
+    assertFalse(analyzer.isPure(template("<set name=\"it\">that</set>")));
+    assertFalse(analyzer.isPure(template("<random><li>a</li><li>b</li></random>")));
+    assertFalse(analyzer.isPure(template("<think><srai>HELLO</srai></think>")));
+    assertFalse(analyzer.isPure(template("<srai>HELLO <get name=\"name\"/></srai>")));
+    assertFalse(analyzer.isPure(template("<system>ls</system>")));
+    assertFalse(analyzer.isPure(template("You said <input/>.")));
+  }
+
+  /**
+   * Elements outside the AIML namespace are only rendered, so they are pure if their content is.
+   */
+  @Test
+  public void testForeignElements() {
+    TemplateAnalyzer analyzer = new TemplateAnalyzer();
+    assertTrue(analyzer.isPure(template("<html:b xmlns:html=\"http://www.w3.org/1999/xhtml\">Hi</html:b>")));
+    assertFalse(analyzer.isPure(template("<html:b xmlns:html=\"http://www.w3.org/1999/xhtml\"><date/></html:b>")));
+  }
+
+  /**
+   * A template that cannot be parsed is never considered pure.
+   */
+  @Test
+  public void testMalformedTemplate() {
+    assertFalse(new TemplateAnalyzer().isPure("<template>"));
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.predicates;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.aitools.programd.Bot;
+import org.aitools.programd.Core;
+import org.aitools.programd.ProgrammaticCoreSettings;
+import org.aitools.programd.TestCores;
+import org.aitools.util.db.StubDatabase;
+import org.aitools.util.db.StubDriver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the writing of predicates by {@link DBPredicateManager}, against predicates kept in memory behind a stub
+ * database.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class DBPredicateManagerTest {
+
+  private static final String TESTBOT_ID = "TestBot";
+
+  private static final String TESTUSER_ID = "TestUser";
+
+  private static final String DATABASE = "DBPredicateManagerTest";
+
+  private static final String UPSERT = "INSERT INTO predicate (name, value, user_id, bot_id) VALUES";
+
+  /** The most rows written by a single upsert. */
+  private static final int BATCH_SIZE = 3;
+
+  private PredicateTables _tables;
+
+  private StubDatabase _database;
+
+  private Core _core;
+
+  private Bot _testBot;
+
+  private PredicateManager _manager;
+
+  /**
+   * The bot, user and predicate tables, kept in memory. No predicates are found when loading (so every user is new),
+   * and upserted predicates are kept by user id, bot id and name.
+   */
+  private static class PredicateTables implements StubDatabase.Responder {
+
+    /** The ids of the bots and users, by table and label or name. */
+    private Map<String, Integer> ids = new HashMap<String, Integer>();
+
+    /** The values of the predicates written, by user id, bot id and name. */
+    protected Map<String, String> predicates = Collections.synchronizedMap(new HashMap<String, String>());
+
+    /**
+     * Creates new PredicateTables.
+     */
+    protected PredicateTables() {
+      super();
+    }
+
+    @Override
+    public synchronized List<Object[]> respond(String sql, List<Object> parameters) {
+      if (sql.startsWith("SELECT id from ")) {
+        Integer id = this.ids.get(sql.split(" ")[3] + " " + parameters.get(0));
+        return id == null ? null : Collections.singletonList(new Object[] { id });
+      }
+      if (sql.startsWith("INSERT INTO bot ") || sql.startsWith("INSERT INTO user ")) {
+        Integer id = Integer.valueOf(this.ids.size() + 1);
+        this.ids.put(sql.split(" ")[2] + " " + parameters.get(0), id);
+        return Collections.singletonList(new Object[] { id });
+      }
+      if (sql.startsWith(UPSERT)) {
+        for (int row = 0; row < parameters.size(); row += 4) {
+          this.predicates.put(String.format("%s/%s/%s", parameters.get(row + 2), parameters.get(row + 3),
+              parameters.get(row)), (String) parameters.get(row + 1));
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Creates a core whose predicates are kept in the stub database, and only written when asked.
+   */
+  @Before
+  public void setUp() {
+    this._tables = new PredicateTables();
+    this._database = new StubDatabase("MySQL", this._tables);
+    ProgrammaticCoreSettings settings = TestCores.settings();
+    settings.setPredicateManagerImplementation(DBPredicateManager.class.getName());
+    settings.setPredicateDbUpsertBatchSize(BATCH_SIZE);
+    settings.setDatabaseDriver(StubDriver.class.getName());
+    settings.setDatabaseURI(StubDriver.register(DATABASE, this._database));
+    this._core = TestCores.create(settings, TESTBOT_ID);
+    this._testBot = this._core.getBot(TESTBOT_ID);
+    this._manager = this._core.getPredicateMaster();
+  }
+
+  /**
+   * Shuts down the core.
+   */
+  @After
+  public void tearDown() {
+    this._core.shutdown();
+    StubDriver.unregister(DATABASE);
+  }
+
+  /**
+   * Only the predicates changed since the last flush are written; a flush with nothing changed writes nothing.
+   */
+  @Test
+  public void testOnlyChangedPredicatesWritten() {
+    this._manager.set("a", "1", TESTUSER_ID, TESTBOT_ID);
+    this._manager.set("b", "2", TESTUSER_ID, TESTBOT_ID);
+    this._manager.set("c", "3", TESTUSER_ID, TESTBOT_ID);
+    this._manager.saveAll();
+    assertEquals(3, this._tables.predicates.size());
+
+    this._database.clear();
+    this._manager.set("b", "20", TESTUSER_ID, TESTBOT_ID);
+    this._manager.saveAll();
+    List<List<Object>> upserts = this.upserts();
+    assertEquals(1, upserts.size());
+    assertEquals(4, upserts.get(0).size());
+    assertEquals("b", upserts.get(0).get(0));
+    assertEquals("20", upserts.get(0).get(1));
+    assertEquals("20", this._tables.predicates.get("2/1/b"));
+
+    this._database.clear();
+    this._manager.saveAll();
+    assertEquals(0, this._database.getExecutions().size());
+  }
+
+  /**
+   * The changed predicates are written with as many full upserts as they fill, and one more for the rest; each value of
+   * a multivalued predicate (including the empty default it starts with) is a row of its own.
+   */
+  @Test
+  public void testUpsertsChunkedAtBatchSize() {
+    for (int index = 0; index < 4; index++) {
+      this._manager.set("name" + index, "value" + index, TESTUSER_ID, TESTBOT_ID);
+    }
+    this._manager.set("list", 1, "first", TESTUSER_ID, TESTBOT_ID);
+    this._manager.set("list", 1, "second", TESTUSER_ID, TESTBOT_ID);
+    this._manager.saveAll();
+
+    List<Integer> rows = new ArrayList<Integer>();
+    for (List<Object> parameters : this.upserts()) {
+      rows.add(Integer.valueOf(parameters.size() / 4));
+    }
+    assertEquals(Arrays.asList(Integer.valueOf(3), Integer.valueOf(3), Integer.valueOf(1)), rows);
+    assertEquals(7, this._tables.predicates.size());
+    assertEquals("value3", this._tables.predicates.get("2/1/name3"));
+    assertEquals("second", this._tables.predicates.get("2/1/list.1"));
+    assertEquals("first", this._tables.predicates.get("2/1/list.2"));
+  }
+
+  /**
+   * The ids of the bot and of each user are looked up once, not every time their predicates are written.
+   */
+  @Test
+  public void testIdsLookedUpOnce() {
+    for (int flush = 0; flush < 3; flush++) {
+      this._manager.set("a", "value" + flush, TESTUSER_ID, TESTBOT_ID);
+      this._manager.set("a", "value" + flush, "OtherUser", TESTBOT_ID);
+      this._manager.saveAll();
+    }
+    assertEquals(6, this.upserts().size());
+    assertEquals(1, this._database.count("SELECT id from bot"));
+    assertEquals(2, this._database.count("SELECT id from user"));
+    assertEquals(1, this._database.count("INSERT INTO bot "));
+    assertEquals(2, this._database.count("INSERT INTO user "));
+    assertEquals("value2", this._tables.predicates.get("2/1/a"));
+    assertEquals("value2", this._tables.predicates.get("3/1/a"));
+  }
+
+  /**
+   * Writing a user's predicates leaves them cached, so they are read afterwards without going to the database.
+   */
+  @Test
+  public void testFlushKeepsPredicatesCached() {
+    this._manager.set("a", "1", TESTUSER_ID, TESTBOT_ID);
+    this._manager.saveAll();
+    assertTrue(this._testBot.getPredicateCache().contains(TESTUSER_ID));
+
+    this._database.clear();
+    assertEquals("1", this._manager.get("a", TESTUSER_ID, TESTBOT_ID));
+    assertEquals(0, this._database.getExecutions().size());
+  }
+
+  /**
+   * @return the parameters of each predicate upsert executed, in order
+   */
+  private List<List<Object>> upserts() {
+    List<List<Object>> upserts = new ArrayList<List<Object>>();
+    for (StubDatabase.Execution execution : this._database.getExecutions()) {
+      if (execution.sql.startsWith(UPSERT)) {
+        upserts.add(execution.parameters);
+      }
+    }
+    return upserts;
+  }
+}
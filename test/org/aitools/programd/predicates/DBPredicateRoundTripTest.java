@@ -0,0 +1,132 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.predicates;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.aitools.programd.Core;
+import org.aitools.programd.ProgrammaticCoreSettings;
+import org.aitools.programd.TestCores;
+import org.aitools.util.db.EmbeddedDatabase;
+import org.aitools.util.db.SQLDialect;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that predicates written by {@link DBPredicateManager} to a real (embedded) database are read back by another
+ * core, so that the upserts and selects of the standard SQL dialect are run for real.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class DBPredicateRoundTripTest {
+
+  private static final String TESTBOT_ID = "TestBot";
+
+  private static final String TESTUSER_ID = "TestUser";
+
+  private ProgrammaticCoreSettings _settings;
+
+  private Core _core;
+
+  /**
+   * Creates the embedded database, and settings for cores whose predicates are kept in it, written two rows at a time.
+   * 
+   * @throws Exception
+   */
+  @Before
+  public void setUp() throws Exception {
+    this._settings = TestCores.settings();
+    EmbeddedDatabase.create("DBPredicateRoundTripTest", this._settings);
+    this._settings.setPredicateManagerImplementation(DBPredicateManager.class.getName());
+    this._settings.setPredicateDbUpsertBatchSize(2);
+  }
+
+  /**
+   * Shuts down the core, and drops the embedded database.
+   * 
+   * @throws Exception
+   */
+  @After
+  public void tearDown() throws Exception {
+    if (this._core != null) {
+      this._core.shutdown();
+    }
+    EmbeddedDatabase.drop(this._settings);
+  }
+
+  /**
+   * Predicates written (and written again with new values) by one core are read by the next, including multivalued
+   * predicates and text outside ASCII.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testPredicatesReadBackByNextCore() throws Exception {
+    PredicateManager manager = this.start();
+    manager.set("name", "Caf\u00e9", TESTUSER_ID, TESTBOT_ID);
+    manager.set("topic", "*", TESTUSER_ID, TESTBOT_ID);
+    manager.set("that", 1, "Hello.", TESTUSER_ID, TESTBOT_ID);
+    manager.set("that", 1, "How are you?", TESTUSER_ID, TESTBOT_ID);
+    manager.set("age", "30", "OtherUser", TESTBOT_ID);
+    manager.saveAll();
+    // Written again, these update the rows already there.
+    manager.set("topic", "WEATHER", TESTUSER_ID, TESTBOT_ID);
+    manager.set("that", 1, "Fine.", TESTUSER_ID, TESTBOT_ID);
+    manager.saveAll();
+    assertEquals(7, this.count("predicate"));
+    this._core.shutdown();
+
+    manager = this.start();
+    assertEquals("Caf\u00e9", manager.get("name", TESTUSER_ID, TESTBOT_ID));
+    assertEquals("WEATHER", manager.get("topic", TESTUSER_ID, TESTBOT_ID));
+    assertEquals("Fine.", manager.get("that", 1, TESTUSER_ID, TESTBOT_ID));
+    assertEquals("How are you?", manager.get("that", 2, TESTUSER_ID, TESTBOT_ID));
+    assertEquals("Hello.", manager.get("that", 3, TESTUSER_ID, TESTBOT_ID));
+    assertEquals("30", manager.get("age", "OtherUser", TESTBOT_ID));
+    assertEquals(1, this.count("bot"));
+    assertEquals(2, this.count("user"));
+  }
+
+  /**
+   * @param table
+   * @return the number of rows in the given table
+   * @throws Exception
+   */
+  private int count(String table) throws Exception {
+    Connection connection = this._core.getDBConnection();
+    try {
+      Statement statement = connection.createStatement();
+      ResultSet results = statement.executeQuery("SELECT COUNT(*) FROM "
+          + SQLDialect.of(connection).identifier(table));
+      results.next();
+      int count = results.getInt(1);
+      statement.close();
+      return count;
+    }
+    finally {
+      connection.close();
+    }
+  }
+
+  /**
+   * Creates a core (with the test bot) that uses the embedded database.
+   * 
+   * @return the core's predicate manager
+   */
+  private PredicateManager start() {
+    this._core = TestCores.create(this._settings, TESTBOT_ID);
+    return this._core.getPredicateMaster();
+  }
+}
@@ -0,0 +1,211 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.predicates;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import org.aitools.programd.Core;
+import org.aitools.programd.ProgrammaticCoreSettings;
+import org.aitools.programd.TestCores;
+import org.aitools.programd.interfaces.shell.MigratePredicatesCommand;
+import org.aitools.programd.interfaces.shell.Shell;
+import org.aitools.util.resource.Filesystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the file layout, legacy files and migration of {@link FlatFilePredicateManager}.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class FlatFilePredicateManagerTest {
+
+  private static final String TESTBOT_ID = "TestBot";
+
+  private static final String TESTUSER_ID = "TestUser";
+
+  private File _directory;
+
+  private Core _core;
+
+  private FlatFilePredicateManager _manager;
+
+  /**
+   * Shuts down the current core (if any), and starts a new one on the same directory.
+   */
+  private void restart() {
+    if (this._core != null) {
+      this._core.shutdown();
+    }
+    ProgrammaticCoreSettings settings = TestCores.settings();
+    settings.setPredicateManagerImplementation(FlatFilePredicateManager.class.getName());
+    try {
+      settings.setFfpmDirectory(this._directory.toURI().toURL());
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    this._core = TestCores.create(settings, TESTBOT_ID);
+    this._manager = (FlatFilePredicateManager) this._core.getPredicateMaster();
+  }
+
+  /**
+   * Writes a predicates file in the old layout.
+   * 
+   * @param userid the userid
+   * @param name a predicate name
+   * @param value its value
+   * @return the file
+   * @throws IOException if the file cannot be written
+   */
+  private File writeLegacyFile(String userid, String name, String value) throws IOException {
+    File file = new File(this._manager.composeLegacyFilename(userid, TESTBOT_ID));
+    file.getParentFile().mkdirs();
+    Properties properties = new Properties();
+    properties.setProperty(name, value);
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      properties.store(out, null);
+    }
+    finally {
+      out.close();
+    }
+    return file;
+  }
+
+  /**
+   * Starts a core on an empty directory.
+   * 
+   * @throws IOException if the directory cannot be created
+   */
+  @Before
+  public void setUp() throws IOException {
+    this._directory = File.createTempFile("predicates", "");
+    this._directory.delete();
+    this._directory.mkdir();
+    this.restart();
+  }
+
+  /**
+   * Shuts down the core and deletes the directory.
+   */
+  @After
+  public void tearDown() {
+    this._core.shutdown();
+    Filesystem.deleteDirectoryContents(this._directory);
+    this._directory.delete();
+  }
+
+  /**
+   * Each user's file is put in one of the subdirectories for the bot, chosen by the userid, and values with characters
+   * that must be escaped are read back as they were written.
+   */
+  @Test
+  public void testShardedRoundTrip() {
+    String awkward = "tab\there\nnewline\\backslash\r";
+    for (int user = 0; user < 20; user++) {
+      this._manager.set("name", awkward + user, "user" + user, TESTBOT_ID);
+    }
+    this._manager.saveAll();
+    Set<String> directories = new HashSet<String>();
+    for (int user = 0; user < 20; user++) {
+      File file = new File(this._manager.composeFilename("user" + user, TESTBOT_ID));
+      assertTrue(file.exists());
+      assertFalse(new File(file.getPath() + ".tmp").exists());
+      File second = file.getParentFile();
+      File first = second.getParentFile();
+      assertTrue(second.getName().matches("[0-9a-f]{2}"));
+      assertTrue(first.getName().matches("[0-9a-f]{2}"));
+      assertEquals(new File(this._directory, TESTBOT_ID), first.getParentFile());
+      directories.add(second.getPath());
+    }
+    assertTrue(directories.size() > 1);
+
+    this.restart();
+    for (int user = 0; user < 20; user++) {
+      assertEquals(awkward + user, this._manager.get("name", "user" + user, TESTBOT_ID));
+    }
+  }
+
+  /**
+   * A file in the old layout is read, and replaced by one in the new layout (with its predicates) the next time the
+   * user's predicates are saved.
+   * 
+   * @throws IOException if the old file cannot be written
+   */
+  @Test
+  public void testLegacyFileReadAndReplaced() throws IOException {
+    File legacy = this.writeLegacyFile(TESTUSER_ID, "name", "Ann");
+    assertEquals("Ann", this._manager.get("name", TESTUSER_ID, TESTBOT_ID));
+    this._manager.set("age", "30", TESTUSER_ID, TESTBOT_ID);
+    this._manager.saveAll();
+    assertFalse(legacy.exists());
+    assertTrue(new File(this._manager.composeFilename(TESTUSER_ID, TESTBOT_ID)).exists());
+
+    this.restart();
+    assertEquals("Ann", this._manager.get("name", TESTUSER_ID, TESTBOT_ID));
+    assertEquals("30", this._manager.get("age", TESTUSER_ID, TESTBOT_ID));
+  }
+
+  /**
+   * The migrate command converts all files in the old layout at once.
+   * 
+   * @throws IOException if the old files cannot be written
+   */
+  @Test
+  public void testMigrateCommand() throws IOException {
+    File[] legacy = new File[3];
+    for (int user = 0; user < legacy.length; user++) {
+      legacy[user] = this.writeLegacyFile("user" + user, "name", "name" + user);
+    }
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(output, true);
+    Shell shell = new Shell(new ByteArrayInputStream(new byte[0]), out, out, out);
+    shell.attachTo(this._core);
+    MigratePredicatesCommand command = new MigratePredicatesCommand();
+    assertTrue(command.handles("/migrate predicates"));
+    command.handle("/migrate predicates", shell);
+    assertTrue(output.toString(), output.toString().contains("Migrated 3 predicates files."));
+
+    this.restart();
+    for (int user = 0; user < legacy.length; user++) {
+      assertFalse(legacy[user].exists());
+      assertTrue(new File(this._manager.composeFilename("user" + user, TESTBOT_ID)).exists());
+      assertEquals("name" + user, this._manager.get("name", "user" + user, TESTBOT_ID));
+    }
+  }
+
+  /**
+   * A file that was set aside by a rewrite that was interrupted before its replacement was in place is put back.
+   */
+  @Test
+  public void testInterruptedRewriteRecovered() {
+    this._manager.set("name", "Ann", TESTUSER_ID, TESTBOT_ID);
+    this._manager.saveAll();
+    this._core.shutdown();
+    this._core = null;
+    File file = new File(this._manager.composeFilename(TESTUSER_ID, TESTBOT_ID));
+    assertTrue(file.renameTo(new File(file.getPath() + ".old")));
+    this.restart();
+    assertEquals("Ann", this._manager.get("name", TESTUSER_ID, TESTBOT_ID));
+    assertTrue(file.exists());
+  }
+}
@@ -0,0 +1,300 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.predicates;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.aitools.programd.Core;
+import org.aitools.programd.ProgrammaticCoreSettings;
+import org.aitools.programd.TestCores;
+import org.aitools.util.resource.Filesystem;
+import org.aitools.util.runtime.UserError;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the recovery and compaction of {@link LogPredicateManager}'s log and store.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class LogPredicateManagerTest {
+
+  private static final String TESTBOT_ID = "TestBot";
+
+  private static final String TESTUSER_ID = "TestUser";
+
+  private File _directory;
+
+  private Core _core;
+
+  private LogPredicateManager _manager;
+
+  private File file(String name) {
+    return new File(this._directory, name);
+  }
+
+  /**
+   * Shuts down the current core (if any), and starts a new one on the same directory.
+   */
+  private void restart() {
+    if (this._core != null) {
+      this._core.shutdown();
+    }
+    ProgrammaticCoreSettings settings = TestCores.settings();
+    settings.setPredicateManagerImplementation(LogPredicateManager.class.getName());
+    try {
+      settings.setFfpmDirectory(this._directory.toURI().toURL());
+    }
+    catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    settings.setPredicateLogCompactionThreshold(0);
+    this._core = TestCores.create(settings, TESTBOT_ID);
+    this._manager = (LogPredicateManager) this._core.getPredicateMaster();
+  }
+
+  private void set(String name, String value, String userid) {
+    this._manager.set(name, value, userid, TESTBOT_ID);
+    this._manager.saveAll();
+  }
+
+  private String get(String name, String userid) {
+    return this._manager.get(name, userid, TESTBOT_ID);
+  }
+
+  /**
+   * Starts a core on an empty directory.
+   * 
+   * @throws IOException if the directory cannot be created
+   */
+  @Before
+  public void setUp() throws IOException {
+    this._directory = File.createTempFile("predicates", "");
+    this._directory.delete();
+    this._directory.mkdir();
+    this.restart();
+  }
+
+  /**
+   * Shuts down the core and deletes the directory.
+   */
+  @After
+  public void tearDown() {
+    this._core.shutdown();
+    Filesystem.deleteDirectoryContents(this._directory);
+    this._directory.delete();
+  }
+
+  /**
+   * What was saved is there after a restart, including indexed values.
+   */
+  @Test
+  public void testReplay() {
+    this.set("name", "Ann", TESTUSER_ID);
+    this._manager.push("that", "One.", TESTUSER_ID, TESTBOT_ID);
+    this._manager.push("that", "Two.", TESTUSER_ID, TESTBOT_ID);
+    this.set("name", "Bob", "other");
+    this.restart();
+    assertEquals("Ann", this.get("name", TESTUSER_ID));
+    assertEquals("Two.", this._manager.get("that", 1, TESTUSER_ID, TESTBOT_ID));
+    assertEquals("One.", this._manager.get("that", 2, TESTUSER_ID, TESTBOT_ID));
+    assertEquals("Bob", this.get("name", "other"));
+  }
+
+  /**
+   * A record only partly written when the process died is discarded, and the log is truncated so that what is
+   * appended after it can be read.
+   * 
+   * @throws IOException if the log cannot be changed
+   */
+  @Test
+  public void testTornTailTruncated() throws IOException {
+    this.set("name", "Ann", TESTUSER_ID);
+    this._core.shutdown();
+    this._core = null;
+    File log = this.file("predicates.log");
+    long length = log.length();
+    FileOutputStream out = new FileOutputStream(log, true);
+    try {
+      // A header promising more than follows.
+      out.write(new byte[] { 0, 0, 0, 100, 1, 2, 3, 4, 5, 6, 7 });
+    }
+    finally {
+      out.close();
+    }
+    this.restart();
+    assertEquals(length, log.length());
+    assertEquals("Ann", this.get("name", TESTUSER_ID));
+    this.set("age", "30", TESTUSER_ID);
+    this.restart();
+    assertEquals("Ann", this.get("name", TESTUSER_ID));
+    assertEquals("30", this.get("age", TESTUSER_ID));
+  }
+
+  /**
+   * A record that fails its checksum is discarded (along with anything after it).
+   * 
+   * @throws IOException if the log cannot be changed
+   */
+  @Test
+  public void testBadChecksumRejected() throws IOException {
+    this.set("name", "Ann", TESTUSER_ID);
+    this.set("name", "Bob", TESTUSER_ID);
+    this._core.shutdown();
+    this._core = null;
+    File log = this.file("predicates.log");
+    RandomAccessFile raf = new RandomAccessFile(log, "rw");
+    try {
+      raf.seek(raf.length() - 1);
+      int last = raf.read();
+      raf.seek(raf.length() - 1);
+      raf.write(last ^ 0xff);
+    }
+    finally {
+      raf.close();
+    }
+    this.restart();
+    assertEquals("Ann", this.get("name", TESTUSER_ID));
+  }
+
+  /**
+   * Compaction moves everything in the log into the store, where it is found after a restart, with anything saved
+   * since then applied on top.
+   */
+  @Test
+  public void testCompaction() {
+    for (int user = 0; user < 50; user++) {
+      this._manager.set("name", "name" + user, "user" + user, TESTBOT_ID);
+      this._manager.set("age", String.valueOf(user), "user" + user, TESTBOT_ID);
+    }
+    this._manager.saveAll();
+    this._manager.compact();
+    assertTrue(this.file("predicates.store").exists());
+    assertEquals(0, this.file("predicates.log").length());
+    assertFalse(this.file("predicates.log.compacting").exists());
+
+    this.set("name", "renamed", "user7");
+    this.restart();
+    for (int user = 0; user < 50; user++) {
+      assertEquals(String.valueOf(user), this.get("age", "user" + user));
+    }
+    assertEquals("name3", this.get("name", "user3"));
+    assertEquals("renamed", this.get("name", "user7"));
+
+    // A second compaction merges the old store with the new log.
+    this._manager.compact();
+    this.restart();
+    assertEquals("renamed", this.get("name", "user7"));
+    assertEquals("name49", this.get("name", "user49"));
+  }
+
+  /**
+   * A compaction interrupted after the log was set aside (and part of the new store written) is finished when the
+   * manager starts again.
+   * 
+   * @throws IOException if the files cannot be changed
+   */
+  @Test
+  public void testCrashDuringCompaction() throws IOException {
+    this.set("name", "Ann", TESTUSER_ID);
+    this._manager.compact();
+    this.set("age", "30", TESTUSER_ID);
+    this._core.shutdown();
+    this._core = null;
+    assertTrue(this.file("predicates.log").renameTo(this.file("predicates.log.compacting")));
+    FileOutputStream out = new FileOutputStream(this.file("predicates.store.new"));
+    try {
+      out.write(new byte[] { 1, 2, 3 });
+    }
+    finally {
+      out.close();
+    }
+    this.restart();
+    assertFalse(this.file("predicates.log.compacting").exists());
+    assertFalse(this.file("predicates.store.new").exists());
+    assertEquals("Ann", this.get("name", TESTUSER_ID));
+    assertEquals("30", this.get("age", TESTUSER_ID));
+  }
+
+  /**
+   * A store that was set aside to be replaced, when the process died before its replacement was in place, is put back.
+   */
+  @Test
+  public void testCrashDuringReplace() {
+    this.set("name", "Ann", TESTUSER_ID);
+    this._manager.compact();
+    this._core.shutdown();
+    this._core = null;
+    assertTrue(this.file("predicates.store").renameTo(this.file("predicates.store.old")));
+    this.restart();
+    assertTrue(this.file("predicates.store").exists());
+    assertFalse(this.file("predicates.store.old").exists());
+    assertEquals("Ann", this.get("name", TESTUSER_ID));
+  }
+
+  /**
+   * A compaction that fails keeps the log it set aside, and a later one finishes the job.
+   */
+  @Test
+  public void testFailedCompactionRetried() {
+    this.set("name", "Ann", TESTUSER_ID);
+    File newStore = this.file("predicates.store.new");
+    assertTrue(newStore.mkdir());
+    try {
+      this._manager.compact();
+      fail("Compaction should have failed.");
+    }
+    catch (UserError e) {
+      // As expected.
+    }
+    assertTrue(this.file("predicates.log.compacting").exists());
+    assertEquals("Ann", this.get("name", TESTUSER_ID));
+    this.set("age", "30", TESTUSER_ID);
+
+    assertTrue(newStore.delete());
+    this._manager.compact();
+    assertFalse(this.file("predicates.log.compacting").exists());
+    this.restart();
+    assertEquals("Ann", this.get("name", TESTUSER_ID));
+    assertEquals("30", this.get("age", TESTUSER_ID));
+  }
+
+  /**
+   * Values that span the segments in which a store is mapped are read whole.
+   * 
+   * @throws IOException if the file cannot be written
+   */
+  @Test
+  public void testSegmentedStore() throws IOException {
+    File file = this.file("segmented");
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.writeInt(0x01020304);
+      raf.writeLong(0x0506070809101112L);
+      raf.write(new byte[] { 13, 14, 15 });
+    }
+    finally {
+      raf.close();
+    }
+    LogPredicateManager.Store store = LogPredicateManager.map(file, 5);
+    assertEquals(0x01020304, store.getInt(0));
+    assertEquals(0x0506070809101112L, store.getLong(4));
+    assertEquals(0x02030405, store.getInt(1));
+    byte[] bytes = new byte[6];
+    store.get(9, bytes);
+    assertArrayEquals(new byte[] { 0x10, 0x11, 0x12, 13, 14, 15 }, bytes);
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.predicates;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link PredicateCache}.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class PredicateCacheTest {
+
+  private PredicateCache _cache;
+
+  private long _now;
+
+  /**
+   * Gets the predicates of a user, as if the user were heard from a little later than the last one.
+   * 
+   * @param userid the userid
+   * @return the predicates of the user
+   */
+  private PredicateMap heardFrom(String userid) {
+    PredicateMap predicates = this._cache.predicatesFor(userid);
+    this._now += 10;
+    predicates.touch(this._now);
+    return predicates;
+  }
+
+  /**
+   * Creates an empty cache.
+   */
+  @Before
+  public void setUp() {
+    this._cache = new PredicateCache();
+    this._now = System.currentTimeMillis() - 1000;
+  }
+
+  /**
+   * The first request for a user's predicates is a miss, and later ones are hits on the same map.
+   */
+  @Test
+  public void testHitsAndMisses() {
+    PredicateMap predicates = this.heardFrom("a");
+    assertSame(predicates, this.heardFrom("a"));
+    this.heardFrom("b");
+    assertEquals(2, this._cache.size());
+    assertEquals(2, this._cache.getMissCount());
+    assertEquals(1, this._cache.getHitCount());
+    assertSame(predicates, this._cache.get("a"));
+    assertNull(this._cache.get("c"));
+  }
+
+  /**
+   * Trimming to a size evicts the users heard from least recently, and marks their predicates evicted.
+   */
+  @Test
+  public void testEvictToSize() {
+    PredicateMap a = this.heardFrom("a");
+    this.heardFrom("b");
+    this.heardFrom("c");
+    this.heardFrom("a");
+    assertEquals(1, this._cache.evict(2, 0));
+    assertTrue(this._cache.contains("a"));
+    assertFalse(this._cache.contains("b"));
+    assertTrue(this._cache.contains("c"));
+    assertFalse(a.isEvicted());
+    assertEquals(1, this._cache.getEvictionCount());
+  }
+
+  /**
+   * Trimming by idle time evicts only the users who have not been heard from for longer than the timeout.
+   */
+  @Test
+  public void testEvictIdle() {
+    PredicateMap a = this.heardFrom("a");
+    this.heardFrom("b");
+    a.touch(System.currentTimeMillis() - 60000);
+    assertEquals(1, this._cache.evict(0, 30000));
+    assertTrue(a.isEvicted());
+    assertFalse(this._cache.contains("a"));
+    assertTrue(this._cache.contains("b"));
+    assertEquals(0, this._cache.evict(0, 30000));
+  }
+
+  /**
+   * The predicates of a user with unsaved changes are not evicted until the changes have been saved.
+   */
+  @Test
+  public void testDirtyNotEvicted() {
+    PredicateMap a = this.heardFrom("a");
+    this.heardFrom("b");
+    this.heardFrom("c");
+    a.noteChange("x");
+    assertEquals(2, this._cache.evict(1, 0));
+    assertTrue(this._cache.contains("a"));
+    assertFalse(a.isEvicted());
+    assertEquals(1, this._cache.size());
+
+    a.noteSaved("x", a.getChangeCount("x"));
+    a.touch(System.currentTimeMillis() - 60000);
+    assertEquals(1, this._cache.evict(0, 30000));
+    assertTrue(a.isEvicted());
+    assertEquals(0, this._cache.size());
+  }
+
+  /**
+   * The predicates of a user are not evicted while another thread holds their lock.
+   * 
+   * @throws Exception if the test is interrupted
+   */
+  @Test
+  public void testLockedNotEvicted() throws Exception {
+    final PredicateMap a = this.heardFrom("a");
+    this.heardFrom("b");
+    final CountDownLatch locked = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(1);
+    Thread holder = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        a.lock();
+        try {
+          locked.countDown();
+          done.await();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        finally {
+          a.unlock();
+        }
+      }
+    });
+    holder.start();
+    locked.await();
+    try {
+      assertEquals(1, this._cache.evict(1, 0));
+      assertTrue(this._cache.contains("a"));
+      assertFalse(this._cache.contains("b"));
+    }
+    finally {
+      done.countDown();
+      holder.join();
+    }
+    assertEquals(1, this._cache.evict(0, 1));
+    assertTrue(a.isEvicted());
+  }
+
+  /**
+   * Threads that look up the same new user at the same time all get the same predicates, and only one counts as a miss.
+   * 
+   * @throws Exception if the test is interrupted
+   */
+  @Test
+  public void testConcurrentLookup() throws Exception {
+    final int threads = 8;
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<PredicateMap>> results = new ArrayList<Future<PredicateMap>>();
+      for (int thread = 0; thread < threads; thread++) {
+        results.add(executor.submit(new Callable<PredicateMap>() {
+          @Override
+          public PredicateMap call() throws Exception {
+            start.await();
+            return PredicateCacheTest.this._cache.predicatesFor("a");
+          }
+        }));
+      }
+      start.countDown();
+      PredicateMap predicates = this._cache.get("a");
+      for (Future<PredicateMap> result : results) {
+        PredicateMap found = result.get();
+        if (predicates == null) {
+          predicates = found;
+        }
+        assertSame(predicates, found);
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+    assertEquals(1, this._cache.size());
+    assertEquals(1, this._cache.getMissCount());
+    assertEquals(threads - 1, this._cache.getHitCount());
+  }
+}
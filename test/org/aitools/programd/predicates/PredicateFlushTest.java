@@ -0,0 +1,128 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.predicates;
+
+import static org.junit.Assert.*;
+
+import org.aitools.programd.Bot;
+import org.aitools.programd.Core;
+import org.aitools.programd.ProgrammaticCoreSettings;
+import org.aitools.programd.TestCores;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the writing of dirty predicates by {@link PredicateManager#flushBatch()}.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class PredicateFlushTest {
+
+  private static final String TESTBOT_ID = "TestBot";
+
+  private static final String TESTUSER_ID = "TestUser";
+
+  private Core _core;
+
+  private Bot _testBot;
+
+  private StoringPredicateManager _manager;
+
+  /**
+   * Creates a core whose predicates are only written when asked.
+   */
+  @Before
+  public void setUp() {
+    ProgrammaticCoreSettings settings = TestCores.settings();
+    settings.setPredicateManagerImplementation(StoringPredicateManager.class.getName());
+    this._core = TestCores.create(settings, TESTBOT_ID);
+    this._testBot = this._core.getBot(TESTBOT_ID);
+    this._manager = (StoringPredicateManager) this._core.getPredicateMaster();
+  }
+
+  /**
+   * Shuts down the core.
+   */
+  @After
+  public void tearDown() {
+    this._core.shutdown();
+  }
+
+  /**
+   * A predicate set while the flusher is waiting to copy a batch is not marked saved with that batch, so the user's
+   * predicates are not evicted before it is written, and it is written by the next flush.
+   * 
+   * @throws Exception if the test is interrupted
+   */
+  @Test
+  public void testSetDuringFlushNotLost() throws Exception {
+    this._manager.set("x", "1", TESTUSER_ID, TESTBOT_ID);
+    PredicateMap predicates = this._testBot.getPredicateCache().get(TESTUSER_ID);
+    predicates.lock();
+    Thread flusher;
+    try {
+      // The flusher takes "x" off the dirty queue, then waits for the lock held here.
+      flusher = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          PredicateFlushTest.this._manager.flushBatch();
+        }
+      });
+      flusher.start();
+      while (flusher.getState() != Thread.State.WAITING) {
+        Thread.sleep(1);
+      }
+      this._manager.set("y", "2", TESTUSER_ID, TESTBOT_ID);
+    }
+    finally {
+      predicates.unlock();
+    }
+    flusher.join();
+    assertEquals("1", this._manager.getStored("x", TESTUSER_ID, TESTBOT_ID));
+    assertNull(this._manager.getStored("y", TESTUSER_ID, TESTBOT_ID));
+    assertTrue(predicates.isDirty());
+
+    Thread.sleep(5);
+    assertEquals(0, this._testBot.getPredicateCache().evict(0, 1));
+    this._manager.saveAll();
+    assertEquals("2", this._manager.getStored("y", TESTUSER_ID, TESTBOT_ID));
+    assertFalse(predicates.isDirty());
+  }
+
+  /**
+   * A predicate changed again after it was copied for writing stays dirty until the new value has been written.
+   */
+  @Test
+  public void testChangeAfterCopyStaysDirty() {
+    this._manager.set("x", "1", TESTUSER_ID, TESTBOT_ID);
+    PredicateMap predicates = this._testBot.getPredicateCache().get(TESTUSER_ID);
+    predicates.lock();
+    Integer copied;
+    try {
+      copied = predicates.getChangeCount("x");
+    }
+    finally {
+      predicates.unlock();
+    }
+    this._manager.set("x", "2", TESTUSER_ID, TESTBOT_ID);
+    predicates.lock();
+    try {
+      predicates.noteSaved("x", copied);
+      assertTrue(predicates.isDirty());
+    }
+    finally {
+      predicates.unlock();
+    }
+    this._manager.saveAll();
+    assertEquals("2", this._manager.getStored("x", TESTUSER_ID, TESTBOT_ID));
+    assertFalse(predicates.isDirty());
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.predicates;
+
+import static org.junit.Assert.*;
+
+import java.util.Set;
+
+import org.aitools.programd.Bot;
+import org.aitools.programd.Core;
+import org.aitools.programd.ProgrammaticCoreSettings;
+import org.aitools.programd.TestCores;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the caching, loading and pushing of predicates by {@link PredicateManager}.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class PredicateManagerTest {
+
+  private static final String TESTBOT_ID = "TestBot";
+
+  private static final int CACHE_MAX_USERS = 2;
+
+  private static final int PUSH_MAX_LENGTH = 10;
+
+  private Core _core;
+
+  private Bot _testBot;
+
+  private StoringPredicateManager _manager;
+
+  /**
+   * Creates a core with a small predicate cache, whose predicates are only written when asked.
+   */
+  @Before
+  public void setUp() {
+    ProgrammaticCoreSettings settings = TestCores.settings();
+    settings.setPredicateManagerImplementation(StoringPredicateManager.class.getName());
+    settings.setPredicateCacheMaxUsers(CACHE_MAX_USERS);
+    settings.setPredicatePushMaxLength(PUSH_MAX_LENGTH);
+    this._core = TestCores.create(settings, TESTBOT_ID);
+    this._testBot = this._core.getBot(TESTBOT_ID);
+    this._manager = (StoringPredicateManager) this._core.getPredicateMaster();
+  }
+
+  /**
+   * Shuts down the core.
+   */
+  @After
+  public void tearDown() {
+    this._core.shutdown();
+  }
+
+  /**
+   * The cache holds no more than its maximum number of users, except while some have unsaved changes; once those are
+   * saved they can be evicted, and their predicates are loaded again when they return.
+   */
+  @Test
+  public void testCacheBoundedButDirtyKept() {
+    PredicateCache cache = this._testBot.getPredicateCache();
+    this._manager.set("name", "Ann", "ann", TESTBOT_ID);
+    this._manager.set("name", "Bob", "bob", TESTBOT_ID);
+    this._manager.set("name", "Cy", "cy", TESTBOT_ID);
+    assertEquals(3, cache.size());
+    assertEquals(0, cache.getEvictionCount());
+
+    this._manager.saveAll();
+    this._manager.set("name", "Di", "di", TESTBOT_ID);
+    assertEquals(CACHE_MAX_USERS, cache.size());
+    assertFalse(cache.contains("ann"));
+    assertFalse(cache.contains("bob"));
+    assertEquals(2, cache.getEvictionCount());
+
+    int loads = this._manager.getLoadAllCount();
+    assertEquals("Ann", this._manager.get("name", "ann", TESTBOT_ID));
+    assertEquals(loads + 1, this._manager.getLoadAllCount());
+    assertEquals(CACHE_MAX_USERS, cache.size());
+  }
+
+  /**
+   * All of a returning user's predicates are loaded at once, the first time any of them is needed, and not one at a
+   * time.
+   */
+  @Test
+  public void testLoadAllOnFirstTouch() {
+    this._manager.set("name", "Ann", "ann", TESTBOT_ID);
+    this._manager.set("age", "30", "ann", TESTBOT_ID);
+    this._manager.push("that", "One.", "ann", TESTBOT_ID);
+    this._manager.push("that", "Two.", "ann", TESTBOT_ID);
+    this._manager.saveAll();
+    this._manager.get("name", "bob", TESTBOT_ID);
+    this._manager.get("name", "cy", TESTBOT_ID);
+    assertFalse(this._testBot.getPredicateCache().contains("ann"));
+
+    int loads = this._manager.getLoadAllCount();
+    assertEquals("Ann", this._manager.get("name", "ann", TESTBOT_ID));
+    assertEquals("30", this._manager.get("age", "ann", TESTBOT_ID));
+    assertEquals("Two.", this._manager.get("that", 1, "ann", TESTBOT_ID));
+    assertEquals("One.", this._manager.get("that", 2, "ann", TESTBOT_ID));
+    assertEquals(loads + 1, this._manager.getLoadAllCount());
+    assertEquals(0, this._manager.getLoadCount());
+  }
+
+  /**
+   * Pushed values are kept to the configured length (from their end), and no more than {@link PredicateManager#MAX_INDEX}
+   * of them are kept.
+   */
+  @Test
+  public void testPushBounded() {
+    this._manager.push("that", "The first sentence. The second.", "ann", TESTBOT_ID);
+    assertEquals("he second.", this._manager.get("that", 1, "ann", TESTBOT_ID));
+    for (int index = 1; index <= PredicateManager.MAX_INDEX + 2; index++) {
+      this._manager.push("that", String.valueOf(index), "ann", TESTBOT_ID);
+    }
+    PredicateMap predicates = this._testBot.getPredicateCache().get("ann");
+    predicates.lock();
+    try {
+      assertEquals(PredicateManager.MAX_INDEX, predicates.get("that").size());
+    }
+    finally {
+      predicates.unlock();
+    }
+    assertEquals(String.valueOf(PredicateManager.MAX_INDEX + 2), this._manager.get("that", 1, "ann", TESTBOT_ID));
+    assertEquals("3", this._manager.get("that", PredicateManager.MAX_INDEX, "ann", TESTBOT_ID));
+  }
+
+  /**
+   * Shutting down stops the thread that logs the counts of reads and writes.
+   * 
+   * @throws Exception if the test is interrupted
+   */
+  @Test
+  public void testShutdownStopsStatsLogger() throws Exception {
+    ProgrammaticCoreSettings settings = TestCores.settings();
+    settings.setPredicateManagerImplementation(StoringPredicateManager.class.getName());
+    settings.setPredicateStatsLogInterval(60000);
+    // Other cores (from other tests) may have their own loggers.
+    Set<Thread> before = Thread.getAllStackTraces().keySet();
+    Core core = TestCores.create(settings);
+    Thread logger = null;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if ("PredicateStatsLogger".equals(thread.getName()) && !before.contains(thread)) {
+        logger = thread;
+      }
+    }
+    assertNotNull(logger);
+    core.shutdown();
+    logger.join(5000);
+    assertFalse(logger.isAlive());
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.predicates;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link PredicateStats}.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class PredicateStatsTest {
+
+  /**
+   * Reads, writes and defaults are counted by predicate name and by bot.
+   */
+  @Test
+  public void testCounts() {
+    PredicateStats stats = new PredicateStats();
+    for (int read = 0; read < 3; read++) {
+      stats.noteRead("name", "one");
+    }
+    stats.noteRead("topic", "two");
+    stats.noteWrite("name", "user", "one");
+    stats.noteWrite("name", "user", "two");
+    stats.noteDefault("name", "one");
+    assertEquals("Predicates: 4 reads, 2 writes, 1 defaults used, 2 distinct names.", stats.getSummary());
+    String report = stats.getReport();
+    assertTrue(report, report.contains("Most read predicates: name (3) topic (1)"));
+    assertTrue(report, report.contains("Most written predicates: name (2)"));
+    assertTrue(report, report.contains("Predicates most often defaulted: name (1)"));
+    assertTrue(report, report.contains("Bot \"one\": 3 reads, 1 writes, 1 defaults used."));
+    assertTrue(report, report.contains("Bot \"two\": 1 reads, 1 writes, 0 defaults used."));
+  }
+
+  /**
+   * A user who writes much more than the others is reported as the busiest, even when there are far more users than
+   * the candidates that are tracked.
+   */
+  @Test
+  public void testBusiestUser() {
+    PredicateStats stats = new PredicateStats();
+    for (int write = 0; write < 30000; write++) {
+      stats.noteWrite("that", write % 3 == 0 ? "busy" : "user" + write, "bot");
+    }
+    String report = stats.getReport();
+    String marker = "Users writing most (estimated): ";
+    int start = report.indexOf(marker);
+    assertTrue(report, start >= 0);
+    assertTrue(report, report.startsWith("busy (~", start + marker.length()));
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.predicates;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class PredicateValueTest {
+
+  /**
+   * Pushing keeps the most recent value first, and drops the oldest once the list is full.
+   */
+  @Test
+  public void testPush() {
+    PredicateValue value = new PredicateValue("0");
+    for (int index = 1; index <= 12; index++) {
+      value.push(String.valueOf(index));
+    }
+    assertEquals(PredicateManager.MAX_INDEX, value.size());
+    for (int index = 1; index <= PredicateManager.MAX_INDEX; index++) {
+      assertEquals(String.valueOf(13 - index), value.get(index));
+    }
+    assertEquals("12", value.getFirstValue());
+  }
+
+  /**
+   * Adding at an index moves the later values along, and adding at an invalid index adds at the front.
+   */
+  @Test
+  public void testAddAtIndex() {
+    PredicateValue value = new PredicateValue("b");
+    value.push("a");
+    value.add(2, "x");
+    assertEquals("a", value.get(1));
+    assertEquals("x", value.get(2));
+    assertEquals("b", value.get(3));
+    value.add(9, "y");
+    assertEquals("y", value.get(1));
+    assertEquals(4, value.size());
+  }
+
+  /**
+   * A copy does not change when the original does.
+   */
+  @Test
+  public void testCopy() {
+    PredicateValue value = new PredicateValue("a");
+    value.push("b");
+    PredicateValue copy = new PredicateValue(value);
+    value.push("c");
+    assertEquals(2, copy.size());
+    assertEquals("b", copy.get(1));
+    assertEquals("a", copy.get(2));
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.predicates;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.aitools.programd.Core;
+
+/**
+ * A PredicateManager for tests, which "stores" predicates in memory (unlike {@link InMemoryPredicateManager}, which
+ * only keeps them in the cache), so that what has been written can be checked.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class StoringPredicateManager extends PredicateManager {
+
+  /** The stored predicates, keyed by userid and botid. */
+  private Map<String, Map<String, String>> _stored = new HashMap<String, Map<String, String>>();
+
+  /** The number of times all of a user's predicates have been loaded. */
+  private int _loadAllCount = 0;
+
+  /** The number of times a single predicate has been loaded. */
+  private int _loadCount = 0;
+
+  /**
+   * Creates a new StoringPredicateManager with the given Core as owner.
+   * 
+   * @param core the Core that owns this
+   */
+  public StoringPredicateManager(Core core) {
+    super(core);
+  }
+
+  private static String key(String userid, String botid) {
+    return userid + '\u0000' + botid;
+  }
+
+  /**
+   * @return the number of times all of a user's predicates have been loaded
+   */
+  public synchronized int getLoadAllCount() {
+    return this._loadAllCount;
+  }
+
+  /**
+   * @return the number of times a single predicate has been loaded
+   */
+  public synchronized int getLoadCount() {
+    return this._loadCount;
+  }
+
+  /**
+   * Returns the stored value of a predicate.
+   * 
+   * @param name the predicate name
+   * @param userid the userid
+   * @param botid the botid
+   * @return the stored value, or <code>null</code> if none has been stored
+   */
+  public synchronized String getStored(String name, String userid, String botid) {
+    Map<String, String> predicates = this._stored.get(key(userid, botid));
+    return predicates == null ? null : predicates.get(name);
+  }
+
+  /**
+   * @see org.aitools.programd.predicates.PredicateManager#initialize()
+   */
+  @Override
+  public void initialize() {
+    // Nothing to initialize.
+  }
+
+  /**
+   * @see org.aitools.programd.predicates.PredicateManager#loadAll(java.lang.String, java.lang.String)
+   */
+  @Override
+  protected synchronized Map<String, String> loadAll(String user, String bot) {
+    this._loadAllCount++;
+    Map<String, String> predicates = this._stored.get(key(user, bot));
+    return predicates == null ? new HashMap<String, String>() : new HashMap<String, String>(predicates);
+  }
+
+  /**
+   * @see org.aitools.programd.predicates.PredicateManager#loadPredicate(java.lang.String, java.lang.String,
+   *      java.lang.String)
+   */
+  @Override
+  protected synchronized String loadPredicate(String name, String user, String bot) throws NoSuchPredicateException {
+    this._loadCount++;
+    String value = this.getStored(name, user, bot);
+    if (value == null) {
+      throw new NoSuchPredicateException(name);
+    }
+    return value;
+  }
+
+  /**
+   * Stores multi-valued predicates with each value under the name and its index (as the other managers do).
+   * 
+   * @see org.aitools.programd.predicates.PredicateManager#savePredicates(java.lang.String, java.lang.String,
+   *      java.util.Map)
+   */
+  @Override
+  protected synchronized void savePredicates(String userid, String botid, Map<String, PredicateValue> predicates) {
+    Map<String, String> stored = this._stored.get(key(userid, botid));
+    if (stored == null) {
+      stored = new HashMap<String, String>();
+      this._stored.put(key(userid, botid), stored);
+    }
+    for (Map.Entry<String, PredicateValue> entry : predicates.entrySet()) {
+      PredicateValue value = entry.getValue();
+      if (value.isMultiValued()) {
+        for (int index = 1; index <= value.size(); index++) {
+          stored.put(entry.getKey() + '.' + index, value.get(index));
+        }
+      }
+      else {
+        stored.put(entry.getKey(), value.getFirstValue());
+      }
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.processor.aiml;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.aitools.util.math.MersenneTwisterFast;
+import org.jdom.Element;
+import org.junit.Test;
+
+/**
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class RandomChoicesTest {
+
+  private static Element random(int size) {
+    Element random = new Element(RandomProcessor.label, AIMLProcessorRegistry.XMLNS);
+    for (int index = 0; index < size; index++) {
+      random.addContent(new Element(RandomProcessor.LI, AIMLProcessorRegistry.XMLNS).setText("item " + index));
+    }
+    return random;
+  }
+
+  /**
+   * Every list item is chosen once per round, and no item is chosen twice in a row across rounds.
+   */
+  @Test
+  @SuppressWarnings("boxing")
+  public void testNoRepeats() {
+    RandomChoices choices = new RandomChoices();
+    MersenneTwisterFast generator = new MersenneTwisterFast(42);
+    int last = -1;
+    for (int round = 0; round < 20; round++) {
+      Set<Integer> chosen = new HashSet<Integer>();
+      for (int index = 0; index < 5; index++) {
+        // A fresh element each time, as when a template is parsed again.
+        int choice = choices.choose(random(5), 5, "user", "bot", generator);
+        assertTrue(chosen.add(choice));
+        assertTrue(choice != last);
+        last = choice;
+      }
+    }
+  }
+
+  /**
+   * The choices kept for a user are discarded when the user's session ends.
+   */
+  @Test
+  public void testSessionEnded() {
+    RandomChoices choices = new RandomChoices();
+    MersenneTwisterFast generator = new MersenneTwisterFast(42);
+    choices.choose(random(3), 3, "user", "bot", generator);
+    choices.choose(random(3), 3, "other", "bot", generator);
+    assertEquals(2, choices.getUserCount());
+    choices.sessionEnded("user");
+    assertEquals(1, choices.getUserCount());
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.programd.processor.aiml;
+
+import static org.junit.Assert.*;
+
+import java.net.URL;
+
+import org.aitools.programd.Bot;
+import org.aitools.programd.Core;
+import org.aitools.programd.graph.Graphmapper;
+import org.aitools.util.resource.Filesystem;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class SRAIProcessorTest {
+
+  private static final String TESTBOT_ID = "TestBot";
+
+  private static final String TESTUSER_ID = "TestUser";
+
+  private Core _core;
+
+  private Bot _testBot;
+
+  private URL _source;
+
+  private static String template(String content) {
+    return String.format("<template xmlns=\"%s\">%s</template>", AIMLProcessorRegistry.XMLNS, content);
+  }
+
+  private void addCategory(String pattern, String templateContent) {
+    Graphmapper graphmapper = this._core.getGraphmapper();
+    graphmapper.addCategory(pattern, null, null, template(templateContent), this._testBot, this._source);
+  }
+
+  /**
+   * Creates the core and the test bot.
+   */
+  @Before
+  public void setUp() {
+    this._source = Filesystem.getWorkingDirectory();
+    this._core = new Core(this._source);
+    this._testBot = new Bot(TESTBOT_ID, this._core.getSettings());
+    this._core.addBot(this._testBot);
+  }
+
+  /**
+   * Repeating the same pure reduction within a response gives the same result each time, and after the first time is
+   * answered from the reductions remembered.
+   */
+  @Test
+  public void testRepeatedPureReduction() {
+    this.addCategory("HELLO", "Hi!");
+    this.addCategory("HOWDY", "<srai>HELLO</srai>");
+    this.addCategory("GREETINGS", "<srai>HOWDY</srai> <srai>HOWDY</srai> <srai>HELLO</srai>");
+    assertEquals("Hi! Hi! Hi!", this._core.getResponse("greetings", TESTUSER_ID, TESTBOT_ID));
+    // The second HOWDY and the last HELLO.
+    assertEquals(2f, this._core.averageReductionsRemembered(), 0.01f);
+  }
+
+  /**
+   * Reductions through templates with side effects are processed every time.
+   */
+  @Test
+  public void testRepeatedImpureReduction() {
+    this.addCategory("COUNT", "<think><set name=\"count\"><get name=\"count\"/>I</set></think><get name=\"count\"/>");
+    this.addCategory("TWICE", "<srai>COUNT</srai> <srai>COUNT</srai>");
+    String response = this._core.getResponse("twice", TESTUSER_ID, TESTBOT_ID);
+    String[] counts = response.split(" ");
+    assertEquals(2, counts.length);
+    assertEquals(counts[0] + "I", counts[1]);
+    assertEquals(0f, this._core.averageReductionsRemembered(), 0.01f);
+  }
+
+  /**
+   * Reductions through templates that choose at random are processed every time, and so are those that contain them.
+   */
+  @Test
+  public void testRandomReductionNotRemembered() {
+    this.addCategory("COIN", "<random><li>heads</li><li>tails</li></random>");
+    this.addCategory("FLIP", "<srai>COIN</srai>");
+    this.addCategory("FLIPS", "<srai>FLIP</srai> <srai>FLIP</srai> <srai>COIN</srai>");
+    assertEquals(3, this._core.getResponse("flips", TESTUSER_ID, TESTBOT_ID).split(" ").length);
+    assertEquals(0f, this._core.averageReductionsRemembered(), 0.01f);
+  }
+
+  /**
+   * A reduction that loops back to one being processed is replaced with the infinite loop input, and since its result
+   * depends on what is being processed around it, neither it nor the reductions containing it are remembered.
+   */
+  @Test
+  public void testLoopSubstitutionNotRemembered() {
+    this.addCategory("INFINITE LOOP", "!");
+    this.addCategory("A", "a<srai>B</srai>");
+    this.addCategory("B", "b<srai>A</srai>");
+    assertEquals("ab!", this._core.getResponse("a", TESTUSER_ID, TESTBOT_ID));
+    assertEquals("ba!", this._core.getResponse("b", TESTUSER_ID, TESTBOT_ID));
+    assertEquals(0f, this._core.averageReductionsRemembered(), 0.01f);
+  }
+
+  /**
+   * A reduction of the infinite loop input itself (which cannot be broken) gives nothing, and what contains it is not
+   * remembered either, since whether it counts as a loop depends on what is being processed around it.
+   */
+  @Test
+  public void testUnrecoverableLoopNotRemembered() {
+    this.addCategory("INFINITE LOOP", "!");
+    this.addCategory("STUCK", "stuck<srai>INFINITE LOOP</srai>");
+    this.addCategory("TWICE", "<srai>STUCK</srai>/<srai>STUCK</srai>");
+    assertEquals("stuck/stuck", this._core.getResponse("twice", TESTUSER_ID, TESTBOT_ID));
+    assertEquals(0f, this._core.averageReductionsRemembered(), 0.01f);
+  }
+
+  /**
+   * Sibling reductions of the same input are not mistaken for an infinite loop.
+   */
+  @Test
+  public void testSiblingReductionsAreNotLoops() {
+    this.addCategory("A", "<srai>B</srai><srai>B</srai>");
+    this.addCategory("B", "<srai>C</srai>");
+    this.addCategory("C", "c");
+    assertEquals("cc", this._core.getResponse("a", TESTUSER_ID, TESTBOT_ID));
+  }
+
+  /**
+   * Chains of static reductions are collapsed when the graph is optimized, without changing their results.
+   */
+  @Test
+  public void testCollapsedReductionChain() {
+    this.addCategory("HELLO *", "Hi, <star/>!");
+    this.addCategory("HELLO", "Hi!");
+    this.addCategory("HOWDY", "<srai>HELLO</srai>");
+    this.addCategory("HEY", "<srai>HOWDY</srai>");
+    this.addCategory("YO", "<srai>HEY</srai>");
+    this.addCategory("HEY THERE", "<srai>HELLO THERE</srai>");
+    this.addCategory("YO THERE", "<srai>HEY THERE</srai>");
+    this._core.getGraphmapper().optimize();
+    assertEquals("Hi!", this._core.getResponse("yo", TESTUSER_ID, TESTBOT_ID));
+    assertEquals("Hi, THERE!", this._core.getResponse("yo there", TESTUSER_ID, TESTBOT_ID));
+    assertEquals(2f, this._core.averageReductionsSkipped(), 0.01f);
+  }
+
+  /**
+   * Changing the graph after it has been optimized stops the collapsed chains from being used, since they may no
+   * longer hold.
+   */
+  @Test
+  public void testCollapsedChainForgottenOnChange() {
+    this.addCategory("HEY *", "Hey!");
+    this.addCategory("YO", "<srai>HEY FRIEND</srai>");
+    this._core.getGraphmapper().optimize();
+    assertEquals("Hey!", this._core.getResponse("yo", TESTUSER_ID, TESTBOT_ID));
+    this.addCategory("HEY FRIEND", "Friend!");
+    assertEquals("Friend!", this._core.getResponse("yo", TESTUSER_ID, TESTBOT_ID));
+    this._core.getGraphmapper().optimize();
+    assertEquals("Friend!", this._core.getResponse("yo", TESTUSER_ID, TESTBOT_ID));
+  }
+
+  /**
+   * Static reductions that loop are left to the runtime loop check.
+   */
+  @Test
+  public void testReductionLoopIsNotCollapsed() {
+    this.addCategory("PING", "<srai>PONG</srai>");
+    this.addCategory("PONG", "<srai>PING</srai>");
+    this._core.getGraphmapper().optimize();
+    this._core.getResponse("ping", TESTUSER_ID, TESTBOT_ID);
+    assertEquals(0f, this._core.averageReductionsSkipped(), 0.01f);
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.util.db;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+
+import org.aitools.util.runtime.UserError;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the pooling of connections and statements by {@link DBConnectionManager}, and its accounting of them, with a
+ * stub database behind it.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class DBConnectionManagerTest {
+
+  private static final String DATABASE = "DBConnectionManagerTest";
+
+  private static final int MAX_WAIT = 100;
+
+  private StubDatabase _database;
+
+  private String _uri;
+
+  private DBConnectionManager _manager;
+
+  /**
+   * Creates the stub database, in which every entity looked for is found.
+   */
+  @Before
+  public void setUp() {
+    this._database = new StubDatabase("MySQL", new StubDatabase.Responder() {
+      @Override
+      public List<Object[]> respond(String sql, List<Object> parameters) {
+        return Collections.singletonList(new Object[] { Integer.valueOf(1) });
+      }
+    });
+    this._uri = StubDriver.register(DATABASE, this._database);
+  }
+
+  /**
+   * Closes the pool.
+   */
+  @After
+  public void tearDown() {
+    if (this._manager != null) {
+      this._manager.shutdown();
+    }
+    StubDriver.unregister(DATABASE);
+  }
+
+  /**
+   * Each pooled connection keeps its own prepared statements for reuse, so a statement is prepared only once on each
+   * connection, however often it is used.
+   * 
+   * @throws SQLException
+   */
+  @Test
+  public void testStatementsPooledPerConnection() throws SQLException {
+    this._manager = this.manager(2, 10);
+    Connection first = this._manager.getDBConnection();
+    for (int count = 0; count < 5; count++) {
+      Entity.getOrCreate(first, "bot", "label", "TestBot");
+    }
+    assertEquals(1, this._database.getPrepareCount());
+    first.close();
+
+    // The same connection is handed out again, with its statement still prepared.
+    first = this._manager.getDBConnection();
+    Entity.getOrCreate(first, "bot", "label", "TestBot");
+    assertEquals(1, this._database.getPrepareCount());
+
+    // Another connection prepares its own.
+    Connection second = this._manager.getDBConnection();
+    Entity.getOrCreate(second, "bot", "label", "TestBot");
+    assertEquals(2, this._database.getPrepareCount());
+    first.close();
+    second.close();
+  }
+
+  /**
+   * Without statement pooling, each use prepares (and closes) the statement again.
+   * 
+   * @throws SQLException
+   */
+  @Test
+  public void testStatementsNotPooledWhenTurnedOff() throws SQLException {
+    this._manager = this.manager(2, 0);
+    Connection connection = this._manager.getDBConnection();
+    for (int count = 0; count < 5; count++) {
+      Entity.getOrCreate(connection, "bot", "label", "TestBot");
+    }
+    assertEquals(5, this._database.getPrepareCount());
+    assertEquals(0, this._database.getOpenStatementCount());
+    connection.close();
+  }
+
+  /**
+   * The report counts the connections in use and idle, the most ever in use at once, and the connections borrowed
+   * and not yet returned.
+   * 
+   * @throws SQLException
+   */
+  @Test
+  public void testPoolAccounting() throws SQLException {
+    this._manager = this.manager(3, 0);
+    Connection first = this._manager.getDBConnection();
+    Connection second = this._manager.getDBConnection();
+    Connection third = this._manager.getDBConnection();
+    String report = this._manager.getReport();
+    assertTrue(report, report.contains("3 active, 0 idle"));
+    assertTrue(report, report.contains("peak active 3"));
+    assertTrue(report, report.contains("Borrowed 3 times; 0 failed; 0 reported as leaked; 3 outstanding."));
+
+    first.close();
+    second.close();
+    report = this._manager.getReport();
+    assertTrue(report, report.contains("1 active, 2 idle"));
+    assertTrue(report, report.contains("peak active 3"));
+    assertTrue(report, report.contains("1 outstanding."));
+
+    // Returned connections are handed out again rather than new ones being made.
+    first = this._manager.getDBConnection();
+    assertEquals(3, this._database.getOpenConnectionCount());
+    first.close();
+    third.close();
+    report = this._manager.getReport();
+    assertTrue(report, report.contains("0 active, 3 idle"));
+    assertTrue(report, report.contains("Borrowed 4 times; 0 failed; 0 reported as leaked; 0 outstanding."));
+
+    // Closing the pool closes the idle connections.
+    this._manager.shutdown();
+    assertEquals(0, this._database.getOpenConnectionCount());
+    this._manager = null;
+  }
+
+  /**
+   * When every connection is in use, a caller waits no longer than the maximum wait, and then fails (which is
+   * counted).
+   * 
+   * @throws SQLException
+   */
+  @Test
+  public void testExhaustedPoolFailsAfterWait() throws SQLException {
+    this._manager = this.manager(1, 0);
+    Connection connection = this._manager.getDBConnection();
+    long start = System.currentTimeMillis();
+    try {
+      this._manager.getDBConnection();
+      fail("A connection was had from an exhausted pool.");
+    }
+    catch (UserError e) {
+      // This is expected.
+    }
+    long waited = System.currentTimeMillis() - start;
+    assertTrue(String.format("Waited %dms.", Long.valueOf(waited)), waited >= MAX_WAIT && waited < 10 * MAX_WAIT);
+    assertTrue(this._manager.getReport().contains("Borrowed 1 times; 1 failed;"));
+
+    // Once the connection is returned, it can be had again.
+    connection.close();
+    this._manager.getDBConnection().close();
+  }
+
+  /**
+   * A connection kept longer than the leak timeout is reported, once.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testLeakReportedOnce() throws Exception {
+    this._manager = new DBConnectionManager(StubDriver.class.getName(), this._uri, "user", "password", 0, 2, 0,
+        MAX_WAIT, null, 1);
+    Connection leaked = this._manager.getDBConnection();
+    Connection returned = this._manager.getDBConnection();
+    returned.close();
+    Thread.sleep(20);
+    this._manager.reportLeaks();
+    this._manager.reportLeaks();
+    String report = this._manager.getReport();
+    assertTrue(report, report.contains("1 reported as leaked; 1 outstanding."));
+    assertTrue(report, report.contains("Longest held connection:"));
+
+    leaked.close();
+    assertTrue(this._manager.getReport().contains("1 reported as leaked; 0 outstanding."));
+  }
+
+  private DBConnectionManager manager(int maxActive, int maxOpenStatements) {
+    return new DBConnectionManager(StubDriver.class.getName(), this._uri, "user", "password", 0, maxActive,
+        maxOpenStatements, MAX_WAIT, null, 0);
+  }
+}
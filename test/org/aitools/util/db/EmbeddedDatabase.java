@@ -0,0 +1,131 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.util.db;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.aitools.programd.CoreSettings;
+
+/**
+ * An in-memory HSQLDB database, made from the schema for embedded databases, for testing the
+ * {@link SQLDialect#STANDARD} dialect against a real database. The HSQLDB jar must be on the classpath.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class EmbeddedDatabase {
+
+  /** The driver of the embedded database. */
+  public static final String DRIVER = "org.hsqldb.jdbc.JDBCDriver";
+
+  /** The schema for embedded databases. */
+  private static final String SCHEMA = "resources/database/programd-schema-embedded.sql";
+
+  private EmbeddedDatabase() {
+    // Not to be instantiated.
+  }
+
+  /**
+   * Creates (or empties and creates again) the in-memory database with the given name, and makes the given settings
+   * use it.
+   * 
+   * @param name the name of the database
+   * @param settings the settings of the core that is to use the database
+   * @throws IOException if the schema cannot be read
+   * @throws SQLException if the schema cannot be created
+   */
+  public static void create(String name, CoreSettings settings) throws IOException, SQLException {
+    String uri = "jdbc:hsqldb:mem:" + name;
+    settings.setDatabaseDriver(DRIVER);
+    settings.setDatabaseURI(uri);
+    settings.setDatabaseValidationQuery("VALUES (1)");
+    try {
+      Class.forName(DRIVER);
+    }
+    catch (ClassNotFoundException e) {
+      throw new SQLException("The HSQLDB driver is not on the classpath.", e);
+    }
+    // The first connection to a new database makes its user the database's administrator.
+    Connection connection = DriverManager.getConnection(uri, settings.getDatabaseUsername(),
+        settings.getDatabasePassword());
+    try {
+      Statement statement = connection.createStatement();
+      try {
+        for (String sql : readStatements(new File(SCHEMA))) {
+          statement.execute(sql);
+        }
+      }
+      finally {
+        statement.close();
+      }
+    }
+    finally {
+      connection.close();
+    }
+  }
+
+  /**
+   * Shuts down the in-memory database used by the given settings, discarding everything in it.
+   * 
+   * @param settings
+   * @throws SQLException
+   */
+  public static void drop(CoreSettings settings) throws SQLException {
+    Connection connection = DriverManager.getConnection(settings.getDatabaseURI(), settings.getDatabaseUsername(),
+        settings.getDatabasePassword());
+    try {
+      Statement statement = connection.createStatement();
+      statement.execute("SHUTDOWN");
+      statement.close();
+    }
+    finally {
+      connection.close();
+    }
+  }
+
+  /**
+   * @param file a SQL script, whose statements end with semicolons, and whose comments are whole lines beginning with
+   *          <code>--</code>
+   * @return the statements in the script
+   * @throws IOException
+   */
+  private static String[] readStatements(File file) throws IOException {
+    StringBuilder script = new StringBuilder();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.trim().startsWith("--")) {
+          script.append(line).append('\n');
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+    String[] pieces = script.toString().split(";");
+    int count = 0;
+    for (String piece : pieces) {
+      if (piece.trim().length() > 0) {
+        pieces[count++] = piece.trim();
+      }
+    }
+    String[] statements = new String[count];
+    System.arraycopy(pieces, 0, statements, 0, count);
+    return statements;
+  }
+}
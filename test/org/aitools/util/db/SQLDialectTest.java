@@ -0,0 +1,81 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.util.db;
+
+import static org.junit.Assert.*;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the statements composed by each {@link SQLDialect}, and the choice of dialect.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class SQLDialectTest {
+
+  private static final List<String> COLUMNS = Arrays.asList("user", "bot", "name", "value");
+
+  private static final List<String> KEYS = Arrays.asList("user", "bot", "name");
+
+  /**
+   * MySQL is recognized by the product name its connections give; anything else is taken to speak standard SQL.
+   * 
+   * @throws SQLException
+   */
+  @Test
+  public void testChosenByProductName() throws SQLException {
+    assertEquals(SQLDialect.MYSQL, this.dialectOf("MySQL"));
+    assertEquals(SQLDialect.STANDARD, this.dialectOf("H2"));
+    assertEquals(SQLDialect.STANDARD, this.dialectOf("HSQL Database Engine"));
+  }
+
+  /**
+   * A MySQL upsert is a multi-row INSERT with ON DUPLICATE KEY UPDATE of the columns that are not keys.
+   */
+  @Test
+  public void testMySQLStatements() {
+    assertEquals("INSERT INTO predicate (user, bot, name, value) VALUES (?, ?, ?, ?), (?, ?, ?, ?)"
+        + " ON DUPLICATE KEY UPDATE value = VALUES(value)", SQLDialect.MYSQL.upsert("predicate", COLUMNS, KEYS, 2));
+    assertEquals("INSERT INTO node () VALUES ()", SQLDialect.MYSQL.insertDefaultRow("node"));
+    assertEquals("TRUNCATE edge", SQLDialect.MYSQL.truncate("edge"));
+    assertEquals("user", SQLDialect.MYSQL.identifier("user"));
+  }
+
+  /**
+   * A standard upsert is a MERGE from a table of values, and the names that are reserved words are quoted.
+   */
+  @Test
+  public void testStandardStatements() {
+    assertEquals("MERGE INTO predicate USING (VALUES (?, ?, ?, ?)) AS source (\"USER\", bot, name, \"VALUE\") ON"
+        + " predicate.\"USER\" = source.\"USER\" AND predicate.bot = source.bot AND predicate.name = source.name"
+        + " WHEN MATCHED THEN UPDATE SET \"VALUE\" = source.\"VALUE\""
+        + " WHEN NOT MATCHED THEN INSERT (\"USER\", bot, name, \"VALUE\")"
+        + " VALUES (source.\"USER\", source.bot, source.name, source.\"VALUE\")",
+        SQLDialect.STANDARD.upsert("predicate", COLUMNS, KEYS, 1));
+    assertEquals("INSERT INTO node (id) VALUES (DEFAULT)", SQLDialect.STANDARD.insertDefaultRow("node"));
+    assertEquals("DELETE FROM \"USER\"", SQLDialect.STANDARD.truncate("user"));
+    assertEquals("edge", SQLDialect.STANDARD.identifier("edge"));
+  }
+
+  private SQLDialect dialectOf(String productName) throws SQLException {
+    Connection connection = new StubDatabase(productName, null).connect();
+    try {
+      return SQLDialect.of(connection);
+    }
+    finally {
+      connection.close();
+    }
+  }
+}
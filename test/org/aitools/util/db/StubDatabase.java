@@ -0,0 +1,579 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.util.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * A stand-in for a database, for testing code that uses JDBC where there is no database to use. Connections to it are
+ * proxies that record every statement executed, with its parameters, and hand it to a {@link Responder}, which decides
+ * what rows a query returns and what keys an insertion generates. Each statement in a batch is recorded (and handed
+ * on) separately.
+ * </p>
+ * <p>
+ * The connections, statements and result sets that have been opened and not closed are counted, so that tests can
+ * check that nothing is leaked.
+ * </p>
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class StubDatabase {
+
+  /**
+   * Decides what the statements executed against a {@link StubDatabase} return.
+   */
+  public interface Responder {
+
+    /**
+     * @param sql the statement
+     * @param parameters the values of its parameters, in order
+     * @return the rows returned, if the statement is a query, or the keys generated, if it is not (null for none)
+     * @throws SQLException if the statement is not understood
+     */
+    List<Object[]> respond(String sql, List<Object> parameters) throws SQLException;
+  }
+
+  /**
+   * A statement that has been executed.
+   */
+  public static class Execution {
+
+    /** The statement. */
+    public final String sql;
+
+    /** The values of its parameters. */
+    public final List<Object> parameters;
+
+    /** Whether it was executed as part of a batch. */
+    public final boolean batched;
+
+    /**
+     * @param sql
+     * @param parameters
+     * @param batched
+     */
+    protected Execution(String sql, List<Object> parameters, boolean batched) {
+      this.sql = sql;
+      this.parameters = parameters;
+      this.batched = batched;
+    }
+
+    /**
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+      return this.sql + " " + this.parameters;
+    }
+  }
+
+  /** The name of the database product that connections say they are connected to. */
+  private String _productName;
+
+  /** What decides the results of the statements. */
+  private Responder _responder;
+
+  /** The statements executed, in order. */
+  private List<Execution> _executions = Collections.synchronizedList(new ArrayList<Execution>());
+
+  /** The number of statements prepared. */
+  private AtomicInteger _prepareCount = new AtomicInteger();
+
+  /** The number of statements in each batch executed, in order. */
+  private List<Integer> _batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+  /** The number of transactions committed. */
+  private AtomicInteger _commitCount = new AtomicInteger();
+
+  /** The number of transactions rolled back. */
+  private AtomicInteger _rollbackCount = new AtomicInteger();
+
+  /** The number of connections open. */
+  private AtomicInteger _openConnections = new AtomicInteger();
+
+  /** The number of statements open. */
+  private AtomicInteger _openStatements = new AtomicInteger();
+
+  /** The number of result sets open. */
+  private AtomicInteger _openResultSets = new AtomicInteger();
+
+  /**
+   * Creates a new StubDatabase.
+   * 
+   * @param productName the name of the database product that connections say they are connected to (which decides the
+   *          {@link SQLDialect})
+   * @param responder what decides the results of the statements
+   */
+  public StubDatabase(String productName, Responder responder) {
+    this._productName = productName;
+    this._responder = responder;
+  }
+
+  /**
+   * Forgets the statements executed so far, and resets the counts of prepared statements, batches and transactions
+   * (but not those of open connections, statements and result sets).
+   */
+  public void clear() {
+    this._executions.clear();
+    this._prepareCount.set(0);
+    this._batchSizes.clear();
+    this._commitCount.set(0);
+    this._rollbackCount.set(0);
+  }
+
+  /**
+   * @return a new connection to this database
+   */
+  public Connection connect() {
+    this._openConnections.incrementAndGet();
+    return (Connection) proxy(Connection.class, new ConnectionHandler());
+  }
+
+  /**
+   * @param prefix
+   * @return the number of statements executed that start with the given prefix
+   */
+  public int count(String prefix) {
+    int count = 0;
+    for (Execution execution : this.getExecutions()) {
+      if (execution.sql.startsWith(prefix)) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the number of batches executed
+   */
+  public int getBatchCount() {
+    return this._batchSizes.size();
+  }
+
+  /**
+   * @return the number of statements in each batch executed, in order
+   */
+  public List<Integer> getBatchSizes() {
+    synchronized (this._batchSizes) {
+      return new ArrayList<Integer>(this._batchSizes);
+    }
+  }
+
+  /**
+   * @return the number of transactions committed
+   */
+  public int getCommitCount() {
+    return this._commitCount.get();
+  }
+
+  /**
+   * @return the statements executed, in order
+   */
+  public List<Execution> getExecutions() {
+    synchronized (this._executions) {
+      return new ArrayList<Execution>(this._executions);
+    }
+  }
+
+  /**
+   * @return the number of connections opened and not closed
+   */
+  public int getOpenConnectionCount() {
+    return this._openConnections.get();
+  }
+
+  /**
+   * @return the number of result sets opened and not closed
+   */
+  public int getOpenResultSetCount() {
+    return this._openResultSets.get();
+  }
+
+  /**
+   * @return the number of statements opened and not closed
+   */
+  public int getOpenStatementCount() {
+    return this._openStatements.get();
+  }
+
+  /**
+   * @return the number of statements prepared
+   */
+  public int getPrepareCount() {
+    return this._prepareCount.get();
+  }
+
+  /**
+   * @return the number of transactions rolled back
+   */
+  public int getRollbackCount() {
+    return this._rollbackCount.get();
+  }
+
+  /**
+   * Records a statement and hands it to the responder.
+   * 
+   * @param sql
+   * @param parameters
+   * @param batched
+   * @return the rows or keys given by the responder
+   * @throws SQLException
+   */
+  protected List<Object[]> execute(String sql, List<Object> parameters, boolean batched) throws SQLException {
+    List<Object> values = Collections.unmodifiableList(new ArrayList<Object>(parameters));
+    this._executions.add(new Execution(sql, values, batched));
+    List<Object[]> rows = this._responder.respond(sql, values);
+    return rows == null ? Collections.<Object[]> emptyList() : rows;
+  }
+
+  /**
+   * @param type the interface to implement
+   * @param handler
+   * @return a proxy implementing the given interface with the given handler
+   */
+  protected static Object proxy(Class<?> type, InvocationHandler handler) {
+    return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+  }
+
+  /**
+   * @param method
+   * @param proxy
+   * @param args
+   * @return the result of the given method if it is one that every object has, or the default value for its return
+   *         type otherwise
+   */
+  protected static Object standard(Method method, Object proxy, Object[] args) {
+    String name = method.getName();
+    Class<?> type = method.getReturnType();
+    if ("equals".equals(name)) {
+      return Boolean.valueOf(proxy == args[0]);
+    }
+    if ("hashCode".equals(name)) {
+      return Integer.valueOf(System.identityHashCode(proxy));
+    }
+    if ("toString".equals(name)) {
+      return proxy.getClass().getInterfaces()[0].getSimpleName() + "@" + System.identityHashCode(proxy);
+    }
+    if (type == boolean.class) {
+      return Boolean.FALSE;
+    }
+    if (type == int.class) {
+      return Integer.valueOf(0);
+    }
+    if (type == long.class) {
+      return Long.valueOf(0);
+    }
+    if (type == short.class) {
+      return Short.valueOf((short) 0);
+    }
+    if (type == byte.class) {
+      return Byte.valueOf((byte) 0);
+    }
+    if (type == double.class) {
+      return Double.valueOf(0);
+    }
+    if (type == float.class) {
+      return Float.valueOf(0);
+    }
+    return null;
+  }
+
+  /**
+   * Handles the methods of a connection.
+   */
+  private class ConnectionHandler implements InvocationHandler {
+
+    private boolean autoCommit = true;
+
+    private boolean closed = false;
+
+    protected ConnectionHandler() {
+      // Nothing to do.
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if ("prepareStatement".equals(name)) {
+        this.checkOpen();
+        StubDatabase.this._prepareCount.incrementAndGet();
+        StubDatabase.this._openStatements.incrementAndGet();
+        return proxy(PreparedStatement.class, new StatementHandler((Connection) proxy, (String) args[0]));
+      }
+      if ("createStatement".equals(name)) {
+        this.checkOpen();
+        StubDatabase.this._openStatements.incrementAndGet();
+        return proxy(PreparedStatement.class, new StatementHandler((Connection) proxy, null));
+      }
+      if ("getMetaData".equals(name)) {
+        return proxy(DatabaseMetaData.class, new InvocationHandler() {
+          @Override
+          public Object invoke(Object metadata, Method metadataMethod, Object[] metadataArgs) {
+            if ("getDatabaseProductName".equals(metadataMethod.getName())) {
+              return StubDatabase.this._productName;
+            }
+            return standard(metadataMethod, metadata, metadataArgs);
+          }
+        });
+      }
+      if ("setAutoCommit".equals(name)) {
+        this.autoCommit = ((Boolean) args[0]).booleanValue();
+        return null;
+      }
+      if ("getAutoCommit".equals(name)) {
+        return Boolean.valueOf(this.autoCommit);
+      }
+      if ("commit".equals(name)) {
+        StubDatabase.this._commitCount.incrementAndGet();
+        return null;
+      }
+      if ("rollback".equals(name)) {
+        StubDatabase.this._rollbackCount.incrementAndGet();
+        return null;
+      }
+      if ("close".equals(name)) {
+        if (!this.closed) {
+          this.closed = true;
+          StubDatabase.this._openConnections.decrementAndGet();
+        }
+        return null;
+      }
+      if ("isClosed".equals(name)) {
+        return Boolean.valueOf(this.closed);
+      }
+      if ("isValid".equals(name)) {
+        return Boolean.valueOf(!this.closed);
+      }
+      return standard(method, proxy, args);
+    }
+
+    private void checkOpen() throws SQLException {
+      if (this.closed) {
+        throw new SQLException("Connection is closed.");
+      }
+    }
+  }
+
+  /**
+   * Handles the methods of a statement (prepared or not).
+   */
+  private class StatementHandler implements InvocationHandler {
+
+    private Connection connection;
+
+    private String sql;
+
+    private List<Object> parameters = new ArrayList<Object>();
+
+    private List<List<Object>> batch = new ArrayList<List<Object>>();
+
+    private List<String> sqlBatch = new ArrayList<String>();
+
+    private List<Object[]> keys = new ArrayList<Object[]>();
+
+    private ResultSet results;
+
+    private boolean closed = false;
+
+    protected StatementHandler(Connection connection, String sql) {
+      this.connection = connection;
+      this.sql = sql;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+        int index = ((Integer) args[0]).intValue();
+        while (this.parameters.size() < index) {
+          this.parameters.add(null);
+        }
+        this.parameters.set(index - 1, "setNull".equals(name) ? null : args[1]);
+        return null;
+      }
+      if ("clearParameters".equals(name)) {
+        this.parameters.clear();
+        return null;
+      }
+      if ("addBatch".equals(name)) {
+        if (args != null && args.length == 1) {
+          this.sqlBatch.add((String) args[0]);
+        }
+        else {
+          this.batch.add(new ArrayList<Object>(this.parameters));
+        }
+        return null;
+      }
+      if ("clearBatch".equals(name)) {
+        this.batch.clear();
+        this.sqlBatch.clear();
+        return null;
+      }
+      if ("executeBatch".equals(name)) {
+        this.checkOpen();
+        this.keys.clear();
+        int count = 0;
+        for (List<Object> values : this.batch) {
+          this.keys.addAll(execute(this.sql, values, true));
+          count++;
+        }
+        for (String statement : this.sqlBatch) {
+          this.keys.addAll(execute(statement, Collections.<Object> emptyList(), true));
+          count++;
+        }
+        this.batch.clear();
+        this.sqlBatch.clear();
+        StubDatabase.this._batchSizes.add(Integer.valueOf(count));
+        int[] counts = new int[count];
+        for (int index = 0; index < count; index++) {
+          counts[index] = 1;
+        }
+        return counts;
+      }
+      if ("executeQuery".equals(name) || "execute".equals(name) || "executeUpdate".equals(name)) {
+        this.checkOpen();
+        String statement = args != null && args.length > 0 ? (String) args[0] : this.sql;
+        List<Object[]> rows = execute(statement, args != null && args.length > 0 ? Collections.<Object> emptyList()
+            : this.parameters, false);
+        boolean query = statement.trim().toUpperCase().startsWith("SELECT");
+        this.keys.clear();
+        if (query) {
+          this.results = this.open(rows);
+        }
+        else {
+          this.keys.addAll(rows);
+          this.results = null;
+        }
+        if ("executeQuery".equals(name)) {
+          return this.results;
+        }
+        if ("executeUpdate".equals(name)) {
+          return Integer.valueOf(1);
+        }
+        return Boolean.valueOf(query);
+      }
+      if ("getResultSet".equals(name)) {
+        return this.results;
+      }
+      if ("getUpdateCount".equals(name)) {
+        return Integer.valueOf(this.results == null ? 1 : -1);
+      }
+      if ("getGeneratedKeys".equals(name)) {
+        return this.open(new ArrayList<Object[]>(this.keys));
+      }
+      if ("getConnection".equals(name)) {
+        return this.connection;
+      }
+      if ("close".equals(name)) {
+        if (!this.closed) {
+          this.closed = true;
+          StubDatabase.this._openStatements.decrementAndGet();
+        }
+        return null;
+      }
+      if ("isClosed".equals(name)) {
+        return Boolean.valueOf(this.closed);
+      }
+      return standard(method, proxy, args);
+    }
+
+    private void checkOpen() throws SQLException {
+      if (this.closed) {
+        throw new SQLException("Statement is closed.");
+      }
+    }
+
+    private ResultSet open(List<Object[]> rows) {
+      StubDatabase.this._openResultSets.incrementAndGet();
+      return (ResultSet) proxy(ResultSet.class, new ResultSetHandler(rows));
+    }
+  }
+
+  /**
+   * Handles the methods of a result set.
+   */
+  private class ResultSetHandler implements InvocationHandler {
+
+    private List<Object[]> rows;
+
+    private int row = -1;
+
+    private boolean wasNull = false;
+
+    private boolean closed = false;
+
+    protected ResultSetHandler(List<Object[]> rows) {
+      this.rows = rows;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if ("next".equals(name)) {
+        if (this.closed) {
+          throw new SQLException("Result set is closed.");
+        }
+        this.row++;
+        return Boolean.valueOf(this.row < this.rows.size());
+      }
+      if ("close".equals(name)) {
+        if (!this.closed) {
+          this.closed = true;
+          StubDatabase.this._openResultSets.decrementAndGet();
+        }
+        return null;
+      }
+      if ("isClosed".equals(name)) {
+        return Boolean.valueOf(this.closed);
+      }
+      if ("wasNull".equals(name)) {
+        return Boolean.valueOf(this.wasNull);
+      }
+      if (name.startsWith("get") && args != null && args.length == 1 && args[0] instanceof Integer) {
+        if (this.row < 0 || this.row >= this.rows.size()) {
+          throw new SQLException("No current row.");
+        }
+        Object value = this.rows.get(this.row)[((Integer) args[0]).intValue() - 1];
+        this.wasNull = value == null;
+        if ("getString".equals(name)) {
+          return value == null ? null : value.toString();
+        }
+        if ("getInt".equals(name)) {
+          return Integer.valueOf(value == null ? 0 : ((Number) value).intValue());
+        }
+        if ("getLong".equals(name)) {
+          return Long.valueOf(value == null ? 0 : ((Number) value).longValue());
+        }
+        if ("getTimestamp".equals(name)) {
+          if (value instanceof Date) {
+            return new Timestamp(((Date) value).getTime());
+          }
+          return value == null ? null : new Timestamp(((Number) value).longValue());
+        }
+        return value;
+      }
+      return standard(method, proxy, args);
+    }
+  }
+}
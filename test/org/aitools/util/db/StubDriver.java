@@ -0,0 +1,131 @@
+/*
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 2 of the License, or (at your option) any later
+ * version. You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place - Suite 330, Boston, MA 02111-1307, USA.
+ */
+
+package org.aitools.util.db;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A JDBC driver for {@link StubDatabase}s, so that code which connects through the {@link DriverManager} (such as
+ * {@link DBConnectionManager}) can be tested with them. A database is registered under a name, and reached with the
+ * URL <code>jdbc:stub:</code><i>name</i>. The driver registers itself when its class is loaded.
+ * 
+ * @author <a href="mailto:noel@aitools.org">Noel Bush</a>
+ */
+public class StubDriver implements Driver {
+
+  /** What the URLs understood by this driver start with. */
+  public static final String PREFIX = "jdbc:stub:";
+
+  /** The databases, by name. */
+  private static final Map<String, StubDatabase> DATABASES = new ConcurrentHashMap<String, StubDatabase>();
+
+  static {
+    try {
+      DriverManager.registerDriver(new StubDriver());
+    }
+    catch (SQLException e) {
+      throw new IllegalStateException("Could not register the stub driver.", e);
+    }
+  }
+
+  /**
+   * Makes the given database reachable under the given name.
+   * 
+   * @param name
+   * @param database
+   * @return the URL with which to connect to the database
+   */
+  public static String register(String name, StubDatabase database) {
+    DATABASES.put(name, database);
+    return PREFIX + name;
+  }
+
+  /**
+   * Makes the database registered under the given name unreachable.
+   * 
+   * @param name
+   */
+  public static void unregister(String name) {
+    DATABASES.remove(name);
+  }
+
+  /**
+   * @see java.sql.Driver#acceptsURL(java.lang.String)
+   */
+  @Override
+  public boolean acceptsURL(String url) {
+    return url != null && url.startsWith(PREFIX);
+  }
+
+  /**
+   * @see java.sql.Driver#connect(java.lang.String, java.util.Properties)
+   */
+  @Override
+  public Connection connect(String url, Properties info) throws SQLException {
+    if (!this.acceptsURL(url)) {
+      return null;
+    }
+    StubDatabase database = DATABASES.get(url.substring(PREFIX.length()));
+    if (database == null) {
+      throw new SQLException(String.format("No stub database is registered for \"%s\".", url));
+    }
+    return database.connect();
+  }
+
+  /**
+   * @see java.sql.Driver#getMajorVersion()
+   */
+  @Override
+  public int getMajorVersion() {
+    return 1;
+  }
+
+  /**
+   * @see java.sql.Driver#getMinorVersion()
+   */
+  @Override
+  public int getMinorVersion() {
+    return 0;
+  }
+
+  /**
+   * Not supported.
+   * 
+   * @return nothing
+   * @throws SQLFeatureNotSupportedException always
+   */
+  public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+    throw new SQLFeatureNotSupportedException();
+  }
+
+  /**
+   * @see java.sql.Driver#getPropertyInfo(java.lang.String, java.util.Properties)
+   */
+  @Override
+  public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+    return new DriverPropertyInfo[0];
+  }
+
+  /**
+   * @see java.sql.Driver#jdbcCompliant()
+   */
+  @Override
+  public boolean jdbcCompliant() {
+    return false;
+  }
+}